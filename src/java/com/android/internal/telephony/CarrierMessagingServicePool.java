@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.service.carrier.CarrierMessagingService;
+import android.service.carrier.CarrierMessagingServiceWrapper;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.telephony.Rlog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps connections to {@link CarrierMessagingService}s bound between messages.
+ *
+ * Both {@link CarrierServicesSmsFilter} and the carrier app senders of {@link SMSDispatcher}
+ * acquire a {@link Lease} per message instead of binding and unbinding the service each time. A
+ * connection is shared by all leases of the same package and is unbound after it has been idle
+ * for {@link #IDLE_TIMEOUT_MS}.
+ *
+ * A connection is considered unhealthy when a call through it throws, the service doesn't
+ * answer before the caller's timeout, or the service process dies. It is then no longer handed out
+ * and is unbound once its last lease is released, so the next message binds the service again.
+ *
+ * The wrapper doesn't report disconnections, so each connection also binds a
+ * {@link ServiceConnection} of its own without {@link Context#BIND_AUTO_CREATE}, which doesn't
+ * keep the service running, to watch the service binder.
+ */
+public class CarrierMessagingServicePool {
+    private static final String TAG = "CarrierMessagingServicePool";
+
+    /** Time a connection stays bound after its last lease was released. */
+    @VisibleForTesting
+    public static final long IDLE_TIMEOUT_MS = 60 * 1000;
+
+    private static CarrierMessagingServicePool sInstance;
+
+    /** Called once the service of a lease is ready. */
+    public interface ReadyCallback {
+        /**
+         * The service is bound and calls can be made with {@link Lease#getWrapper()}. May be
+         * called before {@link #acquire} returns if the connection is already bound.
+         */
+        void onServiceReady(@NonNull Lease lease);
+    }
+
+    /** The use of a connection by one message. */
+    public final class Lease {
+        private final Connection mConnection;
+        private final ReadyCallback mCallback;
+        private boolean mReleased;
+
+        private Lease(Connection connection, ReadyCallback callback) {
+            mConnection = connection;
+            mCallback = callback;
+        }
+
+        /** @return The wrapper of the bound service. */
+        public @NonNull CarrierMessagingServiceWrapper getWrapper() {
+            return mConnection.mWrapper;
+        }
+
+        /**
+         * Release the lease. Further calls have no effect.
+         *
+         * @param healthy {@code false} if the service failed or didn't answer in time.
+         */
+        public void release(boolean healthy) {
+            CarrierMessagingServicePool.this.release(this, healthy);
+        }
+    }
+
+    private final class Connection implements ServiceConnection, IBinder.DeathRecipient {
+        final String mPackageName;
+        final CarrierMessagingServiceWrapper mWrapper = new CarrierMessagingServiceWrapper();
+        final long mBindStartTime = SystemClock.elapsedRealtime();
+        final List<Lease> mPendingLeases = new ArrayList<>();
+        final Runnable mIdleTimeout = () -> onIdleTimeout(this);
+        boolean mReady;
+        boolean mHealthy = true;
+        boolean mWatching;
+        int mLeases;
+
+        Connection(String packageName) {
+            mPackageName = packageName;
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            try {
+                service.linkToDeath(this, 0);
+            } catch (RemoteException e) {
+                onServiceDied(this);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            onServiceDied(this);
+        }
+
+        @Override
+        public void onBindingDied(ComponentName name) {
+            onServiceDied(this);
+        }
+
+        @Override
+        public void binderDied() {
+            onServiceDied(this);
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Object mLock = new Object();
+    private final Map<String, Connection> mConnections = new ArrayMap<>();
+
+    private long mBinds;
+    private long mBindFailures;
+    private long mReuses;
+    private long mReadyCount;
+    private long mTotalBindLatencyMs;
+    private long mMaxBindLatencyMs;
+    private long mIdleDisconnects;
+    private long mUnhealthyDisconnects;
+    private long mServiceDeaths;
+
+    private CarrierMessagingServicePool(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return The pool binding services with the application context of the given context.
+     */
+    public static synchronized CarrierMessagingServicePool getInstance(@NonNull Context context) {
+        Context appContext = context.getApplicationContext();
+        if (appContext == null) {
+            appContext = context;
+        }
+        if (sInstance == null || sInstance.mContext != appContext) {
+            sInstance = new CarrierMessagingServicePool(appContext);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Acquire a connection to the carrier messaging service of a package, binding it if needed.
+     *
+     * @param packageName The package of the carrier messaging service.
+     * @param callback Called once the service is ready.
+     * @return The lease to release once the call through it completed, or {@code null} if the
+     *         service couldn't be bound.
+     */
+    public @Nullable Lease acquire(@NonNull String packageName, @NonNull ReadyCallback callback) {
+        Lease lease;
+        boolean ready;
+        synchronized (mLock) {
+            Connection connection = mConnections.get(packageName);
+            boolean bind = connection == null;
+            if (bind) {
+                connection = new Connection(packageName);
+                mConnections.put(packageName, connection);
+                mBinds++;
+            } else {
+                mHandler.removeCallbacks(connection.mIdleTimeout);
+                mReuses++;
+            }
+            connection.mLeases++;
+            lease = new Lease(connection, callback);
+            ready = connection.mReady;
+            if (!ready) {
+                connection.mPendingLeases.add(lease);
+            }
+            if (bind) {
+                // Bind while holding the lock, so that no other lease joins a connection that
+                // fails to bind.
+                final Connection newConnection = connection;
+                if (!connection.mWrapper.bindToCarrierMessagingService(mContext, packageName,
+                        runnable -> runnable.run(), () -> onServiceReady(newConnection))) {
+                    Rlog.e(TAG, "bindService() failed for " + packageName);
+                    mConnections.remove(packageName);
+                    mBindFailures++;
+                    return null;
+                }
+                Intent intent = new Intent(CarrierMessagingService.SERVICE_INTERFACE)
+                        .setPackage(packageName);
+                connection.mWatching = mContext.bindService(intent, connection, 0);
+                if (!connection.mWatching) {
+                    Rlog.w(TAG, "Unable to watch the connection to " + packageName);
+                }
+            }
+        }
+        if (ready) {
+            callback.onServiceReady(lease);
+        }
+        return lease;
+    }
+
+    private void onServiceReady(Connection connection) {
+        List<Lease> pending;
+        synchronized (mLock) {
+            if (connection.mReady || !connection.mHealthy) {
+                // The wrapper reconnected after the service process restarted, the connection
+                // was dropped when the service died.
+                return;
+            }
+            connection.mReady = true;
+            long latency = SystemClock.elapsedRealtime() - connection.mBindStartTime;
+            mReadyCount++;
+            mTotalBindLatencyMs += latency;
+            mMaxBindLatencyMs = Math.max(mMaxBindLatencyMs, latency);
+            pending = new ArrayList<>(connection.mPendingLeases);
+            connection.mPendingLeases.clear();
+        }
+        Rlog.d(TAG, "onServiceReady: " + connection.mPackageName);
+        for (Lease lease : pending) {
+            lease.mCallback.onServiceReady(lease);
+        }
+    }
+
+    private void release(Lease lease, boolean healthy) {
+        Connection connection = lease.mConnection;
+        synchronized (mLock) {
+            if (lease.mReleased) {
+                return;
+            }
+            lease.mReleased = true;
+            connection.mLeases--;
+            connection.mPendingLeases.remove(lease);
+            if (!healthy && connection.mHealthy) {
+                Rlog.w(TAG, "Connection to " + connection.mPackageName + " is unhealthy");
+                connection.mHealthy = false;
+                mUnhealthyDisconnects++;
+                removeConnection(connection);
+            }
+            if (connection.mLeases > 0) {
+                return;
+            }
+            if (connection.mHealthy) {
+                mHandler.postDelayed(connection.mIdleTimeout, IDLE_TIMEOUT_MS);
+                return;
+            }
+        }
+        disconnect(connection);
+    }
+
+    private void onServiceDied(Connection connection) {
+        synchronized (mLock) {
+            if (mConnections.get(connection.mPackageName) != connection) {
+                // Already dropped, and unbound once its last lease is released.
+                return;
+            }
+            Rlog.w(TAG, "Service of " + connection.mPackageName + " died");
+            connection.mHealthy = false;
+            mServiceDeaths++;
+            removeConnection(connection);
+            mHandler.removeCallbacks(connection.mIdleTimeout);
+            if (connection.mLeases > 0) {
+                // The calls in flight fail or time out and release their leases.
+                return;
+            }
+        }
+        disconnect(connection);
+    }
+
+    private void disconnect(Connection connection) {
+        connection.mWrapper.disconnect();
+        if (connection.mWatching) {
+            connection.mWatching = false;
+            mContext.unbindService(connection);
+        }
+    }
+
+    private void onIdleTimeout(Connection connection) {
+        synchronized (mLock) {
+            if (connection.mLeases > 0 || mConnections.get(connection.mPackageName)
+                    != connection) {
+                return;
+            }
+            removeConnection(connection);
+            mIdleDisconnects++;
+        }
+        Rlog.d(TAG, "Unbinding idle connection to " + connection.mPackageName);
+        disconnect(connection);
+    }
+
+    /** Stop handing out the connection. Must hold {@link #mLock}. */
+    private void removeConnection(Connection connection) {
+        if (mConnections.get(connection.mPackageName) == connection) {
+            mConnections.remove(connection.mPackageName);
+        }
+    }
+
+    /** @return The number of times a service was bound. */
+    @VisibleForTesting
+    public long getBindCount() {
+        synchronized (mLock) {
+            return mBinds;
+        }
+    }
+
+    /** @return The number of leases served by an already bound connection. */
+    @VisibleForTesting
+    public long getReuseCount() {
+        synchronized (mLock) {
+            return mReuses;
+        }
+    }
+
+    /**
+     * Dump the state of the pool.
+     *
+     * @param pw Print writer
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(TAG + ":");
+            pw.increaseIndent();
+            for (Connection connection : mConnections.values()) {
+                pw.println(connection.mPackageName + ": ready=" + connection.mReady
+                        + " leases=" + connection.mLeases);
+            }
+            long avgBindLatencyMs = mReadyCount == 0 ? 0 : mTotalBindLatencyMs / mReadyCount;
+            pw.println("binds=" + mBinds + " bindFailures=" + mBindFailures
+                    + " reuses=" + mReuses + " idleDisconnects=" + mIdleDisconnects
+                    + " unhealthyDisconnects=" + mUnhealthyDisconnects
+                    + " serviceDeaths=" + mServiceDeaths);
+            pw.println("avgBindLatencyMs=" + avgBindLatencyMs + " maxBindLatencyMs="
+                    + mMaxBindLatencyMs + " estimatedSavedMs=" + mReuses * avgBindLatencyMs);
+            pw.decreaseIndent();
+        }
+    }
+}
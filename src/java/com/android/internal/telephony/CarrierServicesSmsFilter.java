@@ -24,7 +24,6 @@ import android.os.Binder;
 import android.os.Handler;
 import android.os.Message;
 import android.service.carrier.CarrierMessagingService;
-import android.service.carrier.CarrierMessagingServiceWrapper;
 import android.service.carrier.CarrierMessagingServiceWrapper.CarrierMessagingCallback;
 import android.service.carrier.MessagePdu;
 import android.telephony.AnomalyReporter;
@@ -175,8 +174,7 @@ public class CarrierServicesSmsFilter {
         CarrierSmsFilter smsFilter = new CarrierSmsFilter(mPdus, mDestPort, mPduFormat,
                 packageName);
         CarrierSmsFilterCallback smsFilterCallback =
-                new CarrierSmsFilterCallback(filterAggregator,
-                        smsFilter.mCarrierMessagingServiceWrapper, packageName);
+                new CarrierSmsFilterCallback(filterAggregator, smsFilter, packageName);
         filterAggregator.addToCallbacks(smsFilterCallback);
 
         smsFilter.filterSms(smsFilterCallback);
@@ -224,9 +222,9 @@ public class CarrierServicesSmsFilter {
     }
 
     /**
-     * Asynchronously binds to the carrier messaging service, and filters out the message if
-     * instructed to do so by the carrier messaging service. A new instance must be used for every
-     * message.
+     * Asynchronously acquires a connection to the carrier messaging service from
+     * {@link CarrierMessagingServicePool}, and filters out the message if instructed to do so by
+     * the carrier messaging service. A new instance must be used for every message.
      */
     private final class CarrierSmsFilter {
         private final byte[][] mPdus;
@@ -235,8 +233,8 @@ public class CarrierServicesSmsFilter {
         // Instantiated in filterSms.
         private volatile CarrierSmsFilterCallback mSmsFilterCallback;
         private final String mPackageName;
-        protected final CarrierMessagingServiceWrapper mCarrierMessagingServiceWrapper =
-                new CarrierMessagingServiceWrapper();
+        // Set in filterSms, or earlier by onServiceReady if the service is already bound.
+        private volatile CarrierMessagingServicePool.Lease mLease;
 
         CarrierSmsFilter(byte[][] pdus, int destPort, String smsFormat, String packageName) {
             mPdus = pdus;
@@ -247,16 +245,18 @@ public class CarrierServicesSmsFilter {
 
         /**
          * Attempts to bind to a {@link CarrierMessagingService}. Filtering is initiated
-         * asynchronously once the service is ready using {@link #onServiceReady()}.
+         * asynchronously once the service is ready using {@link #onServiceReady}.
          */
         void filterSms(CarrierSmsFilterCallback smsFilterCallback) {
             mSmsFilterCallback = smsFilterCallback;
-            if (!mCarrierMessagingServiceWrapper.bindToCarrierMessagingService(
-                    mContext, mPackageName, runnable -> runnable.run(), ()-> onServiceReady())) {
+            CarrierMessagingServicePool.Lease lease = CarrierMessagingServicePool
+                    .getInstance(mContext).acquire(mPackageName, this::onServiceReady);
+            if (lease == null) {
                 loge("CarrierSmsFilter::filterSms: bindService() failed for " + mPackageName);
                 smsFilterCallback.onReceiveSmsComplete(
                         CarrierMessagingService.RECEIVE_OPTIONS_DEFAULT);
             } else {
+                mLease = lease;
                 logv("CarrierSmsFilter::filterSms: bindService() succeeded for "
                         + mPackageName);
             }
@@ -266,34 +266,44 @@ public class CarrierServicesSmsFilter {
          * Invokes the {@code carrierMessagingService} to filter messages. The filtering result is
          * delivered to {@code smsFilterCallback}.
          */
-        private void onServiceReady() {
+        private void onServiceReady(CarrierMessagingServicePool.Lease lease) {
+            mLease = lease;
             try {
                 log("onServiceReady: calling filterSms on " + mPackageName);
-                mCarrierMessagingServiceWrapper.receiveSms(
+                lease.getWrapper().receiveSms(
                         new MessagePdu(Arrays.asList(mPdus)), mSmsFormat, mDestPort,
                         mPhone.getSubId(), runnable -> runnable.run(), mSmsFilterCallback);
             } catch (RuntimeException e) {
                 loge("Exception filtering the SMS with " + mPackageName + ": " + e);
+                lease.release(false /* healthy */);
                 mSmsFilterCallback.onReceiveSmsComplete(
                         CarrierMessagingService.RECEIVE_OPTIONS_DEFAULT);
             }
         }
+
+        /** Return the connection to the pool. */
+        void releaseConnection(boolean healthy) {
+            CarrierMessagingServicePool.Lease lease = mLease;
+            if (lease != null) {
+                lease.release(healthy);
+            }
+        }
     }
 
     /**
      * A callback used to notify the platform of the carrier messaging app filtering result. Once
-     * the result is ready, the carrier messaging service connection is disposed.
+     * the result is ready, the carrier messaging service connection is returned to the pool.
      */
     private final class CarrierSmsFilterCallback implements CarrierMessagingCallback {
         private final FilterAggregator mFilterAggregator;
-        private final CarrierMessagingServiceWrapper mCarrierMessagingServiceWrapper;
+        private final CarrierSmsFilter mSmsFilter;
         private boolean mIsOnFilterCompleteCalled;
         private final String mPackageName;
 
-        CarrierSmsFilterCallback(FilterAggregator filterAggregator,
-                CarrierMessagingServiceWrapper carrierMessagingServiceWrapper, String packageName) {
+        CarrierSmsFilterCallback(FilterAggregator filterAggregator, CarrierSmsFilter smsFilter,
+                String packageName) {
             mFilterAggregator = filterAggregator;
-            mCarrierMessagingServiceWrapper = carrierMessagingServiceWrapper;
+            mSmsFilter = smsFilter;
             mIsOnFilterCompleteCalled = false;
             mPackageName = packageName;
         }
@@ -309,7 +319,7 @@ public class CarrierServicesSmsFilter {
             // is run afterwards, we should not follow through
             if (!mIsOnFilterCompleteCalled) {
                 mIsOnFilterCompleteCalled = true;
-                mCarrierMessagingServiceWrapper.disconnect();
+                mSmsFilter.releaseConnection(true /* healthy */);
                 mFilterAggregator.onFilterComplete(result, this);
             }
         }
@@ -414,8 +424,12 @@ public class CarrierServicesSmsFilter {
         }
 
         private void handleFilterCallbacksTimeout() {
-            for (CarrierSmsFilterCallback callback : mFilterAggregator.mCallbacks) {
+            // Completing a callback removes it from mCallbacks.
+            List<CarrierSmsFilterCallback> callbacks =
+                    new ArrayList<>(mFilterAggregator.mCallbacks);
+            for (CarrierSmsFilterCallback callback : callbacks) {
                 log("handleFilterCallbacksTimeout: calling onFilterComplete");
+                callback.mSmsFilter.releaseConnection(false /* healthy */);
                 callback.onReceiveSmsComplete(CarrierMessagingService.RECEIVE_OPTIONS_DEFAULT);
             }
         }
@@ -16,6 +16,8 @@
 
 package com.android.internal.telephony;
 
+import static com.android.internal.telephony.SmsResponse.NO_ERROR_CODE;
+
 import android.content.Context;
 import android.os.Binder;
 import android.os.PersistableBundle;
@@ -71,6 +73,13 @@ public class ImsSmsDispatcher extends SMSDispatcher {
                 FeatureConnector.Listener<ImsManager> listener, Executor executor);
     }
 
+    /**
+     * Carrier config key holding the number of parts kept in flight when sending a multipart
+     * message over IMS. The parts are sent all at once if unset or {@code 0}.
+     */
+    @VisibleForTesting
+    public static final String KEY_IMS_SMS_SEND_WINDOW_SIZE_INT = "ims_sms_send_window_size_int";
+
     @VisibleForTesting
     public Map<Integer, SmsTracker> mTrackers = new ConcurrentHashMap<>();
     @VisibleForTesting
@@ -170,11 +179,13 @@ public class ImsSmsDispatcher extends SMSDispatcher {
                         break;
                     case ImsSmsImplBase.SEND_STATUS_ERROR_RETRY:
                         tracker.mRetryCount += 1;
+                        mSendPipeline.onPartRetry(tracker);
                         sendSms(tracker);
                         break;
                     case ImsSmsImplBase.SEND_STATUS_ERROR_FALLBACK:
                         tracker.mRetryCount += 1;
                         mTrackers.remove(token);
+                        mSendPipeline.onPartFallback(tracker);
                         fallbackToPstn(tracker);
                         break;
                     default:
@@ -288,6 +299,7 @@ public class ImsSmsDispatcher extends SMSDispatcher {
                             mImsManager = null;
                             mIsImsServiceUp = false;
                         }
+                        handlePendingTrackers();
                     }
                 }, this::post);
         post(mConnectRunnable);
@@ -441,6 +453,7 @@ public class ImsSmsDispatcher extends SMSDispatcher {
         } catch (ImsException e) {
             loge("sendSms failed. Falling back to PSTN. Error: " + e.getMessage());
             mTrackers.remove(token);
+            mSendPipeline.onPartFallback(tracker);
             fallbackToPstn(tracker);
             mMetrics.writeImsServiceSendSms(mPhone.getPhoneId(), format,
                     ImsSmsImplBase.SEND_STATUS_ERROR_FALLBACK, tracker.mMessageId);
@@ -454,6 +467,44 @@ public class ImsSmsDispatcher extends SMSDispatcher {
         }
     }
 
+    /**
+     * Handle the parts sent to the ImsService which didn't get a result yet, since their results
+     * can't arrive anymore once the connection to the ImsService is gone. In pipelined mode they
+     * fail, so that their send window slots are freed. Otherwise they are retried over CS.
+     */
+    private void handlePendingTrackers() {
+        boolean pipelined = mSendPipeline.getWindowSize() > 0;
+        for (Integer token : mTrackers.keySet()) {
+            SmsTracker tracker = mTrackers.remove(token);
+            if (tracker == null) {
+                continue;
+            }
+            logd("handlePendingTrackers: token=" + token + " pipelined=" + pipelined + " "
+                    + SmsController.formatCrossStackMessageId(tracker.mMessageId));
+            if (pipelined) {
+                tracker.onFailed(mContext, SmsManager.RESULT_ERROR_NO_SERVICE, NO_ERROR_CODE);
+            } else {
+                mSendPipeline.onPartFallback(tracker);
+                fallbackToPstn(tracker);
+            }
+        }
+    }
+
+    /**
+     * The ImsService accepts concurrent token-based submissions, so the pipelined mode can be
+     * enabled with {@link #KEY_IMS_SMS_SEND_WINDOW_SIZE_INT}.
+     */
+    @Override
+    protected int getSendWindowSize() {
+        CarrierConfigManager configManager = (CarrierConfigManager) mContext
+                .getSystemService(Context.CARRIER_CONFIG_SERVICE);
+        if (configManager == null) {
+            return 0;
+        }
+        PersistableBundle b = configManager.getConfigForSubId(getSubId());
+        return b != null ? b.getInt(KEY_IMS_SMS_SEND_WINDOW_SIZE_INT, 0) : 0;
+    }
+
     private ImsManager getImsManager() throws ImsException {
         synchronized (mLock) {
             if (mImsManager == null) {
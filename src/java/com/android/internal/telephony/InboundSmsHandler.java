@@ -58,6 +58,7 @@ import android.os.PowerManager;
 import android.os.PowerWhitelistManager;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManager;
@@ -287,6 +288,15 @@ public abstract class InboundSmsHandler extends StateMachine {
 
     private List<SmsFilter> mSmsFilters;
 
+    /** Latency of each SMS filter. */
+    private final SmsFilterStats mSmsFilterStats = new SmsFilterStats();
+
+    /** Multi-part segments received so far, to avoid re-querying the raw table per segment. */
+    private final InboundSmsReassemblyBuffer mReassemblyBuffer = new InboundSmsReassemblyBuffer();
+
+    /** Coalesces raw table deletes with the next insert. */
+    private final SmsRawTableBatcher mRawTableBatcher;
+
     /**
      * Create a new SMS broadcast helper.
      * @param name the class name for logging
@@ -301,6 +311,8 @@ public abstract class InboundSmsHandler extends StateMachine {
         mStorageMonitor = storageMonitor;
         mPhone = phone;
         mResolver = context.getContentResolver();
+        mRawTableBatcher = new SmsRawTableBatcher(mResolver, sRawUri.getAuthority(), name,
+                getHandler().getLooper());
         mWapPush = new WapPushOverSms(context);
 
         boolean smsCapable = mContext.getResources().getBoolean(
@@ -340,6 +352,7 @@ public abstract class InboundSmsHandler extends StateMachine {
      */
     @Override
     protected void onQuitting() {
+        mRawTableBatcher.flush();
         mWapPush.dispose();
         mCellBroadcastServiceManager.disable();
 
@@ -469,6 +482,8 @@ public abstract class InboundSmsHandler extends StateMachine {
         @Override
         public void enter() {
             if (DBG) log("IdleState.enter: entering IdleState");
+            // No more messages to process, apply the deletes queued while delivering.
+            mRawTableBatcher.flush();
             sendMessageDelayed(EVENT_RELEASE_WAKELOCK, getWakeLockTimeout());
         }
 
@@ -899,6 +914,68 @@ public abstract class InboundSmsHandler extends StateMachine {
         }
     }
 
+    /**
+     * Query the raw table for the segments of the multi-part message the tracker belongs to and
+     * buffer them, so later segments of the same message don't need to query the raw table.
+     *
+     * @param tracker A segment of a multi-part message, already added to the raw table.
+     * @return The buffered segments, or {@code null} if none were found in the raw table (the
+     * message was already delivered) or the raw table is not accessible.
+     */
+    private InboundSmsReassemblyBuffer.Segments loadSegmentsFromRawTable(
+            InboundSmsTracker tracker) {
+        String[] whereArgs = {tracker.getAddress(),
+                Integer.toString(tracker.getReferenceNumber()),
+                Integer.toString(tracker.getMessageCount())};
+        try (Cursor cursor = queryRawTable(PDU_SEQUENCE_PORT_PROJECTION,
+                tracker.getQueryForSegments(), whereArgs)) {
+            if (cursor.getCount() == 0) {
+                log("processMessagePart: returning false. No segments of refNumber: "
+                        + tracker.getReferenceNumber() + " left in the raw table",
+                        tracker.getMessageId());
+                return null;
+            }
+            InboundSmsReassemblyBuffer.Segments segments = mReassemblyBuffer.create(tracker);
+            while (cursor.moveToNext()) {
+                // subtract offset to convert sequence to 0-based array index
+                int index = cursor.getInt(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                        .get(SEQUENCE_COLUMN)) - tracker.getIndexOffset();
+
+                int port = -1;
+                if (!cursor.isNull(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                        .get(DESTINATION_PORT_COLUMN))) {
+                    // strip format flags and convert to real port number, or -1
+                    port = InboundSmsTracker.getRealDestPort(cursor.getInt(
+                            PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                                    .get(DESTINATION_PORT_COLUMN)));
+                }
+
+                // The invalid PDUs can be received and stored in the raw table. The range
+                // check ensures the process not crash even if the seqNumber in the
+                // UserDataHeader is invalid.
+                if (!segments.add(index,
+                        HexDump.hexStringToByteArray(cursor.getString(
+                                PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING.get(PDU_COLUMN))),
+                        cursor.getLong(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                                .get(DATE_COLUMN)),
+                        cursor.getString(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                                .get(DISPLAY_ADDRESS_COLUMN)),
+                        port)) {
+                    loge(String.format(
+                            "processMessagePart: invalid seqNumber = %d, messageCount = %d",
+                            index + tracker.getIndexOffset(), tracker.getMessageCount()),
+                            tracker.getMessageId());
+                }
+            }
+            return segments;
+        } catch (SQLException e) {
+            loge("processMessagePart: Can't access multipart SMS database, "
+                    + SmsController.formatCrossStackMessageId(tracker.getMessageId()), e);
+            mReassemblyBuffer.remove(tracker);
+            return null;
+        }
+    }
+
     /**
      * Process the inbound SMS segment. If the message is complete, send it as an ordered
      * broadcast to interested receivers and return true. If the message is a segment of an
@@ -929,93 +1006,60 @@ public abstract class InboundSmsHandler extends StateMachine {
             block = BlockChecker.isBlocked(mContext, tracker.getDisplayAddress(), null);
         } else {
             // multi-part message
-            Cursor cursor = null;
-            try {
-                // used by several query selection arguments
-                String refNumber = Integer.toString(tracker.getReferenceNumber());
-                String count = Integer.toString(tracker.getMessageCount());
-
-                // query for all segments and broadcast message if we have all the parts
-                String[] whereArgs = {address, refNumber, count};
-                cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
-                        tracker.getQueryForSegments(), whereArgs, null);
-
-                int cursorCount = cursor.getCount();
-                if (cursorCount < messageCount) {
-                    // Wait for the other message parts to arrive. It's also possible for the last
-                    // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
-                    // earlier segments. In that case, the broadcast will be sent as soon as all
-                    // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
-                    // get a row count of 0 and return.
-                    log("processMessagePart: returning false. Only " + cursorCount + " of "
-                            + messageCount + " segments " + " have arrived. refNumber: "
-                            + refNumber, tracker.getMessageId());
+            String refNumber = Integer.toString(tracker.getReferenceNumber());
+            InboundSmsReassemblyBuffer.Segments segments = mReassemblyBuffer.get(tracker);
+            if (segments != null) {
+                // The earlier segments are buffered, so there is no need to query the raw table.
+                int index = tracker.getSequenceNumber() - tracker.getIndexOffset();
+                if (!segments.add(index, tracker.getPdu(), tracker.getTimestamp(),
+                        tracker.getDisplayAddress(), tracker.getDestPort())) {
+                    loge(String.format(
+                            "processMessagePart: invalid seqNumber = %d, messageCount = %d",
+                            tracker.getSequenceNumber(), messageCount),
+                            tracker.getMessageId());
+                }
+            } else {
+                segments = loadSegmentsFromRawTable(tracker);
+                if (segments == null) {
                     return false;
                 }
+            }
 
-                // All the parts are in place, deal with them
-                pdus = new byte[messageCount][];
-                timestamps = new long[messageCount];
-                while (cursor.moveToNext()) {
-                    // subtract offset to convert sequence to 0-based array index
-                    int index = cursor.getInt(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                            .get(SEQUENCE_COLUMN)) - tracker.getIndexOffset();
-
-                    // The invalid PDUs can be received and stored in the raw table. The range
-                    // check ensures the process not crash even if the seqNumber in the
-                    // UserDataHeader is invalid.
-                    if (index >= pdus.length || index < 0) {
-                        loge(String.format(
-                                "processMessagePart: invalid seqNumber = %d, messageCount = %d",
-                                index + tracker.getIndexOffset(),
-                                messageCount),
-                                tracker.getMessageId());
-                        continue;
-                    }
+            if (!segments.isComplete()) {
+                // Wait for the other message parts to arrive. It's also possible for the last
+                // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
+                // earlier segments. In that case, the broadcast will be sent as soon as all
+                // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
+                // find no segments in the table and return.
+                log("processMessagePart: returning false. Only " + segments.getReceivedCount()
+                        + " of " + messageCount + " segments " + " have arrived. refNumber: "
+                        + refNumber, tracker.getMessageId());
+                return false;
+            }
+            mReassemblyBuffer.remove(tracker);
 
-                    pdus[index] = HexDump.hexStringToByteArray(cursor.getString(
-                            PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING.get(PDU_COLUMN)));
-
-                    // Read the destination port from the first segment (needed for CDMA WAP PDU).
-                    // It's not a bad idea to prefer the port from the first segment in other cases.
-                    if (index == 0 && !cursor.isNull(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                            .get(DESTINATION_PORT_COLUMN))) {
-                        int port = cursor.getInt(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                                .get(DESTINATION_PORT_COLUMN));
-                        // strip format flags and convert to real port number, or -1
-                        port = InboundSmsTracker.getRealDestPort(port);
-                        if (port != -1) {
-                            destPort = port;
-                        }
-                    }
+            // All the parts are in place, deal with them
+            pdus = segments.getPdus();
+            timestamps = segments.getTimestamps();
 
-                    timestamps[index] = cursor.getLong(
-                            PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING.get(DATE_COLUMN));
-
-                    // check if display address should be blocked or not
-                    if (!block) {
-                        // Depending on the nature of the gateway, the display origination address
-                        // is either derived from the content of the SMS TP-OA field, or the TP-OA
-                        // field contains a generic gateway address and the from address is added
-                        // at the beginning in the message body. In that case only the first SMS
-                        // (part of Multi-SMS) comes with the display originating address which
-                        // could be used for block checking purpose.
-                        block = BlockChecker.isBlocked(mContext,
-                                cursor.getString(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                                        .get(DISPLAY_ADDRESS_COLUMN)), null);
-                    }
-                }
-                log("processMessagePart: all " + messageCount + " segments "
-                        + " received. refNumber: " + refNumber, tracker.getMessageId());
-            } catch (SQLException e) {
-                loge("processMessagePart: Can't access multipart SMS database, "
-                        + SmsController.formatCrossStackMessageId(tracker.getMessageId()), e);
-                return false;
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+            // Prefer the destination port from the first segment (needed for CDMA WAP PDU).
+            if (segments.getFirstSegmentDestPort() != -1) {
+                destPort = segments.getFirstSegmentDestPort();
+            }
+
+            // Depending on the nature of the gateway, the display origination address is either
+            // derived from the content of the SMS TP-OA field, or the TP-OA field contains a
+            // generic gateway address and the from address is added at the beginning in the
+            // message body. In that case only the first SMS (part of Multi-SMS) comes with the
+            // display originating address which could be used for block checking purpose.
+            for (String displayAddress : segments.getDisplayAddresses()) {
+                if (BlockChecker.isBlocked(mContext, displayAddress, null)) {
+                    block = true;
+                    break;
                 }
             }
+            log("processMessagePart: all " + messageCount + " segments "
+                    + " received. refNumber: " + refNumber, tracker.getMessageId());
         }
 
         final boolean isWapPush = (destPort == SmsHeader.PORT_WAP_PUSH);
@@ -1202,57 +1246,130 @@ public abstract class InboundSmsHandler extends StateMachine {
      * missed incoming call SMS filter.
      *
      * <p>Since the carrier filter is asynchronous, if a message passes through the carrier filter,
-     * the remaining filters will be applied in the callback.
+     * the remaining filters will be applied in the callback. They are prepared while the carrier
+     * filter is running.
      */
     private List<SmsFilter> createDefaultSmsFilters() {
         List<SmsFilter> smsFilters = new ArrayList<>(3);
-        smsFilters.add(
-                (pdus, destPort, tracker, resultReceiver, userUnlocked, block, remainingFilters)
-                        -> {
-                    CarrierServicesSmsFilterCallback filterCallback =
-                            new CarrierServicesSmsFilterCallback(
-                                    pdus, destPort, tracker, tracker.getFormat(), resultReceiver,
-                                    userUnlocked,
-                                    tracker.isClass0(), tracker.getSubId(), tracker.getMessageId(),
-                                    block, remainingFilters);
-                    CarrierServicesSmsFilter carrierServicesFilter = new CarrierServicesSmsFilter(
-                            mContext, mPhone, pdus, destPort, tracker.getFormat(),
-                            filterCallback, getName() + "::CarrierServicesSmsFilter",
-                            mCarrierServiceLocalLog, tracker.getMessageId());
-                    if (carrierServicesFilter.filter()) {
-                        log("SMS is being handled by carrier service", tracker.getMessageId());
-                        return true;
-                    } else {
-                        return false;
-                    }
-                });
-        smsFilters.add(
-                (pdus, destPort, tracker, resultReceiver, userUnlocked, block, remainingFilters)
-                        -> {
-                    if (VisualVoicemailSmsFilter.filter(
-                            mContext, pdus, tracker.getFormat(), destPort, tracker.getSubId())) {
-                        logWithLocalLog("Visual voicemail SMS dropped", tracker.getMessageId());
-                        dropFilteredSms(tracker, resultReceiver, block);
-                        return true;
-                    }
-                    return false;
-                });
-        smsFilters.add(
-                (pdus, destPort, tracker, resultReceiver, userUnlocked, block, remainingFilters)
-                        -> {
-                    MissedIncomingCallSmsFilter missedIncomingCallSmsFilter =
-                            new MissedIncomingCallSmsFilter(mPhone);
-                    if (missedIncomingCallSmsFilter.filter(pdus, tracker.getFormat())) {
-                        logWithLocalLog("Missed incoming call SMS received",
-                                tracker.getMessageId());
-                        dropFilteredSms(tracker, resultReceiver, block);
-                        return true;
-                    }
-                    return false;
-                });
+        smsFilters.add(new CarrierServicesFilter());
+        smsFilters.add(new VisualVoicemailFilter());
+        smsFilters.add(new MissedIncomingCallFilter());
         return smsFilters;
     }
 
+    /** Hands the SMS to the carrier messaging services and waits for their result. */
+    private final class CarrierServicesFilter implements SmsFilter {
+        @Override
+        public boolean filterSms(byte[][] pdus, int destPort, InboundSmsTracker tracker,
+                SmsBroadcastReceiver resultReceiver, boolean userUnlocked, boolean block,
+                List<SmsFilter> remainingFilters) {
+            CarrierServicesSmsFilterCallback filterCallback =
+                    new CarrierServicesSmsFilterCallback(
+                            pdus, destPort, tracker, tracker.getFormat(), resultReceiver,
+                            userUnlocked,
+                            tracker.isClass0(), tracker.getSubId(), tracker.getMessageId(),
+                            block, remainingFilters);
+            CarrierServicesSmsFilter carrierServicesFilter = new CarrierServicesSmsFilter(
+                    mContext, mPhone, pdus, destPort, tracker.getFormat(),
+                    filterCallback, getName() + "::CarrierServicesSmsFilter",
+                    mCarrierServiceLocalLog, tracker.getMessageId());
+            if (carrierServicesFilter.filter()) {
+                log("SMS is being handled by carrier service", tracker.getMessageId());
+                // Do the local work of the remaining filters while the carrier service runs.
+                for (SmsFilter smsFilter : remainingFilters) {
+                    smsFilter.prepare(pdus, destPort, tracker);
+                }
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "CarrierServices";
+        }
+    }
+
+    /** Drops visual voicemail SMS after passing them to the visual voicemail service. */
+    private final class VisualVoicemailFilter implements SmsFilter {
+        private InboundSmsTracker mPreparedTracker;
+        private VisualVoicemailSmsFilter.Result mPreparedResult;
+
+        @Override
+        public synchronized void prepare(byte[][] pdus, int destPort,
+                InboundSmsTracker tracker) {
+            mPreparedResult = VisualVoicemailSmsFilter.parse(
+                    mContext, pdus, tracker.getFormat(), destPort, tracker.getSubId());
+            mPreparedTracker = tracker;
+        }
+
+        @Override
+        public synchronized boolean filterSms(byte[][] pdus, int destPort,
+                InboundSmsTracker tracker, SmsBroadcastReceiver resultReceiver,
+                boolean userUnlocked, boolean block, List<SmsFilter> remainingFilters) {
+            // The carrier filter result may arrive on a binder thread while this is prepared.
+            if (mPreparedTracker != tracker) {
+                prepare(pdus, destPort, tracker);
+            }
+            VisualVoicemailSmsFilter.Result result = mPreparedResult;
+            mPreparedTracker = null;
+            mPreparedResult = null;
+            if (result.apply(mContext)) {
+                logWithLocalLog("Visual voicemail SMS dropped", tracker.getMessageId());
+                dropFilteredSms(tracker, resultReceiver, block);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String getName() {
+            return "VisualVoicemail";
+        }
+    }
+
+    /** Drops SMS sent by the carrier to notify about a missed incoming call. */
+    private final class MissedIncomingCallFilter implements SmsFilter {
+        private InboundSmsTracker mPreparedTracker;
+        private MissedIncomingCallSmsFilter mPreparedFilter;
+        private boolean mPreparedMatch;
+
+        @Override
+        public synchronized void prepare(byte[][] pdus, int destPort,
+                InboundSmsTracker tracker) {
+            mPreparedFilter = new MissedIncomingCallSmsFilter(mPhone);
+            mPreparedMatch = mPreparedFilter.match(pdus, tracker.getFormat());
+            mPreparedTracker = tracker;
+        }
+
+        @Override
+        public synchronized boolean filterSms(byte[][] pdus, int destPort,
+                InboundSmsTracker tracker, SmsBroadcastReceiver resultReceiver,
+                boolean userUnlocked, boolean block, List<SmsFilter> remainingFilters) {
+            if (mPreparedTracker != tracker) {
+                prepare(pdus, destPort, tracker);
+            }
+            MissedIncomingCallSmsFilter missedIncomingCallSmsFilter = mPreparedFilter;
+            boolean matched = mPreparedMatch;
+            mPreparedTracker = null;
+            mPreparedFilter = null;
+            if (matched) {
+                missedIncomingCallSmsFilter.notifyMissedIncomingCall();
+                logWithLocalLog("Missed incoming call SMS received",
+                        tracker.getMessageId());
+                dropFilteredSms(tracker, resultReceiver, block);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String getName() {
+            return "MissedIncomingCall";
+        }
+    }
+
     private void dropFilteredSms(
             InboundSmsTracker tracker, SmsBroadcastReceiver resultReceiver, boolean block) {
         if (block) {
@@ -1269,7 +1386,8 @@ public abstract class InboundSmsHandler extends StateMachine {
      * Filters the SMS.
      *
      * <p>Each filter in {@link #mSmsFilters} is invoked sequentially. If any filter returns true,
-     * this method returns true and subsequent filters are ignored.
+     * this method returns true and subsequent filters are ignored. The time each filter takes to
+     * decide is recorded in {@link #mSmsFilterStats}.
      *
      * @return true if a filter is invoked and the SMS processing flow is diverted, false otherwise.
      */
@@ -1279,14 +1397,18 @@ public abstract class InboundSmsHandler extends StateMachine {
         return filterSms(pdus, destPort, tracker, resultReceiver, userUnlocked, block, mSmsFilters);
     }
 
-    private static boolean filterSms(byte[][] pdus, int destPort,
+    private boolean filterSms(byte[][] pdus, int destPort,
             InboundSmsTracker tracker, SmsBroadcastReceiver resultReceiver, boolean userUnlocked,
             boolean block, List<SmsFilter> filters) {
         ListIterator<SmsFilter> iterator = filters.listIterator();
         while (iterator.hasNext()) {
             SmsFilter smsFilter = iterator.next();
-            if (smsFilter.filterSms(pdus, destPort, tracker, resultReceiver, userUnlocked, block,
-                    filters.subList(iterator.nextIndex(), filters.size()))) {
+            long start = SystemClock.elapsedRealtime();
+            boolean filterInvoked = smsFilter.filterSms(pdus, destPort, tracker, resultReceiver,
+                    userUnlocked, block, filters.subList(iterator.nextIndex(), filters.size()));
+            mSmsFilterStats.record(smsFilter.getName(), SystemClock.elapsedRealtime() - start,
+                    filterInvoked);
+            if (filterInvoked) {
                 return true;
             }
         }
@@ -1397,17 +1519,34 @@ public abstract class InboundSmsHandler extends StateMachine {
 
     /**
      * Helper for {@link SmsBroadcastUndelivered} to delete an old message in the raw table.
+     *
+     * <p>Messages dropped by the carrier filter are deleted from the carrier app's binder thread,
+     * so the delete is posted to the handler thread that owns {@link #mRawTableBatcher}. It is
+     * queued before any message the caller sends afterwards, e.g. EVENT_BROADCAST_COMPLETE.
      */
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private void deleteFromRawTable(String deleteWhere, String[] deleteWhereArgs,
                                     int deleteType) {
-        Uri uri = deleteType == DELETE_PERMANENTLY ? sRawUriPermanentDelete : sRawUri;
-        int rows = mResolver.delete(uri, deleteWhere, deleteWhereArgs);
-        if (rows == 0) {
-            loge("No rows were deleted from raw table!");
-        } else if (DBG) {
-            log("Deleted " + rows + " rows from raw table.");
+        if (!getHandler().getLooper().isCurrentThread()) {
+            getHandler().post(() -> deleteFromRawTable(deleteWhere, deleteWhereArgs, deleteType));
+            return;
         }
+        Uri uri = deleteType == DELETE_PERMANENTLY ? sRawUriPermanentDelete : sRawUri;
+        mRawTableBatcher.delete(uri, deleteWhere, deleteWhereArgs);
+    }
+
+    /**
+     * Query the raw table. Pending deletes can only remove rows from the result, so they are
+     * applied and the query repeated only if rows were found.
+     */
+    private Cursor queryRawTable(String[] projection, String selection, String[] selectionArgs) {
+        Cursor cursor = mResolver.query(sRawUri, projection, selection, selectionArgs, null);
+        if (cursor != null && cursor.getCount() > 0 && mRawTableBatcher.hasPendingOperations()) {
+            cursor.close();
+            mRawTableBatcher.flush();
+            cursor = mResolver.query(sRawUri, projection, selection, selectionArgs, null);
+        }
+        return cursor;
     }
 
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
@@ -1506,8 +1645,8 @@ public abstract class InboundSmsHandler extends StateMachine {
         Cursor cursor = null;
         try {
             // Check for duplicate message segments
-            cursor = mResolver.query(sRawUri, PDU_DELETED_FLAG_PROJECTION, exactMatchQuery.first,
-                    exactMatchQuery.second, null);
+            cursor = queryRawTable(PDU_DELETED_FLAG_PROJECTION, exactMatchQuery.first,
+                    exactMatchQuery.second);
 
             // moveToNext() returns false if no duplicates were found
             if (cursor != null && cursor.moveToNext()) {
@@ -1552,8 +1691,8 @@ public abstract class InboundSmsHandler extends StateMachine {
             cursor = null;
             try {
                 // Check for duplicate message segments
-                cursor = mResolver.query(sRawUri, PDU_DELETED_FLAG_PROJECTION,
-                        inexactMatchQuery.first, inexactMatchQuery.second, null);
+                cursor = queryRawTable(PDU_DELETED_FLAG_PROJECTION,
+                        inexactMatchQuery.first, inexactMatchQuery.second);
 
                 // moveToNext() returns false if no duplicates were found
                 if (cursor != null && cursor.moveToNext()) {
@@ -1624,7 +1763,8 @@ public abstract class InboundSmsHandler extends StateMachine {
             log("addTrackerToRawTable: adding content values to raw table: " + values.toString(),
                     tracker.getMessageId());
         }
-        Uri newUri = mResolver.insert(sRawUri, values);
+        // Pending deletes are applied in the same batch, before the new row is inserted.
+        Uri newUri = mRawTableBatcher.insert(sRawUri, values);
         if (DBG) log("addTrackerToRawTable: URI of new row: " + newUri, tracker.getMessageId());
 
         try {
@@ -1814,6 +1954,7 @@ public abstract class InboundSmsHandler extends StateMachine {
         private final long mMessageId;
         private final boolean mBlock;
         private final List<SmsFilter> mRemainingFilters;
+        private final long mStartTime = SystemClock.elapsedRealtime();
 
         CarrierServicesSmsFilterCallback(byte[][] pdus, int destPort, InboundSmsTracker tracker,
                 String smsFormat, SmsBroadcastReceiver smsBroadcastReceiver, boolean userUnlocked,
@@ -1838,6 +1979,8 @@ public abstract class InboundSmsHandler extends StateMachine {
 
             boolean carrierRequestedDrop =
                     (result & CarrierMessagingService.RECEIVE_OPTIONS_DROP) != 0;
+            mSmsFilterStats.record("CarrierServicesResult",
+                    SystemClock.elapsedRealtime() - mStartTime, carrierRequestedDrop);
             if (carrierRequestedDrop) {
                 // Carrier app asked the platform to drop the SMS. Drop it from the database and
                 // complete processing.
@@ -2016,6 +2159,9 @@ public abstract class InboundSmsHandler extends StateMachine {
         if (mCellBroadcastServiceManager != null) {
             mCellBroadcastServiceManager.dump(fd, pw, args);
         }
+        mReassemblyBuffer.dump(pw);
+        mRawTableBatcher.dump(pw);
+        mSmsFilterStats.dump(pw);
         pw.println("mLocalLog:");
         pw.increaseIndent();
         mLocalLog.dump(fd, pw, args);
@@ -2063,6 +2209,12 @@ public abstract class InboundSmsHandler extends StateMachine {
         }
     }
 
+    /** @return The SMS filters used by {@link #filterSms}, in the order they are invoked. */
+    @VisibleForTesting
+    public List<SmsFilter> getSmsFiltersForTesting() {
+        return mSmsFilters;
+    }
+
     /**
      * Handler for the broadcast sent when the new message notification is clicked. It launches the
      * default SMS app.
@@ -2164,5 +2316,18 @@ public abstract class InboundSmsHandler extends StateMachine {
         boolean filterSms(byte[][] pdus, int destPort, InboundSmsTracker tracker,
                 SmsBroadcastReceiver resultReceiver, boolean userUnlocked, boolean block,
                 List<SmsFilter> remainingFilters);
+
+        /**
+         * Do the work needed to decide whether the message matches ahead of {@link #filterSms},
+         * while an earlier asynchronous filter is running. Must not have side effects, the message
+         * may still be dropped by the earlier filter.
+         */
+        default void prepare(byte[][] pdus, int destPort, InboundSmsTracker tracker) {
+        }
+
+        /** @return The name of the filter used in metrics. */
+        default String getName() {
+            return getClass().getSimpleName();
+        }
     }
 }
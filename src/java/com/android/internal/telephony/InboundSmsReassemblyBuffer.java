@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory reassembly buffer for multi-part SMS segments received by an
+ * {@link InboundSmsHandler}.
+ *
+ * Segments are still written to the raw table for crash safety, but once a message is known to
+ * the buffer the segments are kept here in binary form, so the raw table only has to be queried
+ * when the first segment of a message is processed (cold start) or after the message has been
+ * evicted from the buffer. The buffer is only accessed from the handler thread.
+ *
+ * Rows deleted from the raw table by anything other than the owning handler, e.g. the purge of
+ * old incomplete messages in {@link SmsBroadcastUndelivered}, must be reported with
+ * {@link #onRawTableRowsDeleted()}. All buffers then drop their entries and reload them from the
+ * raw table, so segments which no longer exist are never used for reassembly.
+ */
+public class InboundSmsReassemblyBuffer {
+    /** Maximum number of partially received messages kept in memory. */
+    @VisibleForTesting
+    public static final int MAX_ENTRIES = 32;
+
+    /** Partially received messages older than this are evicted and reloaded on demand. */
+    @VisibleForTesting
+    public static final long MAX_ENTRY_AGE_MS = 30 * 60 * 1000; // 30 minutes
+
+    /** Incremented whenever raw table rows are deleted outside of the inbound SMS handlers. */
+    private static final AtomicInteger sRawTableGeneration = new AtomicInteger();
+
+    /**
+     * Segments of one multi-part message.
+     */
+    public static class Segments {
+        private final byte[][] mPdus;
+        private final long[] mTimestamps;
+        private final String[] mDisplayAddresses;
+        private final long mCreatedTime;
+        private int mReceivedCount;
+        private int mFirstSegmentDestPort = -1;
+
+        private Segments(int messageCount, long createdTime) {
+            mPdus = new byte[messageCount][];
+            mTimestamps = new long[messageCount];
+            mDisplayAddresses = new String[messageCount];
+            mCreatedTime = createdTime;
+        }
+
+        /**
+         * Add a segment. A segment already present at the same index is replaced, which matches
+         * the raw table when a duplicate segment replaces an older one.
+         *
+         * @param index 0-based segment index.
+         * @param pdu The segment PDU.
+         * @param timestamp The segment timestamp.
+         * @param displayAddress The display address of the segment.
+         * @param destPort The real destination port of the segment, or -1.
+         * @return {@code false} if the index is out of range and the segment was ignored.
+         */
+        public boolean add(int index, @NonNull byte[] pdu, long timestamp,
+                @Nullable String displayAddress, int destPort) {
+            if (index < 0 || index >= mPdus.length) {
+                return false;
+            }
+            if (mPdus[index] == null) {
+                mReceivedCount++;
+            }
+            mPdus[index] = pdu;
+            mTimestamps[index] = timestamp;
+            mDisplayAddresses[index] = displayAddress;
+            if (index == 0) {
+                mFirstSegmentDestPort = destPort;
+            }
+            return true;
+        }
+
+        /** @return The number of distinct segments received. */
+        public int getReceivedCount() {
+            return mReceivedCount;
+        }
+
+        /** @return {@code true} if all segments have been received. */
+        public boolean isComplete() {
+            return mReceivedCount == mPdus.length;
+        }
+
+        public byte[][] getPdus() {
+            return mPdus;
+        }
+
+        public long[] getTimestamps() {
+            return mTimestamps;
+        }
+
+        public String[] getDisplayAddresses() {
+            return mDisplayAddresses;
+        }
+
+        /** @return The real destination port of the first segment, or -1. */
+        public int getFirstSegmentDestPort() {
+            return mFirstSegmentDestPort;
+        }
+    }
+
+    private final LinkedHashMap<String, Segments> mEntries =
+            new LinkedHashMap<String, Segments>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Segments> eldest) {
+                    if (size() > MAX_ENTRIES) {
+                        mEvictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /** The raw table generation the buffered entries were loaded in. */
+    private int mGeneration = sRawTableGeneration.get();
+
+    private long mColdLoads;
+    private long mQueriesAvoided;
+    private long mEvictions;
+    private long mInvalidations;
+    private long mCompleted;
+    private long mTotalReassemblyLatencyMs;
+    private long mMaxReassemblyLatencyMs;
+
+    private static String getKey(@NonNull InboundSmsTracker tracker) {
+        // The query selection distinguishes 3GPP2 WAP segments from other segments.
+        return tracker.getAddress() + "|" + tracker.getReferenceNumber() + "|"
+                + tracker.getMessageCount() + "|" + tracker.getSubId() + "|"
+                + tracker.getQueryForSegments();
+    }
+
+    /**
+     * Get the buffered segments of the message the tracker belongs to.
+     *
+     * @param tracker A segment of a multi-part message.
+     * @return The buffered segments, or {@code null} if the message is not buffered and the raw
+     * table has to be queried.
+     */
+    public @Nullable Segments get(@NonNull InboundSmsTracker tracker) {
+        invalidateIfRawTableChanged();
+        evictExpired();
+        Segments segments = mEntries.get(getKey(tracker));
+        if (segments != null) {
+            mQueriesAvoided++;
+        }
+        return segments;
+    }
+
+    /**
+     * Create an empty entry for the message the tracker belongs to. Called after the segments
+     * already in the raw table have been queried, which are then added to the returned entry.
+     *
+     * @param tracker A segment of a multi-part message.
+     * @return The new entry.
+     */
+    public @NonNull Segments create(@NonNull InboundSmsTracker tracker) {
+        invalidateIfRawTableChanged();
+        mColdLoads++;
+        Segments segments = new Segments(tracker.getMessageCount(),
+                SystemClock.elapsedRealtime());
+        mEntries.put(getKey(tracker), segments);
+        return segments;
+    }
+
+    /**
+     * Remove the message the tracker belongs to, e.g. once it is complete.
+     *
+     * @param tracker A segment of a multi-part message.
+     */
+    public void remove(@NonNull InboundSmsTracker tracker) {
+        Segments segments = mEntries.remove(getKey(tracker));
+        if (segments != null && segments.isComplete()) {
+            long latency = SystemClock.elapsedRealtime() - segments.mCreatedTime;
+            mCompleted++;
+            mTotalReassemblyLatencyMs += latency;
+            mMaxReassemblyLatencyMs = Math.max(mMaxReassemblyLatencyMs, latency);
+        }
+    }
+
+    /** Drop all buffered segments. They are reloaded from the raw table on demand. */
+    public void clear() {
+        mEvictions += mEntries.size();
+        mEntries.clear();
+    }
+
+    /**
+     * Report that rows were deleted from the raw table outside of the inbound SMS handlers. The
+     * entries of all buffers are dropped the next time they are accessed. Can be called from any
+     * thread.
+     */
+    public static void onRawTableRowsDeleted() {
+        sRawTableGeneration.incrementAndGet();
+    }
+
+    private void invalidateIfRawTableChanged() {
+        int generation = sRawTableGeneration.get();
+        if (generation != mGeneration) {
+            mGeneration = generation;
+            mInvalidations += mEntries.size();
+            mEntries.clear();
+        }
+    }
+
+    private void evictExpired() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Segments> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().mCreatedTime > MAX_ENTRY_AGE_MS) {
+                it.remove();
+                mEvictions++;
+            }
+        }
+    }
+
+    /** @return The number of messages currently buffered. */
+    @VisibleForTesting
+    public int size() {
+        return mEntries.size();
+    }
+
+    /** @return The number of raw table queries that were avoided. */
+    @VisibleForTesting
+    public long getQueriesAvoided() {
+        return mQueriesAvoided;
+    }
+
+    /** @return The number of times the raw table was queried to load a message. */
+    @VisibleForTesting
+    public long getColdLoads() {
+        return mColdLoads;
+    }
+
+    /** @return The number of messages evicted before they were complete. */
+    @VisibleForTesting
+    public long getEvictions() {
+        return mEvictions;
+    }
+
+    /** @return The number of messages dropped because raw table rows were deleted elsewhere. */
+    @VisibleForTesting
+    public long getInvalidations() {
+        return mInvalidations;
+    }
+
+    /** @return The number of messages reassembled from the buffer. */
+    @VisibleForTesting
+    public long getCompletedCount() {
+        return mCompleted;
+    }
+
+    /**
+     * Dump the state of the reassembly buffer.
+     *
+     * @param pw Print writer
+     */
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("InboundSmsReassemblyBuffer:");
+        pw.increaseIndent();
+        pw.println("buffered=" + mEntries.size() + " coldLoads=" + mColdLoads
+                + " queriesAvoided=" + mQueriesAvoided + " evictions=" + mEvictions
+                + " invalidations=" + mInvalidations);
+        pw.println("completed=" + mCompleted + " avgReassemblyLatencyMs="
+                + (mCompleted == 0 ? 0 : mTotalReassemblyLatencyMs / mCompleted)
+                + " maxReassemblyLatencyMs=" + mMaxReassemblyLatencyMs);
+        pw.decreaseIndent();
+    }
+}
@@ -68,6 +68,11 @@ public class MissedIncomingCallSmsFilter {
 
     private PersistableBundle mCarrierConfig;
 
+    // The missed incoming call found by the last match()
+    private boolean mMatched;
+    private long mMissedCallTime;
+    private String mCallerId;
+
     /**
      * Constructor
      *
@@ -92,6 +97,23 @@ public class MissedIncomingCallSmsFilter {
      * @return {@code true} if this is an SMS for notifying the user about missed incoming call.
      */
     public boolean filter(byte[][] pdus, String format) {
+        if (match(pdus, format)) {
+            notifyMissedIncomingCall();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if the message is missed incoming call SMS without reporting the missed call. The
+     * missed call is reported by {@link #notifyMissedIncomingCall}.
+     *
+     * @param pdus SMS pdu binary
+     * @param format Either {@link SmsConstants#FORMAT_3GPP} or {@link SmsConstants#FORMAT_3GPP2}
+     * @return {@code true} if this is an SMS for notifying the user about missed incoming call.
+     */
+    public boolean match(byte[][] pdus, String format) {
+        mMatched = false;
         // The missed incoming call SMS must be one page only, and if not we should ignore it.
         if (pdus.length != 1) {
             return false;
@@ -149,7 +171,7 @@ public class MissedIncomingCallSmsFilter {
      *
      * @param message SMS message
      *
-     * @return {@code true} if the SMS message has been processed as a missed incoming call SMS.
+     * @return {@code true} if the SMS message has been parsed as a missed incoming call SMS.
      */
     private boolean processSms(@NonNull SmsMessage message) {
         long missedCallTime = 0;
@@ -219,7 +241,9 @@ public class MissedIncomingCallSmsFilter {
                 } catch (IllegalArgumentException e) {
                     Rlog.d(TAG, "Caller id is not provided or can't be parsed.");
                 }
-                createMissedIncomingCallEvent(missedCallTime, callerId);
+                mMatched = true;
+                mMissedCallTime = missedCallTime;
+                mCallerId = callerId;
                 return true;
             }
         }
@@ -228,6 +252,15 @@ public class MissedIncomingCallSmsFilter {
         return false;
     }
 
+    /**
+     * Report the missed incoming call found by the last successful {@link #match}.
+     */
+    public void notifyMissedIncomingCall() {
+        if (mMatched) {
+            createMissedIncomingCallEvent(mMissedCallTime, mCallerId);
+        }
+    }
+
     // Create phone account. The logic is copied from PhoneUtils.makePstnPhoneAccountHandle.
     private static PhoneAccountHandle makePstnPhoneAccountHandle(Phone phone) {
         return new PhoneAccountHandle(PSTN_CONNECTION_SERVICE_COMPONENT,
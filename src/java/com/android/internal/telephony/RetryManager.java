@@ -31,12 +31,16 @@ import android.telephony.data.DataCallResponse;
 import android.text.TextUtils;
 import android.util.Pair;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.dataconnection.DataThrottler;
 import com.android.internal.telephony.util.TelephonyUtils;
 import com.android.telephony.Rlog;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Retry manager allows a simple way to declare a series of
@@ -170,22 +174,174 @@ public class RetryManager {
     private int mMaxSameApnRetry = DEFAULT_MAX_SAME_APN_RETRY;
 
     /**
-     * Retry record with times in milli-seconds
+     * The maximum number of compiled retry schedules kept in {@link #sRetryScheduleCache}.
      */
-    private static class RetryRec {
-        long mDelayTime;
-        long mRandomizationTime;
+    private static final int MAX_CACHED_RETRY_SCHEDULES = 32;
 
-        RetryRec(long delayTime, long randomizationTime) {
-            mDelayTime = delayTime;
-            mRandomizationTime = randomizationTime;
+    /**
+     * Compiled retry schedules keyed by configuration string. The schedules are immutable, so they
+     * are shared by the retry managers of all phones and APN contexts. Since the key is the
+     * configuration itself, a carrier config update that changes the retry pattern results in a
+     * new entry rather than a stale one.
+     */
+    private static final Map<String, RetrySchedule> sRetryScheduleCache =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Immutable retry schedule compiled from a configuration string. See top of the detailed
+     * explanation for the string format. Times are in milli-seconds.
+     */
+    @VisibleForTesting
+    public static final class RetrySchedule {
+        /** Empty schedule, meaning no retry. */
+        private static final RetrySchedule EMPTY =
+                new RetrySchedule(new long[0], new long[0], 0, false, true);
+
+        private final long[] mDelayTimes;
+        private final long[] mRandomizationTimes;
+        private final int mMaxRetryCount;
+        private final boolean mRetryForever;
+        private final boolean mValid;
+
+        private RetrySchedule(long[] delayTimes, long[] randomizationTimes, int maxRetryCount,
+                boolean retryForever, boolean valid) {
+            mDelayTimes = delayTimes;
+            mRandomizationTimes = randomizationTimes;
+            mMaxRetryCount = maxRetryCount;
+            mRetryForever = retryForever;
+            mValid = valid;
+        }
+
+        /**
+         * Compile the configuration string. If the string is malformed, the values parsed before
+         * the error are kept and the schedule is marked invalid.
+         *
+         * @param configStr The configuration string without quotes.
+         * @return The compiled retry schedule.
+         */
+        @VisibleForTesting
+        public static @NonNull RetrySchedule compile(@NonNull String configStr) {
+            if (TextUtils.isEmpty(configStr)) {
+                return EMPTY;
+            }
+
+            long defaultRandomization = 0;
+            int maxRetryCount = 0;
+            boolean retryForever = false;
+            String[] strArray = configStr.split(",");
+            long[] delayTimes = new long[strArray.length];
+            long[] randomizationTimes = new long[strArray.length];
+            int count = 0;
+            boolean valid = true;
+
+            for (int i = 0; i < strArray.length && valid; i++) {
+                Pair<Boolean, Integer> value;
+                String[] splitStr = strArray[i].split("=", 2);
+                splitStr[0] = splitStr[0].trim();
+                if (splitStr.length > 1) {
+                    splitStr[1] = splitStr[1].trim();
+                    if (TextUtils.equals(splitStr[0], "default_randomization")) {
+                        value = parseNonNegativeInt(splitStr[0], splitStr[1]);
+                        valid = value.first;
+                        if (valid) defaultRandomization = value.second;
+                    } else if (TextUtils.equals(splitStr[0], "max_retries")) {
+                        if (TextUtils.equals("infinite", splitStr[1])) {
+                            retryForever = true;
+                        } else {
+                            value = parseNonNegativeInt(splitStr[0], splitStr[1]);
+                            valid = value.first;
+                            if (valid) maxRetryCount = value.second;
+                        }
+                    } else {
+                        Rlog.e(LOG_TAG, "Unrecognized configuration name value pair: "
+                                + strArray[i]);
+                        valid = false;
+                    }
+                } else {
+                    /**
+                     * Assume a retry time with an optional randomization value
+                     * following a ":"
+                     */
+                    splitStr = strArray[i].split(":", 2);
+                    splitStr[0] = splitStr[0].trim();
+                    value = parseNonNegativeInt("delayTime", splitStr[0]);
+                    if (!value.first) {
+                        valid = false;
+                        break;
+                    }
+                    long delayTime = value.second;
+                    long randomizationTime = defaultRandomization;
+
+                    // Check if optional randomization value present
+                    if (splitStr.length > 1) {
+                        splitStr[1] = splitStr[1].trim();
+                        value = parseNonNegativeInt("randomizationTime", splitStr[1]);
+                        if (!value.first) {
+                            valid = false;
+                            break;
+                        }
+                        randomizationTime = value.second;
+                    }
+                    delayTimes[count] = delayTime;
+                    randomizationTimes[count] = randomizationTime;
+                    count++;
+                }
+            }
+
+            if (valid && count > maxRetryCount) {
+                maxRetryCount = count;
+            }
+            return new RetrySchedule(Arrays.copyOf(delayTimes, count),
+                    Arrays.copyOf(randomizationTimes, count), maxRetryCount, retryForever, valid);
+        }
+
+        /**
+         * @return The number of retry delays in the schedule.
+         */
+        @VisibleForTesting
+        public int size() {
+            return mDelayTimes.length;
+        }
+
+        /**
+         * @param index Retry index
+         * @return The delay time without randomization for the retry index.
+         */
+        @VisibleForTesting
+        public long getDelayTime(int index) {
+            return mDelayTimes[index];
+        }
+
+        /**
+         * @param index Retry index
+         * @return The maximum randomization time for the retry index.
+         */
+        @VisibleForTesting
+        public long getRandomizationTime(int index) {
+            return mRandomizationTimes[index];
+        }
+
+        /**
+         * @return The maximum number of retries.
+         */
+        @VisibleForTesting
+        public int getMaxRetryCount() {
+            return mMaxRetryCount;
+        }
+
+        /**
+         * @return {@code true} if retrying forever regardless the maximum retry count.
+         */
+        @VisibleForTesting
+        public boolean isRetryForever() {
+            return mRetryForever;
         }
     }
 
     /**
-     * The array of retry records
+     * The compiled retry schedule currently in use.
      */
-    private ArrayList<RetryRec> mRetryArray = new ArrayList<RetryRec>();
+    private RetrySchedule mRetrySchedule = RetrySchedule.EMPTY;
 
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private Phone mPhone;
@@ -270,73 +426,20 @@ public class RetryManager {
         if (DBG) log("configure: '" + configStr + "'");
         mConfig = configStr;
 
-        if (!TextUtils.isEmpty(configStr)) {
-            long defaultRandomization = 0;
-
-            if (VDBG) log("configure: not empty");
-
-            String strArray[] = configStr.split(",");
-            for (int i = 0; i < strArray.length; i++) {
-                if (VDBG) log("configure: strArray[" + i + "]='" + strArray[i] + "'");
-                Pair<Boolean, Integer> value;
-                String splitStr[] = strArray[i].split("=", 2);
-                splitStr[0] = splitStr[0].trim();
-                if (VDBG) log("configure: splitStr[0]='" + splitStr[0] + "'");
-                if (splitStr.length > 1) {
-                    splitStr[1] = splitStr[1].trim();
-                    if (VDBG) log("configure: splitStr[1]='" + splitStr[1] + "'");
-                    if (TextUtils.equals(splitStr[0], "default_randomization")) {
-                        value = parseNonNegativeInt(splitStr[0], splitStr[1]);
-                        if (!value.first) return false;
-                        defaultRandomization = value.second;
-                    } else if (TextUtils.equals(splitStr[0], "max_retries")) {
-                        if (TextUtils.equals("infinite", splitStr[1])) {
-                            mRetryForever = true;
-                        } else {
-                            value = parseNonNegativeInt(splitStr[0], splitStr[1]);
-                            if (!value.first) return false;
-                            mMaxRetryCount = value.second;
-                        }
-                    } else {
-                        Rlog.e(LOG_TAG, "Unrecognized configuration name value pair: "
-                                        + strArray[i]);
-                        return false;
-                    }
-                } else {
-                    /**
-                     * Assume a retry time with an optional randomization value
-                     * following a ":"
-                     */
-                    splitStr = strArray[i].split(":", 2);
-                    splitStr[0] = splitStr[0].trim();
-                    RetryRec rr = new RetryRec(0, 0);
-                    value = parseNonNegativeInt("delayTime", splitStr[0]);
-                    if (!value.first) return false;
-                    rr.mDelayTime = value.second;
-
-                    // Check if optional randomization value present
-                    if (splitStr.length > 1) {
-                        splitStr[1] = splitStr[1].trim();
-                        if (VDBG) log("configure: splitStr[1]='" + splitStr[1] + "'");
-                        value = parseNonNegativeInt("randomizationTime", splitStr[1]);
-                        if (!value.first) return false;
-                        rr.mRandomizationTime = value.second;
-                    } else {
-                        rr.mRandomizationTime = defaultRandomization;
-                    }
-                    mRetryArray.add(rr);
-                }
+        RetrySchedule schedule = sRetryScheduleCache.get(configStr);
+        if (schedule == null) {
+            schedule = RetrySchedule.compile(configStr);
+            if (sRetryScheduleCache.size() >= MAX_CACHED_RETRY_SCHEDULES) {
+                sRetryScheduleCache.clear();
             }
-            if (mRetryArray.size() > mMaxRetryCount) {
-                mMaxRetryCount = mRetryArray.size();
-                if (VDBG) log("configure: setting mMaxRetryCount=" + mMaxRetryCount);
-            }
-        } else {
-            log("configure: cleared");
+            sRetryScheduleCache.put(configStr, schedule);
         }
+        mRetrySchedule = schedule;
+        mMaxRetryCount = schedule.mMaxRetryCount;
+        mRetryForever = schedule.mRetryForever;
 
-        if (VDBG) log("configure: true");
-        return true;
+        if (VDBG) log("configure: " + schedule.mValid);
+        return schedule.mValid;
     }
 
     /**
@@ -432,15 +535,15 @@ public class RetryManager {
     @UnsupportedAppUsage
     private long getRetryTimer() {
         int index;
-        if (mRetryCount < mRetryArray.size()) {
+        if (mRetryCount < mRetrySchedule.size()) {
             index = mRetryCount;
         } else {
-            index = mRetryArray.size() - 1;
+            index = mRetrySchedule.size() - 1;
         }
 
         long retVal;
-        if ((index >= 0) && (index < mRetryArray.size())) {
-            retVal = mRetryArray.get(index).mDelayTime + nextRandomizationTime(index);
+        if ((index >= 0) && (index < mRetrySchedule.size())) {
+            retVal = mRetrySchedule.getDelayTime(index) + nextRandomizationTime(index);
         } else {
             retVal = 0;
         }
@@ -455,7 +558,7 @@ public class RetryManager {
      * @param stringValue Value
      * @return Pair.first == true if stringValue an integer >= 0
      */
-    private Pair<Boolean, Integer> parseNonNegativeInt(String name, String stringValue) {
+    private static Pair<Boolean, Integer> parseNonNegativeInt(String name, String stringValue) {
         int value;
         Pair<Boolean, Integer> retVal;
         try {
@@ -466,7 +569,7 @@ public class RetryManager {
             retVal = new Pair<>(false, 0);
         }
         if (VDBG) {
-            log("parseNonNegativeInt: " + name + ", " + stringValue + ", "
+            Rlog.d(LOG_TAG, "parseNonNegativeInt: " + name + ", " + stringValue + ", "
                     + retVal.first + ", " + retVal.second);
         }
         return retVal;
@@ -478,7 +581,7 @@ public class RetryManager {
      * @param value Value
      * @return Pair.first
      */
-    private boolean validateNonNegativeInt(String name, long value) {
+    private static boolean validateNonNegativeInt(String name, long value) {
         boolean retVal;
         if (value < 0) {
             Rlog.e(LOG_TAG, name + " bad value: is < 0");
@@ -486,7 +589,7 @@ public class RetryManager {
         } else {
             retVal = true;
         }
-        if (VDBG) log("validateNonNegative: " + name + ", " + value + ", " + retVal);
+        if (VDBG) Rlog.d(LOG_TAG, "validateNonNegative: " + name + ", " + value + ", " + retVal);
         return retVal;
     }
 
@@ -495,7 +598,7 @@ public class RetryManager {
      * @param index Retry index
      */
     private long nextRandomizationTime(int index) {
-        long randomTime = mRetryArray.get(index).mRandomizationTime;
+        long randomTime = mRetrySchedule.getRandomizationTime(index);
         if (randomTime == 0) {
             return 0;
         } else {
@@ -542,26 +645,34 @@ public class RetryManager {
 
         mSameApnRetryCount = 0;
 
-        int index = mCurrentApnIndex;
-        // Loop through the APN list to find out the index of next non-permanent failed APN.
-        while (true) {
-            if (++index == mWaitingApns.size()) index = 0;
-
-            // Stop if we find the non-failed APN.
-            if (!mWaitingApns.get(index).getPermanentFailed()) {
-                break;
-            }
-
-            // If all APNs have permanently failed, bail out.
-            if (mWaitingApns.stream().allMatch(ApnSetting::getPermanentFailed)) {
-                return null;
-            }
+        int index = getNextNonPermanentFailedApnIndex();
+        // If all APNs have permanently failed, bail out.
+        if (index == -1) {
+            return null;
         }
 
         mCurrentApnIndex = index;
         return mWaitingApns.get(mCurrentApnIndex);
     }
 
+    /**
+     * Find the next waiting APN after the current one that has not permanently failed, wrapping
+     * around the list. Each APN is visited at most once.
+     *
+     * @return The index of the APN, or -1 if all APNs have permanently failed.
+     */
+    private int getNextNonPermanentFailedApnIndex() {
+        int size = mWaitingApns.size();
+        int index = mCurrentApnIndex;
+        for (int i = 0; i < size; i++) {
+            if (++index >= size) index = 0;
+            if (!mWaitingApns.get(index).getPermanentFailed()) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Get the delay for trying the next waiting APN from the list.
      * @param failFastEnabled True if fail fast mode enabled. In this case we'll use a shorter
@@ -597,20 +708,11 @@ public class RetryManager {
         // Case 2 - If we are still within the same round of APN trying,
         //    we use the fixed standard delay between APNs. (e.g. 20s)
 
-        int index = mCurrentApnIndex;
-        while (true) {
-            if (++index >= mWaitingApns.size()) index = 0;
-
-            // Stop if we find the non-failed APN.
-            if (!mWaitingApns.get(index).getPermanentFailed()) {
-                break;
-            }
-
-            // If all APNs have permanently failed, bail out.
-            if (mWaitingApns.stream().allMatch(ApnSetting::getPermanentFailed)) {
-                log("All APNs have permanently failed.");
-                return NO_RETRY;
-            }
+        int index = getNextNonPermanentFailedApnIndex();
+        // If all APNs have permanently failed, bail out.
+        if (index == -1) {
+            log("All APNs have permanently failed.");
+            return NO_RETRY;
         }
 
         long delay;
@@ -656,7 +758,8 @@ public class RetryManager {
         mRetryCount = 0;
         mCurrentApnIndex = -1;
         mSameApnRetryCount = 0;
-        mRetryArray.clear();
+        mRetryForever = false;
+        mRetrySchedule = RetrySchedule.EMPTY;
     }
 
     /**
@@ -156,6 +156,8 @@ public abstract class SMSDispatcher extends Handler {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     protected final TelephonyManager mTelephonyManager;
     protected final LocalLog mLocalLog = new LocalLog(16);
+    /** Submits the parts of approved messages and collects per-part metrics. */
+    protected final SmsSendPipeline mSendPipeline = new SmsSendPipeline(this::sendSms);
 
     /** Maximum number of times to retry sending a failed SMS. */
     private static final int MAX_SEND_RETRIES = 3;
@@ -303,9 +305,7 @@ public abstract class SMSDispatcher extends Handler {
         case EVENT_SEND_CONFIRMED_SMS:
         {
             SmsTracker[] trackers = (SmsTracker[]) msg.obj;
-            for (SmsTracker tracker : trackers) {
-                sendSms(tracker);
-            }
+            submitParts(trackers);
             mPendingTrackerCount--;
             break;
         }
@@ -364,8 +364,9 @@ public abstract class SMSDispatcher extends Handler {
         private static final int EVENT_TIMEOUT = 1;
         // Initialized in sendSmsByCarrierApp
         protected volatile CarrierMessagingCallback mSenderCallback;
-        protected final CarrierMessagingServiceWrapper mCarrierMessagingServiceWrapper =
-                new CarrierMessagingServiceWrapper();
+        // Set once the carrier messaging service is ready
+        protected volatile CarrierMessagingServiceWrapper mCarrierMessagingServiceWrapper;
+        private volatile CarrierMessagingServicePool.Lease mLease;
         private String mCarrierPackageName;
 
         protected SmsSender() {
@@ -373,20 +374,39 @@ public abstract class SMSDispatcher extends Handler {
         }
 
         /**
-         * Bind to carrierPackageName to send message through it
+         * Acquire a connection to carrierPackageName to send message through it
          */
         public synchronized void sendSmsByCarrierApp(String carrierPackageName,
                 CarrierMessagingCallback senderCallback) {
             mCarrierPackageName = carrierPackageName;
             mSenderCallback = senderCallback;
-            if (!mCarrierMessagingServiceWrapper.bindToCarrierMessagingService(
-                    mContext, carrierPackageName, runnable -> runnable.run(),
-                    ()->onServiceReady())) {
+            // Post the timeout first, the service is ready right away if it is already bound.
+            sendMessageDelayed(obtainMessage(EVENT_TIMEOUT), mCarrierMessagingTimeout);
+            CarrierMessagingServicePool.Lease lease = CarrierMessagingServicePool
+                    .getInstance(mContext).acquire(carrierPackageName, readyLease -> {
+                        mLease = readyLease;
+                        mCarrierMessagingServiceWrapper = readyLease.getWrapper();
+                        onServiceReady();
+                    });
+            if (lease == null) {
                 Rlog.e(TAG, "bindService() for carrier messaging service failed");
+                removeTimeout();
                 onSendComplete(CarrierMessagingService.SEND_STATUS_RETRY_ON_CARRIER_NETWORK);
             } else {
+                mLease = lease;
                 Rlog.d(TAG, "bindService() for carrier messaging service succeeded");
-                sendMessageDelayed(obtainMessage(EVENT_TIMEOUT), mCarrierMessagingTimeout);
+            }
+        }
+
+        /**
+         * Return the connection to the carrier messaging service to the pool.
+         *
+         * @param healthy {@code false} if the service failed or didn't answer in time.
+         */
+        public void releaseConnection(boolean healthy) {
+            CarrierMessagingServicePool.Lease lease = mLease;
+            if (lease != null) {
+                lease.release(healthy);
             }
         }
 
@@ -420,6 +440,7 @@ public abstract class SMSDispatcher extends Handler {
                         + " for " + mCarrierMessagingTimeout + " ms");
                 AnomalyReporter.reportAnomaly(sAnomalyNoResponseFromCarrierMessagingService,
                         "No response from " + mCarrierPackageName);
+                releaseConnection(false /* healthy */);
                 onSendComplete(CarrierMessagingService.SEND_STATUS_RETRY_ON_CARRIER_NETWORK);
             } else {
                 logWithLocalLog("handleMessage: received unexpected message " + msg.what);
@@ -466,6 +487,7 @@ public abstract class SMSDispatcher extends Handler {
                 } catch (RuntimeException e) {
                     Rlog.e(TAG, "TextSmsSender::onServiceReady: Exception sending the SMS: "
                             + e.getMessage());
+                    releaseConnection(false /* healthy */);
                     onSendComplete(CarrierMessagingService.SEND_STATUS_RETRY_ON_CARRIER_NETWORK);
                 }
             } else {
@@ -523,6 +545,7 @@ public abstract class SMSDispatcher extends Handler {
                 } catch (RuntimeException e) {
                     Rlog.e(TAG, "DataSmsSender::onServiceReady: Exception sending the SMS: " + e
                             + " " + SmsController.formatCrossStackMessageId(mTracker.mMessageId));
+                    releaseConnection(false /* healthy */);
                     onSendComplete(CarrierMessagingService.SEND_STATUS_RETRY_ON_CARRIER_NETWORK);
                 }
             } else {
@@ -550,7 +573,7 @@ public abstract class SMSDispatcher extends Handler {
 
     /**
      * Callback for TextSmsSender and DataSmsSender from the carrier messaging service.
-     * Once the result is ready, the carrier messaging service connection is disposed.
+     * Once the result is ready, the carrier messaging service connection is returned to the pool.
      */
     protected final class SmsSenderCallback implements CarrierMessagingCallback {
         private final SmsSender mSmsSender;
@@ -575,7 +598,7 @@ public abstract class SMSDispatcher extends Handler {
             mCallbackCalled = true;
             final long identity = Binder.clearCallingIdentity();
             try {
-                mSmsSender.mCarrierMessagingServiceWrapper.disconnect();
+                mSmsSender.releaseConnection(true /* healthy */);
                 processSendSmsResponse(mSmsSender.getSmsTracker(), result, messageRef);
                 mSmsSender.removeTimeout();
             } finally {
@@ -687,6 +710,7 @@ public abstract class SMSDispatcher extends Handler {
                         mSenderCallback);
             } catch (RuntimeException e) {
                 Rlog.e(TAG, "MultipartSmsSender::onServiceReady: Exception sending the SMS: " + e);
+                releaseConnection(false /* healthy */);
                 onSendComplete(CarrierMessagingService.SEND_STATUS_RETRY_ON_CARRIER_NETWORK);
             }
         }
@@ -710,7 +734,7 @@ public abstract class SMSDispatcher extends Handler {
 
     /**
      * Callback for MultipartSmsSender from the carrier messaging service.
-     * Once the result is ready, the carrier messaging service connection is disposed.
+     * Once the result is ready, the carrier messaging service connection is returned to the pool.
      */
     private final class MultipartSmsSenderCallback implements CarrierMessagingCallback {
         private final MultipartSmsSender mSmsSender;
@@ -740,7 +764,7 @@ public abstract class SMSDispatcher extends Handler {
             }
             mCallbackCalled = true;
             mSmsSender.removeTimeout();
-            mSmsSender.mCarrierMessagingServiceWrapper.disconnect();
+            mSmsSender.releaseConnection(true /* healthy */);
 
             if (mSmsSender.mTrackers == null) {
                 Rlog.e(TAG, "Unexpected onSendMultipartSmsComplete call with null trackers.");
@@ -860,6 +884,25 @@ public abstract class SMSDispatcher extends Handler {
      */
     protected abstract boolean shouldBlockSmsForEcbm();
 
+    /**
+     * Submit the parts of an approved message through {@link #mSendPipeline}.
+     *
+     * @param trackers the trackers for a single or a multi-part SMS to send
+     */
+    private void submitParts(SmsTracker[] trackers) {
+        mSendPipeline.setWindowSize(getSendWindowSize());
+        mSendPipeline.submit(trackers);
+    }
+
+    /**
+     * @return The number of parts kept in flight when sending a message, or {@code 0} to send
+     *         all parts at once. Only dispatchers whose lower layer accepts concurrent
+     *         submissions enable the pipelined mode.
+     */
+    protected int getSendWindowSize() {
+        return 0;
+    }
+
     /**
      * Called when SMS send completes. Broadcasts a sentIntent on success.
      * On failure, either sets up retries or broadcasts a sentIntent with
@@ -949,6 +992,7 @@ public abstract class SMSDispatcher extends Handler {
                 int errorCode = (smsResponse != null) ? smsResponse.mErrorCode : NO_ERROR_CODE;
                 Message retryMsg = obtainMessage(EVENT_SEND_RETRY, tracker);
                 sendMessageDelayed(retryMsg, SEND_RETRY_DELAY);
+                mSendPipeline.onPartRetry(tracker);
                 mPhone.getSmsStats().onOutgoingSms(
                         tracker.mImsRetry > 0 /* isOverIms */,
                         SmsConstants.FORMAT_3GPP2.equals(getFormat()),
@@ -1712,9 +1756,7 @@ public abstract class SMSDispatcher extends Handler {
                 return;
             }
 
-            for (SmsTracker tracker : trackers) {
-                sendSms(tracker);
-            }
+            submitParts(trackers);
         }
 
         if (mTelephonyManager.isEmergencyNumber(trackers[0].mDestAddress)) {
@@ -2060,6 +2102,12 @@ public abstract class SMSDispatcher extends Handler {
 
         public final long mMessageId;
 
+        // Time the part was submitted for sending, used for latency metrics
+        long mSubmitTimeMillis;
+
+        // Pipeline the part was submitted through, notified once the part completes
+        volatile SmsSendPipeline mSendPipeline;
+
         private Boolean mIsFromDefaultSmsApplication;
 
         // SMS anomaly uuid -- unexpected error from RIL
@@ -2277,6 +2325,24 @@ public abstract class SMSDispatcher extends Handler {
                 }
             }
             reportAnomaly(error, errorCode);
+            notifySendPipeline(false /* sent */);
+        }
+
+        /**
+         * Let the pipeline the part was submitted through free its slot. Only the first
+         * completion is reported.
+         */
+        private void notifySendPipeline(boolean sent) {
+            SmsSendPipeline pipeline = mSendPipeline;
+            mSendPipeline = null;
+            if (pipeline == null) {
+                return;
+            }
+            if (sent) {
+                pipeline.onPartSent(this);
+            } else {
+                pipeline.onPartFailed(this);
+            }
         }
 
         private void reportAnomaly(int error, int errorCode) {
@@ -2341,6 +2407,7 @@ public abstract class SMSDispatcher extends Handler {
                     Rlog.e(TAG, "Failed to send result");
                 }
             }
+            notifySendPipeline(true /* sent */);
         }
     }
 
@@ -2610,6 +2677,7 @@ public abstract class SMSDispatcher extends Handler {
         pw.increaseIndent();
         mLocalLog.dump(fd, pw, args);
         pw.decreaseIndent();
+        mSendPipeline.dump(pw);
         pw.decreaseIndent();
     }
 }
@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.Nullable;
+import android.telephony.SmsManager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Deterministic automaton classifying a destination number against the short code patterns of
+ * one country in a single pass, without allocation.
+ *
+ * The free, standard, premium and short code patterns are compiled together, so each state knows
+ * the category that {@link SmsUsageMonitor} would report for a number ending there. Only the
+ * regular expression subset used by the short code database is supported: digits, {@code \d},
+ * digit classes, groups, alternation and the {@code ? * + {n} {n,} {n,m}} quantifiers. Patterns
+ * outside that subset are rejected by {@link #compile}, and the caller falls back to
+ * {@link java.util.regex.Pattern}.
+ */
+public final class ShortCodeDfa {
+    /** Upper bound of DFA states, to keep pathological patterns from blowing up. */
+    private static final int MAX_DFA_STATES = 4096;
+
+    /** Upper bound of a counted repetition. */
+    private static final int MAX_REPEAT = 32;
+
+    private static final int NUM_DIGITS = 10;
+    private static final int ALL_DIGITS = (1 << NUM_DIGITS) - 1;
+    private static final int DEAD_STATE = -1;
+
+    /** Categories in the order {@link SmsUsageMonitor} checks the patterns. */
+    private static final int[] CATEGORY_PRIORITY = {
+            SmsManager.SMS_CATEGORY_FREE_SHORT_CODE,
+            SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE,
+            SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE,
+            SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE,
+    };
+
+    /** Next state for state * 10 + digit, or {@link #DEAD_STATE}. */
+    private final int[] mTransitions;
+
+    /** Category of a number ending in the state. */
+    private final int[] mCategories;
+
+    private ShortCodeDfa(int[] transitions, int[] categories) {
+        mTransitions = transitions;
+        mCategories = categories;
+    }
+
+    /**
+     * Classify the number.
+     *
+     * @param number The destination number.
+     * @return One of the {@code SmsManager.SMS_CATEGORY_*} constants.
+     */
+    public int getNumberCategory(String number) {
+        int state = 0;
+        for (int i = 0; i < number.length(); i++) {
+            int digit = number.charAt(i) - '0';
+            if (digit < 0 || digit >= NUM_DIGITS) {
+                // Supported patterns only match digits.
+                return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+            }
+            state = mTransitions[state * NUM_DIGITS + digit];
+            if (state == DEAD_STATE) {
+                return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+            }
+        }
+        return mCategories[state];
+    }
+
+    /** @return The number of DFA states. */
+    public int getStateCount() {
+        return mCategories.length;
+    }
+
+    /**
+     * Compile the patterns of one country. Any pattern may be {@code null}.
+     *
+     * @return The automaton, or {@code null} if a pattern uses an unsupported construct.
+     */
+    public static @Nullable ShortCodeDfa compile(@Nullable String free,
+            @Nullable String standard, @Nullable String premium, @Nullable String shortCode) {
+        String[] patterns = {free, standard, premium, shortCode};
+        Nfa nfa = new Nfa();
+        int start = nfa.newState();
+        try {
+            for (int i = 0; i < patterns.length; i++) {
+                if (patterns[i] == null) continue;
+                Node node = new Parser(patterns[i]).parse();
+                Fragment fragment = node.build(nfa);
+                nfa.addEpsilon(start, fragment.mStart);
+                nfa.mAccept.put(fragment.mEnd, i);
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return nfa.toDfa(start);
+    }
+
+    /** Thompson NFA over the digits. */
+    private static final class Nfa {
+        final List<Integer> mMasks = new ArrayList<>();
+        final List<Integer> mNext = new ArrayList<>();
+        final List<List<Integer>> mEpsilons = new ArrayList<>();
+        /** Accepting state to index in {@link #CATEGORY_PRIORITY}. */
+        final HashMap<Integer, Integer> mAccept = new HashMap<>();
+
+        int newState() {
+            mMasks.add(0);
+            mNext.add(DEAD_STATE);
+            mEpsilons.add(new ArrayList<>());
+            return mMasks.size() - 1;
+        }
+
+        void addEpsilon(int from, int to) {
+            mEpsilons.get(from).add(to);
+        }
+
+        void addDigits(int from, int mask, int to) {
+            mMasks.set(from, mask);
+            mNext.set(from, to);
+        }
+
+        void closure(BitSet set) {
+            ArrayDeque<Integer> stack = new ArrayDeque<>();
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                stack.push(i);
+            }
+            while (!stack.isEmpty()) {
+                for (int to : mEpsilons.get(stack.pop())) {
+                    if (!set.get(to)) {
+                        set.set(to);
+                        stack.push(to);
+                    }
+                }
+            }
+        }
+
+        @Nullable ShortCodeDfa toDfa(int start) {
+            HashMap<BitSet, Integer> index = new HashMap<>();
+            List<BitSet> states = new ArrayList<>();
+            BitSet initial = new BitSet();
+            initial.set(start);
+            closure(initial);
+            index.put(initial, 0);
+            states.add(initial);
+
+            List<int[]> transitions = new ArrayList<>();
+            for (int s = 0; s < states.size(); s++) {
+                BitSet current = states.get(s);
+                int[] row = new int[NUM_DIGITS];
+                for (int digit = 0; digit < NUM_DIGITS; digit++) {
+                    BitSet next = new BitSet();
+                    for (int i = current.nextSetBit(0); i >= 0; i = current.nextSetBit(i + 1)) {
+                        if ((mMasks.get(i) & (1 << digit)) != 0) {
+                            next.set(mNext.get(i));
+                        }
+                    }
+                    if (next.isEmpty()) {
+                        row[digit] = DEAD_STATE;
+                        continue;
+                    }
+                    closure(next);
+                    Integer target = index.get(next);
+                    if (target == null) {
+                        if (states.size() >= MAX_DFA_STATES) return null;
+                        target = states.size();
+                        index.put(next, target);
+                        states.add(next);
+                    }
+                    row[digit] = target;
+                }
+                transitions.add(row);
+            }
+
+            int[] flatTransitions = new int[states.size() * NUM_DIGITS];
+            int[] categories = new int[states.size()];
+            for (int s = 0; s < states.size(); s++) {
+                System.arraycopy(transitions.get(s), 0, flatTransitions, s * NUM_DIGITS,
+                        NUM_DIGITS);
+                int best = CATEGORY_PRIORITY.length;
+                BitSet set = states.get(s);
+                for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                    Integer priority = mAccept.get(i);
+                    if (priority != null && priority < best) best = priority;
+                }
+                categories[s] = best < CATEGORY_PRIORITY.length ? CATEGORY_PRIORITY[best]
+                        : SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+            }
+            return new ShortCodeDfa(flatTransitions, categories);
+        }
+    }
+
+    /** Start and end state of an NFA fragment. */
+    private static final class Fragment {
+        final int mStart;
+        final int mEnd;
+
+        Fragment(int start, int end) {
+            mStart = start;
+            mEnd = end;
+        }
+    }
+
+    /** Regular expression syntax tree. Fragments are built per use for counted repetition. */
+    private abstract static class Node {
+        abstract Fragment build(Nfa nfa);
+    }
+
+    private static final class DigitsNode extends Node {
+        final int mMask;
+
+        DigitsNode(int mask) {
+            mMask = mask;
+        }
+
+        @Override
+        Fragment build(Nfa nfa) {
+            int start = nfa.newState();
+            int end = nfa.newState();
+            nfa.addDigits(start, mMask, end);
+            return new Fragment(start, end);
+        }
+    }
+
+    private static final class ConcatNode extends Node {
+        final List<Node> mNodes;
+
+        ConcatNode(List<Node> nodes) {
+            mNodes = nodes;
+        }
+
+        @Override
+        Fragment build(Nfa nfa) {
+            int start = nfa.newState();
+            int end = start;
+            for (Node node : mNodes) {
+                Fragment fragment = node.build(nfa);
+                nfa.addEpsilon(end, fragment.mStart);
+                end = fragment.mEnd;
+            }
+            return new Fragment(start, end);
+        }
+    }
+
+    private static final class AltNode extends Node {
+        final List<Node> mNodes;
+
+        AltNode(List<Node> nodes) {
+            mNodes = nodes;
+        }
+
+        @Override
+        Fragment build(Nfa nfa) {
+            int start = nfa.newState();
+            int end = nfa.newState();
+            for (Node node : mNodes) {
+                Fragment fragment = node.build(nfa);
+                nfa.addEpsilon(start, fragment.mStart);
+                nfa.addEpsilon(fragment.mEnd, end);
+            }
+            return new Fragment(start, end);
+        }
+    }
+
+    private static final class RepeatNode extends Node {
+        final Node mNode;
+        final int mMin;
+        /** Maximum repetitions, or -1 for unbounded. */
+        final int mMax;
+
+        RepeatNode(Node node, int min, int max) {
+            mNode = node;
+            mMin = min;
+            mMax = max;
+        }
+
+        @Override
+        Fragment build(Nfa nfa) {
+            int start = nfa.newState();
+            int end = start;
+            for (int i = 0; i < mMin; i++) {
+                Fragment fragment = mNode.build(nfa);
+                nfa.addEpsilon(end, fragment.mStart);
+                end = fragment.mEnd;
+            }
+            if (mMax < 0) {
+                Fragment fragment = mNode.build(nfa);
+                int loopEnd = nfa.newState();
+                nfa.addEpsilon(end, fragment.mStart);
+                nfa.addEpsilon(end, loopEnd);
+                nfa.addEpsilon(fragment.mEnd, fragment.mStart);
+                nfa.addEpsilon(fragment.mEnd, loopEnd);
+                return new Fragment(start, loopEnd);
+            }
+            int optionalEnd = nfa.newState();
+            for (int i = mMin; i < mMax; i++) {
+                Fragment fragment = mNode.build(nfa);
+                nfa.addEpsilon(end, fragment.mStart);
+                nfa.addEpsilon(end, optionalEnd);
+                end = fragment.mEnd;
+            }
+            nfa.addEpsilon(end, optionalEnd);
+            return new Fragment(start, optionalEnd);
+        }
+    }
+
+    /**
+     * Recursive descent parser for the supported subset. Throws
+     * {@link IllegalArgumentException} on anything else.
+     */
+    private static final class Parser {
+        private final String mPattern;
+        private int mPos;
+
+        Parser(String pattern) {
+            mPattern = pattern;
+        }
+
+        Node parse() {
+            Node node = parseAlternation();
+            if (mPos != mPattern.length()) throw unsupported();
+            return node;
+        }
+
+        private IllegalArgumentException unsupported() {
+            return new IllegalArgumentException("Unsupported short code pattern at " + mPos
+                    + ": " + mPattern);
+        }
+
+        private boolean peek(char c) {
+            return mPos < mPattern.length() && mPattern.charAt(mPos) == c;
+        }
+
+        private Node parseAlternation() {
+            List<Node> alternatives = new ArrayList<>();
+            alternatives.add(parseConcatenation());
+            while (peek('|')) {
+                mPos++;
+                alternatives.add(parseConcatenation());
+            }
+            return alternatives.size() == 1 ? alternatives.get(0) : new AltNode(alternatives);
+        }
+
+        private Node parseConcatenation() {
+            List<Node> nodes = new ArrayList<>();
+            while (mPos < mPattern.length() && !peek('|') && !peek(')')) {
+                nodes.add(parseQuantified());
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new ConcatNode(nodes);
+        }
+
+        private Node parseQuantified() {
+            Node node = parseAtom();
+            while (mPos < mPattern.length()) {
+                char c = mPattern.charAt(mPos);
+                int min;
+                int max;
+                if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    mPos++;
+                } else if (c == '*') {
+                    min = 0;
+                    max = -1;
+                    mPos++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                    mPos++;
+                } else if (c == '{') {
+                    mPos++;
+                    min = parseNumber();
+                    max = min;
+                    if (peek(',')) {
+                        mPos++;
+                        max = peek('}') ? -1 : parseNumber();
+                    }
+                    if (!peek('}') || (max >= 0 && max < min) || min > MAX_REPEAT
+                            || max > MAX_REPEAT) {
+                        throw unsupported();
+                    }
+                    mPos++;
+                } else {
+                    break;
+                }
+                // Reluctant quantifiers don't change what matches the whole input, but
+                // possessive ones do.
+                if (peek('?')) {
+                    mPos++;
+                } else if (peek('+')) {
+                    throw unsupported();
+                }
+                node = new RepeatNode(node, min, max);
+            }
+            return node;
+        }
+
+        private int parseNumber() {
+            int start = mPos;
+            while (mPos < mPattern.length() && mPattern.charAt(mPos) >= '0'
+                    && mPattern.charAt(mPos) <= '9' && mPos - start < 3) {
+                mPos++;
+            }
+            if (start == mPos) throw unsupported();
+            return Integer.parseInt(mPattern.substring(start, mPos));
+        }
+
+        private Node parseAtom() {
+            char c = mPattern.charAt(mPos++);
+            if (c >= '0' && c <= '9') {
+                return new DigitsNode(1 << (c - '0'));
+            }
+            switch (c) {
+                case '(':
+                    if (peek('?')) {
+                        if (!mPattern.startsWith("?:", mPos)) throw unsupported();
+                        mPos += 2;
+                    }
+                    Node node = parseAlternation();
+                    if (!peek(')')) throw unsupported();
+                    mPos++;
+                    return node;
+                case '[':
+                    return new DigitsNode(parseClass());
+                case '\\':
+                    if (peek('d')) {
+                        mPos++;
+                        return new DigitsNode(ALL_DIGITS);
+                    }
+                    throw unsupported();
+                default:
+                    throw unsupported();
+            }
+        }
+
+        /** Parse a digit class after '['. Negated classes also match non-digits. */
+        private int parseClass() {
+            int mask = 0;
+            while (!peek(']')) {
+                if (mPos >= mPattern.length()) throw unsupported();
+                int from = parseClassDigit();
+                int to = from;
+                if (peek('-') && mPos + 1 < mPattern.length()
+                        && mPattern.charAt(mPos + 1) != ']') {
+                    mPos++;
+                    to = parseClassDigit();
+                    if (to < from) throw unsupported();
+                }
+                for (int d = from; d <= to; d++) {
+                    mask |= 1 << d;
+                }
+            }
+            mPos++;
+            if (mask == 0) throw unsupported();
+            return mask;
+        }
+
+        private int parseClassDigit() {
+            char c = mPattern.charAt(mPos++);
+            if (c >= '0' && c <= '9') return c - '0';
+            throw unsupported();
+        }
+    }
+}
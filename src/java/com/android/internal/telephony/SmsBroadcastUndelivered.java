@@ -29,6 +29,7 @@ import android.os.UserManager;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.cdma.CdmaInboundSmsHandler;
 import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
 import com.android.internal.telephony.metrics.TelephonyMetrics;
@@ -37,13 +38,16 @@ import com.android.telephony.Rlog;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Called when the credential-encrypted storage is unlocked, collecting all acknowledged messages
  * and deleting any partial message segments older than 7 days. Called from a worker thread to
- * avoid delaying phone app startup. The last step is to broadcast the first pending message from
- * the main thread, then the remaining pending messages will be broadcast after the previous
- * ordered broadcast completes.
+ * avoid delaying phone app startup. The raw table is read in pages ordered by row id, and each
+ * single-part message or complete multi-part message is handed to its inbound SMS handler as
+ * soon as it is found; the handler broadcasts it after the previous ordered broadcast completes.
  */
 public class SmsBroadcastUndelivered {
     private static final String TAG = "SmsBroadcastUndelivered";
@@ -86,6 +90,21 @@ public class SmsBroadcastUndelivered {
                 put(InboundSmsHandler.SUBID_COLUMN, 10);
             }};
 
+    /** Number of raw table rows read per query. */
+    @VisibleForTesting
+    static final int SCAN_PAGE_SIZE = 100;
+
+    /** Worker shared by all scans, so concurrent triggers never scan the raw table in parallel. */
+    private static final Executor sScanExecutor = Executors.newSingleThreadExecutor();
+
+    /** Whether a scan is queued and has not started yet. Further triggers are merged into it. */
+    private static final AtomicBoolean sScanQueued = new AtomicBoolean(false);
+
+    /** Rows read by the last scan. */
+    private static volatile int sLastScanRowCount;
+
+    /** Duration of the last scan in milliseconds. */
+    private static volatile long sLastScanTimeMs;
 
     private static SmsBroadcastUndelivered instance;
 
@@ -100,24 +119,38 @@ public class SmsBroadcastUndelivered {
         public void onReceive(final Context context, Intent intent) {
             Rlog.d(TAG, "Received broadcast " + intent.getAction());
             if (Intent.ACTION_USER_UNLOCKED.equals(intent.getAction())) {
-                new ScanRawTableThread(context).start();
+                requestScan(context);
             }
         }
     };
 
-    private class ScanRawTableThread extends Thread {
-        private final Context context;
+    /**
+     * Queue a raw table scan on the shared worker.
+     * @see #requestScan(Context, Executor)
+     */
+    static void requestScan(Context context) {
+        requestScan(context, sScanExecutor);
+    }
 
-        private ScanRawTableThread(Context context) {
-            this.context = context;
+    /**
+     * Queue a raw table scan on the given worker. A request made while another scan is queued
+     * but not started yet is merged into it; a request made while a scan is running queues one
+     * more scan, since rows may have been added after the running scan passed them.
+     *
+     * @param executor The worker running the scan, {@link #sScanExecutor} outside of tests.
+     */
+    @VisibleForTesting
+    static void requestScan(Context context, Executor executor) {
+        if (!sScanQueued.compareAndSet(false, true)) {
+            if (DBG) Rlog.d(TAG, "requestScan: scan already queued");
+            return;
         }
-
-        @Override
-        public void run() {
+        executor.execute(() -> {
+            sScanQueued.set(false);
             scanRawTable(context,
                     System.currentTimeMillis() - getUndeliveredSmsExpirationTime(context));
             InboundSmsHandler.cancelNewMessageNotification(context);
-        }
+        });
     }
 
     public static void initialize(Context context, GsmInboundSmsHandler gsmInboundSmsHandler,
@@ -144,7 +177,7 @@ public class SmsBroadcastUndelivered {
         UserManager userManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
 
         if (userManager.isUserUnlocked()) {
-            new ScanRawTableThread(context).start();
+            requestScan(context);
         } else {
             IntentFilter userFilter = new IntentFilter();
             userFilter.addAction(Intent.ACTION_USER_UNLOCKED);
@@ -155,6 +188,7 @@ public class SmsBroadcastUndelivered {
     /**
      * Scan the raw table for complete SMS messages to broadcast, and old PDUs to delete.
      */
+    @VisibleForTesting
     static void scanRawTable(Context context, long oldMessageTimestamp) {
         if (DBG) Rlog.d(TAG, "scanning raw table for undelivered messages");
         long startTime = System.nanoTime();
@@ -162,58 +196,37 @@ public class SmsBroadcastUndelivered {
         HashMap<SmsReferenceKey, Integer> multiPartReceivedCount =
                 new HashMap<SmsReferenceKey, Integer>(4);
         HashSet<SmsReferenceKey> oldMultiPartMessages = new HashSet<SmsReferenceKey>(4);
-        Cursor cursor = null;
+        int rowCount = 0;
         try {
-            // query only non-deleted ones
-            cursor = contentResolver.query(InboundSmsHandler.sRawUri,
-                    PDU_PENDING_MESSAGE_PROJECTION, "deleted = 0", null, null);
-            if (cursor == null) {
-                Rlog.e(TAG, "error getting pending message cursor");
-                return;
-            }
-
             boolean isCurrentFormat3gpp2 = InboundSmsHandler.isCurrentFormat3gpp2();
-            while (cursor.moveToNext()) {
-                InboundSmsTracker tracker;
-                try {
-                    tracker = TelephonyComponentFactory.getInstance()
-                            .inject(InboundSmsTracker.class.getName()).makeInboundSmsTracker(
-                                    context,
-                                    cursor,
-                                    isCurrentFormat3gpp2);
-                } catch (IllegalArgumentException e) {
-                    Rlog.e(TAG, "error loading SmsTracker: " + e);
-                    continue;
-                }
-
-                if (tracker.getMessageCount() == 1) {
-                    // deliver single-part message
-                    broadcastSms(tracker);
-                } else {
-                    SmsReferenceKey reference = new SmsReferenceKey(tracker);
-                    Integer receivedCount = multiPartReceivedCount.get(reference);
-                    if (receivedCount == null) {
-                        multiPartReceivedCount.put(reference, 1);    // first segment seen
-                        if (tracker.getTimestamp() < oldMessageTimestamp) {
-                            // older than oldMessageTimestamp; delete if we don't find all the
-                            // segments
-                            oldMultiPartMessages.add(reference);
-                        }
-                    } else {
-                        int newCount = receivedCount + 1;
-                        if (newCount == tracker.getMessageCount()) {
-                            // looks like we've got all the pieces; send a single tracker
-                            // to state machine which will find the other pieces to broadcast
-                            if (DBG) Rlog.d(TAG, "found complete multi-part message");
-                            broadcastSms(tracker);
-                            // don't delete this old message until after we broadcast it
-                            oldMultiPartMessages.remove(reference);
-                        } else {
-                            multiPartReceivedCount.put(reference, newCount);
-                        }
+            // Rows added after the scan started are delivered by the inbound SMS handlers.
+            long maxRowId = getMaxPendingRowId(contentResolver);
+            long lastRowId = -1;
+            int pageRowCount;
+            do {
+                pageRowCount = 0;
+                // query only non-deleted ones, one page at a time
+                try (Cursor cursor = contentResolver.query(InboundSmsHandler.sRawUri,
+                        PDU_PENDING_MESSAGE_PROJECTION, "deleted = 0 AND _id > ? AND _id <= ?",
+                        new String[]{Long.toString(lastRowId), Long.toString(maxRowId)},
+                        getLimitedSortOrder("_id ASC", SCAN_PAGE_SIZE))) {
+                    if (cursor == null) {
+                        Rlog.e(TAG, "error getting pending message cursor");
+                        return;
+                    }
+                    int idColumn = PDU_PENDING_MESSAGE_PROJECTION_INDEX_MAPPING
+                            .get(InboundSmsHandler.ID_COLUMN);
+                    while (cursor.moveToNext()) {
+                        pageRowCount++;
+                        lastRowId = Math.max(lastRowId, cursor.getLong(idColumn));
+                        processPendingRow(context, cursor, isCurrentFormat3gpp2,
+                                oldMessageTimestamp, multiPartReceivedCount,
+                                oldMultiPartMessages);
                     }
                 }
-            }
+                rowCount += pageRowCount;
+            } while (pageRowCount == SCAN_PAGE_SIZE);
+
             // Retrieve the phone and phone id, required for metrics
             // TODO don't hardcode to the first phone (phoneId = 0) but this is no worse than
             //  earlier. Also phoneId for old messages may not be known (messages may be from an
@@ -226,6 +239,10 @@ public class SmsBroadcastUndelivered {
                 // delete permanently
                 int rows = contentResolver.delete(InboundSmsHandler.sRawUriPermanentDelete,
                         message.getDeleteWhere(), message.getDeleteWhereArgs());
+                if (rows > 0) {
+                    // The inbound SMS handlers may have buffered the deleted segments.
+                    InboundSmsReassemblyBuffer.onRawTableRowsDeleted();
+                }
                 if (rows == 0) {
                     Rlog.e(TAG, "No rows were deleted from raw table!");
                 } else if (DBG) {
@@ -246,14 +263,98 @@ public class SmsBroadcastUndelivered {
         } catch (SQLException e) {
             Rlog.e(TAG, "error reading pending SMS messages", e);
         } finally {
-            if (cursor != null) {
-                cursor.close();
+            sLastScanRowCount = rowCount;
+            sLastScanTimeMs = (System.nanoTime() - startTime) / 1000000;
+            if (DBG) Rlog.d(TAG, "finished scanning " + rowCount + " rows of raw table in "
+                    + sLastScanTimeMs + " ms");
+        }
+    }
+
+    /**
+     * @return The highest row id of the non-deleted rows in the raw table, or -1 if none.
+     */
+    private static long getMaxPendingRowId(ContentResolver contentResolver) {
+        try (Cursor cursor = contentResolver.query(InboundSmsHandler.sRawUri,
+                new String[]{"_id"}, "deleted = 0", null, getLimitedSortOrder("_id DESC", 1))) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * SmsProvider only implements the selection based query, so a {@link
+     * ContentResolver#QUERY_ARG_LIMIT} would be dropped. The limit is appended to the sort order
+     * instead, which the provider passes on to SQLite as the ORDER BY clause.
+     *
+     * @return The sort order of a raw table query returning at most {@code limit} rows.
+     */
+    private static String getLimitedSortOrder(String sortOrder, int limit) {
+        return sortOrder + " LIMIT " + limit;
+    }
+
+    /**
+     * Handle one row of the raw table scan. Single-part messages are delivered right away, and a
+     * multi-part message is delivered as soon as its last segment is seen.
+     */
+    private static void processPendingRow(Context context, Cursor cursor,
+            boolean isCurrentFormat3gpp2, long oldMessageTimestamp,
+            HashMap<SmsReferenceKey, Integer> multiPartReceivedCount,
+            HashSet<SmsReferenceKey> oldMultiPartMessages) {
+        InboundSmsTracker tracker;
+        try {
+            tracker = TelephonyComponentFactory.getInstance()
+                    .inject(InboundSmsTracker.class.getName()).makeInboundSmsTracker(
+                            context,
+                            cursor,
+                            isCurrentFormat3gpp2);
+        } catch (IllegalArgumentException e) {
+            Rlog.e(TAG, "error loading SmsTracker: " + e);
+            return;
+        }
+
+        if (tracker.getMessageCount() == 1) {
+            // deliver single-part message
+            broadcastSms(tracker);
+        } else {
+            SmsReferenceKey reference = new SmsReferenceKey(tracker);
+            Integer receivedCount = multiPartReceivedCount.get(reference);
+            if (receivedCount == null) {
+                multiPartReceivedCount.put(reference, 1);    // first segment seen
+                if (tracker.getTimestamp() < oldMessageTimestamp) {
+                    // older than oldMessageTimestamp; delete if we don't find all the
+                    // segments
+                    oldMultiPartMessages.add(reference);
+                }
+            } else {
+                int newCount = receivedCount + 1;
+                if (newCount == tracker.getMessageCount()) {
+                    // looks like we've got all the pieces; send a single tracker
+                    // to state machine which will find the other pieces to broadcast
+                    if (DBG) Rlog.d(TAG, "found complete multi-part message");
+                    broadcastSms(tracker);
+                    // don't delete this old message until after we broadcast it
+                    oldMultiPartMessages.remove(reference);
+                } else {
+                    multiPartReceivedCount.put(reference, newCount);
+                }
             }
-            if (DBG) Rlog.d(TAG, "finished scanning raw table in "
-                    + ((System.nanoTime() - startTime) / 1000000) + " ms");
         }
     }
 
+    /** @return The number of rows read by the last raw table scan. */
+    @VisibleForTesting
+    static int getLastScanRowCount() {
+        return sLastScanRowCount;
+    }
+
+    /** @return The duration of the last raw table scan in milliseconds. */
+    @VisibleForTesting
+    static long getLastScanTimeMs() {
+        return sLastScanTimeMs;
+    }
+
     /**
      * Send tracker to appropriate (3GPP or 3GPP2) inbound SMS handler for broadcast.
      */
@@ -280,7 +381,7 @@ public class SmsBroadcastUndelivered {
         }
     }
 
-    private long getUndeliveredSmsExpirationTime(Context context) {
+    private static long getUndeliveredSmsExpirationTime(Context context) {
         int subId = SubscriptionManager.getDefaultSmsSubscriptionId();
         CarrierConfigManager configManager =
                 (CarrierConfigManager) context.getSystemService(Context.CARRIER_CONFIG_SERVICE);
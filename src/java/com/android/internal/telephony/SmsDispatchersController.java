@@ -37,6 +37,7 @@ import android.provider.Telephony.Sms.Intents;
 import android.telephony.ServiceState;
 import android.telephony.SmsManager;
 import android.telephony.SmsMessage;
+import android.util.IndentingPrintWriter;
 
 import com.android.ims.ImsManager;
 import com.android.internal.annotations.VisibleForTesting;
@@ -1060,6 +1061,8 @@ public class SmsDispatchersController extends Handler {
         mGsmDispatcher.dump(fd, pw, args);
         mCdmaDispatcher.dump(fd, pw, args);
         mImsSmsDispatcher.dump(fd, pw, args);
+        CarrierMessagingServicePool.getInstance(mContext).dump(
+                new IndentingPrintWriter(pw, "  "));
     }
 
     private void logd(String msg) {
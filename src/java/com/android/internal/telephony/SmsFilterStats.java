@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Map;
+
+/**
+ * Per-filter latency metrics of the inbound SMS filter chain of {@link InboundSmsHandler}.
+ *
+ * Results of asynchronous filters are delivered on binder threads, so all methods are
+ * synchronized.
+ */
+public class SmsFilterStats {
+    private static class Entry {
+        long mInvocations;
+        long mMatches;
+        long mTotalLatencyMs;
+        long mMaxLatencyMs;
+    }
+
+    private final Map<String, Entry> mEntries = new ArrayMap<>();
+
+    /**
+     * Record one invocation of a filter.
+     *
+     * @param name The name of the filter.
+     * @param latencyMs The time the filter took to reach a decision.
+     * @param matched Whether the filter took over processing of the message.
+     */
+    public synchronized void record(@NonNull String name, long latencyMs, boolean matched) {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(name, entry);
+        }
+        entry.mInvocations++;
+        if (matched) {
+            entry.mMatches++;
+        }
+        entry.mTotalLatencyMs += latencyMs;
+        entry.mMaxLatencyMs = Math.max(entry.mMaxLatencyMs, latencyMs);
+    }
+
+    /** @return The number of recorded invocations of the filter. */
+    @VisibleForTesting
+    public synchronized long getInvocationCount(@NonNull String name) {
+        Entry entry = mEntries.get(name);
+        return entry == null ? 0 : entry.mInvocations;
+    }
+
+    /**
+     * Dump the metrics.
+     *
+     * @param pw Print writer
+     */
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("SmsFilterStats:");
+        pw.increaseIndent();
+        for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+            Entry entry = e.getValue();
+            pw.println(e.getKey() + ": invocations=" + entry.mInvocations
+                    + " matches=" + entry.mMatches
+                    + " avgLatencyMs=" + (entry.mTotalLatencyMs / entry.mInvocations)
+                    + " maxLatencyMs=" + entry.mMaxLatencyMs);
+        }
+        pw.decreaseIndent();
+    }
+}
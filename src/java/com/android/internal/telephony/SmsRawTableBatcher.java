@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.telephony.Rlog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-behind batcher for the SMS raw table used by {@link InboundSmsHandler}.
+ *
+ * Deletes of delivered or dropped messages are queued and applied together with the next insert
+ * in a single {@link ContentResolver#applyBatch} call. Inserts are always applied immediately,
+ * so a message is persisted before it is acknowledged to the network. Queued deletes are flushed
+ * when the handler becomes idle, when too many are queued, {@link #MAX_PENDING_TIME_MS} after the
+ * first one was queued, and before a raw table query whose result they could change. The batcher
+ * is not thread safe: it must only be accessed from the thread of the looper it was created
+ * with, callers on other threads have to post to that thread first.
+ *
+ * A delete is only queued once the message has been delivered. If the phone process dies before
+ * the delete is applied, the row is still in the raw table and the message is delivered again by
+ * {@link SmsBroadcastUndelivered} after the restart. This could already happen when the process
+ * died between the delivery and the delete; queueing widens that window by at most
+ * {@link #MAX_PENDING_TIME_MS}. Receivers have to cope with such a duplicate anyway.
+ */
+public class SmsRawTableBatcher {
+    private static final boolean DBG = true;
+
+    /** Maximum number of deletes kept pending before they are flushed. */
+    @VisibleForTesting
+    public static final int MAX_PENDING_OPERATIONS = 16;
+
+    /** Maximum time a delete is kept pending before it is flushed. */
+    @VisibleForTesting
+    public static final long MAX_PENDING_TIME_MS = 500;
+
+    private final ContentResolver mResolver;
+    private final String mAuthority;
+    private final String mLogTag;
+    private final Handler mHandler;
+    private final Runnable mFlushRunnable = this::flush;
+
+    private static class PendingDelete {
+        final Uri mUri;
+        final String mWhere;
+        final String[] mWhereArgs;
+
+        PendingDelete(Uri uri, String where, String[] whereArgs) {
+            mUri = uri;
+            mWhere = where;
+            mWhereArgs = whereArgs;
+        }
+    }
+
+    private final List<PendingDelete> mPendingDeletes = new ArrayList<>();
+
+    private long mTransactions;
+    private long mOperations;
+    private long mFallbacks;
+    private int mLargestBatch;
+    private long mTotalApplyTimeMs;
+
+    public SmsRawTableBatcher(@NonNull ContentResolver resolver, @NonNull String authority,
+            @NonNull String logTag, @NonNull Looper looper) {
+        mResolver = resolver;
+        mAuthority = authority;
+        mLogTag = logTag;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Queue a delete. It is applied with the next insert or flush, at the latest
+     * {@link #MAX_PENDING_TIME_MS} after the first pending delete was queued.
+     *
+     * @param uri The raw table URI to delete from.
+     * @param where The selection.
+     * @param whereArgs The selection arguments.
+     */
+    public void delete(@NonNull Uri uri, @Nullable String where, @Nullable String[] whereArgs) {
+        if (mPendingDeletes.isEmpty()) {
+            mHandler.postDelayed(mFlushRunnable, MAX_PENDING_TIME_MS);
+        }
+        mPendingDeletes.add(new PendingDelete(uri, where, whereArgs));
+        if (mPendingDeletes.size() >= MAX_PENDING_OPERATIONS) {
+            flush();
+        }
+    }
+
+    /**
+     * Insert a row, applying all pending deletes before it in the same batch.
+     *
+     * @param uri The raw table URI to insert to.
+     * @param values The row to insert.
+     * @return The URI of the new row, or {@code null} if the insert failed.
+     */
+    public @Nullable Uri insert(@NonNull Uri uri, @NonNull ContentValues values) {
+        ArrayList<ContentProviderOperation> ops = buildPendingOperations();
+        ops.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        ContentProviderResult[] results = apply(ops);
+        if (results != null) {
+            return results[results.length - 1].uri;
+        }
+        // Apply the operations one by one.
+        applyPendingDeletesIndividually();
+        return mResolver.insert(uri, values);
+    }
+
+    /**
+     * Apply all pending deletes.
+     */
+    public void flush() {
+        if (mPendingDeletes.isEmpty()) {
+            return;
+        }
+        if (apply(buildPendingOperations()) == null) {
+            applyPendingDeletesIndividually();
+        }
+    }
+
+    /** @return {@code true} if there are deletes that have not been applied yet. */
+    public boolean hasPendingOperations() {
+        return !mPendingDeletes.isEmpty();
+    }
+
+    private ArrayList<ContentProviderOperation> buildPendingOperations() {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(mPendingDeletes.size() + 1);
+        for (PendingDelete delete : mPendingDeletes) {
+            ops.add(ContentProviderOperation.newDelete(delete.mUri)
+                    .withSelection(delete.mWhere, delete.mWhereArgs).build());
+        }
+        return ops;
+    }
+
+    /**
+     * Apply the operations in one batch. Pending deletes are cleared on success.
+     *
+     * @return The results, or {@code null} if the batch could not be applied.
+     */
+    private @Nullable ContentProviderResult[] apply(ArrayList<ContentProviderOperation> ops) {
+        long start = SystemClock.elapsedRealtime();
+        ContentProviderResult[] results;
+        try {
+            results = mResolver.applyBatch(mAuthority, ops);
+        } catch (RemoteException | OperationApplicationException e) {
+            loge("Failed to apply " + ops.size() + " raw table operations: " + e);
+            mFallbacks++;
+            return null;
+        }
+        mTotalApplyTimeMs += SystemClock.elapsedRealtime() - start;
+        mTransactions++;
+        mOperations += ops.size();
+        mLargestBatch = Math.max(mLargestBatch, ops.size());
+        for (int i = 0; i < mPendingDeletes.size(); i++) {
+            logDeletedRows(results[i].count);
+        }
+        clearPendingDeletes();
+        return results;
+    }
+
+    private void applyPendingDeletesIndividually() {
+        for (PendingDelete delete : mPendingDeletes) {
+            logDeletedRows(mResolver.delete(delete.mUri, delete.mWhere, delete.mWhereArgs));
+        }
+        clearPendingDeletes();
+    }
+
+    private void clearPendingDeletes() {
+        mPendingDeletes.clear();
+        mHandler.removeCallbacks(mFlushRunnable);
+    }
+
+    private void logDeletedRows(Integer rows) {
+        if (rows == null || rows == 0) {
+            loge("No rows were deleted from raw table!");
+        } else if (DBG) {
+            log("Deleted " + rows + " rows from raw table.");
+        }
+    }
+
+    /** @return The number of batches applied. */
+    @VisibleForTesting
+    public long getTransactionCount() {
+        return mTransactions;
+    }
+
+    private void log(String s) {
+        Rlog.d(mLogTag, s);
+    }
+
+    private void loge(String s) {
+        Rlog.e(mLogTag, s);
+    }
+
+    /**
+     * Dump the state of the batcher.
+     *
+     * @param pw Print writer
+     */
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("SmsRawTableBatcher:");
+        pw.increaseIndent();
+        pw.println("pending=" + mPendingDeletes.size() + " transactions=" + mTransactions
+                + " operations=" + mOperations + " largestBatch=" + mLargestBatch
+                + " fallbacks=" + mFallbacks);
+        pw.println("avgApplyTimeMs="
+                + (mTransactions == 0 ? 0 : mTotalApplyTimeMs / mTransactions));
+        pw.decreaseIndent();
+    }
+}
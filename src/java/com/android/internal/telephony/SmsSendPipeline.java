@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.os.SystemClock;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Submits the parts of outgoing messages for an {@link SMSDispatcher} and collects per-part
+ * latency and retry metrics.
+ *
+ * By default every part is handed to the dispatcher as soon as the message is approved, as it
+ * always was. In pipelined mode at most a configured number of parts are outstanding at once;
+ * the remaining parts are queued and the next one is submitted as soon as an outstanding part
+ * completes, fails or leaves the dispatcher, so the lower layer sees a steady stream of
+ * submissions instead of a burst. A retried part keeps its slot.
+ *
+ * A submitted part reports its completion itself when its {@link SmsTracker#onSent} or
+ * {@link SmsTracker#onFailed} is called, so its slot is freed on every terminal path of the
+ * dispatcher, not only on the send result.
+ *
+ * The pipeline is used from the dispatcher's handler thread and from binder threads delivering
+ * IMS send results.
+ */
+public class SmsSendPipeline {
+    /** Sends a single part. */
+    public interface Sender {
+        /** Send the part. May call back into the pipeline. */
+        void send(@NonNull SmsTracker tracker);
+    }
+
+    /** Upper bound of the in-flight window. */
+    @VisibleForTesting
+    public static final int MAX_WINDOW_SIZE = 32;
+
+    /** Number of recent part latencies kept to report percentiles. */
+    private static final int LATENCY_SAMPLES = 64;
+
+    private final Object mLock = new Object();
+    private final Sender mSender;
+
+    /** Window size, {@code 0} if the pipelined mode is off. */
+    private int mWindowSize;
+    private final Set<SmsTracker> mInFlight = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final ArrayDeque<SmsTracker> mQueue = new ArrayDeque<>();
+
+    private long mPartsSent;
+    private long mPartsFailed;
+    private long mPartsRetried;
+    private long mRetries;
+    private int mMaxRetries;
+    private long mFallbacks;
+    private long mTotalLatencyMs;
+    private long mMaxLatencyMs;
+    private int mMaxInFlight;
+    private int mMaxQueued;
+    private final long[] mRecentLatencyMs = new long[LATENCY_SAMPLES];
+    private long mLatencySamples;
+
+    public SmsSendPipeline(@NonNull Sender sender) {
+        mSender = sender;
+    }
+
+    /**
+     * Set the number of parts kept in flight.
+     *
+     * @param windowSize The window size, or {@code 0} to send every part right away.
+     */
+    public void setWindowSize(int windowSize) {
+        synchronized (mLock) {
+            mWindowSize = Math.max(0, Math.min(windowSize, MAX_WINDOW_SIZE));
+        }
+        // A larger window may admit queued parts.
+        sendAll(admitQueued());
+    }
+
+    /** @return The window size, {@code 0} if the pipelined mode is off. */
+    public int getWindowSize() {
+        synchronized (mLock) {
+            return mWindowSize;
+        }
+    }
+
+    /**
+     * Submit the parts of a message.
+     *
+     * @param trackers The parts in sending order.
+     */
+    public void submit(@NonNull SmsTracker[] trackers) {
+        List<SmsTracker> toSend = new ArrayList<>(trackers.length);
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mLock) {
+            for (SmsTracker tracker : trackers) {
+                tracker.mSubmitTimeMillis = now;
+                tracker.mSendPipeline = this;
+                mQueue.add(tracker);
+            }
+            mMaxQueued = Math.max(mMaxQueued, mQueue.size());
+            toSend.addAll(admitQueued());
+        }
+        sendAll(toSend);
+    }
+
+    /**
+     * Called by {@link SmsTracker#onSent} when a submitted part was accepted by the network.
+     */
+    public void onPartSent(@NonNull SmsTracker tracker) {
+        SmsTracker next;
+        synchronized (mLock) {
+            mPartsSent++;
+            recordCompletion(tracker);
+            next = release(tracker);
+        }
+        send(next);
+    }
+
+    /**
+     * Called by {@link SmsTracker#onFailed} when sending a submitted part failed and it won't be
+     * retried.
+     */
+    public void onPartFailed(@NonNull SmsTracker tracker) {
+        SmsTracker next;
+        synchronized (mLock) {
+            mPartsFailed++;
+            recordCompletion(tracker);
+            next = release(tracker);
+        }
+        send(next);
+    }
+
+    /**
+     * Called when a part is handed over to another dispatcher. It no longer occupies a slot of
+     * this pipeline.
+     */
+    public void onPartFallback(@NonNull SmsTracker tracker) {
+        SmsTracker next;
+        synchronized (mLock) {
+            if (tracker.mSendPipeline == this) {
+                // The other dispatcher reports the result of the part.
+                tracker.mSendPipeline = null;
+            }
+            mFallbacks++;
+            next = release(tracker);
+        }
+        send(next);
+    }
+
+    /**
+     * Called when a part is going to be retried. It keeps its slot.
+     */
+    public void onPartRetry(@NonNull SmsTracker tracker) {
+        synchronized (mLock) {
+            mRetries++;
+        }
+    }
+
+    /** @return The number of parts submitted that weren't sent to the dispatcher yet. */
+    public int getQueuedCount() {
+        synchronized (mLock) {
+            return mQueue.size();
+        }
+    }
+
+    /** @return The number of parts sent to the dispatcher that didn't complete yet. */
+    public int getInFlightCount() {
+        synchronized (mLock) {
+            return mInFlight.size();
+        }
+    }
+
+    /** @return The number of parts accepted by the network. */
+    @VisibleForTesting
+    public long getPartsSentCount() {
+        synchronized (mLock) {
+            return mPartsSent;
+        }
+    }
+
+    /** @return The number of retries. */
+    @VisibleForTesting
+    public long getRetryCount() {
+        synchronized (mLock) {
+            return mRetries;
+        }
+    }
+
+    /** Move queued parts in flight up to the window size. */
+    private List<SmsTracker> admitQueued() {
+        List<SmsTracker> admitted = new ArrayList<>();
+        synchronized (mLock) {
+            if (mWindowSize == 0) {
+                // Parts are not tracked when the pipelined mode is off.
+                admitted.addAll(mQueue);
+                mQueue.clear();
+                return admitted;
+            }
+            while (!mQueue.isEmpty() && mInFlight.size() < mWindowSize) {
+                SmsTracker tracker = mQueue.poll();
+                mInFlight.add(tracker);
+                admitted.add(tracker);
+            }
+            mMaxInFlight = Math.max(mMaxInFlight, mInFlight.size());
+        }
+        return admitted;
+    }
+
+    /**
+     * Free the slot of the part and admit the next queued one. Parts that weren't submitted
+     * through this pipeline, e.g. parts that fell back from another dispatcher, have no slot.
+     */
+    private SmsTracker release(SmsTracker tracker) {
+        if (!mInFlight.remove(tracker) || mQueue.isEmpty()
+                || mInFlight.size() >= mWindowSize) {
+            return null;
+        }
+        SmsTracker next = mQueue.poll();
+        mInFlight.add(next);
+        return next;
+    }
+
+    private void recordCompletion(SmsTracker tracker) {
+        if (tracker.mRetryCount > 0) {
+            mPartsRetried++;
+            mMaxRetries = Math.max(mMaxRetries, tracker.mRetryCount);
+        }
+        if (tracker.mSubmitTimeMillis == 0) {
+            return;
+        }
+        long latency = SystemClock.elapsedRealtime() - tracker.mSubmitTimeMillis;
+        mTotalLatencyMs += latency;
+        mMaxLatencyMs = Math.max(mMaxLatencyMs, latency);
+        mRecentLatencyMs[(int) (mLatencySamples % LATENCY_SAMPLES)] = latency;
+        mLatencySamples++;
+    }
+
+    private void send(SmsTracker tracker) {
+        if (tracker != null) {
+            mSender.send(tracker);
+        }
+    }
+
+    private void sendAll(List<SmsTracker> trackers) {
+        for (SmsTracker tracker : trackers) {
+            mSender.send(tracker);
+        }
+    }
+
+    /**
+     * Dump the state and metrics of the pipeline.
+     *
+     * @param pw Print writer
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("SmsSendPipeline:");
+            pw.increaseIndent();
+            pw.println("windowSize=" + mWindowSize + " inFlight=" + mInFlight.size()
+                    + " queued=" + mQueue.size() + " maxInFlight=" + mMaxInFlight
+                    + " maxQueued=" + mMaxQueued);
+            pw.println("partsSent=" + mPartsSent + " partsFailed=" + mPartsFailed
+                    + " fallbacks=" + mFallbacks);
+            pw.println("retries=" + mRetries + " partsRetried=" + mPartsRetried
+                    + " maxRetries=" + mMaxRetries);
+            int samples = (int) Math.min(mLatencySamples, LATENCY_SAMPLES);
+            long[] recent = new long[samples];
+            System.arraycopy(mRecentLatencyMs, 0, recent, 0, samples);
+            Arrays.sort(recent);
+            pw.println("avgLatencyMs=" + (mLatencySamples == 0 ? 0 : mTotalLatencyMs / mLatencySamples)
+                    + " maxLatencyMs=" + mMaxLatencyMs
+                    + " recentP50Ms=" + (samples == 0 ? 0 : recent[samples / 2])
+                    + " recentP90Ms=" + (samples == 0 ? 0 : recent[samples * 9 / 10]));
+            pw.decreaseIndent();
+        }
+    }
+}
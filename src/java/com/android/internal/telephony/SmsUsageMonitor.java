@@ -33,8 +33,10 @@ import android.provider.Settings;
 import android.telephony.SmsManager;
 import android.telephony.TelephonyManager;
 import android.util.AtomicFile;
+import android.util.LongArrayQueue;
 import android.util.Xml;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.util.XmlUtils;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.telephony.Rlog;
@@ -50,12 +52,13 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -104,8 +107,18 @@ public class SmsUsageMonitor {
     private final int mCheckPeriod;
     private final int mMaxAllowed;
 
-    private final HashMap<String, ArrayList<Long>> mSmsStamp =
-            new HashMap<String, ArrayList<Long>>();
+    /** Send times within the check period by app. Each history is guarded by its own lock. */
+    private final ConcurrentHashMap<String, SendHistory> mSmsStamp = new ConcurrentHashMap<>();
+
+    /** Time of the next sweep for apps without send times in the check period. */
+    private final AtomicLong mNextExpirySweepTime = new AtomicLong();
+
+    /** Send times of one app, oldest first. */
+    private static final class SendHistory {
+        final LongArrayQueue mTimestamps = new LongArrayQueue();
+        /** Set once the history was dropped from {@link #mSmsStamp}; callers must look it up. */
+        boolean mRemoved;
+    }
 
     /** Context for retrieving regexes from XML resource. */
     private final Context mContext;
@@ -116,6 +129,39 @@ public class SmsUsageMonitor {
     /** Cached short code pattern matcher for {@link #mCurrentCountry}. */
     private ShortCodePatternMatcher mCurrentPatternMatcher;
 
+    /** Number of countries whose compiled pattern matchers are kept. */
+    private static final int MAX_CACHED_PATTERN_MATCHERS = 4;
+
+    /**
+     * Short code patterns of all countries, indexed by {@link #PATTERN_FREE} and friends. Loaded
+     * once from the pattern file or resource, so a country change doesn't re-parse the XML.
+     */
+    private HashMap<String, String[]> mShortCodePatterns;
+
+    /** Whether {@link #mShortCodePatterns} was loaded from {@link #mPatternFile}. */
+    private boolean mShortCodePatternsFromFile;
+
+    /** Recently used compiled pattern matchers by country; null if the country has none. */
+    private final LinkedHashMap<String, ShortCodePatternMatcher> mPatternMatcherCache =
+            new LinkedHashMap<String, ShortCodePatternMatcher>(
+                    MAX_CACHED_PATTERN_MATCHERS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, ShortCodePatternMatcher> eldest) {
+                    return size() > MAX_CACHED_PATTERN_MATCHERS;
+                }
+            };
+
+    /** Index of the patterns in {@link #mShortCodePatterns}, in the order they are checked. */
+    @VisibleForTesting
+    static final int PATTERN_FREE = 0;
+    @VisibleForTesting
+    static final int PATTERN_STANDARD = 1;
+    @VisibleForTesting
+    static final int PATTERN_PREMIUM = 2;
+    @VisibleForTesting
+    static final int PATTERN_SHORT_CODE = 3;
+
     /** Notice when the enabled setting changes - can be changed through gservices */
     private final AtomicBoolean mCheckEnabled = new AtomicBoolean(true);
 
@@ -176,9 +222,11 @@ public class SmsUsageMonitor {
     private static final String ATTR_PACKAGE_SMS_POLICY = "sms-policy";
 
     /**
-     * SMS short code regex pattern matcher for a specific country.
+     * SMS short code regex pattern matcher for a specific country. The patterns are compiled to
+     * a {@link ShortCodeDfa} when possible, otherwise regular expressions are used.
      */
     private static final class ShortCodePatternMatcher {
+        private final ShortCodeDfa mDfa;
         private final Pattern mShortCodePattern;
         private final Pattern mPremiumShortCodePattern;
         private final Pattern mFreeShortCodePattern;
@@ -186,6 +234,15 @@ public class SmsUsageMonitor {
 
         ShortCodePatternMatcher(String shortCodeRegex, String premiumShortCodeRegex,
                 String freeShortCodeRegex, String standardShortCodeRegex) {
+            mDfa = ShortCodeDfa.compile(freeShortCodeRegex, standardShortCodeRegex,
+                    premiumShortCodeRegex, shortCodeRegex);
+            if (mDfa != null) {
+                mShortCodePattern = null;
+                mPremiumShortCodePattern = null;
+                mFreeShortCodePattern = null;
+                mStandardShortCodePattern = null;
+                return;
+            }
             mShortCodePattern = (shortCodeRegex != null ? Pattern.compile(shortCodeRegex) : null);
             mPremiumShortCodePattern = (premiumShortCodeRegex != null ?
                     Pattern.compile(premiumShortCodeRegex) : null);
@@ -196,6 +253,9 @@ public class SmsUsageMonitor {
         }
 
         int getNumberCategory(String phoneNumber) {
+            if (mDfa != null) {
+                return mDfa.getNumberCategory(phoneNumber);
+            }
             if (mFreeShortCodePattern != null && mFreeShortCodePattern.matcher(phoneNumber)
                     .matches()) {
                 return SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
@@ -269,18 +329,50 @@ public class SmsUsageMonitor {
     }
 
     /**
-     * Return a pattern matcher object for the specified country.
+     * Return a pattern matcher object for the specified country. The patterns of all countries
+     * are reloaded if the pattern file was added, removed or modified.
      * @param country the country to search for
      * @return a {@link ShortCodePatternMatcher} for the specified country, or null if not found
      */
-    private ShortCodePatternMatcher getPatternMatcherFromFile(String country) {
+    private ShortCodePatternMatcher getPatternMatcher(String country) {
+        boolean fromFile = mPatternFile.exists();
+        if (mShortCodePatterns == null || fromFile != mShortCodePatternsFromFile
+                || (fromFile && mPatternFile.lastModified() != mPatternFileLastModified)) {
+            if (fromFile) {
+                if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
+                mShortCodePatterns = getShortCodePatternsFromFile();
+            } else {
+                if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
+                mShortCodePatterns = getShortCodePatternsFromResource();
+            }
+            mShortCodePatternsFromFile = fromFile;
+            mPatternMatcherCache.clear();
+        }
+
+        if (mPatternMatcherCache.containsKey(country)) {
+            return mPatternMatcherCache.get(country);
+        }
+        ShortCodePatternMatcher matcher = null;
+        String[] patterns = mShortCodePatterns.get(country);
+        if (patterns != null) {
+            matcher = new ShortCodePatternMatcher(patterns[PATTERN_SHORT_CODE],
+                    patterns[PATTERN_PREMIUM], patterns[PATTERN_FREE],
+                    patterns[PATTERN_STANDARD]);
+        } else if (DBG) {
+            Rlog.d(TAG, "Country (" + country + ") not found");
+        }
+        mPatternMatcherCache.put(country, matcher);
+        return matcher;
+    }
+
+    private HashMap<String, String[]> getShortCodePatternsFromFile() {
         FileReader patternReader = null;
         XmlPullParser parser = null;
         try {
             patternReader = new FileReader(mPatternFile);
             parser = Xml.newPullParser();
             parser.setInput(patternReader);
-            return getPatternMatcherFromXmlParser(parser, country);
+            return getShortCodePatternsFromXmlParser(parser);
         } catch (FileNotFoundException e) {
             Rlog.e(TAG, "Short Code Pattern File not found");
         } catch (XmlPullParserException e) {
@@ -293,22 +385,27 @@ public class SmsUsageMonitor {
                 } catch (IOException e) {}
             }
         }
-        return null;
+        return new HashMap<>();
     }
 
-    private ShortCodePatternMatcher getPatternMatcherFromResource(String country) {
+    private HashMap<String, String[]> getShortCodePatternsFromResource() {
         int id = com.android.internal.R.xml.sms_short_codes;
         XmlResourceParser parser = null;
         try {
             parser = mContext.getResources().getXml(id);
-            return getPatternMatcherFromXmlParser(parser, country);
+            return getShortCodePatternsFromXmlParser(parser);
         } finally {
             if (parser != null) parser.close();
         }
     }
 
-    private ShortCodePatternMatcher getPatternMatcherFromXmlParser(XmlPullParser parser,
-            String country) {
+    /**
+     * Read the short code patterns of all countries.
+     * @return the patterns by country, indexed by {@link #PATTERN_FREE} and friends
+     */
+    @VisibleForTesting
+    static HashMap<String, String[]> getShortCodePatternsFromXmlParser(XmlPullParser parser) {
+        HashMap<String, String[]> patterns = new HashMap<>();
         try {
             XmlUtils.beginDocument(parser, TAG_SHORTCODES);
 
@@ -316,20 +413,24 @@ public class SmsUsageMonitor {
                 XmlUtils.nextElement(parser);
                 String element = parser.getName();
                 if (element == null) {
-                    Rlog.e(TAG, "Parsing pattern data found null");
                     break;
                 }
 
                 if (element.equals(TAG_SHORTCODE)) {
-                    String currentCountry = parser.getAttributeValue(null, ATTR_COUNTRY);
-                    if (VDBG) Rlog.d(TAG, "Found country " + currentCountry);
-                    if (country.equals(currentCountry)) {
-                        String pattern = parser.getAttributeValue(null, ATTR_PATTERN);
-                        String premium = parser.getAttributeValue(null, ATTR_PREMIUM);
-                        String free = parser.getAttributeValue(null, ATTR_FREE);
-                        String standard = parser.getAttributeValue(null, ATTR_STANDARD);
-                        return new ShortCodePatternMatcher(pattern, premium, free, standard);
+                    String country = parser.getAttributeValue(null, ATTR_COUNTRY);
+                    if (VDBG) Rlog.d(TAG, "Found country " + country);
+                    if (country == null || patterns.containsKey(country)) {
+                        continue;
                     }
+                    String[] countryPatterns = new String[4];
+                    countryPatterns[PATTERN_FREE] = parser.getAttributeValue(null, ATTR_FREE);
+                    countryPatterns[PATTERN_STANDARD] =
+                            parser.getAttributeValue(null, ATTR_STANDARD);
+                    countryPatterns[PATTERN_PREMIUM] =
+                            parser.getAttributeValue(null, ATTR_PREMIUM);
+                    countryPatterns[PATTERN_SHORT_CODE] =
+                            parser.getAttributeValue(null, ATTR_PATTERN);
+                    patterns.put(country, countryPatterns);
                 } else {
                     Rlog.e(TAG, "Error: skipping unknown XML tag " + element);
                 }
@@ -339,8 +440,7 @@ public class SmsUsageMonitor {
         } catch (IOException e) {
             Rlog.e(TAG, "I/O exception reading short code patterns", e);
         }
-        if (DBG) Rlog.d(TAG, "Country (" + country + ") not found");
-        return null;    // country not found
+        return patterns;
     }
 
     /** Clear the SMS application list for disposal. */
@@ -360,20 +460,32 @@ public class SmsUsageMonitor {
      */
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     public boolean check(String appName, int smsWaiting) {
-        synchronized (mSmsStamp) {
-            removeExpiredTimestamps();
+        List<String> defaultApp = mRoleManager.getRoleHolders(RoleManager.ROLE_SMS);
+        if (defaultApp.contains(appName)) {
+            return true;
+        }
 
-            ArrayList<Long> sentList = mSmsStamp.get(appName);
-            if (sentList == null) {
-                sentList = new ArrayList<Long>();
-                mSmsStamp.put(appName, sentList);
-            }
+        return checkQuota(appName, smsWaiting, System.currentTimeMillis());
+    }
 
-            List<String> defaultApp = mRoleManager.getRoleHolders(RoleManager.ROLE_SMS);
-            if (defaultApp.contains(appName)) {
-                return true;
-            } else {
-                return isUnderLimit(sentList, smsWaiting);
+    /**
+     * Check the send quota of an app, and record the new messages if they are allowed.
+     *
+     * @param appName the package name of the app requesting to send an SMS
+     * @param smsWaiting the number of new messages desired to send
+     * @param now the current time in milliseconds
+     * @return true if the app is allowed to send the messages
+     */
+    @VisibleForTesting
+    boolean checkQuota(String appName, int smsWaiting, long now) {
+        removeExpiredTimestamps(now);
+
+        while (true) {
+            SendHistory history = mSmsStamp.computeIfAbsent(appName, k -> new SendHistory());
+            synchronized (history) {
+                if (!history.mRemoved) {
+                    return isUnderLimit(history.mTimestamps, smsWaiting, now);
+                }
             }
         }
     }
@@ -412,13 +524,7 @@ public class SmsUsageMonitor {
             if (countryIso != null) {
                 if (mCurrentCountry == null || !countryIso.equals(mCurrentCountry) ||
                         mPatternFile.lastModified() != mPatternFileLastModified) {
-                    if (mPatternFile.exists()) {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
-                        mCurrentPatternMatcher = getPatternMatcherFromFile(countryIso);
-                    } else {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
-                        mCurrentPatternMatcher = getPatternMatcherFromResource(countryIso);
-                    }
+                    mCurrentPatternMatcher = getPatternMatcher(countryIso);
                     mCurrentCountry = countryIso;
                 }
             }
@@ -619,36 +725,42 @@ public class SmsUsageMonitor {
 
     /**
      * Remove keys containing only old timestamps. This can happen if an SMS app is used
-     * to send messages and then uninstalled.
+     * to send messages and then uninstalled. Expired timestamps of an app are dropped when it
+     * sends, so this only has to run once per check period.
      */
-    private void removeExpiredTimestamps() {
-        long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
-
-        synchronized (mSmsStamp) {
-            Iterator<Map.Entry<String, ArrayList<Long>>> iter = mSmsStamp.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, ArrayList<Long>> entry = iter.next();
-                ArrayList<Long> oldList = entry.getValue();
-                if (oldList.isEmpty() || oldList.get(oldList.size() - 1) < beginCheckPeriod) {
-                    iter.remove();
+    private void removeExpiredTimestamps(long now) {
+        long nextSweepTime = mNextExpirySweepTime.get();
+        // Also sweep if the clock was set back.
+        if ((now < nextSweepTime && nextSweepTime - now <= mCheckPeriod)
+                || !mNextExpirySweepTime.compareAndSet(nextSweepTime, now + mCheckPeriod)) {
+            return;
+        }
+        long beginCheckPeriod = now - mCheckPeriod;
+
+        for (Map.Entry<String, SendHistory> entry : mSmsStamp.entrySet()) {
+            SendHistory history = entry.getValue();
+            synchronized (history) {
+                if (history.mTimestamps.size() == 0
+                        || history.mTimestamps.peekLast() < beginCheckPeriod) {
+                    history.mRemoved = true;
+                    mSmsStamp.remove(entry.getKey(), history);
                 }
             }
         }
     }
 
-    private boolean isUnderLimit(ArrayList<Long> sent, int smsWaiting) {
-        Long ct = System.currentTimeMillis();
+    private boolean isUnderLimit(LongArrayQueue sent, int smsWaiting, long ct) {
         long beginCheckPeriod = ct - mCheckPeriod;
 
         if (VDBG) log("SMS send size=" + sent.size() + " time=" + ct);
 
-        while (!sent.isEmpty() && sent.get(0) < beginCheckPeriod) {
-            sent.remove(0);
+        while (sent.size() > 0 && sent.peekFirst() < beginCheckPeriod) {
+            sent.removeFirst();
         }
 
         if ((sent.size() + smsWaiting) <= mMaxAllowed) {
             for (int i = 0; i < smsWaiting; i++ ) {
-                sent.add(ct);
+                sent.addLast(ct);
             }
             return true;
         }
@@ -44,6 +44,7 @@ import android.os.ParcelUuid;
 import android.os.PersistableBundle;
 import android.os.RegistrantList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.TelephonyServiceManager.ServiceRegisterer;
 import android.os.UserHandle;
 import android.provider.Settings;
@@ -63,6 +64,7 @@ import android.telephony.UiccSlotInfo;
 import android.telephony.euicc.EuiccManager;
 import android.text.TextUtils;
 import android.util.EventLog;
+import android.util.IndentingPrintWriter;
 import android.util.LocalLog;
 import android.util.Log;
 
@@ -134,8 +136,34 @@ public class SubscriptionController extends ISub.Stub {
 
     /* Similar to mCacheActiveSubInfoList but only caching opportunistic subscriptions. */
     private List<SubscriptionInfo> mCacheOpportunisticSubInfoList = new ArrayList<>();
+    /* In-memory copy of the subscription info table, all writes to the table go through it. */
+    private SubscriptionTable mSubscriptionTable;
     private AtomicBoolean mOpptSubInfoListChangedDirtyBit = new AtomicBoolean();
 
+    // Batching of subscription info changes, see beginSubscriptionInfoUpdate(). A batch only
+    // defers the changes made on the thread which started it.
+    private final ThreadLocal<UpdateBatch> mUpdateBatch = new ThreadLocal<>();
+    private final Object mUpdateBatchLock = new Object();
+    // Number of batches with a deferred refresh, the cached lists are stale until they end.
+    private int mRefreshPendingBatches;
+    // Incremented for each change deferred by a batch.
+    private long mChangeGeneration;
+    // Generation of the last change that was notified.
+    private long mNotifiedGeneration;
+    private long mUpdateBatches;
+    private long mSuppressedRefreshes;
+    private long mSuppressedNotifications;
+    private long mLastSettleTimeMs;
+    private long mMaxSettleTimeMs;
+
+    /** A batch of subscription info updates made by one thread. */
+    private static class UpdateBatch {
+        final long mStartTime = SystemClock.elapsedRealtime();
+        int mDepth;
+        boolean mRefreshPending;
+        boolean mNotifyPending;
+    }
+
     private static final Comparator<SubscriptionInfo> SUBSCRIPTION_INFO_COMPARATOR =
             (arg0, arg1) -> {
                 // Primary sort key on SimSlotIndex
@@ -162,25 +190,133 @@ public class SubscriptionController extends ISub.Stub {
     // Allows test mocks to avoid SELinux failures on invalidate calls.
     private static boolean sCachingEnabled = true;
 
+    /**
+     * Immutable slot index to subscription ids index, in both directions. Lookups are lock-free
+     * and don't allocate.
+     */
+    @VisibleForTesting
+    public static final class SlotIndexToSubIdsSnapshot {
+        static final SlotIndexToSubIdsSnapshot EMPTY =
+                new SlotIndexToSubIdsSnapshot(Collections.emptyMap());
+
+        /** Slot indexes in ascending order. */
+        private final int[] mSlotIndexes;
+        /** Subscription ids of the slot at the same position in {@link #mSlotIndexes}. */
+        private final int[][] mSubIds;
+        /** All subscription ids in ascending order. */
+        private final int[] mSortedSubIds;
+        /** Slot index of the subscription id at the same position in {@link #mSortedSubIds}. */
+        private final int[] mSlotIndexOfSubId;
+
+        @VisibleForTesting
+        public SlotIndexToSubIdsSnapshot(Map<Integer, ? extends List<Integer>> slotIndexToSubIds) {
+            int size = slotIndexToSubIds.size();
+            mSlotIndexes = new int[size];
+            int i = 0;
+            for (Integer slotIndex : slotIndexToSubIds.keySet()) {
+                mSlotIndexes[i++] = slotIndex;
+            }
+            Arrays.sort(mSlotIndexes);
+
+            mSubIds = new int[size][];
+            long[] subIdToSlotIndex = new long[0];
+            int count = 0;
+            for (i = 0; i < size; i++) {
+                List<Integer> subIds = slotIndexToSubIds.get(mSlotIndexes[i]);
+                mSubIds[i] = new int[subIds == null ? 0 : subIds.size()];
+                for (int j = 0; j < mSubIds[i].length; j++) {
+                    mSubIds[i][j] = subIds.get(j);
+                }
+                if (count + mSubIds[i].length > subIdToSlotIndex.length) {
+                    subIdToSlotIndex = Arrays.copyOf(subIdToSlotIndex,
+                            count + mSubIds[i].length);
+                }
+                for (int subId : mSubIds[i]) {
+                    // Sorting on the packed pair orders by subscription id, then slot index.
+                    // The sign bit of the slot index is flipped so that it sorts as unsigned.
+                    subIdToSlotIndex[count++] = ((long) subId << 32)
+                            | ((mSlotIndexes[i] ^ Integer.MIN_VALUE) & 0xffffffffL);
+                }
+            }
+            Arrays.sort(subIdToSlotIndex, 0, count);
+
+            // A subscription id should be in one slot only. If it is in several, keep the lowest
+            // slot index.
+            int[] sortedSubIds = new int[count];
+            int[] slotIndexOfSubId = new int[count];
+            int unique = 0;
+            for (i = 0; i < count; i++) {
+                int subId = (int) (subIdToSlotIndex[i] >> 32);
+                if (unique > 0 && sortedSubIds[unique - 1] == subId) {
+                    continue;
+                }
+                sortedSubIds[unique] = subId;
+                slotIndexOfSubId[unique] = (int) subIdToSlotIndex[i] ^ Integer.MIN_VALUE;
+                unique++;
+            }
+            mSortedSubIds = Arrays.copyOf(sortedSubIds, unique);
+            mSlotIndexOfSubId = Arrays.copyOf(slotIndexOfSubId, unique);
+        }
+
+        /** @return The number of slots, including the ones without subscription. */
+        public int size() {
+            return mSlotIndexes.length;
+        }
+
+        /**
+         * @return The slot index of the subscription, or
+         *         {@link SubscriptionManager#INVALID_SIM_SLOT_INDEX} if it is in no slot.
+         */
+        public int getSlotIndex(int subId) {
+            int i = Arrays.binarySearch(mSortedSubIds, subId);
+            return i < 0 ? SubscriptionManager.INVALID_SIM_SLOT_INDEX : mSlotIndexOfSubId[i];
+        }
+
+        /**
+         * @return The subscription ids of the slot, or {@code null} if the slot has no entry. Must
+         *         not be modified.
+         */
+        public int[] getSubIds(int slotIndex) {
+            int i = Arrays.binarySearch(mSlotIndexes, slotIndex);
+            return i < 0 ? null : mSubIds[i];
+        }
+
+        /** @return The subscription ids of all slots, in slot index order. */
+        public ArrayList<Integer> getAllSubIds() {
+            ArrayList<Integer> allSubs = new ArrayList<>();
+            for (int[] subIds : mSubIds) {
+                for (int subId : subIds) {
+                    allSubs.add(subId);
+                }
+            }
+            return allSubs;
+        }
+    }
+
     // Each slot can have multiple subs.
     private static class WatchedSlotIndexToSubIds {
         private Map<Integer, ArrayList<Integer>> mSlotIndexToSubIds = new ConcurrentHashMap<>();
+        // Rebuilt on every update, read without locking.
+        private volatile SlotIndexToSubIdsSnapshot mSnapshot = SlotIndexToSubIdsSnapshot.EMPTY;
 
         WatchedSlotIndexToSubIds() {
         }
 
-        public void clear() {
+        public synchronized void clear() {
             mSlotIndexToSubIds.clear();
-            invalidateDefaultSubIdCaches();
-            invalidateSlotIndexCaches();
+            onChanged();
         }
 
         public Set<Entry<Integer, ArrayList<Integer>>> entrySet() {
             return mSlotIndexToSubIds.entrySet();
         }
 
+        public SlotIndexToSubIdsSnapshot getSnapshot() {
+            return mSnapshot;
+        }
+
         // Force all updates to data structure through wrapper.
-        public ArrayList<Integer> getCopy(int slotIndex) {
+        public synchronized ArrayList<Integer> getCopy(int slotIndex) {
             ArrayList<Integer> subIdList = mSlotIndexToSubIds.get(slotIndex);
             if (subIdList == null) {
                 return null;
@@ -189,20 +325,18 @@ public class SubscriptionController extends ISub.Stub {
             return new ArrayList<Integer>(subIdList);
         }
 
-        public void put(int slotIndex, ArrayList<Integer> value) {
+        public synchronized void put(int slotIndex, ArrayList<Integer> value) {
             mSlotIndexToSubIds.put(slotIndex, value);
-            invalidateDefaultSubIdCaches();
-            invalidateSlotIndexCaches();
+            onChanged();
         }
 
-        public void remove(int slotIndex) {
+        public synchronized void remove(int slotIndex) {
             mSlotIndexToSubIds.remove(slotIndex);
-            invalidateDefaultSubIdCaches();
-            invalidateSlotIndexCaches();
+            onChanged();
         }
 
         public int size() {
-            return mSlotIndexToSubIds.size();
+            return mSnapshot.size();
         }
 
         @VisibleForTesting
@@ -210,7 +344,7 @@ public class SubscriptionController extends ISub.Stub {
             return mSlotIndexToSubIds;
         }
 
-        public int removeFromSubIdList(int slotIndex, int subId) {
+        public synchronized int removeFromSubIdList(int slotIndex, int subId) {
             ArrayList<Integer> subIdList = mSlotIndexToSubIds.get(slotIndex);
             if (subIdList == null) {
                 return NO_ENTRY_FOR_SLOT_INDEX;
@@ -220,8 +354,7 @@ public class SubscriptionController extends ISub.Stub {
                     if (subIdList.isEmpty()) {
                         mSlotIndexToSubIds.remove(slotIndex);
                     }
-                    invalidateDefaultSubIdCaches();
-                    invalidateSlotIndexCaches();
+                    onChanged();
                     return SUB_ID_FOUND;
                 } else {
                     return SUB_ID_NOT_IN_SLOT;
@@ -229,7 +362,7 @@ public class SubscriptionController extends ISub.Stub {
             }
         }
 
-        public void addToSubIdList(int slotIndex, Integer value) {
+        public synchronized void addToSubIdList(int slotIndex, Integer value) {
             ArrayList<Integer> subIdList = mSlotIndexToSubIds.get(slotIndex);
             if (subIdList == null) {
                 subIdList = new ArrayList<Integer>();
@@ -238,18 +371,22 @@ public class SubscriptionController extends ISub.Stub {
             } else {
                 subIdList.add(value);
             }
-            invalidateDefaultSubIdCaches();
-            invalidateSlotIndexCaches();
+            onChanged();
         }
 
-        public void clearSubIdList(int slotIndex) {
+        public synchronized void clearSubIdList(int slotIndex) {
             ArrayList<Integer> subIdList = mSlotIndexToSubIds.get(slotIndex);
             if (subIdList != null) {
                 subIdList.clear();
-                invalidateDefaultSubIdCaches();
-                invalidateSlotIndexCaches();
+                onChanged();
             }
         }
+
+        private void onChanged() {
+            mSnapshot = new SlotIndexToSubIdsSnapshot(mSlotIndexToSubIds);
+            invalidateDefaultSubIdCaches();
+            invalidateSlotIndexCaches();
+        }
     }
 
     public static class WatchedInt {
@@ -350,6 +487,16 @@ public class SubscriptionController extends ISub.Stub {
             mLastISubServiceRegTime = System.currentTimeMillis();
         }
 
+        mSubscriptionTable = new SubscriptionTable(mContext.getContentResolver());
+        // Other components write to the table as well, drop the copy when they do.
+        mContext.getContentResolver().registerContentObserver(SubscriptionManager.CONTENT_URI,
+                true, new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        mSubscriptionTable.invalidate();
+                    }
+                });
+
         // clear SLOT_INDEX for all subs
         clearSlotIndexForSubInfoRecords();
 
@@ -418,7 +565,7 @@ public class SubscriptionController extends ISub.Stub {
         // Update all subscriptions in simInfo db with invalid slot index
         ContentValues value = new ContentValues(1);
         value.put(SubscriptionManager.SIM_SLOT_INDEX, SubscriptionManager.INVALID_SIM_SLOT_INDEX);
-        mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI, value, null, null);
+        mSubscriptionTable.update(SubscriptionManager.CONTENT_URI, value, null, null);
     }
 
     /**
@@ -500,6 +647,15 @@ public class SubscriptionController extends ISub.Stub {
      */
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     public void notifySubscriptionInfoChanged() {
+        UpdateBatch batch = mUpdateBatch.get();
+        if (batch != null) {
+            synchronized (mUpdateBatchLock) {
+                if (batch.mNotifyPending) mSuppressedNotifications++;
+                mChangeGeneration++;
+            }
+            batch.mNotifyPending = true;
+            return;
+        }
         TelephonyRegistryManager trm =
                 (TelephonyRegistryManager)
                         mContext.getSystemService(Context.TELEPHONY_REGISTRY_SERVICE);
@@ -522,6 +678,87 @@ public class SubscriptionController extends ISub.Stub {
         metrics.updateActiveSubscriptionInfoList(subInfos);
     }
 
+    /**
+     * Start a batch of subscription info updates. Until the matching
+     * {@link #endSubscriptionInfoUpdate()}, refreshes of the cached subscription info lists and
+     * change notifications requested on the calling thread are deferred, and are then done once
+     * for the whole batch. Updates made on other threads are not deferred. Batches may be nested.
+     *
+     * The cached lists don't include the updates of the batch until it ends, so it should only
+     * wrap a short sequence of updates, such as the fields written when a SIM is loaded.
+     */
+    public void beginSubscriptionInfoUpdate() {
+        UpdateBatch batch = mUpdateBatch.get();
+        if (batch == null) {
+            batch = new UpdateBatch();
+            mUpdateBatch.set(batch);
+            synchronized (mUpdateBatchLock) {
+                mUpdateBatches++;
+            }
+        }
+        batch.mDepth++;
+    }
+
+    /**
+     * End a batch started with {@link #beginSubscriptionInfoUpdate()} on the same thread. Ending
+     * the outermost batch refreshes the cached subscription info lists and notifies the change if
+     * any update of the batch asked for it.
+     */
+    public void endSubscriptionInfoUpdate() {
+        UpdateBatch batch = mUpdateBatch.get();
+        if (batch == null) {
+            loge("endSubscriptionInfoUpdate without beginSubscriptionInfoUpdate");
+            return;
+        }
+        if (--batch.mDepth > 0) {
+            return;
+        }
+        mUpdateBatch.remove();
+        boolean refresh = batch.mRefreshPending;
+        boolean notify = batch.mNotifyPending;
+        long generation;
+        synchronized (mUpdateBatchLock) {
+            generation = mChangeGeneration;
+        }
+
+        if (refresh) {
+            refreshCachedActiveSubscriptionInfoList();
+            synchronized (mUpdateBatchLock) {
+                mRefreshPendingBatches--;
+            }
+        }
+        if (notify) {
+            notifySubscriptionInfoChanged();
+        }
+
+        synchronized (mUpdateBatchLock) {
+            if (notify) {
+                mNotifiedGeneration = generation;
+            }
+            mLastSettleTimeMs = SystemClock.elapsedRealtime() - batch.mStartTime;
+            mMaxSettleTimeMs = Math.max(mMaxSettleTimeMs, mLastSettleTimeMs);
+        }
+        if (DBG) {
+            logd("endSubscriptionInfoUpdate: refresh=" + refresh + " notify=" + notify
+                    + " generation=" + generation + " settleTimeMs=" + mLastSettleTimeMs);
+        }
+    }
+
+    /** @return {@code true} if a batch of any thread deferred a refresh of the cached lists. */
+    private boolean isRefreshPending() {
+        synchronized (mUpdateBatchLock) {
+            return mRefreshPendingBatches > 0;
+        }
+    }
+
+    /** @return The number of change notifications merged into another one by update batches. */
+    @VisibleForTesting
+    public long getSuppressedNotificationCount() {
+        synchronized (mUpdateBatchLock) {
+            return mSuppressedNotifications;
+        }
+    }
+
     /**
      * New SubInfoRecord instance and fill in detail info
      * @param cursor
@@ -636,8 +873,7 @@ public class SubscriptionController extends ISub.Stub {
      * @return null if there isn't a match, or subscription info if there is one.
      */
     public SubscriptionInfo getSubInfoForIccId(String iccId) {
-        List<SubscriptionInfo> info = getSubInfo(
-                SubscriptionManager.ICC_ID + "=\'" + iccId + "\'", null);
+        List<SubscriptionInfo> info = getSubInfoByColumn(SubscriptionManager.ICC_ID, iccId);
         if (info == null || info.size() == 0) return null;
         // Should be at most one subscription with the iccid.
         return info.get(0);
@@ -656,9 +892,45 @@ public class SubscriptionController extends ISub.Stub {
         if (queryKey != null) {
             selectionArgs = new String[] {queryKey.toString()};
         }
-        ArrayList<SubscriptionInfo> subList = null;
         Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
                 null, selection, selectionArgs, null);
+        if (cursor == null) {
+            if (DBG) logd("Query fail");
+        }
+        return getSubInfoFromCursor(cursor);
+    }
+
+    /**
+     * Query SubInfoRecord(s) in which a column has a value, from the in-memory copy of the
+     * subinfo database. Use {@link #getSubInfo} when the row must be read from the database
+     * itself, e.g. because another component may have just written it.
+     * @param column The column to match
+     * @param value The value to match
+     * @return Array list of queried result, or null if there isn't a match
+     */
+    private List<SubscriptionInfo> getSubInfoByColumn(String column, Object value) {
+        if (value == null) return null;
+        Cursor cursor = mSubscriptionTable.query(null, column, value);
+        if (cursor == null) {
+            return getSubInfo(column + "=?", value);
+        }
+        return getSubInfoFromCursor(cursor);
+    }
+
+    /**
+     * Query all SubInfoRecord(s) from the in-memory copy of the subinfo database.
+     * @return Array list of all records, or null if there is none
+     */
+    private List<SubscriptionInfo> getAllSubInfo() {
+        Cursor cursor = mSubscriptionTable.queryAll(null);
+        if (cursor == null) {
+            return getSubInfo(null, null);
+        }
+        return getSubInfoFromCursor(cursor);
+    }
+
+    private List<SubscriptionInfo> getSubInfoFromCursor(Cursor cursor) {
+        ArrayList<SubscriptionInfo> subList = null;
         try {
             if (cursor != null) {
                 while (cursor.moveToNext()) {
@@ -670,8 +942,6 @@ public class SubscriptionController extends ISub.Stub {
                         subList.add(subInfo);
                     }
                 }
-            } else {
-                if (DBG) logd("Query fail");
             }
         } finally {
             if (cursor != null) {
@@ -768,24 +1038,27 @@ public class SubscriptionController extends ISub.Stub {
      * @hide
      */
     public SubscriptionInfo getSubscriptionInfo(int subId) {
-        synchronized (mSubInfoListLock) {
-            // check cache for active subscriptions first, before querying db
-            for (SubscriptionInfo subInfo : mCacheActiveSubInfoList) {
-                if (subInfo.getSubscriptionId() == subId) {
-                    return subInfo;
+        // The caches are stale while their refresh is deferred by an update batch.
+        if (!isRefreshPending()) {
+            synchronized (mSubInfoListLock) {
+                // check cache for active subscriptions first, before querying db
+                for (SubscriptionInfo subInfo : mCacheActiveSubInfoList) {
+                    if (subInfo.getSubscriptionId() == subId) {
+                        return subInfo;
+                    }
                 }
-            }
 
-            // check cache for opportunistic subscriptions too, before querying db
-            for (SubscriptionInfo subInfo : mCacheOpportunisticSubInfoList) {
-                if (subInfo.getSubscriptionId() == subId) {
-                    return subInfo;
+                // check cache for opportunistic subscriptions too, before querying db
+                for (SubscriptionInfo subInfo : mCacheOpportunisticSubInfoList) {
+                    if (subInfo.getSubscriptionId() == subId) {
+                        return subInfo;
+                    }
                 }
             }
         }
 
-        List<SubscriptionInfo> subInfoList = getSubInfo(
-                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=" + subId, null);
+        List<SubscriptionInfo> subInfoList = getSubInfoByColumn(
+                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID, subId);
         if (subInfoList == null || subInfoList.isEmpty()) return null;
         return subInfoList.get(0);
     }
@@ -932,7 +1205,7 @@ public class SubscriptionController extends ISub.Stub {
         final long identity = Binder.clearCallingIdentity();
         List<SubscriptionInfo> subList;
         try {
-            subList = getSubInfo(null, null);
+            subList = getAllSubInfo();
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -983,6 +1256,23 @@ public class SubscriptionController extends ISub.Stub {
     public void refreshCachedActiveSubscriptionInfoList() {
         boolean opptSubListChanged;
 
+        UpdateBatch batch = mUpdateBatch.get();
+        if (batch != null) {
+            synchronized (mUpdateBatchLock) {
+                if (batch.mRefreshPending) {
+                    mSuppressedRefreshes++;
+                } else {
+                    mRefreshPendingBatches++;
+                }
+                mChangeGeneration++;
+            }
+            batch.mRefreshPending = true;
+            return;
+        }
+
+        // The table may have been written by another component without a change notification.
+        mSubscriptionTable.invalidate();
+
         List<SubscriptionInfo> activeSubscriptionInfoList = getSubInfo(
                 SubscriptionManager.SIM_SLOT_INDEX + ">=0 OR "
                 + SubscriptionManager.SUBSCRIPTION_TYPE + "="
@@ -1409,8 +1699,9 @@ public class SubscriptionController extends ISub.Stub {
                         }
 
                         if (value.size() > 0) {
-                            resolver.update(SubscriptionManager.getUriForSubscriptionId(subId),
-                                    value, null, null);
+                            mSubscriptionTable.update(
+                                    SubscriptionManager.getUriForSubscriptionId(subId), value,
+                                    null, null);
                         }
 
                         if (DBG) logdl("[addSubInfoRecord] Record already exists");
@@ -1520,8 +1811,8 @@ public class SubscriptionController extends ISub.Stub {
 
                     ContentValues value = new ContentValues();
                     value.put(SubscriptionManager.DISPLAY_NAME, nameToSet);
-                    resolver.update(SubscriptionManager.getUriForSubscriptionId(subId), value,
-                            null, null);
+                    mSubscriptionTable.update(SubscriptionManager.getUriForSubscriptionId(subId),
+                            value, null, null);
 
                     // Refresh the Cache of Active Subscription Info List
                     refreshCachedActiveSubscriptionInfoList();
@@ -1620,8 +1911,7 @@ public class SubscriptionController extends ISub.Stub {
         int result = 0;
         final long identity = Binder.clearCallingIdentity();
         try {
-            ContentResolver resolver = mContext.getContentResolver();
-            result = resolver.delete(SubscriptionManager.CONTENT_URI,
+            result = mSubscriptionTable.delete(SubscriptionManager.CONTENT_URI,
                     SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=? AND "
                             + SubscriptionManager.SUBSCRIPTION_TYPE + "=?",
                     new String[]{Integer.toString(subId), Integer.toString(subscriptionType)});
@@ -1668,11 +1958,10 @@ public class SubscriptionController extends ISub.Stub {
         if (DBG) logdl("[clearSubInfoRecord]+ iccId:" + " slotIndex:" + slotIndex);
 
         // update simInfo db with invalid slot index
-        ContentResolver resolver = mContext.getContentResolver();
         ContentValues value = new ContentValues(1);
         value.put(SubscriptionManager.SIM_SLOT_INDEX, SubscriptionManager.INVALID_SIM_SLOT_INDEX);
         String where = "(" + SubscriptionManager.SIM_SLOT_INDEX + "=" + slotIndex + ")";
-        resolver.update(SubscriptionManager.CONTENT_URI, value, where, null);
+        mSubscriptionTable.update(SubscriptionManager.CONTENT_URI, value, where, null);
 
         // Refresh the Cache of Active Subscription Info List
         refreshCachedActiveSubscriptionInfoList();
@@ -1704,7 +1993,6 @@ public class SubscriptionController extends ISub.Stub {
 
     Uri insertEmptySubInfoRecord(String uniqueId, String displayName, int slotIndex,
             int subscriptionType) {
-        ContentResolver resolver = mContext.getContentResolver();
         ContentValues value = new ContentValues();
         value.put(SubscriptionManager.ICC_ID, uniqueId);
         int color = getUnusedColor(mContext.getOpPackageName(), mContext.getAttributionTag());
@@ -1730,7 +2018,7 @@ public class SubscriptionController extends ISub.Stub {
                 "user=" + RadioAccessFamily.getRafFromNetworkType(
                         RILConstants.PREFERRED_NETWORK_MODE));
 
-        Uri uri = resolver.insert(SubscriptionManager.CONTENT_URI, value);
+        Uri uri = mSubscriptionTable.insert(SubscriptionManager.CONTENT_URI, value);
 
         // Refresh the Cache of Active Subscription Info List
         refreshCachedActiveSubscriptionInfoList();
@@ -1806,7 +2094,7 @@ public class SubscriptionController extends ISub.Stub {
                 ContentValues value = new ContentValues(1);
                 value.put(SubscriptionManager.CARRIER_NAME, text);
 
-                result = mContext.getContentResolver().update(
+                result = mSubscriptionTable.update(
                         SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
                 // Refresh the Cache of Active Subscription Info List
@@ -1842,7 +2130,7 @@ public class SubscriptionController extends ISub.Stub {
             value.put(SubscriptionManager.HUE, tint);
             if (DBG) logd("[setIconTint]- tint:" + tint + " set");
 
-            int result = mContext.getContentResolver().update(
+            int result = mSubscriptionTable.update(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
             // Refresh the Cache of Active Subscription Info List
@@ -2062,7 +2350,7 @@ public class SubscriptionController extends ISub.Stub {
                 // This function had a call to update number on the SIM (Phone.setLine1Number()) but
                 // that was removed as there doesn't seem to be a reason for that. If it is added
                 // back, watch out for deadlocks.
-                result = mContext.getContentResolver().update(
+                result = mSubscriptionTable.update(
                         SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
                 if (DBG) logd("[setDisplayNumber]- update result :" + result);
                 // Refresh the Cache of Active Subscription Info List
@@ -2112,7 +2400,7 @@ public class SubscriptionController extends ISub.Stub {
             value.put(SubscriptionManager.EHPLMNS, formattedEhplmns);
             value.put(SubscriptionManager.HPLMNS, formattedHplmns);
 
-            int count = mContext.getContentResolver().update(
+            int count = mSubscriptionTable.update(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
             if (DBG) logd("[setAssociatedPlmns]- update result :" + count);
             // Refresh the Cache of Active Subscription Info List
@@ -2290,7 +2578,7 @@ public class SubscriptionController extends ISub.Stub {
                 mContext.getOpPackageName(), mContext.getAttributionTag());
         if (!updateEntireGroup || infoList == null || infoList.size() == 0) {
             // Only update specified subscriptions.
-            return mContext.getContentResolver().update(
+            return mSubscriptionTable.update(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
         } else {
             // Update all subscriptions in the same group.
@@ -2298,7 +2586,7 @@ public class SubscriptionController extends ISub.Stub {
             for (int i = 0; i < infoList.size(); i++) {
                 subIdList[i] = infoList.get(i).getSubscriptionId();
             }
-            return mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
+            return mSubscriptionTable.update(SubscriptionManager.CONTENT_URI,
                     value, getSelectionForSubIdList(subIdList), null);
         }
     }
@@ -2329,7 +2617,7 @@ public class SubscriptionController extends ISub.Stub {
             if (update) {
                 ContentValues value = new ContentValues(1);
                 value.put(SubscriptionManager.CARRIER_ID, carrierId);
-                result = mContext.getContentResolver().update(
+                result = mSubscriptionTable.update(
                         SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
                 // Refresh the Cache of Active Subscription Info List
@@ -2378,7 +2666,7 @@ public class SubscriptionController extends ISub.Stub {
             value.put(SubscriptionManager.MCC_STRING, mccString);
             value.put(SubscriptionManager.MNC_STRING, mncString);
 
-            result = mContext.getContentResolver().update(
+            result = mSubscriptionTable.update(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
             if (DBG) logd("[setMccMnc]+ mcc/mnc:" + mcc + "/" + mnc + " subId:" + subId);
             // Refresh the Cache of Active Subscription Info List
@@ -2420,7 +2708,7 @@ public class SubscriptionController extends ISub.Stub {
         if (update) {
             ContentValues value = new ContentValues(1);
             value.put(SubscriptionManager.IMSI, imsi);
-            result = mContext.getContentResolver().update(
+            result = mSubscriptionTable.update(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
             // Refresh the Cache of Active Subscription Info List
             refreshCachedActiveSubscriptionInfoList();
@@ -2447,7 +2735,7 @@ public class SubscriptionController extends ISub.Stub {
             ContentValues value = new ContentValues(1);
             value.put(SubscriptionManager.UICC_APPLICATIONS_ENABLED, enabled);
 
-            int result = mContext.getContentResolver().update(
+            int result = mSubscriptionTable.update(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
             // Refresh the Cache of Active Subscription Info List
@@ -2532,7 +2820,7 @@ public class SubscriptionController extends ISub.Stub {
             ContentValues value = new ContentValues();
             value.put(SubscriptionManager.ISO_COUNTRY_CODE, iso);
 
-            result = mContext.getContentResolver().update(
+            result = mSubscriptionTable.update(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
             // Refresh the Cache of Active Subscription Info List
             refreshCachedActiveSubscriptionInfoList();
@@ -2556,21 +2844,16 @@ public class SubscriptionController extends ISub.Stub {
             return SubscriptionManager.INVALID_SIM_SLOT_INDEX;
         }
 
-        int size = sSlotIndexToSubIds.size();
-
-        if (size == 0) {
+        SlotIndexToSubIdsSnapshot slotIndexToSubIds = sSlotIndexToSubIds.getSnapshot();
+        if (slotIndexToSubIds.size() == 0) {
             if (DBG) logd("[getSlotIndex]- size == 0, return SIM_NOT_INSERTED instead");
             return SubscriptionManager.SIM_NOT_INSERTED;
         }
 
-        for (Entry<Integer, ArrayList<Integer>> entry : sSlotIndexToSubIds.entrySet()) {
-            int sim = entry.getKey();
-            ArrayList<Integer> subs = entry.getValue();
-
-            if (subs != null && subs.contains(subId)) {
-                if (VDBG) logv("[getSlotIndex]- return = " + sim);
-                return sim;
-            }
+        int sim = slotIndexToSubIds.getSlotIndex(subId);
+        if (sim != SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
+            if (VDBG) logv("[getSlotIndex]- return = " + sim);
+            return sim;
         }
 
         if (DBG) logd("[getSlotIndex]- return fail");
@@ -2606,8 +2889,8 @@ public class SubscriptionController extends ISub.Stub {
         }
 
         // Check if we've got any SubscriptionInfo records using slotIndexToSubId as a surrogate.
-        int size = sSlotIndexToSubIds.size();
-        if (size == 0) {
+        SlotIndexToSubIdsSnapshot slotIndexToSubIds = sSlotIndexToSubIds.getSnapshot();
+        if (slotIndexToSubIds.size() == 0) {
             if (VDBG) {
                 logd("[getSubId]- sSlotIndexToSubIds.size == 0, return null slotIndex="
                         + slotIndex);
@@ -2615,13 +2898,10 @@ public class SubscriptionController extends ISub.Stub {
             return null;
         }
 
-        // Convert ArrayList to array
-        ArrayList<Integer> subIds = sSlotIndexToSubIds.getCopy(slotIndex);
-        if (subIds != null && subIds.size() > 0) {
-            int[] subIdArr = new int[subIds.size()];
-            for (int i = 0; i < subIds.size(); i++) {
-                subIdArr[i] = subIds.get(i);
-            }
+        int[] subIds = slotIndexToSubIds.getSubIds(slotIndex);
+        if (subIds != null && subIds.length > 0) {
+            // The snapshot is shared, hand out a copy.
+            int[] subIdArr = subIds.clone();
             if (VDBG) logd("[getSubId]- subIdArr=" + subIdArr);
             return subIdArr;
         } else {
@@ -2649,22 +2929,18 @@ public class SubscriptionController extends ISub.Stub {
             return SubscriptionManager.INVALID_PHONE_INDEX;
         }
 
-        int size = sSlotIndexToSubIds.size();
-        if (size == 0) {
+        SlotIndexToSubIdsSnapshot slotIndexToSubIds = sSlotIndexToSubIds.getSnapshot();
+        if (slotIndexToSubIds.size() == 0) {
             phoneId = mDefaultPhoneId;
             if (VDBG) logdl("[getPhoneId]- no sims, returning default phoneId=" + phoneId);
             return phoneId;
         }
 
         // FIXME: Assumes phoneId == slotIndex
-        for (Entry<Integer, ArrayList<Integer>> entry: sSlotIndexToSubIds.entrySet()) {
-            int sim = entry.getKey();
-            ArrayList<Integer> subs = entry.getValue();
-
-            if (subs != null && subs.contains(subId)) {
-                if (VDBG) logdl("[getPhoneId]- found subId=" + subId + " phoneId=" + sim);
-                return sim;
-            }
+        int sim = slotIndexToSubIds.getSlotIndex(subId);
+        if (sim != SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
+            if (VDBG) logdl("[getPhoneId]- found subId=" + subId + " phoneId=" + sim);
+            return sim;
         }
 
         phoneId = mDefaultPhoneId;
@@ -2999,27 +3275,8 @@ public class SubscriptionController extends ISub.Stub {
             return null;
         }
 
-        Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
-                null, SubscriptionManager.SIM_SLOT_INDEX + "=?",
-                new String[]{String.valueOf(slotIndex)}, null);
-        ArrayList<SubscriptionInfo> subList = null;
-        try {
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    SubscriptionInfo subInfo = getSubInfoRecord(cursor);
-                    if (subInfo != null) {
-                        if (subList == null) {
-                            subList = new ArrayList<SubscriptionInfo>();
-                        }
-                        subList.add(subInfo);
-                    }
-                }
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
+        List<SubscriptionInfo> subList = getSubInfoByColumn(SubscriptionManager.SIM_SLOT_INDEX,
+                slotIndex);
         if (DBG) logd("[getSubInfoUsingSlotIndex]- null info return");
 
         return subList;
@@ -3035,20 +3292,9 @@ public class SubscriptionController extends ISub.Stub {
         }
     }
 
-    private synchronized ArrayList<Integer> getActiveSubIdArrayList() {
-        // Clone the sub id list so it can't change out from under us while iterating
-        List<Entry<Integer, ArrayList<Integer>>> simInfoList =
-                new ArrayList<>(sSlotIndexToSubIds.entrySet());
-
-        // Put the set of sub ids in slot index order
-        Collections.sort(simInfoList, (x, y) -> x.getKey().compareTo(y.getKey()));
-
-        // Collect the sub ids for each slot in turn
-        ArrayList<Integer> allSubs = new ArrayList<>();
-        for (Entry<Integer, ArrayList<Integer>> slot : simInfoList) {
-            allSubs.addAll(slot.getValue());
-        }
-        return allSubs;
+    private ArrayList<Integer> getActiveSubIdArrayList() {
+        // The snapshot can't change out from under us and is in slot index order.
+        return sSlotIndexToSubIds.getSnapshot().getAllSubIds();
     }
 
     private boolean isSubscriptionVisible(int subId) {
@@ -3257,10 +3503,13 @@ public class SubscriptionController extends ISub.Stub {
      */
     public String getSubscriptionProperty(int subId, String propKey) {
         String resultValue = null;
-        try (Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
-                new String[]{propKey},
-                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=?",
-                new String[]{subId + ""}, null)) {
+        Cursor tableCursor = mSubscriptionTable.query(new String[]{propKey},
+                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID, subId);
+        try (Cursor cursor = tableCursor != null ? tableCursor
+                : mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
+                        new String[]{propKey},
+                        SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=?",
+                        new String[]{subId + ""}, null)) {
             if (cursor != null) {
                 if (cursor.moveToFirst()) {
                     switch (propKey) {
@@ -3377,6 +3626,16 @@ public class SubscriptionController extends ISub.Stub {
             mLocalLog.dump(fd, pw, args);
             pw.flush();
             pw.println("++++++++++++++++++++++++++++++++");
+            mSubscriptionTable.dump(new IndentingPrintWriter(pw, " "));
+            synchronized (mUpdateBatchLock) {
+                pw.println(" updateBatches=" + mUpdateBatches
+                        + " suppressedRefreshes=" + mSuppressedRefreshes
+                        + " suppressedNotifications=" + mSuppressedNotifications
+                        + " lastSettleTimeMs=" + mLastSettleTimeMs
+                        + " maxSettleTimeMs=" + mMaxSettleTimeMs
+                        + " changeGeneration=" + mChangeGeneration
+                        + " notifiedGeneration=" + mNotifiedGeneration);
+            }
             pw.flush();
         } finally {
             Binder.restoreCallingIdentity(token);
@@ -3474,8 +3733,8 @@ public class SubscriptionController extends ISub.Stub {
 
         SubscriptionManager subManager = (SubscriptionManager)
                 mContext.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE);
-        List<SubscriptionInfo> subInfo = getSubInfo(
-                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=" + subId, null);
+        List<SubscriptionInfo> subInfo = getSubInfoByColumn(
+                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID, subId);
 
         try {
             if (!isActiveSubId(subId) && subInfo != null && subInfo.size() == 1
@@ -3595,7 +3854,7 @@ public class SubscriptionController extends ISub.Stub {
             ContentValues value = new ContentValues();
             value.put(SubscriptionManager.GROUP_UUID, groupUUID.toString());
             value.put(SubscriptionManager.GROUP_OWNER, callingPackage);
-            int result = mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
+            int result = mSubscriptionTable.update(SubscriptionManager.CONTENT_URI,
                     value, getSelectionForSubIdList(subIdList), null);
 
             if (DBG) logdl("createSubscriptionGroup update DB result: " + result);
@@ -3615,8 +3874,8 @@ public class SubscriptionController extends ISub.Stub {
     private String getOwnerPackageOfSubGroup(ParcelUuid groupUuid) {
         if (groupUuid == null) return null;
 
-        List<SubscriptionInfo> infoList = getSubInfo(SubscriptionManager.GROUP_UUID
-                + "=\'" + groupUuid.toString() + "\'", null);
+        List<SubscriptionInfo> infoList = getSubInfoByColumn(SubscriptionManager.GROUP_UUID,
+                groupUuid.toString());
 
         return ArrayUtils.isEmpty(infoList) ? null : infoList.get(0).getGroupOwner();
     }
@@ -3641,8 +3900,8 @@ public class SubscriptionController extends ISub.Stub {
         // Getting all subscriptions in the group.
         long identity = Binder.clearCallingIdentity();
         try {
-            infoList = getSubInfo(SubscriptionManager.GROUP_UUID
-                    + "=\'" + groupUuid.toString() + "\'", null);
+            infoList = getSubInfoByColumn(SubscriptionManager.GROUP_UUID,
+                    groupUuid.toString());
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -3677,7 +3936,7 @@ public class SubscriptionController extends ISub.Stub {
         // permission checks on all members.
         ContentValues value = new ContentValues(1);
         value.put(SubscriptionManager.GROUP_OWNER, groupOwner);
-        return mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
+        return mSubscriptionTable.update(SubscriptionManager.CONTENT_URI,
                 value, SubscriptionManager.GROUP_UUID + "=\"" + groupUuid + "\"", null);
     }
 
@@ -3713,7 +3972,7 @@ public class SubscriptionController extends ISub.Stub {
 
             ContentValues value = new ContentValues();
             value.put(SubscriptionManager.GROUP_UUID, groupUuid.toString());
-            int result = mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
+            int result = mSubscriptionTable.update(SubscriptionManager.CONTENT_URI,
                     value, getSelectionForSubIdList(subIdList), null);
 
             if (DBG) logdl("addSubscriptionsIntoGroup update DB result: " + result);
@@ -3778,7 +4037,7 @@ public class SubscriptionController extends ISub.Stub {
             ContentValues value = new ContentValues();
             value.put(SubscriptionManager.GROUP_UUID, (String) null);
             value.put(SubscriptionManager.GROUP_OWNER, (String) null);
-            int result = mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
+            int result = mSubscriptionTable.update(SubscriptionManager.CONTENT_URI,
                     value, getSelectionForSubIdList(subIdList), null);
 
             if (DBG) logdl("removeSubscriptionsFromGroup update DB result: " + result);
@@ -3945,11 +4204,11 @@ public class SubscriptionController extends ISub.Stub {
         ParcelUuid groupUuid = getGroupUuid(subId);
         List<SubscriptionInfo> subInfoList;
         if (groupUuid != null) {
-            subInfoList = getSubInfo(SubscriptionManager.GROUP_UUID
-                    + "=\'" + groupUuid.toString() + "\'", null);
+            subInfoList = getSubInfoByColumn(SubscriptionManager.GROUP_UUID,
+                    groupUuid.toString());
         } else {
-            subInfoList = getSubInfo(SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID
-                    + "=" + subId, null);
+            subInfoList = getSubInfoByColumn(SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID,
+                    subId);
         }
         return subInfoList != null && subInfoList.stream().anyMatch(
                 subInfo -> IccUtils.stripTrailingFs(subInfo.getIccId()).equals(
@@ -3958,8 +4217,8 @@ public class SubscriptionController extends ISub.Stub {
 
     public ParcelUuid getGroupUuid(int subId) {
         ParcelUuid groupUuid;
-        List<SubscriptionInfo> subInfo = getSubInfo(SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID
-                        + "=" + subId, null);
+        List<SubscriptionInfo> subInfo = getSubInfoByColumn(
+                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID, subId);
         if (subInfo == null || subInfo.size() == 0) {
             groupUuid = null;
         } else {
@@ -4169,8 +4428,8 @@ public class SubscriptionController extends ISub.Stub {
                         "isSubscriptionEnabled not usable subId " + subId);
             }
 
-            List<SubscriptionInfo> infoList = getSubInfo(
-                    SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=" + subId, null);
+            List<SubscriptionInfo> infoList = getSubInfoByColumn(
+                    SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID, subId);
             if (infoList == null || infoList.isEmpty()) {
                 // Subscription doesn't exist.
                 return false;
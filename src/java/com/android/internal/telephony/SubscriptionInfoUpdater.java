@@ -511,62 +511,68 @@ public class SubscriptionInfoUpdater extends Handler {
         if (subscriptionInfos == null || subscriptionInfos.isEmpty()) {
             loge("empty subinfo for phoneId: " + phoneId + "could not update ContentResolver");
         } else {
-            for (SubscriptionInfo sub : subscriptionInfos) {
-                int subId = sub.getSubscriptionId();
-                TelephonyManager tm = (TelephonyManager)
-                        sContext.getSystemService(Context.TELEPHONY_SERVICE);
-                String operator = tm.getSimOperatorNumeric(subId);
-
-                if (!TextUtils.isEmpty(operator)) {
-                    if (subId == mSubscriptionController.getDefaultSubId()) {
-                        MccTable.updateMccMncConfiguration(sContext, operator);
+            // Write all the fields, then refresh and notify once.
+            mSubscriptionController.beginSubscriptionInfoUpdate();
+            try {
+                for (SubscriptionInfo sub : subscriptionInfos) {
+                    int subId = sub.getSubscriptionId();
+                    TelephonyManager tm = (TelephonyManager)
+                            sContext.getSystemService(Context.TELEPHONY_SERVICE);
+                    String operator = tm.getSimOperatorNumeric(subId);
+
+                    if (!TextUtils.isEmpty(operator)) {
+                        if (subId == mSubscriptionController.getDefaultSubId()) {
+                            MccTable.updateMccMncConfiguration(sContext, operator);
+                        }
+                        mSubscriptionController.setMccMnc(operator, subId);
+                    } else {
+                        logd("EVENT_RECORDS_LOADED Operator name is null");
                     }
-                    mSubscriptionController.setMccMnc(operator, subId);
-                } else {
-                    logd("EVENT_RECORDS_LOADED Operator name is null");
-                }
 
-                String iso = tm.getSimCountryIsoForPhone(phoneId);
+                    String iso = tm.getSimCountryIsoForPhone(phoneId);
 
-                if (!TextUtils.isEmpty(iso)) {
-                    mSubscriptionController.setCountryIso(iso, subId);
-                } else {
-                    logd("EVENT_RECORDS_LOADED sim country iso is null");
-                }
+                    if (!TextUtils.isEmpty(iso)) {
+                        mSubscriptionController.setCountryIso(iso, subId);
+                    } else {
+                        logd("EVENT_RECORDS_LOADED sim country iso is null");
+                    }
 
-                String msisdn = tm.getLine1Number(subId);
-                if (msisdn != null) {
-                    mSubscriptionController.setDisplayNumber(msisdn, subId);
-                }
+                    String msisdn = tm.getLine1Number(subId);
+                    if (msisdn != null) {
+                        mSubscriptionController.setDisplayNumber(msisdn, subId);
+                    }
 
-                String imsi = tm.createForSubscriptionId(subId).getSubscriberId();
-                if (imsi != null) {
-                    mSubscriptionController.setImsi(imsi, subId);
-                }
+                    String imsi = tm.createForSubscriptionId(subId).getSubscriberId();
+                    if (imsi != null) {
+                        mSubscriptionController.setImsi(imsi, subId);
+                    }
 
-                String[] ehplmns = records.getEhplmns();
-                String[] hplmns = records.getPlmnsFromHplmnActRecord();
-                if (ehplmns != null || hplmns != null) {
-                    mSubscriptionController.setAssociatedPlmns(ehplmns, hplmns, subId);
-                }
+                    String[] ehplmns = records.getEhplmns();
+                    String[] hplmns = records.getPlmnsFromHplmnActRecord();
+                    if (ehplmns != null || hplmns != null) {
+                        mSubscriptionController.setAssociatedPlmns(ehplmns, hplmns, subId);
+                    }
 
-                /* Update preferred network type and network selection mode on SIM change.
-                 * Storing last subId in SharedPreference for now to detect SIM change.
-                 */
-                SharedPreferences sp =
-                        PreferenceManager.getDefaultSharedPreferences(sContext);
-                int storedSubId = sp.getInt(CURR_SUBID + phoneId, -1);
-
-                if (storedSubId != subId) {
-                    // Only support automatic selection mode on SIM change.
-                    PhoneFactory.getPhone(phoneId).getNetworkSelectionMode(
-                            obtainMessage(EVENT_GET_NETWORK_SELECTION_MODE_DONE,
-                                    new Integer(phoneId)));
-                    // Update stored subId
-                    SharedPreferences.Editor editor = sp.edit();
-                    editor.putInt(CURR_SUBID + phoneId, subId);
-                    editor.apply();
+                    /* Update preferred network type and network selection mode on SIM change.
+                     * Storing last subId in SharedPreference for now to detect SIM change.
+                     */
+                    SharedPreferences sp =
+                            PreferenceManager.getDefaultSharedPreferences(sContext);
+                    int storedSubId = sp.getInt(CURR_SUBID + phoneId, -1);
+
+                    if (storedSubId != subId) {
+                        // Only support automatic selection mode on SIM change.
+                        PhoneFactory.getPhone(phoneId).getNetworkSelectionMode(
+                                obtainMessage(EVENT_GET_NETWORK_SELECTION_MODE_DONE,
+                                        new Integer(phoneId)));
+                        // Update stored subId
+                        SharedPreferences.Editor editor = sp.edit();
+                        editor.putInt(CURR_SUBID + phoneId, subId);
+                        editor.apply();
+                    }
                 }
+            } finally {
+                mSubscriptionController.endSubscriptionInfoUpdate();
             }
         }
 
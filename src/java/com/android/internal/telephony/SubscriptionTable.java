@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.telephony.SubscriptionManager;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory copy of the subscription info table of the telephony provider.
+ *
+ * The whole table is loaded with a single query on first use and kept until it is invalidated.
+ * {@link SubscriptionController} writes through {@link #update}, {@link #insert} and
+ * {@link #delete}, which persist to the provider right away and invalidate the cached rows. It
+ * also invalidates them when the cached subscription lists are refreshed after another component
+ * wrote to the table, and when the provider notifies a change. The rows are loaded again rather
+ * than patched with the written values, since writes use SQL selections.
+ *
+ * Reads return cursors over the cached rows, so that records are built by the same code as for
+ * provider queries.
+ *
+ * Rows can be looked up by any column. Lookups by subscription id, ICCID, slot index and group
+ * UUID use an index.
+ */
+public class SubscriptionTable {
+    private static final String TAG = "SubscriptionTable";
+
+    private static final String[] INDEXED_COLUMNS = {
+            SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID,
+            SubscriptionManager.ICC_ID,
+            SubscriptionManager.SIM_SLOT_INDEX,
+            SubscriptionManager.GROUP_UUID,
+    };
+
+    /** Rows of the table when it was loaded. Immutable once published. */
+    private static final class Snapshot {
+        final String[] mColumns;
+        final Map<String, Integer> mColumnIndexes = new ArrayMap<>();
+        final List<Object[]> mRows;
+        /** Column name to cell value to rows. */
+        final Map<String, Map<String, List<Object[]>>> mIndexes = new ArrayMap<>();
+
+        Snapshot(String[] columns, List<Object[]> rows) {
+            mColumns = columns;
+            mRows = rows;
+            for (int i = 0; i < columns.length; i++) {
+                mColumnIndexes.put(columns[i], i);
+            }
+            for (String column : INDEXED_COLUMNS) {
+                Integer columnIndex = mColumnIndexes.get(column);
+                if (columnIndex == null) {
+                    continue;
+                }
+                Map<String, List<Object[]>> index = new ArrayMap<>();
+                for (Object[] row : rows) {
+                    Object value = row[columnIndex];
+                    if (value == null) {
+                        continue;
+                    }
+                    List<Object[]> matches = index.get(value.toString());
+                    if (matches == null) {
+                        matches = new ArrayList<>(1);
+                        index.put(value.toString(), matches);
+                    }
+                    matches.add(row);
+                }
+                mIndexes.put(column, index);
+            }
+        }
+
+        List<Object[]> find(String column, String value) {
+            Map<String, List<Object[]>> index = mIndexes.get(column);
+            if (index != null) {
+                List<Object[]> matches = index.get(value);
+                return matches == null ? Collections.emptyList() : matches;
+            }
+            Integer columnIndex = mColumnIndexes.get(column);
+            if (columnIndex == null) {
+                return Collections.emptyList();
+            }
+            List<Object[]> matches = new ArrayList<>();
+            for (Object[] row : mRows) {
+                if (row[columnIndex] != null && value.equals(row[columnIndex].toString())) {
+                    matches.add(row);
+                }
+            }
+            return matches;
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+    private final Object mLock = new Object();
+
+    /** The loaded table, {@code null} if it has to be loaded again. */
+    private Snapshot mSnapshot;
+    /** Incremented on each invalidation, so that a load racing with a write is not kept. */
+    private long mGeneration;
+
+    private long mLoads;
+    private long mLoadFailures;
+    private long mHits;
+    private long mInvalidations;
+    private long mLastLoadDurationMs;
+
+    public SubscriptionTable(@NonNull ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Update rows in the provider and invalidate the cached rows.
+     *
+     * @see ContentResolver#update(Uri, ContentValues, String, String[])
+     */
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String where,
+            @Nullable String[] selectionArgs) {
+        try {
+            return mContentResolver.update(uri, values, where, selectionArgs);
+        } finally {
+            invalidate();
+        }
+    }
+
+    /**
+     * Insert a row in the provider and invalidate the cached rows.
+     *
+     * @see ContentResolver#insert(Uri, ContentValues)
+     */
+    public @Nullable Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        try {
+            return mContentResolver.insert(uri, values);
+        } finally {
+            invalidate();
+        }
+    }
+
+    /**
+     * Delete rows in the provider and invalidate the cached rows.
+     *
+     * @see ContentResolver#delete(Uri, String, String[])
+     */
+    public int delete(@NonNull Uri uri, @Nullable String where,
+            @Nullable String[] selectionArgs) {
+        try {
+            return mContentResolver.delete(uri, where, selectionArgs);
+        } finally {
+            invalidate();
+        }
+    }
+
+    /**
+     * Drop the cached rows. The next read loads the table again.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mSnapshot = null;
+            mGeneration++;
+            mInvalidations++;
+        }
+    }
+
+    /**
+     * Query all rows.
+     *
+     * @param projection The columns to return, or {@code null} for all columns.
+     * @return A cursor over the rows in provider order, or {@code null} if the table couldn't be
+     *         loaded, in which case the provider should be queried.
+     */
+    public @Nullable Cursor queryAll(@Nullable String[] projection) {
+        Snapshot snapshot = getSnapshot();
+        return snapshot == null ? null : toCursor(snapshot, projection, snapshot.mRows);
+    }
+
+    /**
+     * Query the rows in which the column has the value, like a {@code column=value} selection.
+     *
+     * @param projection The columns to return, or {@code null} for all columns.
+     * @param column The column to match.
+     * @param value The value to match, compared as a string.
+     * @return A cursor over the matching rows, or {@code null} if the table couldn't be loaded, in
+     *         which case the provider should be queried.
+     */
+    public @Nullable Cursor query(@Nullable String[] projection, @NonNull String column,
+            @NonNull Object value) {
+        Snapshot snapshot = getSnapshot();
+        return snapshot == null ? null
+                : toCursor(snapshot, projection, snapshot.find(column, value.toString()));
+    }
+
+    /** @return The number of times the table was loaded from the provider. */
+    @VisibleForTesting
+    public long getLoadCount() {
+        synchronized (mLock) {
+            return mLoads;
+        }
+    }
+
+    private @Nullable Snapshot getSnapshot() {
+        long generation;
+        synchronized (mLock) {
+            if (mSnapshot != null) {
+                mHits++;
+                return mSnapshot;
+            }
+            generation = mGeneration;
+        }
+
+        // Load outside of the lock, a provider query may take a while.
+        long start = SystemClock.elapsedRealtime();
+        Snapshot snapshot = load();
+        synchronized (mLock) {
+            mLastLoadDurationMs = SystemClock.elapsedRealtime() - start;
+            if (snapshot == null) {
+                mLoadFailures++;
+            } else {
+                mLoads++;
+                if (generation == mGeneration) {
+                    mSnapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private @Nullable Snapshot load() {
+        try (Cursor cursor = mContentResolver.query(SubscriptionManager.CONTENT_URI, null, null,
+                null, null)) {
+            if (cursor == null) {
+                return null;
+            }
+            String[] columns = cursor.getColumnNames();
+            List<Object[]> rows = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                Object[] row = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = cursor.getLong(i);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[i] = cursor.getDouble(i);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[i] = cursor.getString(i);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[i] = cursor.getBlob(i);
+                            break;
+                        default:
+                            row[i] = null;
+                            break;
+                    }
+                }
+                rows.add(row);
+            }
+            return new Snapshot(columns, rows);
+        }
+    }
+
+    private static Cursor toCursor(Snapshot snapshot, @Nullable String[] projection,
+            List<Object[]> rows) {
+        if (projection == null) {
+            MatrixCursor cursor = new MatrixCursor(snapshot.mColumns, rows.size());
+            for (Object[] row : rows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, rows.size());
+        for (Object[] row : rows) {
+            Object[] projected = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                Integer columnIndex = snapshot.mColumnIndexes.get(projection[i]);
+                projected[i] = columnIndex == null ? null : row[columnIndex];
+            }
+            cursor.addRow(projected);
+        }
+        return cursor;
+    }
+
+    /**
+     * Dump the state of the table.
+     *
+     * @param pw Print writer
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(TAG + ":");
+            pw.increaseIndent();
+            pw.println("loaded=" + (mSnapshot != null)
+                    + " rows=" + (mSnapshot == null ? 0 : mSnapshot.mRows.size()));
+            pw.println("loads=" + mLoads + " loadFailures=" + mLoadFailures + " hits=" + mHits
+                    + " invalidations=" + mInvalidations
+                    + " lastLoadDurationMs=" + mLastLoadDurationMs);
+            pw.decreaseIndent();
+        }
+    }
+}
@@ -27,8 +27,10 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.telephony.VisualVoicemailSms;
 import android.telephony.VisualVoicemailSmsFilterSettings;
+import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.VisualVoicemailSmsParser.WrappedMessageData;
@@ -71,6 +73,9 @@ public class VisualVoicemailSmsFilter {
 
     private static Map<String, List<Pattern>> sPatterns;
 
+    /** Compiled matchers by subId, rebuilt when the SIM operator or the client prefix changes. */
+    private static final SparseArray<VvmMatcher> sMatchers = new SparseArray<>();
+
     private static final PhoneAccountHandleConverter DEFAULT_PHONE_ACCOUNT_HANDLE_CONVERTER =
             new PhoneAccountHandleConverter() {
 
@@ -98,6 +103,191 @@ public class VisualVoicemailSmsFilter {
 
         public SmsMessage firstMessage;
         public String fullMessageBody;
+        /**
+         * The first part can't start a visual voicemail SMS, so the remaining parts weren't
+         * decoded and {@link #fullMessageBody} is {@code null}.
+         */
+        public boolean rejected;
+    }
+
+    /**
+     * Matches message bodies against the visual voicemail formats of one subscription.
+     *
+     * <p>The carrier regexes of the SIM operator are compiled into a single pattern, and the
+     * literal text every visual voicemail SMS has to start with is extracted from the client
+     * prefix and the regexes. Checking that text on the first part of a message is enough to
+     * reject most SMS without decoding the remaining parts or running any regex.
+     */
+    @VisibleForTesting
+    public static final class VvmMatcher {
+        private final String mMccMnc;
+        @Nullable private final String mClientPrefix;
+        @Nullable private final Pattern mCombinedPattern;
+        private final List<Pattern> mPatterns;
+        /** The texts a visual voicemail SMS starts with, {@code null} if it can start with any. */
+        @Nullable private final String[] mPrefixes;
+
+        @VisibleForTesting
+        public VvmMatcher(String mccMnc, @Nullable String clientPrefix,
+                @Nullable List<Pattern> patterns) {
+            mMccMnc = mccMnc;
+            mClientPrefix = clientPrefix;
+            mPatterns = patterns == null ? new ArrayList<>() : patterns;
+            mCombinedPattern = combine(mPatterns);
+
+            List<String> prefixes = new ArrayList<>();
+            if (clientPrefix != null) {
+                // The OMTP format is [clientPrefix]:[prefix]:...
+                prefixes.add(clientPrefix + ":");
+            }
+            boolean unbounded = false;
+            for (Pattern pattern : mPatterns) {
+                String prefix = getLiteralPrefix(pattern.pattern());
+                if (prefix.isEmpty()) {
+                    unbounded = true;
+                    break;
+                }
+                prefixes.add(prefix);
+            }
+            mPrefixes = unbounded ? null : prefixes.toArray(new String[0]);
+        }
+
+        boolean isFor(String mccMnc, @Nullable String clientPrefix) {
+            return TextUtils.equals(mMccMnc, mccMnc) && TextUtils.equals(mClientPrefix,
+                    clientPrefix);
+        }
+
+        /** @return {@code false} if no carrier regex is configured for the SIM operator. */
+        public boolean hasPatterns() {
+            return !mPatterns.isEmpty();
+        }
+
+        /**
+         * @param firstPart The body of the first part of the message.
+         * @return {@code false} if a message starting with the part can't be a visual voicemail
+         *         SMS.
+         */
+        public boolean mayMatch(String firstPart) {
+            if (mPrefixes == null) {
+                return true;
+            }
+            for (String prefix : mPrefixes) {
+                // The first part of a multipart message may be shorter than the prefix.
+                if (firstPart.length() >= prefix.length()
+                        ? firstPart.startsWith(prefix) : prefix.startsWith(firstPart)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** @return {@code true} if the whole message body matches a carrier regex. */
+        public boolean matchesPattern(String messageBody) {
+            if (mCombinedPattern != null) {
+                return mCombinedPattern.matcher(messageBody).matches();
+            }
+            for (Pattern pattern : mPatterns) {
+                if (pattern.matcher(messageBody).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return The regexes as one alternation, or {@code null} if there is at most one or a
+         *         regex uses back references, which would be renumbered.
+         */
+        @Nullable
+        private static Pattern combine(List<Pattern> patterns) {
+            if (patterns.size() < 2) {
+                return null;
+            }
+            StringBuilder combined = new StringBuilder();
+            for (Pattern pattern : patterns) {
+                String regex = pattern.pattern();
+                for (int i = 0; i < regex.length() - 1; i++) {
+                    if (regex.charAt(i) == '\\') {
+                        char next = regex.charAt(++i);
+                        if (Character.isDigit(next) || next == 'k') {
+                            return null;
+                        }
+                    }
+                }
+                if (combined.length() > 0) {
+                    combined.append('|');
+                }
+                // Inline flags set in a group don't leak out of it.
+                combined.append("(?:").append(regex).append(')');
+            }
+            return Pattern.compile(combined.toString());
+        }
+
+        /**
+         * @return The literal text every match of the regex starts with, or an empty string if
+         *         it can't be determined.
+         */
+        @VisibleForTesting
+        public static String getLiteralPrefix(String regex) {
+            if (regex.indexOf('|') >= 0) {
+                // An alternation may start with anything.
+                return "";
+            }
+            StringBuilder prefix = new StringBuilder();
+            for (int i = regex.startsWith("^") ? 1 : 0; i < regex.length(); i++) {
+                char c = regex.charAt(i);
+                if ("?*+{".indexOf(c) >= 0) {
+                    // The quantifier makes the last character optional or repeated.
+                    if (prefix.length() > 0) {
+                        prefix.setLength(prefix.length() - 1);
+                    }
+                    break;
+                }
+                if ("\\^$.()[]}".indexOf(c) >= 0) {
+                    break;
+                }
+                prefix.append(c);
+            }
+            return prefix.toString();
+        }
+    }
+
+    /**
+     * The outcome of parsing an SMS as a visual voicemail SMS. Parsing has no side effects; the
+     * result is applied with {@link #apply}.
+     */
+    public static final class Result {
+        private static final Result NO_MATCH = new Result(false, null, null, null, null);
+
+        private final boolean mDrop;
+        @Nullable private final VisualVoicemailSmsFilterSettings mSettings;
+        @Nullable private final PhoneAccountHandle mPhoneAccountHandle;
+        @Nullable private final WrappedMessageData mMessageData;
+        @Nullable private final String mMessageBody;
+
+        private Result(boolean drop, @Nullable VisualVoicemailSmsFilterSettings settings,
+                @Nullable PhoneAccountHandle phoneAccountHandle,
+                @Nullable WrappedMessageData messageData, @Nullable String messageBody) {
+            mDrop = drop;
+            mSettings = settings;
+            mPhoneAccountHandle = phoneAccountHandle;
+            mMessageData = messageData;
+            mMessageBody = messageBody;
+        }
+
+        /**
+         * Send the {@link VoicemailContract#ACTION_VOICEMAIL_SMS_RECEIVED} intent if the SMS was
+         * recognized.
+         *
+         * @return true if the SMS should be dropped
+         */
+        public boolean apply(Context context) {
+            if (mSettings != null) {
+                sendVvmSmsBroadcast(context, mSettings, mPhoneAccountHandle, mMessageData,
+                        mMessageBody);
+            }
+            return mDrop;
+        }
     }
 
     /**
@@ -117,6 +307,17 @@ public class VisualVoicemailSmsFilter {
      */
     public static boolean filter(Context context, byte[][] pdus, String format, int destPort,
             int subId) {
+        return parse(context, pdus, format, destPort, subId).apply(context);
+    }
+
+    /**
+     * Parse the incoming SMS as a visual voicemail SMS without sending anything, see
+     * {@link #filter}.
+     *
+     * @return the result to apply once the SMS reaches this filter
+     */
+    public static Result parse(Context context, byte[][] pdus, String format, int destPort,
+            int subId) {
         TelephonyManager telephonyManager =
                 (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
 
@@ -124,27 +325,33 @@ public class VisualVoicemailSmsFilter {
         settings = telephonyManager.getActiveVisualVoicemailSmsFilterSettings(subId);
 
         if (settings == null) {
-            FullMessage fullMessage = getFullMessage(pdus, format);
-            if (fullMessage != null) {
+            VvmMatcher matcher = getMatcher(context, subId, null);
+            if (!matcher.hasPatterns()) {
+                // Nothing to match, don't decode the message.
+                return Result.NO_MATCH;
+            }
+            FullMessage fullMessage = getFullMessage(pdus, format, matcher);
+            if (fullMessage != null && !fullMessage.rejected) {
                 // This is special case that voice mail SMS received before the filter has been
                 // set. To drop the SMS unconditionally.
-                if (messageBodyMatchesVvmPattern(context, subId, fullMessage.fullMessageBody)) {
+                if (messageBodyMatchesVvmPattern(matcher, fullMessage.fullMessageBody)) {
                     Log.e(TAG, "SMS matching VVM format received but the filter not been set yet");
-                    return true;
+                    return new Result(true, null, null, null, null);
                 }
             }
-            return false;
+            return Result.NO_MATCH;
         }
 
         PhoneAccountHandle phoneAccountHandle = sPhoneAccountHandleConverter.fromSubId(subId);
 
         if (phoneAccountHandle == null) {
             Log.e(TAG, "Unable to convert subId " + subId + " to PhoneAccountHandle");
-            return false;
+            return Result.NO_MATCH;
         }
 
         String clientPrefix = settings.clientPrefix;
-        FullMessage fullMessage = getFullMessage(pdus, format);
+        VvmMatcher matcher = getMatcher(context, subId, clientPrefix);
+        FullMessage fullMessage = getFullMessage(pdus, format, matcher);
 
         if (fullMessage == null) {
             // Carrier WAP push SMS is not recognized by android, which has a ascii PDU.
@@ -158,11 +365,15 @@ public class VisualVoicemailSmsFilter {
                 messageData = VisualVoicemailSmsParser.parse(clientPrefix, asciiMessage);
             }
             if (messageData != null) {
-                sendVvmSmsBroadcast(context, settings, phoneAccountHandle, messageData, null);
+                // Confidence for what the message actually is is low. Don't remove the message
+                // and let system decide. Usually because it is not parsable it will be dropped.
+                return new Result(false, settings, phoneAccountHandle, messageData, null);
             }
-            // Confidence for what the message actually is is low. Don't remove the message and let
-            // system decide. Usually because it is not parsable it will be dropped.
-            return false;
+            return Result.NO_MATCH;
+        }
+
+        if (fullMessage.rejected) {
+            return Result.NO_MATCH;
         }
 
         String messageBody = fullMessage.fullMessageBody;
@@ -174,53 +385,62 @@ public class VisualVoicemailSmsFilter {
                 if (destPort == -1) {
                     // Non-data SMS is directed to the port "-1".
                     Log.i(TAG, "SMS matching VVM format received but is not a DATA SMS");
-                    return false;
+                    return Result.NO_MATCH;
                 }
             } else if (settings.destinationPort
                     != VisualVoicemailSmsFilterSettings.DESTINATION_PORT_ANY) {
                 if (settings.destinationPort != destPort) {
                     Log.i(TAG, "SMS matching VVM format received but is not directed to port "
                             + settings.destinationPort);
-                    return false;
+                    return Result.NO_MATCH;
                 }
             }
 
             if (!settings.originatingNumbers.isEmpty()
                     && !isSmsFromNumbers(fullMessage.firstMessage, settings.originatingNumbers)) {
                 Log.i(TAG, "SMS matching VVM format received but is not from originating numbers");
-                return false;
+                return Result.NO_MATCH;
             }
 
-            sendVvmSmsBroadcast(context, settings, phoneAccountHandle, messageData, null);
-            return true;
+            return new Result(true, settings, phoneAccountHandle, messageData, null);
         }
 
-        if (messageBodyMatchesVvmPattern(context, subId, messageBody)) {
+        if (messageBodyMatchesVvmPattern(matcher, messageBody)) {
             Log.w(TAG,
                     "SMS matches pattern but has illegal format, still dropping as VVM SMS");
-            sendVvmSmsBroadcast(context, settings, phoneAccountHandle, null, messageBody);
-            return true;
+            return new Result(true, settings, phoneAccountHandle, null, messageBody);
         }
-        return false;
+        return Result.NO_MATCH;
     }
 
-    private static boolean messageBodyMatchesVvmPattern(Context context, int subId,
+    private static boolean messageBodyMatchesVvmPattern(VvmMatcher matcher,
             String messageBody) {
-        buildPatternsMap(context);
-        String mccMnc = context.getSystemService(TelephonyManager.class).getSimOperator(subId);
-
-        List<Pattern> patterns = sPatterns.get(mccMnc);
-        if (patterns == null || patterns.isEmpty()) {
+        if (!matcher.hasPatterns() || !matcher.mayMatch(messageBody)) {
             return false;
         }
+        if (matcher.matchesPattern(messageBody)) {
+            Log.w(TAG, "Incoming SMS matches pattern for " + matcher.mMccMnc);
+            return true;
+        }
+        return false;
+    }
 
-        for (Pattern pattern : patterns) {
-            if (pattern.matcher(messageBody).matches()) {
-                Log.w(TAG, "Incoming SMS matches pattern " + pattern);
-                return true;
+    /**
+     * @return The matcher of the subscription, built on first use or after the SIM operator or
+     *         the client prefix changed.
+     */
+    private static VvmMatcher getMatcher(Context context, int subId,
+            @Nullable String clientPrefix) {
+        String mccMnc = context.getSystemService(TelephonyManager.class).getSimOperator(subId);
+        synchronized (sMatchers) {
+            buildPatternsMap(context);
+            VvmMatcher matcher = sMatchers.get(subId);
+            if (matcher == null || !matcher.isFor(mccMnc, clientPrefix)) {
+                matcher = new VvmMatcher(mccMnc, clientPrefix, sPatterns.get(mccMnc));
+                sMatchers.put(subId, matcher);
             }
+            return matcher;
         }
-        return false;
     }
 
     /**
@@ -277,10 +497,15 @@ public class VisualVoicemailSmsFilter {
     }
 
     /**
+     * @param matcher If set, the remaining parts are not decoded when the first part can't start
+     *                a visual voicemail SMS. Unparsable PDUs are still detected on the first part
+     *                only; the ASCII fallback for them can't match anyway, as a parsable PDU
+     *                doesn't start with printable text.
      * @return the message body of the SMS, or {@code null} if it can not be parsed.
      */
     @Nullable
-    private static FullMessage getFullMessage(byte[][] pdus, String format) {
+    private static FullMessage getFullMessage(byte[][] pdus, String format,
+            @Nullable VvmMatcher matcher) {
         FullMessage result = new FullMessage();
         StringBuilder builder = new StringBuilder();
         CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
@@ -310,6 +535,11 @@ public class VisualVoicemailSmsFilter {
             if (body != null) {
                 builder.append(body);
             }
+            if (message == result.firstMessage && matcher != null
+                    && !matcher.mayMatch(builder.toString())) {
+                result.rejected = true;
+                return result;
+            }
         }
         result.fullMessageBody = builder.toString();
         return result;
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Message;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.telephony.AccessNetworkConstants;
+import android.telephony.AccessNetworkConstants.TransportType;
+import android.telephony.CarrierConfigManager;
+import android.util.IndentingPrintWriter;
+import android.util.LocalLog;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.Phone;
+import com.android.telephony.Rlog;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schedules data network bring-up for {@link DcTracker}. Setup requests for independent APN
+ * contexts are issued concurrently up to the limit set by the carrier in
+ * {@link #KEY_MAX_CONCURRENT_DATA_BRING_UPS_INT}. Requests over that limit are deferred and issued
+ * in {@link ApnContext} priority order as earlier bring-ups complete.
+ *
+ * The scheduler also records the time from data attach, and from airplane mode turned off, to the
+ * first connected PDN.
+ */
+public class DataBringUpScheduler extends Handler {
+    private static final boolean DBG = true;
+
+    /**
+     * Carrier config key for the maximum number of cellular data network bring-ups in flight at
+     * once, for networks which reject concurrent PDN requests. 0 or less means no limit, which is
+     * the default.
+     */
+    @VisibleForTesting
+    public static final String KEY_MAX_CONCURRENT_DATA_BRING_UPS_INT =
+            "max_concurrent_data_bring_ups_int";
+
+    private static final int EVENT_AIRPLANE_MODE_CHANGED = 1;
+
+    private static final long INVALID_TIME = -1;
+
+    private final Phone mPhone;
+    private final String mLogTag;
+    private final @TransportType int mTransportType;
+    private final LocalLog mLocalLog = new LocalLog(50);
+
+    private int mMaxConcurrentBringUps = Integer.MAX_VALUE;
+
+    /** APN contexts waiting for a free bring-up slot, sorted by descending priority. */
+    private final List<ApnContext> mDeferredApnContexts = new ArrayList<>();
+
+    /** Elapsed realtime of the last data attach, or {@link #INVALID_TIME} once connected. */
+    private long mAttachedTime = INVALID_TIME;
+
+    /** Elapsed realtime of the last airplane mode off, or {@link #INVALID_TIME} once connected. */
+    private long mAirplaneModeOffTime = INVALID_TIME;
+
+    private long mLastTimeToConnectedAfterAttachMs = INVALID_TIME;
+    private long mLastTimeToConnectedAfterAirplaneModeOffMs = INVALID_TIME;
+
+    public DataBringUpScheduler(@NonNull Phone phone, @TransportType int transportType,
+            @NonNull String logTag) {
+        super();
+        mPhone = phone;
+        mTransportType = transportType;
+        mLogTag = logTag + "-BUS";
+        mPhone.getServiceStateTracker().registerForAirplaneModeChanged(this,
+                EVENT_AIRPLANE_MODE_CHANGED, null);
+    }
+
+    /**
+     * Unregister for all events.
+     */
+    public void dispose() {
+        mPhone.getServiceStateTracker().unregisterForAirplaneModeChanged(this);
+        mDeferredApnContexts.clear();
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        switch (msg.what) {
+            case EVENT_AIRPLANE_MODE_CHANGED:
+                AsyncResult ar = (AsyncResult) msg.obj;
+                if (!(Boolean) ar.result) {
+                    mAirplaneModeOffTime = SystemClock.elapsedRealtime();
+                } else {
+                    mAirplaneModeOffTime = INVALID_TIME;
+                    mAttachedTime = INVALID_TIME;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Read the bring-up limit from the carrier config. Called when the carrier config changed.
+     */
+    public void onCarrierConfigChanged() {
+        int max = 0;
+        CarrierConfigManager configManager = (CarrierConfigManager) mPhone.getContext()
+                .getSystemService(Context.CARRIER_CONFIG_SERVICE);
+        if (configManager != null) {
+            PersistableBundle b = configManager.getConfigForSubId(mPhone.getSubId());
+            if (b != null) {
+                max = b.getInt(KEY_MAX_CONCURRENT_DATA_BRING_UPS_INT, 0);
+            }
+        }
+        int newMax = max > 0 ? max : Integer.MAX_VALUE;
+        if (newMax != mMaxConcurrentBringUps) {
+            log("Max concurrent bring-ups changed to " + max);
+            mMaxConcurrentBringUps = newMax;
+        }
+    }
+
+    /**
+     * @return The maximum number of data network bring-ups that may be in flight at once.
+     */
+    public int getMaxConcurrentBringUps() {
+        if (mTransportType != AccessNetworkConstants.TRANSPORT_TYPE_WWAN) {
+            return Integer.MAX_VALUE;
+        }
+        return mMaxConcurrentBringUps;
+    }
+
+    /**
+     * Check if the bring-up of the APN context has to wait for a free slot. If so, the APN context
+     * is queued and will be returned by {@link #pollDeferredApnContext(int)} later.
+     *
+     * @param apnContext The APN context about to be brought up.
+     * @param inFlightCount Number of data network bring-ups currently in flight.
+     * @return {@code true} if the bring-up is deferred.
+     */
+    public boolean deferIfNeeded(@NonNull ApnContext apnContext, int inFlightCount) {
+        int max = getMaxConcurrentBringUps();
+        if (inFlightCount < max) {
+            mDeferredApnContexts.remove(apnContext);
+            return false;
+        }
+        if (!mDeferredApnContexts.contains(apnContext)) {
+            int index = 0;
+            while (index < mDeferredApnContexts.size()
+                    && mDeferredApnContexts.get(index).getPriority() >= apnContext.getPriority()) {
+                index++;
+            }
+            mDeferredApnContexts.add(index, apnContext);
+            log("Deferred bring-up of " + apnContext.getApnType() + ", inFlight="
+                    + inFlightCount + ", max=" + max);
+        }
+        return true;
+    }
+
+    /**
+     * Get the highest priority deferred APN context if a bring-up slot is available.
+     *
+     * @param inFlightCount Number of data network bring-ups currently in flight.
+     * @return The APN context to bring up, or {@code null} if none can be brought up now.
+     */
+    public @Nullable ApnContext pollDeferredApnContext(int inFlightCount) {
+        if (mDeferredApnContexts.isEmpty() || inFlightCount >= getMaxConcurrentBringUps()) {
+            return null;
+        }
+        return mDeferredApnContexts.remove(0);
+    }
+
+    /**
+     * Drop the deferred bring-up of the APN context, e.g. when the APN is disabled.
+     *
+     * @param apnContext The APN context that must no longer be brought up.
+     */
+    public void removeDeferredApnContext(@NonNull ApnContext apnContext) {
+        if (mDeferredApnContexts.remove(apnContext)) {
+            log("Removed deferred bring-up of " + apnContext.getApnType());
+        }
+    }
+
+    /**
+     * Drop all deferred bring-ups, e.g. when the radio is turned off.
+     */
+    public void clearDeferredApnContexts() {
+        if (!mDeferredApnContexts.isEmpty()) {
+            log("Cleared " + mDeferredApnContexts.size() + " deferred bring-ups");
+            mDeferredApnContexts.clear();
+        }
+    }
+
+    /**
+     * Called when data is attached.
+     */
+    public void onDataAttached() {
+        mAttachedTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Called when a data network for the APN context is connected.
+     *
+     * @param apnContext The connected APN context.
+     */
+    public void onApnConnected(@NonNull ApnContext apnContext) {
+        long now = SystemClock.elapsedRealtime();
+        if (mAttachedTime != INVALID_TIME) {
+            mLastTimeToConnectedAfterAttachMs = now - mAttachedTime;
+            mAttachedTime = INVALID_TIME;
+            log("First PDN connected after attach in " + mLastTimeToConnectedAfterAttachMs
+                    + "ms, apnType=" + apnContext.getApnType());
+        }
+        if (mAirplaneModeOffTime != INVALID_TIME) {
+            mLastTimeToConnectedAfterAirplaneModeOffMs = now - mAirplaneModeOffTime;
+            mAirplaneModeOffTime = INVALID_TIME;
+            log("First PDN connected after airplane mode off in "
+                    + mLastTimeToConnectedAfterAirplaneModeOffMs + "ms, apnType="
+                    + apnContext.getApnType());
+        }
+    }
+
+    /**
+     * @return The time in milliseconds from the last data attach to the first connected PDN, or
+     * {@code -1} if not measured yet.
+     */
+    @VisibleForTesting
+    public long getLastTimeToConnectedAfterAttachMs() {
+        return mLastTimeToConnectedAfterAttachMs;
+    }
+
+    /**
+     * @return The time in milliseconds from the last airplane mode off to the first connected
+     * PDN, or {@code -1} if not measured yet.
+     */
+    @VisibleForTesting
+    public long getLastTimeToConnectedAfterAirplaneModeOffMs() {
+        return mLastTimeToConnectedAfterAirplaneModeOffMs;
+    }
+
+    private void log(String s) {
+        if (DBG) Rlog.d(mLogTag, s);
+        mLocalLog.log(s);
+    }
+
+    /**
+     * Dump the state of DataBringUpScheduler
+     *
+     * @param fd File descriptor
+     * @param printWriter Print writer
+     * @param args Arguments
+     */
+    public void dump(FileDescriptor fd, PrintWriter printWriter, String[] args) {
+        IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, "  ");
+        pw.println("DataBringUpScheduler:");
+        pw.increaseIndent();
+        pw.println("maxConcurrentBringUps=" + getMaxConcurrentBringUps());
+        pw.print("deferred=[");
+        for (ApnContext apnContext : mDeferredApnContexts) {
+            pw.print(apnContext.getApnType() + " ");
+        }
+        pw.println("]");
+        pw.println("lastTimeToConnectedAfterAttachMs=" + mLastTimeToConnectedAfterAttachMs);
+        pw.println("lastTimeToConnectedAfterAirplaneModeOffMs="
+                + mLastTimeToConnectedAfterAirplaneModeOffMs);
+        pw.println("Local logs:");
+        pw.increaseIndent();
+        mLocalLog.dump(fd, pw, args);
+        pw.decreaseIndent();
+        pw.decreaseIndent();
+    }
+}
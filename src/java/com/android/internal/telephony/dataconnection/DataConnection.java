@@ -1586,6 +1586,8 @@ public class DataConnection extends StateMachine {
 
     private void updateLinkBandwidthsFromModem(List<LinkCapacityEstimate> lceList) {
         if (DBG) log("updateLinkBandwidthsFromModem: lceList=" + lceList);
+        int oldDownlinkBandwidth = mDownlinkBandwidth;
+        int oldUplinkBandwidth = mUplinkBandwidth;
         boolean downlinkUpdated = false;
         boolean uplinkUpdated = false;
         LinkCapacityEstimate lce = lceList.get(0);
@@ -1606,9 +1608,7 @@ public class DataConnection extends StateMachine {
             fallBackToCarrierConfigValues(downlinkUpdated, uplinkUpdated);
         }
 
-        if (mNetworkAgent != null) {
-            mNetworkAgent.sendNetworkCapabilities(getNetworkCapabilities(), DataConnection.this);
-        }
+        sendNetworkCapabilitiesIfBandwidthChanged(oldDownlinkBandwidth, oldUplinkBandwidth);
     }
 
     private void updateLinkBandwidthsFromBandwidthEstimator(int uplinkBandwidthKbps,
@@ -1617,6 +1617,8 @@ public class DataConnection extends StateMachine {
             log("updateLinkBandwidthsFromBandwidthEstimator, UL= "
                     + uplinkBandwidthKbps + " DL= " + downlinkBandwidthKbps);
         }
+        int oldDownlinkBandwidth = mDownlinkBandwidth;
+        int oldUplinkBandwidth = mUplinkBandwidth;
         boolean downlinkUpdated = false;
         boolean uplinkUpdated = false;
         if (downlinkBandwidthKbps > 0) {
@@ -1631,9 +1633,22 @@ public class DataConnection extends StateMachine {
         if (!downlinkUpdated || !uplinkUpdated) {
             fallBackToCarrierConfigValues(downlinkUpdated, uplinkUpdated);
         }
-        if (mNetworkAgent != null) {
-            mNetworkAgent.sendNetworkCapabilities(getNetworkCapabilities(), DataConnection.this);
+        sendNetworkCapabilitiesIfBandwidthChanged(oldDownlinkBandwidth, oldUplinkBandwidth);
+    }
+
+    /**
+     * Send the network capabilities to the network agent if the link bandwidths changed. Bandwidth
+     * estimates arrive frequently and are often unchanged, so this avoids rebuilding the
+     * capabilities for nothing.
+     */
+    private void sendNetworkCapabilitiesIfBandwidthChanged(int oldDownlinkBandwidth,
+            int oldUplinkBandwidth) {
+        if (mNetworkAgent == null) return;
+        if (oldDownlinkBandwidth == mDownlinkBandwidth && oldUplinkBandwidth == mUplinkBandwidth) {
+            if (VDBG) log("Link bandwidths unchanged, skip sending network capabilities");
+            return;
         }
+        mNetworkAgent.sendNetworkCapabilities(getNetworkCapabilities(), DataConnection.this);
     }
 
     private void fallBackToCarrierConfigValues(boolean downlinkUpdated, boolean uplinkUpdated) {
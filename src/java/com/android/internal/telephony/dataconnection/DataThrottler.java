@@ -18,6 +18,7 @@ package com.android.internal.telephony.dataconnection;
 
 import android.annotation.ElapsedRealtimeLong;
 import android.annotation.NonNull;
+import android.app.AlarmManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -26,6 +27,7 @@ import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.Message;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.telephony.AccessNetworkConstants;
 import android.telephony.Annotation;
 import android.telephony.Annotation.ApnType;
@@ -39,9 +41,8 @@ import com.android.internal.telephony.RetryManager;
 import com.android.telephony.Rlog;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Data throttler tracks the throttling status of the data network and notifies registrants when
@@ -55,12 +56,23 @@ public class DataThrottler extends Handler {
     private static final int EVENT_RESET = 3;
     private static final int EVENT_AIRPLANE_MODE_CHANGED = 4;
     private static final int EVENT_TRACING_AREA_CODE_CHANGED = 5;
+    private static final int EVENT_NOTIFY_THROTTLE_STATUS_CHANGED = 6;
+
+    /** Number of APN type bits, which is the size of the throttle status table. */
+    private static final int APN_TYPE_BIT_COUNT = Integer.SIZE;
 
     private final Phone mPhone;
     private final int mSlotIndex;
     private final @AccessNetworkConstants.TransportType int mTransportType;
+    private final AlarmManager mAlarmManager;
     private boolean mResetWhenAreaCodeChanged = false;
 
+    /** Unthrottles the APN types whose throttle time has passed. Runs on the handler thread. */
+    private final AlarmManager.OnAlarmListener mThrottleExpiryListener = this::onThrottleExpired;
+
+    /** Elapsed realtime the throttle expiry alarm is armed for, or {@link Long#MAX_VALUE}. */
+    private long mThrottleExpiryAlarmTime = Long.MAX_VALUE;
+
     /**
      * Callbacks that report the apn throttle status.
      */
@@ -68,9 +80,16 @@ public class DataThrottler extends Handler {
 
     /**
      * Keeps track of detailed information of the throttle status that is meant to be
-     * reported to other components.
+     * reported to other components. Indexed by the lowest bit of the APN type. The array is never
+     * modified after being published, so it can be read from any thread without locking.
      */
-    private final Map<Integer, ThrottleStatus> mThrottleStatus = new ConcurrentHashMap<>();
+    private volatile ThrottleStatus[] mThrottleStatuses = new ThrottleStatus[APN_TYPE_BIT_COUNT];
+
+    /**
+     * Throttle status changes not yet reported to the callbacks, indexed the same way as
+     * {@link #mThrottleStatuses}. Only accessed on the handler thread.
+     */
+    private final ThrottleStatus[] mPendingChanges = new ThrottleStatus[APN_TYPE_BIT_COUNT];
 
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
@@ -99,6 +118,8 @@ public class DataThrottler extends Handler {
         mPhone = phone;
         mSlotIndex = phone.getPhoneId();
         mTransportType = transportType;
+        mAlarmManager = (AlarmManager) mPhone.getContext().getSystemService(
+                Context.ALARM_SERVICE);
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
@@ -137,6 +158,9 @@ public class DataThrottler extends Handler {
                     resetInternal();
                 }
                 break;
+            case EVENT_NOTIFY_THROTTLE_STATUS_CHANGED:
+                notifyPendingChanges();
+                break;
         }
     }
 
@@ -190,10 +214,11 @@ public class DataThrottler extends Handler {
             retryElapsedTime = RetryManager.NO_SUGGESTED_RETRY_DELAY;
         }
 
-        List<ThrottleStatus> changedStatuses = new ArrayList<>();
+        ThrottleStatus[] statuses = mThrottleStatuses;
+        ThrottleStatus[] newStatuses = null;
         while (apnTypes != 0) {
             int apnType;
-            // Due to an API mistake of ApnSetting.TYPE_DEFAULT (which combines default and hipri 
+            // Due to an API mistake of ApnSetting.TYPE_DEFAULT (which combines default and hipri
             // bit), we need to do special handling here.
             if ((apnTypes & ApnSetting.TYPE_DEFAULT) == ApnSetting.TYPE_DEFAULT) {
                 apnType = ApnSetting.TYPE_DEFAULT;
@@ -208,28 +233,111 @@ public class DataThrottler extends Handler {
             //Update the apn throttle status
             ThrottleStatus newStatus = createStatus(apnType, retryElapsedTime, newRequestType);
 
-            ThrottleStatus oldStatus = mThrottleStatus.get(apnType);
-
+            int index = getIndex(apnType);
             //Check to see if there is a change that needs to be applied
-            if (!newStatus.equals(oldStatus)) {
-                //Mark as changed status
-                changedStatuses.add(newStatus);
-
-                //Put the new status in the temp space
-                mThrottleStatus.put(apnType, newStatus);
+            if (!newStatus.equals(statuses[index])) {
+                if (newStatuses == null) {
+                    newStatuses = Arrays.copyOf(statuses, APN_TYPE_BIT_COUNT);
+                }
+                newStatuses[index] = newStatus;
+                mPendingChanges[index] = newStatus;
             }
         }
 
+        if (newStatuses != null) {
+            mThrottleStatuses = newStatuses;
+            scheduleNotifyThrottleStatusChanged();
+            scheduleThrottleExpiry();
+        }
+    }
+
+    /**
+     * @return The index of the APN type in the throttle status table.
+     */
+    private static int getIndex(@ApnType int apnType) {
+        return Integer.numberOfTrailingZeros(apnType);
+    }
+
+    /**
+     * Report the pending changes once the current batch of messages has been handled, so that
+     * several retry time updates in a row result in a single callback.
+     */
+    private void scheduleNotifyThrottleStatusChanged() {
+        if (!hasMessages(EVENT_NOTIFY_THROTTLE_STATUS_CHANGED)) {
+            sendEmptyMessage(EVENT_NOTIFY_THROTTLE_STATUS_CHANGED);
+        }
+    }
+
+    private void notifyPendingChanges() {
+        List<ThrottleStatus> changedStatuses = new ArrayList<>();
+        for (int i = 0; i < APN_TYPE_BIT_COUNT; i++) {
+            if (mPendingChanges[i] != null) {
+                changedStatuses.add(mPendingChanges[i]);
+                mPendingChanges[i] = null;
+            }
+        }
         if (changedStatuses.size() > 0) {
             sendThrottleStatusChanged(changedStatuses);
         }
     }
 
+    /**
+     * Arm a single alarm for the earliest throttle expiry in the future. Expiry times already in
+     * the past are left as they are, since callers compare the retry time against the current
+     * time anyway.
+     *
+     * Expiry times are elapsed realtime, which keeps counting in deep sleep, so the alarm is set
+     * on that clock rather than with a delayed handler message, whose delay only counts uptime.
+     * It does not wake the device, it is delivered once the device is awake again. The alarm is
+     * exact, an inexact one could be batched well past the retry time while the device is awake.
+     */
+    private void scheduleThrottleExpiry() {
+        mAlarmManager.cancel(mThrottleExpiryListener);
+        mThrottleExpiryAlarmTime = Long.MAX_VALUE;
+        long now = SystemClock.elapsedRealtime();
+        long earliest = Long.MAX_VALUE;
+        for (ThrottleStatus status : mThrottleStatuses) {
+            if (isThrottled(status) && status.getThrottleExpiryTimeMillis() > now) {
+                earliest = Math.min(earliest, status.getThrottleExpiryTimeMillis());
+            }
+        }
+        if (earliest != Long.MAX_VALUE) {
+            mThrottleExpiryAlarmTime = earliest;
+            mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME, earliest, TAG,
+                    mThrottleExpiryListener, this);
+        }
+    }
+
+    /**
+     * Unthrottle all the APN types whose throttle time has passed, including the ones expiring at
+     * the time the alarm was armed for.
+     */
+    private void onThrottleExpired() {
+        long now = Math.max(SystemClock.elapsedRealtime(), mThrottleExpiryAlarmTime);
+        for (ThrottleStatus status : mThrottleStatuses) {
+            if (isThrottled(status) && status.getThrottleExpiryTimeMillis() <= now) {
+                setRetryTimeInternal(status.getApnType(), RetryManager.NO_SUGGESTED_RETRY_DELAY,
+                        status.getRetryType() == ThrottleStatus.RETRY_TYPE_HANDOVER
+                                ? DcTracker.REQUEST_TYPE_HANDOVER
+                                : DcTracker.REQUEST_TYPE_NORMAL);
+            }
+        }
+        scheduleThrottleExpiry();
+    }
+
+    /**
+     * @return {@code true} if the status throttles the APN type until an expiry time.
+     */
+    private static boolean isThrottled(ThrottleStatus status) {
+        return status != null && status.getThrottleType() != ThrottleStatus.THROTTLE_TYPE_NONE
+                && status.getThrottleExpiryTimeMillis() != RetryManager.NO_RETRY;
+    }
+
     /**
      * Get the earliest retry time for the given APN type. The time is the system's elapse time.
      *
-     * Note the DataThrottler is running phone process's main thread, which is most of the telephony
-     * components running on. Calling this method from other threads might run into race conditions.
+     * The status is read from an immutable snapshot, so this is safe to call from any thread and
+     * does not allocate.
      *
      * @param apnType APN type
      * @return The earliest retry time for APN type. The time is the system's elapse time.
@@ -238,8 +346,11 @@ public class DataThrottler extends Handler {
      */
     @ElapsedRealtimeLong
     public long getRetryTime(@ApnType int apnType) {
-        ThrottleStatus status = mThrottleStatus.get(apnType);
-        if (status != null) {
+        if (apnType == ApnSetting.TYPE_NONE) {
+            return RetryManager.NO_SUGGESTED_RETRY_DELAY;
+        }
+        ThrottleStatus status = mThrottleStatuses[getIndex(apnType)];
+        if (status != null && status.getApnType() == apnType) {
             if (status.getThrottleType() == ThrottleStatus.THROTTLE_TYPE_NONE) {
                 return RetryManager.NO_SUGGESTED_RETRY_DELAY;
             } else {
@@ -260,14 +371,11 @@ public class DataThrottler extends Handler {
      * Resets retry times for all APNs to {@link RetryManager.NO_SUGGESTED_RETRY_DELAY}.
      */
     private void resetInternal() {
-        final List<Integer> apnTypes = new ArrayList<>();
-        for (ThrottleStatus throttleStatus : mThrottleStatus.values()) {
-            apnTypes.add(throttleStatus.getApnType());
-        }
-
-        for (int apnType : apnTypes) {
-            setRetryTime(apnType, RetryManager.NO_SUGGESTED_RETRY_DELAY,
-                    DcTracker.REQUEST_TYPE_NORMAL);
+        for (ThrottleStatus throttleStatus : mThrottleStatuses) {
+            if (throttleStatus != null) {
+                setRetryTimeInternal(throttleStatus.getApnType(),
+                        RetryManager.NO_SUGGESTED_RETRY_DELAY, DcTracker.REQUEST_TYPE_NORMAL);
+            }
         }
     }
 
@@ -332,8 +440,12 @@ public class DataThrottler extends Handler {
             //Only add if it's not there already
             if (!mCallbacks.contains(callback)) {
                 //Report everything the first time
-                List<ThrottleStatus> throttleStatuses =
-                        new ArrayList<>(mThrottleStatus.values());
+                List<ThrottleStatus> throttleStatuses = new ArrayList<>();
+                for (ThrottleStatus throttleStatus : mThrottleStatuses) {
+                    if (throttleStatus != null) {
+                        throttleStatuses.add(throttleStatus);
+                    }
+                }
                 callback.onThrottleStatusChanged(throttleStatuses);
                 mCallbacks.add(callback);
             }
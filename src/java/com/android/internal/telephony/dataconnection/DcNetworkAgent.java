@@ -30,6 +30,7 @@ import android.net.QosSessionAttributes;
 import android.net.SocketKeepalive;
 import android.net.Uri;
 import android.os.Message;
+import android.os.SystemClock;
 import android.telephony.AccessNetworkConstants;
 import android.telephony.AccessNetworkConstants.TransportType;
 import android.telephony.Annotation.NetworkType;
@@ -41,6 +42,7 @@ import android.telephony.data.QosBearerSession;
 import android.util.LocalLog;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.DctConstants;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.RILConstants;
@@ -83,6 +85,20 @@ public class DcNetworkAgent extends NetworkAgent {
 
     private NetworkCapabilities mNetworkCapabilities;
 
+    /** A copy of the link properties last sent to connectivity service. */
+    private LinkProperties mLinkProperties;
+
+    /** Number of unchanged updates not sent to connectivity service in the current window. */
+    private int mSuppressedUpdates;
+
+    /** Number of unchanged updates not sent to connectivity service in the last full window. */
+    private int mLastWindowSuppressedUpdates;
+
+    /** Total number of unchanged updates not sent to connectivity service. */
+    private long mTotalSuppressedUpdates;
+
+    private long mSuppressedUpdatesWindowStartMs = SystemClock.elapsedRealtime();
+
     public final DcKeepaliveTracker keepaliveTracker = new DcKeepaliveTracker();
 
     private final QosCallbackTracker mQosCallbackTracker;
@@ -99,6 +115,8 @@ public class DcNetworkAgent extends NetworkAgent {
     private static final long NETWORK_UNWANTED_ANOMALY_WINDOW_MS = TimeUnit.MINUTES.toMillis(5);
     private static final int NETWORK_UNWANTED_ANOMALY_NUM_OCCURRENCES =  12;
 
+    private static final long SUPPRESSED_UPDATES_WINDOW_MS = TimeUnit.MINUTES.toMillis(1);
+
     DcNetworkAgent(DataConnection dc, Phone phone, int score, NetworkAgentConfig config,
             NetworkProvider networkProvider, int transportType) {
         super(phone.getContext(), dc.getHandler().getLooper(), "DcNetworkAgent",
@@ -109,6 +127,9 @@ public class DcNetworkAgent extends NetworkAgent {
         mTag = "DcNetworkAgent" + "-" + mId;
         mPhone = phone;
         mNetworkCapabilities = dc.getNetworkCapabilities();
+        if (dc.getLinkProperties() != null) {
+            mLinkProperties = new LinkProperties(dc.getLinkProperties());
+        }
         mTransportType = transportType;
         mDataConnection = dc;
         if (dc.getLinkProperties() != null) {
@@ -288,7 +309,8 @@ public class DcNetworkAgent extends NetworkAgent {
     }
 
     /**
-     * Set the network capabilities.
+     * Set the network capabilities. The update is not sent to connectivity service if the
+     * capabilities are identical to the ones sent last time.
      *
      * @param networkCapabilities The network capabilities.
      * @param dc The data connection that invokes this method.
@@ -297,31 +319,35 @@ public class DcNetworkAgent extends NetworkAgent {
                                                      DataConnection dc) {
         if (!isOwned(dc, "sendNetworkCapabilities")) return;
 
-        if (!networkCapabilities.equals(mNetworkCapabilities)) {
-            String logStr = "Changed from " + mNetworkCapabilities + " to "
-                    + networkCapabilities + ", Data RAT="
-                    + mPhone.getServiceState().getRilDataRadioTechnology()
-                    + ", dc=" + mDataConnection.getName();
-            logd(logStr);
-            mNetCapsLocalLog.log(logStr);
-            if (networkCapabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)) {
-                // only log metrics for DataConnection with NET_CAPABILITY_INTERNET
-                if (mNetworkCapabilities == null
-                        || networkCapabilities.hasCapability(
-                                NetworkCapabilities.NET_CAPABILITY_TEMPORARILY_NOT_METERED)
-                        != mNetworkCapabilities.hasCapability(
-                                NetworkCapabilities.NET_CAPABILITY_TEMPORARILY_NOT_METERED)) {
-                    TelephonyMetrics.getInstance().writeNetworkCapabilitiesChangedEvent(
-                            mPhone.getPhoneId(), networkCapabilities);
-                }
+        if (networkCapabilities.equals(mNetworkCapabilities)) {
+            onUpdateSuppressed();
+            return;
+        }
+
+        String logStr = "Changed from " + mNetworkCapabilities + " to "
+                + networkCapabilities + ", Data RAT="
+                + mPhone.getServiceState().getRilDataRadioTechnology()
+                + ", dc=" + mDataConnection.getName();
+        logd(logStr);
+        mNetCapsLocalLog.log(logStr);
+        if (networkCapabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)) {
+            // only log metrics for DataConnection with NET_CAPABILITY_INTERNET
+            if (mNetworkCapabilities == null
+                    || networkCapabilities.hasCapability(
+                            NetworkCapabilities.NET_CAPABILITY_TEMPORARILY_NOT_METERED)
+                    != mNetworkCapabilities.hasCapability(
+                            NetworkCapabilities.NET_CAPABILITY_TEMPORARILY_NOT_METERED)) {
+                TelephonyMetrics.getInstance().writeNetworkCapabilitiesChangedEvent(
+                        mPhone.getPhoneId(), networkCapabilities);
             }
-            mNetworkCapabilities = networkCapabilities;
         }
+        mNetworkCapabilities = networkCapabilities;
         sendNetworkCapabilities(networkCapabilities);
     }
 
     /**
-     * Set the link properties
+     * Set the link properties. The update is not sent to connectivity service if the link
+     * properties are identical to the ones sent last time.
      *
      * @param linkProperties The link properties
      * @param dc The data connection that invokes this method.
@@ -331,9 +357,42 @@ public class DcNetworkAgent extends NetworkAgent {
         if (!isOwned(dc, "sendLinkProperties")) return;
 
         sInterfaceNames.put(mId, dc.getLinkProperties().getInterfaceName());
+        if (linkProperties.equals(mLinkProperties)) {
+            onUpdateSuppressed();
+            return;
+        }
+        // Keep a copy since the data connection may modify its link properties in place.
+        mLinkProperties = new LinkProperties(linkProperties);
         sendLinkProperties(linkProperties);
     }
 
+    /**
+     * Count an update that was not sent because nothing changed. The count is logged once per
+     * {@link #SUPPRESSED_UPDATES_WINDOW_MS}.
+     */
+    private void onUpdateSuppressed() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - mSuppressedUpdatesWindowStartMs >= SUPPRESSED_UPDATES_WINDOW_MS) {
+            if (mSuppressedUpdates > 0) {
+                mNetCapsLocalLog.log("Suppressed " + mSuppressedUpdates
+                        + " unchanged updates in the last window");
+            }
+            mLastWindowSuppressedUpdates = mSuppressedUpdates;
+            mSuppressedUpdates = 0;
+            mSuppressedUpdatesWindowStartMs = now;
+        }
+        mSuppressedUpdates++;
+        mTotalSuppressedUpdates++;
+    }
+
+    /**
+     * @return The total number of unchanged updates not sent to connectivity service.
+     */
+    @VisibleForTesting
+    public synchronized long getTotalSuppressedUpdates() {
+        return mTotalSuppressedUpdates;
+    }
+
     /**
      * Set the network score.
      *
@@ -445,6 +504,12 @@ public class DcNetworkAgent extends NetworkAgent {
         IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, "  ");
         pw.println(toString());
         pw.increaseIndent();
+        synchronized (this) {
+            pw.println("Suppressed unchanged updates: current window=" + mSuppressedUpdates
+                    + ", last window=" + mLastWindowSuppressedUpdates + ", total="
+                    + mTotalSuppressedUpdates + ", window="
+                    + SUPPRESSED_UPDATES_WINDOW_MS + "ms");
+        }
         pw.println("Net caps logs:");
         mNetCapsLocalLog.dump(fd, pw, args);
         pw.decreaseIndent();
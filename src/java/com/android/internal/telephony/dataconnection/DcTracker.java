@@ -731,6 +731,8 @@ public class DcTracker extends Handler {
 
     private final DataThrottler mDataThrottler;
 
+    private final DataBringUpScheduler mBringUpScheduler;
+
     private final ThrottleStatusChangedCallback mThrottleStatusCallback;
 
     /**
@@ -757,6 +759,7 @@ public class DcTracker extends Handler {
         mTransportType = transportType;
         mDataServiceManager = new DataServiceManager(phone, transportType, tagSuffix);
         mDataThrottler = new DataThrottler(mPhone, transportType);
+        mBringUpScheduler = new DataBringUpScheduler(mPhone, transportType, mLogTag);
 
         mResolver = mPhone.getContext().getContentResolver();
         mAlarmManager =
@@ -825,6 +828,7 @@ public class DcTracker extends Handler {
         mTransportType = 0;
         mDataServiceManager = null;
         mDataThrottler = null;
+        mBringUpScheduler = null;
         mThrottleStatusCallback = null;
     }
 
@@ -901,6 +905,7 @@ public class DcTracker extends Handler {
 
         mNetworkPolicyManager.unregisterSubscriptionCallback(mSubscriptionCallback);
         mDcTesterFailBringUpAll.dispose();
+        mBringUpScheduler.dispose();
 
         mPhone.getContext().getContentResolver().unregisterContentObserver(mApnObserver);
         mApnContexts.clear();
@@ -1310,6 +1315,7 @@ public class DcTracker extends Handler {
         if (mAutoAttachOnCreationConfig) {
             mAutoAttachEnabled.set(true);
         }
+        mBringUpScheduler.onDataAttached();
         setupDataOnAllConnectableApns(Phone.REASON_DATA_ATTACHED, RetryFailures.ALWAYS);
     }
 
@@ -1590,9 +1596,82 @@ public class DcTracker extends Handler {
             }
         }
         if (apnContext.isConnectable()) {
-            log("isConnectable() call trySetupData");
             apnContext.setReason(reason);
-            trySetupData(apnContext, REQUEST_TYPE_NORMAL, null);
+            log("isConnectable() call trySetupData");
+            trySetupDataOrDefer(apnContext, REQUEST_TYPE_NORMAL, null);
+        }
+    }
+
+    /**
+     * Set up data for the APN context unless the carrier limit of concurrent bring-ups is reached.
+     * A deferred APN context is brought up by {@link #setupDeferredApnContexts()} once an earlier
+     * bring-up completes. Handovers and emergency bring-ups are never deferred.
+     */
+    private void trySetupDataOrDefer(ApnContext apnContext, @RequestNetworkType int requestType,
+            @Nullable Message onHandoverCompleteMsg) {
+        if (requestType == REQUEST_TYPE_NORMAL
+                && apnContext.getApnTypeBitmask() != ApnSetting.TYPE_EMERGENCY
+                && mBringUpScheduler.deferIfNeeded(apnContext, getInFlightBringUpCount())) {
+            apnContext.requestLog("trySetupDataOrDefer: bring-up deferred, too many bring-ups in"
+                    + " flight");
+            return;
+        }
+        trySetupData(apnContext, requestType, onHandoverCompleteMsg);
+    }
+
+    /**
+     * @return The number of data connections currently being brought up. A bring-up is in flight
+     * from the setup request, when its APN contexts are connecting but the data connection may not
+     * have processed the request yet, until the data connection leaves the activating state. APN
+     * contexts sharing the same data connection are counted once.
+     */
+    private int getInFlightBringUpCount() {
+        int count = 0;
+        for (DataConnection dataConnection : mDataConnections.values()) {
+            if (dataConnection.isActivating()) {
+                count++;
+            }
+        }
+        // Connecting APN contexts whose data connection is not activating yet. An APN context is
+        // only counted if no higher priority one shares its data connection.
+        for (int i = 0; i < mPrioritySortedApnContexts.size(); i++) {
+            DataConnection dataConnection = getPendingBringUpDataConnection(
+                    mPrioritySortedApnContexts.get(i));
+            if (dataConnection == null) continue;
+            boolean counted = false;
+            for (int j = 0; j < i && !counted; j++) {
+                counted = getPendingBringUpDataConnection(mPrioritySortedApnContexts.get(j))
+                        == dataConnection;
+            }
+            if (!counted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The data connection of the connecting APN context if the data connection has not
+     * started activating yet, {@code null} otherwise.
+     */
+    private @Nullable DataConnection getPendingBringUpDataConnection(ApnContext apnContext) {
+        DataConnection dataConnection = apnContext.getDataConnection();
+        if (apnContext.getState() != DctConstants.State.CONNECTING || dataConnection == null
+                || dataConnection.isActivating()) {
+            return null;
+        }
+        return dataConnection;
+    }
+
+    /**
+     * Bring up the deferred APN contexts, in priority order, while bring-up slots are available.
+     */
+    private void setupDeferredApnContexts() {
+        ApnContext apnContext;
+        while ((apnContext = mBringUpScheduler.pollDeferredApnContext(
+                getInFlightBringUpCount())) != null) {
+            setupDataOnConnectableApn(apnContext, apnContext.getReason(),
+                    RetryFailures.ONLY_ON_CHANGE);
         }
     }
 
@@ -2529,6 +2608,7 @@ public class DcTracker extends Handler {
         }
 
         readConfiguration();
+        mBringUpScheduler.onCarrierConfigChanged();
 
         if (mSimState == TelephonyManager.SIM_STATE_LOADED) {
             setDefaultDataRoamingEnabled();
@@ -2822,7 +2902,7 @@ public class DcTracker extends Handler {
         apnContext.resetErrorCodeRetries();
 
         if (mConfigReady || apnContext.getApnTypeBitmask() == ApnSetting.TYPE_EMERGENCY) {
-            trySetupData(apnContext, requestType, onHandoverCompleteMsg);
+            trySetupDataOrDefer(apnContext, requestType, onHandoverCompleteMsg);
         } else {
             log("onEnableApn: config not ready yet.");
         }
@@ -2872,6 +2952,7 @@ public class DcTracker extends Handler {
         }
 
         apnContext.setEnabled(false);
+        mBringUpScheduler.removeDeferredApnContext(apnContext);
         if (cleanup) {
             cleanUpConnectionInternal(true, releaseType, apnContext);
         }
@@ -3045,6 +3126,7 @@ public class DcTracker extends Handler {
 
         // Clear auto attach as modem is expected to do a new attach
         mAutoAttachEnabled.set(false);
+        mBringUpScheduler.clearDeferredApnContexts();
 
         if (mPhone.getSimulatedRadioControl() != null) {
             // Assume data is connected on the simulator
@@ -3161,6 +3243,7 @@ public class DcTracker extends Handler {
 
                 // A connection is setup
                 apnContext.setState(DctConstants.State.CONNECTED);
+                mBringUpScheduler.onApnConnected(apnContext);
 
                 checkDataRoamingStatus(false);
 
@@ -3900,7 +3983,7 @@ public class DcTracker extends Handler {
                     apnContext = mApnContextsByType.get(ApnSetting.TYPE_DEFAULT);
                     if (apnContext != null) {
                         apnContext.setReason(Phone.REASON_PS_RESTRICT_ENABLED);
-                        trySetupData(apnContext, REQUEST_TYPE_NORMAL, null);
+                        trySetupDataOrDefer(apnContext, REQUEST_TYPE_NORMAL, null);
                     } else {
                         loge("**** Default ApnContext not found ****");
                         if (TelephonyUtils.IS_DEBUGGABLE) {
@@ -3913,7 +3996,7 @@ public class DcTracker extends Handler {
             case DctConstants.EVENT_TRY_SETUP_DATA:
                 apnContext = (ApnContext) msg.obj;
                 requestType = msg.arg1;
-                trySetupData(apnContext, requestType, null);
+                trySetupDataOrDefer(apnContext, requestType, null);
                 break;
             case DctConstants.EVENT_CLEAN_UP_CONNECTION:
                 if (DBG) log("EVENT_CLEAN_UP_CONNECTION");
@@ -4015,6 +4098,7 @@ public class DcTracker extends Handler {
                     loge("EVENT_DATA_SETUP_COMPLETE: Dropped the event because generation "
                             + "did not match.");
                 }
+                setupDeferredApnContexts();
                 break;
 
             case DctConstants.EVENT_DATA_SETUP_COMPLETE_ERROR:
@@ -4029,6 +4113,7 @@ public class DcTracker extends Handler {
                     loge("EVENT_DATA_SETUP_COMPLETE_ERROR: Dropped the event because generation "
                             + "did not match.");
                 }
+                setupDeferredApnContexts();
                 break;
 
             case DctConstants.EVENT_DISCONNECT_DONE:
@@ -4043,6 +4128,7 @@ public class DcTracker extends Handler {
                     loge("EVENT_DISCONNECT_DONE: Dropped the event because generation "
                             + "did not match.");
                 }
+                setupDeferredApnContexts();
                 break;
 
             case DctConstants.EVENT_VOICE_CALL_STARTED:
@@ -4661,6 +4747,8 @@ public class DcTracker extends Handler {
         pw.println(" mApnSettingsInitializationLog= ");
         mApnSettingsInitializationLog.dump(fd, pw, args);
         pw.flush();
+        mBringUpScheduler.dump(fd, pw, args);
+        pw.flush();
         pw.println(" ***************************************");
         DcController dcc = mDcc;
         if (dcc != null) {
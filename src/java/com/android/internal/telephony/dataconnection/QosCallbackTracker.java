@@ -32,9 +32,12 @@ import com.android.telephony.Rlog;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Matches filters with qos sessions and send corresponding available and lost events.
@@ -51,6 +54,11 @@ public class QosCallbackTracker {
     // We perform an exact match on the address
     @NonNull private final Map<Integer, IFilter> mCallbacksToFilter;
 
+    // Callback ids whose filter matches each qos session, keyed by session id. A session update
+    // only evaluates the filters again when the bearer filters of the session changed; otherwise
+    // it touches just the callbacks in this index.
+    @NonNull private final Map<Integer, Set<Integer>> mSessionToMatchingCallbacks;
+
     /**
      * Construct a new tracker
      * @param dcNetworkAgent the network agent to send events to
@@ -58,6 +66,7 @@ public class QosCallbackTracker {
     public QosCallbackTracker(@NonNull final DcNetworkAgent dcNetworkAgent) {
         mQosBearerSessions = new HashMap<>();
         mCallbacksToFilter = new HashMap<>();
+        mSessionToMatchingCallbacks = new HashMap<>();
         mDcNetworkAgent = dcNetworkAgent;
         mTag = "QosCallbackTracker" + "-" + mDcNetworkAgent.getNetwork().getNetId();
     }
@@ -71,11 +80,13 @@ public class QosCallbackTracker {
     public void addFilter(final int callbackId, final IFilter filter) {
         logd("addFilter: callbackId=" + callbackId);
         // Called from mDcNetworkAgent
+        removeFromIndex(callbackId);
         mCallbacksToFilter.put(callbackId, filter);
 
         //On first change. Check all sessions and send.
         for (final QosBearerSession session : mQosBearerSessions.values()) {
             if (doFiltersMatch(session, filter)) {
+                mSessionToMatchingCallbacks.get(session.getQosBearerSessionId()).add(callbackId);
                 sendSessionAvailable(callbackId, session, filter);
             }
         }
@@ -89,6 +100,13 @@ public class QosCallbackTracker {
     public void removeFilter(final int callbackId) {
         logd("removeFilter: callbackId=" + callbackId);
         mCallbacksToFilter.remove(callbackId);
+        removeFromIndex(callbackId);
+    }
+
+    private void removeFromIndex(final int callbackId) {
+        for (final Set<Integer> matchingCallbacks : mSessionToMatchingCallbacks.values()) {
+            matchingCallbacks.remove(callbackId);
+        }
     }
 
     /**
@@ -98,60 +116,64 @@ public class QosCallbackTracker {
      */
     public void updateSessions(@NonNull final List<QosBearerSession> sessions) {
         logd("updateSessions: sessions size=" + sessions.size());
-        final List<QosBearerSession> sessionsToAdd = new ArrayList<>();
         final Map<Integer, QosBearerSession> incomingSessions = new HashMap<>();
+        final Map<Integer, Set<Integer>> incomingMatches = new HashMap<>();
         for (final QosBearerSession incomingSession : sessions) {
-            incomingSessions.put(incomingSession.getQosBearerSessionId(), incomingSession);
+            final int sessionId = incomingSession.getQosBearerSessionId();
+            incomingSessions.put(sessionId, incomingSession);
 
-            final QosBearerSession existingSession = mQosBearerSessions.get(
-                    incomingSession.getQosBearerSessionId());
-            for (final int callbackId : mCallbacksToFilter.keySet()) {
-                final IFilter filter = mCallbacksToFilter.get(callbackId);
+            final QosBearerSession existingSession = mQosBearerSessions.get(sessionId);
+            final Set<Integer> existingMatches = existingSession != null
+                    ? mSessionToMatchingCallbacks.get(sessionId) : Collections.emptySet();
+            final boolean qosChanged = existingSession != null
+                    && !incomingSession.getQos().equals(existingSession.getQos());
 
-                final boolean incomingSessionMatch = doFiltersMatch(incomingSession, filter);
-                final boolean existingSessionMatch =
-                        existingSession != null && doFiltersMatch(existingSession, filter);
-
-                if (!existingSessionMatch && incomingSessionMatch) {
-                    // The filter matches now and didn't match earlier
-                    sendSessionAvailable(callbackId, incomingSession, filter);
+            if (existingSession != null && incomingSession.getQosBearerFilterList().equals(
+                    existingSession.getQosBearerFilterList())) {
+                // The same filters match the same callbacks, but if the qos changed, the
+                // callbacks still need to be notified
+                if (qosChanged) {
+                    for (final int callbackId : existingMatches) {
+                        sendSessionAvailable(callbackId, incomingSession,
+                                mCallbacksToFilter.get(callbackId));
+                    }
                 }
+                incomingMatches.put(sessionId, existingMatches);
+                continue;
+            }
 
-                if (existingSessionMatch && incomingSessionMatch) {
-                    // The same sessions matches the same filter, but if the qos changed,
-                    // the callback still needs to be notified
-                    if (!incomingSession.getQos().equals(existingSession.getQos())) {
-                        sendSessionAvailable(callbackId, incomingSession, filter);
-                    }
+            final Set<Integer> matches = new HashSet<>();
+            for (final Map.Entry<Integer, IFilter> entry : mCallbacksToFilter.entrySet()) {
+                final int callbackId = entry.getKey();
+                final IFilter filter = entry.getValue();
+                if (!doFiltersMatch(incomingSession, filter)) {
+                    continue;
+                }
+                matches.add(callbackId);
+                if (!existingMatches.contains(callbackId) || qosChanged) {
+                    // The filter matches now and didn't match earlier, or the qos changed
+                    sendSessionAvailable(callbackId, incomingSession, filter);
                 }
             }
-            sessionsToAdd.add(incomingSession);
+            incomingMatches.put(sessionId, matches);
         }
 
-        final List<Integer> sessionsToRemove = new ArrayList<>();
         // Find sessions that no longer exist
         for (final QosBearerSession existingSession : mQosBearerSessions.values()) {
-            if (!incomingSessions.containsKey(existingSession.getQosBearerSessionId())) {
-                for (final int callbackId : mCallbacksToFilter.keySet()) {
-                    final IFilter filter = mCallbacksToFilter.get(callbackId);
-                    // The filter matches which means it was previously available, and now is lost
-                    if (doFiltersMatch(existingSession, filter)) {
-                        sendSessionLost(callbackId, existingSession);
-                    }
+            final int sessionId = existingSession.getQosBearerSessionId();
+            if (!incomingSessions.containsKey(sessionId)) {
+                // The filters that matched were previously available, and now are lost
+                for (final int callbackId : mSessionToMatchingCallbacks.get(sessionId)) {
+                    sendSessionLost(callbackId, existingSession);
                 }
-                sessionsToRemove.add(existingSession.getQosBearerSessionId());
             }
         }
 
-        // Add in the new or existing sessions with updated information
-        for (final QosBearerSession sessionToAdd : sessionsToAdd) {
-            mQosBearerSessions.put(sessionToAdd.getQosBearerSessionId(), sessionToAdd);
-        }
-
-        // Remove any old sessions
-        for (final int sessionToRemove : sessionsToRemove) {
-            mQosBearerSessions.remove(sessionToRemove);
-        }
+        // Replace the sessions with the updated information
+        mQosBearerSessions.clear();
+        mQosBearerSessions.putAll(incomingSessions);
+        mSessionToMatchingCallbacks.clear();
+        mSessionToMatchingCallbacks.putAll(incomingMatches);
     }
 
     private boolean doFiltersMatch(
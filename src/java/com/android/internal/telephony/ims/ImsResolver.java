@@ -34,6 +34,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.PersistableBundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.telephony.CarrierConfigManager;
@@ -59,6 +60,7 @@ import com.android.internal.os.SomeArgs;
 import com.android.internal.telephony.PhoneConfigurationManager;
 import com.android.internal.util.IndentingPrintWriter;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -129,6 +131,9 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
     // Delay between dynamic ImsService queries.
     private static final int DELAY_DYNAMIC_QUERY_MS = 5000;
 
+    // Name of the file in device protected storage which persists dynamically queried features.
+    private static final String FEATURE_CACHE_FILE_NAME = "ims_service_features";
+
     private static ImsResolver sInstance;
 
     /**
@@ -172,6 +177,11 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
         // Determines if features were created from metadata in the manifest or through dynamic
         // query.
         public boolean featureFromMetadata = true;
+        // True if the features of a dynamic query ImsService were loaded from the persisted
+        // cache and not verified by a query yet.
+        public boolean featureFromPersistedCache = false;
+        // Version code of the package of the ImsService.
+        public long versionCode = ImsServiceFeatureCache.VERSION_CODE_UNKNOWN;
         public ImsServiceControllerFactory controllerFactory;
 
         // Map slotId->Feature
@@ -227,6 +237,8 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                     + name
                     + ", featureFromMetadata="
                     + featureFromMetadata
+                    + ", featureFromPersistedCache="
+                    + featureFromPersistedCache
                     + ","
                     + printFeatures(mSupportedFeatures);
         }
@@ -440,6 +452,18 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
 
     private boolean mBootCompletedHandlerRan = false;
     private boolean mCarrierConfigReceived = false;
+    // True if the installed services cache was loaded while the user was unlocked, so it already
+    // includes the ImsServices which are not direct boot aware.
+    private boolean mCacheLoadedWhileUnlocked = false;
+    // True if a feature configuration calculation was deferred until the pending carrier config
+    // changes are handled. Only accessed on the handler.
+    private boolean mFeatureCalculationDeferred = false;
+
+    // Elapsed realtime of initialize, and time from there until each slot/feature was first
+    // bound. Locked on mBoundServicesLock.
+    private long mInitializeTimeMs;
+    private final Map<ImsFeatureConfiguration.FeatureSlotPair, Long> mTimeToBoundMs =
+            new ArrayMap<>();
 
     // Synchronize all events on a handler to ensure that the cache includes the most recent
     // version of the installed ImsServices.
@@ -459,7 +483,11 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                 if (!mBootCompletedHandlerRan) {
                     mBootCompletedHandlerRan = true;
                     mEventLog.log("handling BOOT_COMPLETE");
-                    if (mCarrierConfigReceived) {
+                    if (mCacheLoadedWhileUnlocked) {
+                        // The cache was loaded after unlock, querying PackageManager again would
+                        // not find any new services.
+                        mEventLog.log("boot complete - cache already up to date");
+                    } else if (mCarrierConfigReceived) {
                         mEventLog.log("boot complete - reeval");
                         // Re-evaluate bound services for all slots after requerying packagemanager
                         maybeAddedImsService(null /*packageName*/);
@@ -478,10 +506,11 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                 // ignore.
                 if (slotId >= mNumSlots) {
                     Log.w(TAG, "HANDLER_CONFIG_CHANGED for invalid slotid=" + slotId);
-                    break;
+                } else {
+                    mCarrierConfigReceived = true;
+                    carrierConfigChanged(slotId);
                 }
-                mCarrierConfigReceived = true;
-                carrierConfigChanged(slotId);
+                maybeRunDeferredFeatureCalculation();
                 break;
             }
             case HANDLER_START_DYNAMIC_FEATURE_QUERY: {
@@ -540,7 +569,8 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                 public void onError(ComponentName name) {
                     Log.w(TAG, "onError: " + name + "returned with an error result");
                     mEventLog.log("onError - dynamic query error for " + name);
-                    scheduleQueryForFeatures(name, DELAY_DYNAMIC_QUERY_MS);
+                    // Queries complete off of the handler, the cache is only accessed on it.
+                    mHandler.post(() -> scheduleQueryForFeatures(name, DELAY_DYNAMIC_QUERY_MS));
                 }
 
                 @Override
@@ -566,6 +596,9 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
     // Active ImsServiceControllers, which are bound to ImsServices.
     private final Map<ComponentName, ImsServiceController> mActiveControllers = new HashMap<>();
     private ImsServiceFeatureQueryManager mFeatureQueryManager;
+    // not locked, only accessed on a handler thread.
+    // Features of dynamic query ImsServices persisted across boots.
+    private ImsServiceFeatureCache mFeatureCache;
 
     public ImsResolver(Context context, String defaultMmTelPackageName,
             String defaultRcsPackageName, int numSlots, ImsFeatureBinderRepository repo) {
@@ -611,16 +644,32 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
         mDynamicQueryManagerFactory = m;
     }
 
+    @VisibleForTesting
+    public void setImsServiceFeatureCache(ImsServiceFeatureCache cache) {
+        mFeatureCache = cache;
+    }
+
     /**
      * Needs to be called after the constructor to kick off the process of binding to ImsServices.
      */
     public void initialize() {
         mEventLog.log("Initializing");
         Log.i(TAG, "Initializing cache.");
+        synchronized (mBoundServicesLock) {
+            mInitializeTimeMs = SystemClock.elapsedRealtime();
+        }
         PhoneConfigurationManager.registerForMultiSimConfigChange(mHandler,
                 HANDLER_MSIM_CONFIGURATION_CHANGE, null);
         mFeatureQueryManager = mDynamicQueryManagerFactory.create(mContext, mDynamicQueryListener);
+        if (mFeatureCache == null) {
+            // Device protected storage, ImsServices may be bound before the user is unlocked.
+            mFeatureCache = new ImsServiceFeatureCache(new File(
+                    mContext.createDeviceProtectedStorageContext().getFilesDir(),
+                    FEATURE_CACHE_FILE_NAME));
+        }
 
+        UserManager userManager = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
+        mCacheLoadedWhileUnlocked = userManager.isUserUnlocked();
         updateInstalledServicesCache();
 
         IntentFilter appChangedFilter = new IntentFilter();
@@ -632,8 +681,7 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
         mReceiverContext.registerReceiver(mConfigChangedReceiver, new IntentFilter(
                 CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED));
 
-        UserManager userManager = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
-        if (userManager.isUserUnlocked()) {
+        if (mCacheLoadedWhileUnlocked) {
             mHandler.obtainMessage(HANDLER_BOOT_COMPLETE, null).sendToTarget();
         } else {
             mReceiverContext.registerReceiver(mBootCompleted, new IntentFilter(
@@ -693,6 +741,10 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                     } else {
                         // Config will change when this query completes
                         scheduleQueryForFeatures(info);
+                        // Bind with the persisted features until then.
+                        if (info != null && info.featureFromPersistedCache) {
+                            hasConfigChanged = true;
+                        }
                     }
                 }
             }
@@ -1046,6 +1098,15 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                     + ImsFeature.FEATURE_LOG_MAP.get(feature) + " using package: "
                     + controller.getComponentName());
             services.put(feature, controller);
+            ImsFeatureConfiguration.FeatureSlotPair pair =
+                    new ImsFeatureConfiguration.FeatureSlotPair(slotId, feature);
+            if (!mTimeToBoundMs.containsKey(pair)) {
+                long timeToBoundMs = SystemClock.elapsedRealtime() - mInitializeTimeMs;
+                mTimeToBoundMs.put(pair, timeToBoundMs);
+                mEventLog.log("putImsController - [" + slotId + ", "
+                        + ImsFeature.FEATURE_LOG_MAP.get(feature) + "] first bound "
+                        + timeToBoundMs + " ms after initialize");
+            }
         }
     }
 
@@ -1088,6 +1149,8 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
             // features. Will only be one (if it exists), since it is a set.
             ImsServiceInfo match = getInfoByComponentName(mInstalledServicesCache, info.name);
             if (match != null) {
+                // Features reported from now on are persisted for the installed version.
+                match.versionCode = info.versionCode;
                 // for dynamic query the new "info" will have no supported features yet. Don't wipe
                 // out the cache for the existing features or update yet. Instead start a query
                 // for features dynamically.
@@ -1129,6 +1192,7 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
         ImsServiceInfo match = getInfoByPackageName(mInstalledServicesCache, packageName);
         if (match != null) {
             mInstalledServicesCache.remove(match.name);
+            mFeatureCache.remove(packageName);
             mEventLog.log("maybeRemovedImsService - removing ImsService: " + match);
             Log.i(TAG, "Removing ImsService: " + match.name);
             unbindImsService(match);
@@ -1358,6 +1422,10 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                 } else {
                     // Config will change when this query completes
                     scheduleQueryForFeatures(info);
+                    // Bind with the persisted features until then.
+                    if (info.featureFromPersistedCache) {
+                        requiresRecalc = true;
+                    }
                 }
             }
         }
@@ -1426,6 +1494,10 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                     + ", hasConfigChanged=" + hasConfigChanged);
             if (info == null || info.featureFromMetadata) {
                 hasConfigChanged = true;
+            } else if (info.featureFromPersistedCache) {
+                // Bind with the persisted features until the query completes.
+                scheduleQueryForFeatures(info);
+                hasConfigChanged = true;
             } else {
                 // Config will change when this query completes
                 scheduleQueryForFeatures(info);
@@ -1597,6 +1669,12 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
         sanitizeFeatureConfig(features);
         mEventLog.log("dynamicQueryComplete: for package " + name + ", features: "
                 + printFeatures(service.getSupportedFeatures()) + " -> " + printFeatures(features));
+        if (service.featureFromPersistedCache) {
+            service.featureFromPersistedCache = false;
+            mEventLog.log("dynamicQueryComplete: persisted features for " + name
+                    + (service.getSupportedFeatures().equals(features) ? " verified" : " changed"));
+        }
+        mFeatureCache.put(name, service.versionCode, features);
         // Add features to service
         service.replaceFeatures(features);
         // Wait until all queries have completed before changing the configuration to reduce churn.
@@ -1635,6 +1713,14 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
     // Calculate the new configuration for the bound ImsServices.
     // Should ONLY be called from the handler.
     private void calculateFeatureConfigurationChange() {
+        // The carrier configs of all slots are usually loaded together. Wait for the last one so
+        // that ImsServices are bound with the features of all slots at once, rather than bound
+        // for the first slot and then changed for each following one.
+        if (mHandler.hasMessages(HANDLER_CONFIG_CHANGED)) {
+            mFeatureCalculationDeferred = true;
+            return;
+        }
+        mFeatureCalculationDeferred = false;
         for (ImsServiceInfo info : mInstalledServicesCache.values()) {
             Set<ImsFeatureConfiguration.FeatureSlotPair> features = calculateFeaturesToCreate(info);
             if (shouldFeaturesCauseBind(features)) {
@@ -1645,6 +1731,15 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
         }
     }
 
+    // Run a feature configuration calculation deferred by calculateFeatureConfigurationChange
+    // once no carrier config change is pending anymore. Called from the handler ONLY.
+    private void maybeRunDeferredFeatureCalculation() {
+        if (mFeatureCalculationDeferred && !mHandler.hasMessages(HANDLER_CONFIG_CHANGED)) {
+            mEventLog.log("running feature calculation deferred for carrier config changes");
+            calculateFeatureConfigurationChange();
+        }
+    }
+
     private static String printFeatures(Set<ImsFeatureConfiguration.FeatureSlotPair> features) {
         StringBuilder featureString = new StringBuilder();
         featureString.append(" features: [");
@@ -1707,6 +1802,9 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                 ImsServiceInfo info = new ImsServiceInfo();
                 info.name = new ComponentName(serviceInfo.packageName, serviceInfo.name);
                 info.controllerFactory = controllerFactory;
+                if (serviceInfo.applicationInfo != null) {
+                    info.versionCode = serviceInfo.applicationInfo.longVersionCode;
+                }
 
                 // we will allow the manifest method of declaring manifest features in two cases:
                 // 1) it is the device overlay "default" ImsService, where the features do not
@@ -1740,8 +1838,20 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                     // We are a carrier service and not using the compat version of ImsService.
                     info.featureFromMetadata = false;
                 }
+                if (!info.featureFromMetadata) {
+                    // Start with the features this version reported before, if known. They are
+                    // verified by the dynamic query.
+                    Set<ImsFeatureConfiguration.FeatureSlotPair> cachedFeatures =
+                            mFeatureCache.get(info.name, info.versionCode);
+                    if (cachedFeatures != null) {
+                        sanitizeFeatureConfig(cachedFeatures);
+                        info.replaceFeatures(cachedFeatures);
+                        info.featureFromPersistedCache = true;
+                    }
+                }
                 Log.i(TAG, "service name: " + info.name + ", manifest query: "
-                        + info.featureFromMetadata);
+                        + info.featureFromMetadata + ", persisted features: "
+                        + info.featureFromPersistedCache);
                 // Check manifest permission to be sure that the service declares the correct
                 // permissions. Overridden if the METADATA_OVERRIDE_PERM_CHECK metadata is set to
                 // true.
@@ -1806,6 +1916,18 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
             pw.decreaseIndent();
         }
         pw.decreaseIndent();
+        pw.println("Persisted features: " + mFeatureCache);
+        pw.println("Time to bound after initialize:");
+        pw.increaseIndent();
+        synchronized (mBoundServicesLock) {
+            for (Map.Entry<ImsFeatureConfiguration.FeatureSlotPair, Long> e
+                    : mTimeToBoundMs.entrySet()) {
+                pw.println("[" + e.getKey().slotId + ", "
+                        + ImsFeature.FEATURE_LOG_MAP.get(e.getKey().featureType) + "]: "
+                        + e.getValue() + " ms");
+            }
+        }
+        pw.decreaseIndent();
         pw.println("Connection Repository Log:");
         pw.increaseIndent();
         mRepo.dump(pw);
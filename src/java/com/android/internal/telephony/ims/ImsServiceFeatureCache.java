@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.ims;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ComponentName;
+import android.telephony.ims.feature.ImsFeature;
+import android.telephony.ims.stub.ImsFeatureConfiguration;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persists the features that ImsServices reported through the dynamic feature query, so that they
+ * can be bound with those features at boot without waiting for the query to complete first.
+ *
+ * Entries are keyed by the ImsService component and the version code of its package, an update of
+ * the package invalidates its entry. The file is versioned, a file of another version is ignored
+ * and rewritten on the next change.
+ *
+ * Not thread safe, only accessed on the ImsResolver handler.
+ */
+public class ImsServiceFeatureCache {
+
+    private static final String TAG = "ImsServiceFeatureCache";
+
+    /** The version code of an ImsService whose package version is not known. */
+    public static final long VERSION_CODE_UNKNOWN = Long.MIN_VALUE;
+
+    // Increment when the file format changes.
+    private static final int FILE_VERSION = 1;
+    // There are usually only a device and a carrier ImsService.
+    private static final int MAX_ENTRIES = 8;
+
+    private static class Entry {
+        final long mVersionCode;
+        final Set<ImsFeatureConfiguration.FeatureSlotPair> mFeatures;
+
+        Entry(long versionCode, Set<ImsFeatureConfiguration.FeatureSlotPair> features) {
+            mVersionCode = versionCode;
+            mFeatures = features;
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final Map<ComponentName, Entry> mEntries = new ArrayMap<>();
+    private boolean mIsLoaded = false;
+
+    private int mHits;
+    private int mMisses;
+    private int mWrites;
+
+    /**
+     * @param file The file to persist the features to.
+     */
+    public ImsServiceFeatureCache(@NonNull File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * @param name The ImsService.
+     * @param versionCode The version code of the package of the ImsService.
+     * @return A copy of the features last reported by this version of the ImsService, or
+     *         {@code null} if none are cached.
+     */
+    public @Nullable Set<ImsFeatureConfiguration.FeatureSlotPair> get(@NonNull ComponentName name,
+            long versionCode) {
+        load();
+        Entry entry = mEntries.get(name);
+        if (versionCode == VERSION_CODE_UNKNOWN || entry == null
+                || entry.mVersionCode != versionCode) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return new HashSet<>(entry.mFeatures);
+    }
+
+    /**
+     * Cache the features reported by an ImsService. Written through to the file if they changed.
+     *
+     * @param name The ImsService.
+     * @param versionCode The version code of the package of the ImsService. Nothing is cached if
+     *         it is {@link #VERSION_CODE_UNKNOWN}.
+     * @param features The features the ImsService reported.
+     */
+    public void put(@NonNull ComponentName name, long versionCode,
+            @NonNull Set<ImsFeatureConfiguration.FeatureSlotPair> features) {
+        if (versionCode == VERSION_CODE_UNKNOWN) {
+            return;
+        }
+        load();
+        Entry entry = mEntries.get(name);
+        if (entry != null && entry.mVersionCode == versionCode
+                && entry.mFeatures.equals(features)) {
+            return;
+        }
+        mEntries.remove(name);
+        while (mEntries.size() >= MAX_ENTRIES) {
+            // The entries of ImsServices which are still installed are rewritten after their next
+            // query, so it does not matter much which one is dropped.
+            mEntries.remove(mEntries.keySet().iterator().next());
+        }
+        mEntries.put(name, new Entry(versionCode, new HashSet<>(features)));
+        write();
+    }
+
+    /**
+     * Remove the entries of the ImsServices of a package.
+     *
+     * @param packageName The package which was removed.
+     */
+    public void remove(@NonNull String packageName) {
+        load();
+        if (mEntries.keySet().removeIf(name -> name.getPackageName().equals(packageName))) {
+            write();
+        }
+    }
+
+    private void load() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+        try (DataInputStream in = new DataInputStream(mFile.openRead())) {
+            if (in.readInt() != FILE_VERSION) {
+                Log.i(TAG, "load: ignoring file of another version");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ComponentName name = new ComponentName(in.readUTF(), in.readUTF());
+                long versionCode = in.readLong();
+                int featureCount = in.readInt();
+                Set<ImsFeatureConfiguration.FeatureSlotPair> features = new HashSet<>();
+                for (int j = 0; j < featureCount; j++) {
+                    int slotId = in.readInt();
+                    int featureType = in.readInt();
+                    if (featureType < ImsFeature.FEATURE_EMERGENCY_MMTEL
+                            || featureType >= ImsFeature.FEATURE_MAX) {
+                        throw new IOException("invalid feature " + featureType);
+                    }
+                    features.add(new ImsFeatureConfiguration.FeatureSlotPair(slotId,
+                            featureType));
+                }
+                mEntries.put(name, new Entry(versionCode, features));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet.
+        } catch (IOException e) {
+            Log.w(TAG, "load: unable to read the cache, ignoring it: " + e);
+            mEntries.clear();
+        }
+    }
+
+    private void write() {
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(FILE_VERSION);
+            data.writeInt(mEntries.size());
+            for (Map.Entry<ComponentName, Entry> e : mEntries.entrySet()) {
+                data.writeUTF(e.getKey().getPackageName());
+                data.writeUTF(e.getKey().getClassName());
+                data.writeLong(e.getValue().mVersionCode);
+                data.writeInt(e.getValue().mFeatures.size());
+                for (ImsFeatureConfiguration.FeatureSlotPair feature : e.getValue().mFeatures) {
+                    data.writeInt(feature.slotId);
+                    data.writeInt(feature.featureType);
+                }
+            }
+            data.flush();
+            mFile.finishWrite(out);
+            mWrites++;
+        } catch (IOException e) {
+            Log.w(TAG, "write: unable to write the cache: " + e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    /** @return The number of ImsServices with cached features. */
+    @VisibleForTesting
+    public int size() {
+        load();
+        return mEntries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ImsServiceFeatureCache{entries=" + mEntries.size() + " hits=" + mHits
+                + " misses=" + mMisses + " writes=" + mWrites + "}";
+    }
+}
@@ -29,10 +29,18 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages the querying of multiple ImsServices asynchronously in order to retrieve the ImsFeatures
  * they support.
+ *
+ * The queries of different ImsServices run concurrently. The query itself is a blocking binder
+ * call, so it runs on a shared executor rather than on the thread which receives the service
+ * connection callbacks.
  */
 
 public class ImsServiceFeatureQueryManager {
@@ -46,6 +54,9 @@ public class ImsServiceFeatureQueryManager {
         // Track the status of whether or not the Service has died in case we need to permanently
         // unbind (see onNullBinding below).
         private boolean mIsServiceConnectionDead = false;
+        // Whether the query was cleaned up already. A query may finish on the executor while the
+        // binding dies, only the first one to clean up reports the result. Locked on mLock.
+        private boolean mIsCleanedUp = false;
 
 
         ImsServiceFeatureQuery(ComponentName name, String intentFilter) {
@@ -74,11 +85,13 @@ public class ImsServiceFeatureQueryManager {
         public void onServiceConnected(ComponentName name, IBinder service) {
             Log.i(LOG_TAG, "onServiceConnected for component: " + name);
             if (service != null) {
-                queryImsFeatures(IImsServiceController.Stub.asInterface(service));
+                IImsServiceController controller = IImsServiceController.Stub.asInterface(service);
+                sQueryExecutor.execute(() -> queryImsFeatures(controller));
             } else {
                 Log.w(LOG_TAG, "onServiceConnected: " + name + " binder null.");
-                cleanup();
-                mListener.onPermanentError(name);
+                if (cleanup()) {
+                    mListener.onPermanentError(name);
+                }
             }
         }
 
@@ -91,9 +104,10 @@ public class ImsServiceFeatureQueryManager {
         public void onBindingDied(ComponentName name) {
             mIsServiceConnectionDead = true;
             Log.w(LOG_TAG, "onBindingDied: " + name);
-            cleanup();
-            // retry again!
-            mListener.onError(name);
+            if (cleanup()) {
+                // retry again!
+                mListener.onError(name);
+            }
         }
 
         @Override
@@ -102,8 +116,9 @@ public class ImsServiceFeatureQueryManager {
             // onNullBinding will happen after onBindingDied. In this case, we should not
             // permanently unbind and instead let the automatic rebind occur.
             if (mIsServiceConnectionDead) return;
-            cleanup();
-            mListener.onPermanentError(name);
+            if (cleanup()) {
+                mListener.onPermanentError(name);
+            }
         }
 
         private void queryImsFeatures(IImsServiceController controller) {
@@ -112,9 +127,10 @@ public class ImsServiceFeatureQueryManager {
                 config = controller.querySupportedImsFeatures();
             } catch (Exception e) {
                 Log.w(LOG_TAG, "queryImsFeatures - error: " + e);
-                cleanup();
-                // Retry again!
-                mListener.onError(mName);
+                if (cleanup()) {
+                    // Retry again!
+                    mListener.onError(mName);
+                }
                 return;
             }
             Set<ImsFeatureConfiguration.FeatureSlotPair> servicePairs;
@@ -126,15 +142,25 @@ public class ImsServiceFeatureQueryManager {
                 servicePairs = config.getServiceFeatures();
             }
             // Complete, remove from active queries and notify.
-            cleanup();
-            mListener.onComplete(mName, servicePairs);
+            if (cleanup()) {
+                mListener.onComplete(mName, servicePairs);
+            }
         }
 
-        private void cleanup() {
-            mContext.unbindService(this);
+        /**
+         * Unbind and remove the query from the active queries.
+         * @return true if the query was cleaned up by this call, false if it was already.
+         */
+        private boolean cleanup() {
             synchronized (mLock) {
-                mActiveQueries.remove(mName);
+                if (mIsCleanedUp) {
+                    return false;
+                }
+                mIsCleanedUp = true;
+                mActiveQueries.remove(mName, this);
             }
+            mContext.unbindService(this);
+            return true;
         }
     }
 
@@ -157,6 +183,22 @@ public class ImsServiceFeatureQueryManager {
         void onPermanentError(ComponentName name);
     }
 
+    // There are usually only a device and a carrier ImsService, more queries wait for a thread.
+    private static final int MAX_CONCURRENT_QUERIES = 4;
+    private static final long QUERY_THREAD_KEEP_ALIVE_MS = 10 * 1000;
+    private static final AtomicInteger sQueryThreadCount = new AtomicInteger();
+
+    // Runs the feature queries, so that several ImsServices can be queried at the same time.
+    private static final ThreadPoolExecutor sQueryExecutor = new ThreadPoolExecutor(
+            MAX_CONCURRENT_QUERIES, MAX_CONCURRENT_QUERIES, QUERY_THREAD_KEEP_ALIVE_MS,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+            r -> new Thread(r, "ImsFeatureQuery-" + sQueryThreadCount.incrementAndGet()));
+
+    static {
+        // Queries are rare, don't keep the threads around between them.
+        sQueryExecutor.allowCoreThreadTimeOut(true);
+    }
+
     // Maps an active ImsService query (by Package Name String) its query.
     private final Map<ComponentName, ImsServiceFeatureQuery> mActiveQueries = new HashMap<>();
     private final Context mContext;
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.imsphone;
+
+import android.annotation.NonNull;
+import android.net.Uri;
+import android.util.ArrayMap;
+
+import com.android.ims.internal.ConferenceParticipant;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Processes the conference event package (CEP) updates of one conference.
+ *
+ * Each update carries the full participant list. Participants are matched with the ones of the
+ * previous update by handle and endpoint, so that the connect time of a participant is only
+ * looked up until it is found, and is carried over to the new participant objects afterwards. An
+ * update which changes nothing compared to the previous one does not need to be forwarded.
+ *
+ * Not thread safe, updates of a conference are delivered on the IMS call listener thread.
+ */
+public class ConferenceEventProcessor {
+    /** Looks up the connect time of a participant and sets it on the participant. */
+    public interface ConnectTimeResolver {
+        /**
+         * @return {@code true} if the connect time was found. The lookup will then not be done
+         *         again for this participant.
+         */
+        boolean resolveConnectTime(@NonNull ConferenceParticipant participant);
+    }
+
+    private static class Entry {
+        int mState;
+        String mDisplayName;
+        int mPresentation;
+        boolean mConnectTimeResolved;
+        long mConnectTime;
+        long mConnectElapsedTime;
+        int mCallDirection;
+    }
+
+    /** Participants of the last update by key. */
+    private Map<String, Entry> mEntries = new ArrayMap<>();
+
+    private long mUpdates;
+    private long mUnchangedUpdates;
+    private long mConnectTimeLookups;
+    private int mLastChangedCount;
+
+    /**
+     * Process a CEP update. Sets the connect time of the participants.
+     *
+     * @param participants The participants of the update.
+     * @param resolver Looks up the connect time of participants it isn't known for yet.
+     * @return {@code true} if the participants changed since the previous update.
+     */
+    public boolean process(@NonNull List<ConferenceParticipant> participants,
+            @NonNull ConnectTimeResolver resolver) {
+        Map<String, Entry> entries = new ArrayMap<>(participants.size());
+        int changed = 0;
+        for (ConferenceParticipant participant : participants) {
+            String key = getKey(participant.getHandle(), participant.getEndpoint());
+            // Keep participants sharing the same handle and endpoint apart.
+            for (int i = 1; entries.containsKey(key); i++) {
+                key = getKey(participant.getHandle(), participant.getEndpoint()) + "#" + i;
+            }
+
+            Entry entry = mEntries.remove(key);
+            boolean participantChanged = false;
+            if (entry == null) {
+                entry = new Entry();
+                participantChanged = true;
+            } else if (entry.mState != participant.getState()
+                    || entry.mPresentation != participant.getParticipantPresentation()
+                    || !Objects.equals(entry.mDisplayName, participant.getDisplayName())) {
+                participantChanged = true;
+            }
+            entry.mState = participant.getState();
+            entry.mPresentation = participant.getParticipantPresentation();
+            entry.mDisplayName = participant.getDisplayName();
+
+            if (entry.mConnectTimeResolved) {
+                participant.setConnectTime(entry.mConnectTime);
+                participant.setConnectElapsedTime(entry.mConnectElapsedTime);
+                participant.setCallDirection(entry.mCallDirection);
+            } else {
+                mConnectTimeLookups++;
+                if (resolver.resolveConnectTime(participant)) {
+                    entry.mConnectTimeResolved = true;
+                    entry.mConnectTime = participant.getConnectTime();
+                    entry.mConnectElapsedTime = participant.getConnectElapsedTime();
+                    entry.mCallDirection = participant.getCallDirection();
+                    // The connect time forwarded before was unknown.
+                    participantChanged = true;
+                }
+            }
+            if (participantChanged) {
+                changed++;
+            }
+            entries.put(key, entry);
+        }
+        // Participants left in the previous entries are no longer part of the conference.
+        changed += mEntries.size();
+        mEntries = entries;
+
+        mUpdates++;
+        mLastChangedCount = changed;
+        if (changed == 0) {
+            mUnchangedUpdates++;
+        }
+        return changed > 0;
+    }
+
+    private static String getKey(Uri handle, Uri endpoint) {
+        return handle + " " + endpoint;
+    }
+
+    /**
+     * @return The number of participants which were added, changed or removed by the last
+     *         update.
+     */
+    @VisibleForTesting
+    public int getLastChangedCount() {
+        return mLastChangedCount;
+    }
+
+    /** @return The number of connect time lookups. */
+    @VisibleForTesting
+    public long getConnectTimeLookupCount() {
+        return mConnectTimeLookups;
+    }
+
+    @Override
+    public String toString() {
+        return "ConferenceEventProcessor{participants=" + mEntries.size()
+                + " updates=" + mUpdates + " unchangedUpdates=" + mUnchangedUpdates
+                + " connectTimeLookups=" + mConnectTimeLookups + "}";
+    }
+}
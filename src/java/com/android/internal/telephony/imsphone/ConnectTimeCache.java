@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.imsphone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.telephony.PhoneNumberUtils;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Connect times of calls merged into a conference, kept for a while so that they can be set on
+ * the conference participants once the conference event package lists them.
+ *
+ * Calls with a known number are looked up by the number formatted to E164. Calls without one are
+ * handed out in the order they were merged.
+ *
+ * Entries are kept in the order they were cached, which is also the order in which they expire,
+ * so expired entries are dropped from the head without scanning the others. The number of entries
+ * is bounded, the oldest ones are dropped first.
+ */
+public class ConnectTimeCache {
+    /** The connect time of a call. */
+    public static class Entry {
+        private final String mKey;
+        private final long mCachedTime;
+        private final long mConnectTime;
+        private final long mConnectElapsedTime;
+        /**
+         * The direction of the call;
+         * {@link android.telecom.Call.Details#DIRECTION_INCOMING} for incoming calls, or
+         * {@link android.telecom.Call.Details#DIRECTION_OUTGOING} for outgoing calls.
+         */
+        private final int mCallDirection;
+
+        Entry(String key, long cachedTime, long connectTime, long connectElapsedTime,
+                int callDirection) {
+            mKey = key;
+            mCachedTime = cachedTime;
+            mConnectTime = connectTime;
+            mConnectElapsedTime = connectElapsedTime;
+            mCallDirection = callDirection;
+        }
+
+        public long getConnectTime() {
+            return mConnectTime;
+        }
+
+        public long getConnectElapsedTime() {
+            return mConnectElapsedTime;
+        }
+
+        public int getCallDirection() {
+            return mCallDirection;
+        }
+    }
+
+    // Formatting a number is comparatively slow, so the keys of recent numbers are kept.
+    private static final int MAX_KEYS = 32;
+
+    private final long mTimeoutMs;
+    private final int mMaxEntries;
+    private final LongSupplier mClock;
+
+    /** Entries of known numbers, by key. */
+    private final Map<String, Entry> mEntriesByKey = new ArrayMap<>();
+    /**
+     * All entries which were cached, oldest first. Entries of known numbers which were replaced or
+     * removed stay until they expire, they are skipped since they are no longer in
+     * mEntriesByKey.
+     */
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+    /** Entries of unknown numbers which were not looked up yet, oldest first. */
+    private final ArrayDeque<Entry> mUnknownPeerEntries = new ArrayDeque<>();
+
+    private final Map<String, String> mKeys = new ArrayMap<>();
+    private String mKeysCountryIso;
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    /**
+     * @param timeoutMs How long entries are kept.
+     * @param maxEntries The maximum number of entries.
+     */
+    public ConnectTimeCache(long timeoutMs, int maxEntries) {
+        this(timeoutMs, maxEntries, SystemClock::elapsedRealtime);
+    }
+
+    @VisibleForTesting
+    public ConnectTimeCache(long timeoutMs, int maxEntries, @NonNull LongSupplier clock) {
+        mTimeoutMs = timeoutMs;
+        mMaxEntries = maxEntries;
+        mClock = clock;
+    }
+
+    /**
+     * @param number A phone number.
+     * @param countryIso The country to format the number for, or {@code null} if unknown.
+     * @return The key of the number, which is the number formatted to E164 if possible.
+     */
+    public synchronized @NonNull String getKey(@NonNull String number,
+            @Nullable String countryIso) {
+        if (countryIso == null) {
+            return number;
+        }
+        if (!countryIso.equals(mKeysCountryIso)) {
+            mKeys.clear();
+            mKeysCountryIso = countryIso;
+        }
+        String key = mKeys.get(number);
+        if (key == null) {
+            key = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+            if (key == null) {
+                key = number;
+            }
+            if (mKeys.size() >= MAX_KEYS) {
+                mKeys.clear();
+            }
+            mKeys.put(number, key);
+        }
+        return key;
+    }
+
+    /**
+     * Cache the connect time of a call. If a call with the same number is cached already, the
+     * latest connect time is kept, since that call might have been dropped and re-connected.
+     *
+     * @param key The key of the number of the call, or {@code null} if the number is unknown.
+     */
+    public synchronized void put(@Nullable String key, long connectTime, long connectElapsedTime,
+            int callDirection) {
+        long now = mClock.getAsLong();
+        expire(now);
+        Entry entry = new Entry(key, now, connectTime, connectElapsedTime, callDirection);
+        if (key == null) {
+            mUnknownPeerEntries.add(entry);
+        } else {
+            Entry cached = mEntriesByKey.get(key);
+            if (cached != null && connectTime <= cached.mConnectTime) {
+                return;
+            }
+            mEntriesByKey.put(key, entry);
+        }
+        mEntries.add(entry);
+        while (mEntries.size() > mMaxEntries) {
+            drop(mEntries.poll());
+            mEvictions++;
+        }
+    }
+
+    /**
+     * Look up the connect time of a call. The entry of an unknown number is only handed out once.
+     *
+     * @param key The key of the number of the call, or {@code null} if the number is unknown.
+     * @return The entry, or {@code null} if none is cached.
+     */
+    public synchronized @Nullable Entry get(@Nullable String key) {
+        expire(mClock.getAsLong());
+        Entry entry = key == null ? mUnknownPeerEntries.poll() : mEntriesByKey.get(key);
+        if (entry == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Remove the connect time of a call.
+     *
+     * @param key The key of the number of the call.
+     */
+    public synchronized void remove(@NonNull String key) {
+        mEntriesByKey.remove(key);
+    }
+
+    /** @return The number of entries which can still be looked up. */
+    @VisibleForTesting
+    public synchronized int size() {
+        expire(mClock.getAsLong());
+        return mEntriesByKey.size() + mUnknownPeerEntries.size();
+    }
+
+    private void expire(long now) {
+        long threshold = now - mTimeoutMs;
+        while (!mEntries.isEmpty() && mEntries.peek().mCachedTime < threshold) {
+            drop(mEntries.poll());
+        }
+    }
+
+    private void drop(Entry entry) {
+        if (entry.mKey == null) {
+            // Unknown number entries are handed out oldest first, so this one is at the head if
+            // it is still there.
+            if (mUnknownPeerEntries.peek() == entry) {
+                mUnknownPeerEntries.poll();
+            }
+        } else if (mEntriesByKey.get(entry.mKey) == entry) {
+            mEntriesByKey.remove(entry.mKey);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConnectTimeCache{entries=" + (mEntriesByKey.size() + mUnknownPeerEntries.size())
+                + " hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions + "}";
+    }
+}
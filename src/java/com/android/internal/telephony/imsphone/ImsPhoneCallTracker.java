@@ -128,15 +128,15 @@ import com.android.telephony.Rlog;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.regex.Pattern;
@@ -428,6 +428,8 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
 
     private static final int TIMEOUT_PARTICIPANT_CONNECT_TIME_CACHE_MS = 60000; //ms
 
+    private static final int MAX_PARTICIPANT_CONNECT_TIME_CACHE_ENTRIES = 64;
+
     // Following values are for mHoldSwitchingState
     private enum HoldSwapState {
         // Not in the middle of a hold/swap operation
@@ -449,6 +451,13 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
     //***** Instance Variables
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private ArrayList<ImsPhoneConnection> mConnections = new ArrayList<ImsPhoneConnection>();
+    // Identity index of mConnections by ImsCall, rebuilt when mConnections or the ImsCall of a
+    // connection changes. Read without holding the tracker lock.
+    private volatile Map<ImsCall, ImsPhoneConnection> mConnectionsByImsCall =
+            Collections.emptyMap();
+    // CEP state of the conferences hosted by connections in mConnections.
+    private final Map<ImsPhoneConnection, ConferenceEventProcessor> mConferenceEventProcessors =
+            new ConcurrentHashMap<>();
     private RegistrantList mVoiceCallEndedRegistrants = new RegistrantList();
     private RegistrantList mVoiceCallStartedRegistrants = new RegistrantList();
 
@@ -466,27 +475,8 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
     // Hold aggregated video call data usage for each video call since boot.
     // The ImsCall's call id is the key of the map.
     private final HashMap<Integer, Long> mVtDataUsageMap = new HashMap<>();
-    private final Map<String, CacheEntry> mPhoneNumAndConnTime = new ConcurrentHashMap<>();
-    private final Queue<CacheEntry> mUnknownPeerConnTime = new LinkedBlockingQueue<>();
-
-    private static class CacheEntry {
-        private long mCachedTime;
-        private long mConnectTime;
-        private long mConnectElapsedTime;
-        /**
-         * The direction of the call;
-         * {@link android.telecom.Call.Details#DIRECTION_INCOMING} for incoming calls, or
-         * {@link android.telecom.Call.Details#DIRECTION_OUTGOING} for outgoing calls.
-         */
-        private int mCallDirection;
-
-        CacheEntry(long cachedTime, long connectTime, long connectElapsedTime, int callDirection) {
-            mCachedTime = cachedTime;
-            mConnectTime = connectTime;
-            mConnectElapsedTime = connectElapsedTime;
-            mCallDirection = callDirection;
-        }
-    }
+    private final ConnectTimeCache mConnectTimeCache = new ConnectTimeCache(
+            TIMEOUT_PARTICIPANT_CONNECT_TIME_CACHE_MS, MAX_PARTICIPANT_CONNECT_TIME_CACHE_ENTRIES);
 
     private volatile NetworkStats mVtDataUsageSnapshot = null;
     private volatile NetworkStats mVtDataUsageUidSnapshot = null;
@@ -1123,6 +1113,8 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
             connection.getCall().detach(connection);
         }
         mConnections.clear();
+        updateConnectionIndex();
+        mConferenceEventProcessors.clear();
         // Pending MO was added to mConnections previously, so it has already been disconnected
         // above. Remove all references to it.
         mPendingMO = null;
@@ -1695,6 +1687,7 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
                     conn.isAdhocConference() ? conn.getParticipantsToDial() : callees,
                     mImsCallListener);
             conn.setImsCall(imsCall);
+            updateConnectionIndex();
 
             mMetrics.writeOnImsCallStart(mPhone.getPhoneId(), imsCall.getSession());
 
@@ -1946,74 +1939,39 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
         }
     }
 
-    // Clean up expired cache entries.
-    private void maintainConnectTimeCache() {
-        long threshold = SystemClock.elapsedRealtime() - TIMEOUT_PARTICIPANT_CONNECT_TIME_CACHE_MS;
-        // The cached time is the system elapsed millisecond when the CacheEntry is created.
-        mPhoneNumAndConnTime.entrySet().removeIf(e -> e.getValue().mCachedTime < threshold);
-        // Remove all the cached records which are older than current caching threshold. Since the
-        // queue is FIFO, keep polling records until the queue is empty or the head of the queue is
-        // fresh enough.
-        while (!mUnknownPeerConnTime.isEmpty()
-                && mUnknownPeerConnTime.peek().mCachedTime < threshold) {
-            mUnknownPeerConnTime.poll();
-        }
-    }
-
     private void cacheConnectionTimeWithPhoneNumber(@NonNull ImsPhoneConnection connection) {
         int callDirection =
                 connection.isIncoming() ? android.telecom.Call.Details.DIRECTION_INCOMING
                         : android.telecom.Call.Details.DIRECTION_OUTGOING;
-        CacheEntry cachedConnectTime = new CacheEntry(SystemClock.elapsedRealtime(),
-                connection.getConnectTime(), connection.getConnectTimeReal(), callDirection);
-        maintainConnectTimeCache();
-        if (PhoneConstants.PRESENTATION_ALLOWED == connection.getNumberPresentation()) {
-            // In case of merging calls with the same number, use the latest connect time. Since
-            // that call might be dropped and re-connected. So if the connectTime is earlier than
-            // the cache, skip.
-            String phoneNumber = getFormattedPhoneNumber(connection.getAddress());
-            if (mPhoneNumAndConnTime.containsKey(phoneNumber)
-                    && connection.getConnectTime()
-                        <= mPhoneNumAndConnTime.get(phoneNumber).mConnectTime) {
-                // Use the latest connect time.
-                return;
-            }
-            mPhoneNumAndConnTime.put(phoneNumber, cachedConnectTime);
-        } else {
-            mUnknownPeerConnTime.add(cachedConnectTime);
+        String key = null;
+        if (PhoneConstants.PRESENTATION_ALLOWED == connection.getNumberPresentation()
+                && connection.getAddress() != null) {
+            key = mConnectTimeCache.getKey(connection.getAddress(), getCountryIso());
         }
+        mConnectTimeCache.put(key, connection.getConnectTime(), connection.getConnectTimeReal(),
+                callDirection);
     }
 
-    private CacheEntry findConnectionTimeUsePhoneNumber(
+    private ConnectTimeCache.Entry findConnectionTimeUsePhoneNumber(
             @NonNull ConferenceParticipant participant) {
-        maintainConnectTimeCache();
         if (PhoneConstants.PRESENTATION_ALLOWED == participant.getParticipantPresentation()) {
             if (participant.getHandle() == null
                     || participant.getHandle().getSchemeSpecificPart() == null) {
                 return null;
             }
 
+            String countryIso = getCountryIso();
             String number = ConferenceParticipant.getParticipantAddress(participant.getHandle(),
-                    getCountryIso()).getSchemeSpecificPart();
+                    countryIso).getSchemeSpecificPart();
             if (TextUtils.isEmpty(number)) {
                 return null;
             }
-            String formattedNumber = getFormattedPhoneNumber(number);
-            return mPhoneNumAndConnTime.get(formattedNumber);
+            return mConnectTimeCache.get(mConnectTimeCache.getKey(number, countryIso));
         } else {
-            return mUnknownPeerConnTime.poll();
+            return mConnectTimeCache.get(null);
         }
     }
 
-    private String getFormattedPhoneNumber(String number) {
-        String countryIso = getCountryIso();
-        if (countryIso == null) {
-            return number;
-        }
-        String phoneNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
-        return phoneNumber == null ? number : phoneNumber;
-    }
-
     private String getCountryIso() {
         int subId = mPhone.getSubId();
         SubscriptionInfo info =
@@ -2450,6 +2408,8 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
                     + mHandoverCall.getConnections());
             mHandoverCall.clearConnections();
             mConnections.clear();
+            updateConnectionIndex();
+            mConferenceEventProcessors.clear();
             mState = PhoneConstants.State.IDLE;
         }
     }
@@ -2500,18 +2460,50 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
     }
 
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
-    private synchronized ImsPhoneConnection findConnection(final ImsCall imsCall) {
+    private ImsPhoneConnection findConnection(final ImsCall imsCall) {
+        ImsPhoneConnection conn = mConnectionsByImsCall.get(imsCall);
+        // The ImsCall of a connection is cleared when it disconnects, so check the entry is
+        // still current.
+        if (conn != null && conn.getImsCall() == imsCall) {
+            return conn;
+        }
+        return findConnectionAndUpdateIndex(imsCall);
+    }
+
+    /**
+     * Look up the connection of an ImsCall missing from the index by scanning all connections.
+     * The index is rebuilt if the connection is found, since the index was then out of date.
+     */
+    private synchronized ImsPhoneConnection findConnectionAndUpdateIndex(final ImsCall imsCall) {
+        if (imsCall == null) {
+            return null;
+        }
         for (ImsPhoneConnection conn : mConnections) {
             if (conn.getImsCall() == imsCall) {
+                updateConnectionIndex();
                 return conn;
             }
         }
         return null;
     }
 
+    /** Rebuild {@link #mConnectionsByImsCall}. */
+    private synchronized void updateConnectionIndex() {
+        Map<ImsCall, ImsPhoneConnection> connectionsByImsCall = new IdentityHashMap<>();
+        for (ImsPhoneConnection conn : mConnections) {
+            ImsCall imsCall = conn.getImsCall();
+            if (imsCall != null) {
+                connectionsByImsCall.put(imsCall, conn);
+            }
+        }
+        mConnectionsByImsCall = connectionsByImsCall;
+    }
+
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private synchronized void removeConnection(ImsPhoneConnection conn) {
         mConnections.remove(conn);
+        updateConnectionIndex();
+        mConferenceEventProcessors.remove(conn);
         // If not emergency call is remaining, notify emergency call registrants
         if (mIsInEmergencyCall) {
             boolean isEmergencyCallInList = false;
@@ -2536,6 +2528,7 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private synchronized void addConnection(ImsPhoneConnection conn) {
         mConnections.add(conn);
+        updateConnectionIndex();
         if (conn.isEmergency()) {
             mIsInEmergencyCall = true;
             mPhone.sendEmergencyCallStateChange(true);
@@ -2597,12 +2590,12 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
             // remove conference participants from the cached list when call is disconnected
             List<ConferenceParticipant> cpList = imsCall.getConferenceParticipants();
             if (cpList != null) {
+                String countryIso = getCountryIso();
                 for (ConferenceParticipant cp : cpList) {
                     String number = ConferenceParticipant.getParticipantAddress(cp.getHandle(),
-                            getCountryIso()).getSchemeSpecificPart();
+                            countryIso).getSchemeSpecificPart();
                     if (!TextUtils.isEmpty(number)) {
-                        String formattedNumber = getFormattedPhoneNumber(number);
-                        mPhoneNumAndConnTime.remove(formattedNumber);
+                        mConnectTimeCache.remove(mConnectTimeCache.getKey(number, countryIso));
                     }
                 }
             }
@@ -3555,16 +3548,16 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
             }
         }
 
-        private void updateConferenceParticipantsTiming(List<ConferenceParticipant> participants) {
-            for (ConferenceParticipant participant : participants) {
-                // Every time participants are newly created from parcel, update their connect time.
-                CacheEntry cachedConnectTime = findConnectionTimeUsePhoneNumber(participant);
-                if (cachedConnectTime != null) {
-                    participant.setConnectTime(cachedConnectTime.mConnectTime);
-                    participant.setConnectElapsedTime(cachedConnectTime.mConnectElapsedTime);
-                    participant.setCallDirection(cachedConnectTime.mCallDirection);
-                }
+        private boolean updateConferenceParticipantTiming(ConferenceParticipant participant) {
+            ConnectTimeCache.Entry cachedConnectTime =
+                    findConnectionTimeUsePhoneNumber(participant);
+            if (cachedConnectTime == null) {
+                return false;
             }
+            participant.setConnectTime(cachedConnectTime.getConnectTime());
+            participant.setConnectElapsedTime(cachedConnectTime.getConnectElapsedTime());
+            participant.setCallDirection(cachedConnectTime.getCallDirection());
+            return true;
         }
 
         /**
@@ -3590,8 +3583,15 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
 
             ImsPhoneConnection conn = findConnection(call);
             if (conn != null) {
-                updateConferenceParticipantsTiming(participants);
-                conn.updateConferenceParticipants(participants);
+                // Participants are newly created from parcel on every update, the processor
+                // carries their connect time over from the previous update.
+                ConferenceEventProcessor processor = mConferenceEventProcessors.computeIfAbsent(
+                        conn, c -> new ConferenceEventProcessor());
+                if (processor.process(participants, p -> updateConferenceParticipantTiming(p))) {
+                    conn.updateConferenceParticipants(participants);
+                } else if (DBG) {
+                    log("onConferenceParticipantsStateChanged - no change");
+                }
             }
         }
 
@@ -4482,6 +4482,10 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
                 pw.println("  [" + i + "]: " + mConnections.get(i));
             }
         }
+        for (ConferenceEventProcessor processor : mConferenceEventProcessors.values()) {
+            pw.println(" " + processor);
+        }
+        pw.println(" " + mConnectTimeCache);
     }
 
     @Override
@@ -17,15 +17,24 @@
 package com.android.internal.telephony.imsphone;
 
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.telecom.Connection;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.telephony.Rlog;
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.channels.ClosedByInterruptException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.CountDownLatch;
 
 public class ImsRttTextHandler extends Handler {
@@ -46,6 +55,8 @@ public class ImsRttTextHandler extends Handler {
     // the buffer to grow to before sending as many as we can.
     public static final int MAX_BUFFERED_CHARACTER_COUNT = 5;
     private static final int MILLIS_PER_SECOND = 1000;
+    // Bytes read from the in-call app at a time.
+    private static final int READ_BUFFER_SIZE = 1000;
 
     // Messages for the handler.
     // Initializes the text handler. Should have an RttTextStream set in msg.obj
@@ -57,59 +68,138 @@ public class ImsRttTextHandler extends Handler {
     private static final int SEND_TO_INCALL = 3;
     // Send as many characters as possible, as constrained by the rate limit. No extra data.
     private static final int ATTEMPT_SEND_TO_NETWORK = 4;
-    // Indicates that N characters were sent a second ago and should be ignored by the rate
-    // limiter. msg.arg1 should be set to N.
-    private static final int EXPIRE_SENT_CODEPOINT_COUNT = 5;
     // Indicates that the call is over and we should teardown everything we have set up.
     private static final int TEARDOWN = 9999;
 
+    // The text of all RTT calls is read from the in-call app on this thread, so that calls don't
+    // each need a thread blocked on reading.
+    private static HandlerThread sReaderThread;
+
+    private static synchronized Looper getReaderLooper() {
+        if (sReaderThread == null) {
+            sReaderThread = new HandlerThread(LOG_TAG + "Reader");
+            sReaderThread.start();
+        }
+        return sReaderThread.getLooper();
+    }
+
     private Connection.RttTextStream mRttTextStream;
     // For synchronization during testing
     private CountDownLatch mReadNotifier;
 
-    private class InCallReaderThread extends Thread {
-        private final Connection.RttTextStream mReaderThreadRttTextStream;
+    /**
+     * Reads the text from the in-call app when it becomes available, without blocking the shared
+     * reader thread.
+     *
+     * Only the bytes available in the pipe are read, and are decoded here rather than by
+     * {@link Connection.RttTextStream#readImmediately()}, which blocks until a UTF-8 sequence
+     * split across writes is complete. The incomplete end of a sequence is kept for the next read.
+     */
+    private class InCallReader implements MessageQueue.OnFileDescriptorEventListener {
+        private final FileDescriptor mFd;
+        // Doesn't own the file descriptor, which stays owned by the RttTextStream.
+        private final FileInputStream mInput;
+        private final MessageQueue mQueue;
+        private final CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer mBytes = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // A UTF-8 byte never decodes to more than one char.
+        private final CharBuffer mChars = CharBuffer.allocate(READ_BUFFER_SIZE);
+
+        InCallReader(Connection.RttTextStream textStream) {
+            mFd = textStream.getFdFromInCall().getFileDescriptor();
+            mInput = new FileInputStream(mFd);
+            mQueue = getReaderLooper().getQueue();
+        }
+
+        void start() {
+            mQueue.addOnFileDescriptorEventListener(mFd, EVENT_INPUT, this);
+        }
 
-        public InCallReaderThread(Connection.RttTextStream textStream) {
-            mReaderThreadRttTextStream = textStream;
+        void stop() {
+            mQueue.removeOnFileDescriptorEventListener(mFd);
         }
 
         @Override
-        public void run() {
-            while (true) {
-                String charsReceived;
+        public int onFileDescriptorEvents(FileDescriptor fd, int events) {
+            boolean received = false;
+            if ((events & EVENT_INPUT) != 0) {
                 try {
-                    charsReceived = mReaderThreadRttTextStream.read();
-                } catch (ClosedByInterruptException e) {
-                    Rlog.i(LOG_TAG, "RttReaderThread - Thread interrupted. Finishing.");
-                    break;
+                    int available;
+                    while ((available = mInput.available()) > 0) {
+                        received = true;
+                        String charsReceived = read(available);
+                        if (charsReceived.length() > 0) {
+                            obtainMessage(APPEND_TO_NETWORK_BUFFER, charsReceived).sendToTarget();
+                        }
+                    }
                 } catch (IOException e) {
-                    Rlog.e(LOG_TAG, "RttReaderThread - IOException encountered " +
-                            "reading from in-call: ", e);
+                    Rlog.e(LOG_TAG, "InCallReader - IOException encountered "
+                            + "reading from in-call: ", e);
                     obtainMessage(TEARDOWN).sendToTarget();
-                    break;
-                }
-                if (charsReceived == null) {
-                    Rlog.e(LOG_TAG, "RttReaderThread - Stream closed unexpectedly. Attempt to " +
-                            "reinitialize.");
-                    obtainMessage(TEARDOWN).sendToTarget();
-                    break;
-                }
-                if (charsReceived.length() == 0) {
-                    continue;
-                }
-                obtainMessage(APPEND_TO_NETWORK_BUFFER, charsReceived)
-                        .sendToTarget();
-                if (mReadNotifier != null) {
-                    mReadNotifier.countDown();
+                    return 0;
                 }
             }
+            // The pipe is readable without any text to read once the in-call side closed it.
+            if (!received) {
+                Rlog.e(LOG_TAG, "InCallReader - Stream closed unexpectedly. Attempt to "
+                        + "reinitialize.");
+                obtainMessage(TEARDOWN).sendToTarget();
+                return 0;
+            }
+            if (mReadNotifier != null) {
+                mReadNotifier.countDown();
+            }
+            return EVENT_INPUT;
+        }
+
+        /**
+         * @param available The number of bytes which can be read without blocking.
+         * @return The text decoded from the bytes read, without an incomplete UTF-8 sequence at
+         *         its end.
+         */
+        private String read(int available) throws IOException {
+            int count = mInput.read(mBytes.array(), mBytes.position(),
+                    Math.min(available, mBytes.remaining()));
+            if (count > 0) {
+                mBytes.position(mBytes.position() + count);
+            }
+            mBytes.flip();
+            mDecoder.decode(mBytes, mChars, false /* endOfInput */);
+            mBytes.compact();
+            mChars.flip();
+            String text = mChars.toString();
+            mChars.clear();
+            return text;
         }
     }
 
-    private int mCodepointsAvailableForTransmission = MAX_CODEPOINTS_PER_SECOND;
+    private InCallReader mInCallReader;
+
+    // Text read from the in-call app and not sent yet. Only modified on the handler thread, the
+    // codepoint count is kept along so that it doesn't need to be recounted on every read.
     private StringBuffer mBufferedTextToNetwork = new StringBuffer();
-    private InCallReaderThread mReaderThread;
+    private int mBufferedCodepointCount;
+    // Uptime at which the oldest text in mBufferedTextToNetwork was read from the in-call app.
+    private long mOldestBufferedTextUptimeMillis;
+
+    // Codepoints which can still be sent without exceeding MAX_CODEPOINTS_PER_SECOND in the
+    // last second. The sends of the last second are kept in a ring, oldest first, and their
+    // codepoints become available again a second after they were sent. There are at most
+    // MAX_CODEPOINTS_PER_SECOND such sends since each one sends at least one codepoint.
+    private int mCodepointsAvailableForTransmission = MAX_CODEPOINTS_PER_SECOND;
+    private final long[] mSendUptimesMillis = new long[MAX_CODEPOINTS_PER_SECOND];
+    private final int[] mSendCodepointCounts = new int[MAX_CODEPOINTS_PER_SECOND];
+    private int mSendHead;
+    private int mRecentSendCount;
+
+    // Time from reading text from the in-call app to sending it to the network, measured for the
+    // oldest text of each send.
+    private int mSendCount;
+    private long mTotalSendLatencyMillis;
+    private long mMaxSendLatencyMillis;
+
     // This is only ever used when the pipes fail and we have to re-setup. Messages received
     // from the network are buffered here until Telecom gets back to us with the new pipes.
     private StringBuffer mBufferedTextToIncall = new StringBuffer();
@@ -119,13 +209,13 @@ public class ImsRttTextHandler extends Handler {
     public void handleMessage(Message msg) {
         switch (msg.what) {
             case INITIALIZE:
-                if (mRttTextStream != null || mReaderThread != null) {
+                if (mRttTextStream != null || mInCallReader != null) {
                     Rlog.e(LOG_TAG, "RTT text stream already initialized. Ignoring.");
                     return;
                 }
                 mRttTextStream = (Connection.RttTextStream) msg.obj;
-                mReaderThread = new InCallReaderThread(mRttTextStream);
-                mReaderThread.start();
+                mInCallReader = new InCallReader(mRttTextStream);
+                mInCallReader.start();
                 break;
             case SEND_TO_INCALL:
                 String messageToIncall = (String) msg.obj;
@@ -138,61 +228,91 @@ public class ImsRttTextHandler extends Handler {
                 }
                 break;
             case APPEND_TO_NETWORK_BUFFER:
-                // First, append the text-to-send to the string buffer
-                mBufferedTextToNetwork.append((String) msg.obj);
-                // Check to see how many codepoints we have buffered. If we have more than 5,
-                // send immediately, otherwise, wait until a timeout happens.
-                int numCodepointsBuffered = mBufferedTextToNetwork
-                        .codePointCount(0, mBufferedTextToNetwork.length());
-                if (numCodepointsBuffered >= MAX_BUFFERED_CHARACTER_COUNT) {
-                    sendMessage(obtainMessage(ATTEMPT_SEND_TO_NETWORK));
-                } else {
-                    sendEmptyMessageDelayed(
-                            ATTEMPT_SEND_TO_NETWORK, MAX_BUFFERING_DELAY_MILLIS);
+                // The message was sent when the text was read, so its time is the read time.
+                appendToNetworkBuffer((String) msg.obj, msg.getWhen());
+                // If we have 5 or more codepoints buffered, send immediately, otherwise wait
+                // until the oldest buffered text has waited for the maximum buffering delay.
+                if (mBufferedCodepointCount >= MAX_BUFFERED_CHARACTER_COUNT) {
+                    removeMessages(ATTEMPT_SEND_TO_NETWORK);
+                    attemptSendToNetwork();
+                } else if (!hasMessages(ATTEMPT_SEND_TO_NETWORK)) {
+                    sendEmptyMessageAtTime(ATTEMPT_SEND_TO_NETWORK,
+                            mOldestBufferedTextUptimeMillis + MAX_BUFFERING_DELAY_MILLIS);
                 }
                 break;
             case ATTEMPT_SEND_TO_NETWORK:
-                // Check to see how many codepoints we can send, and send that many.
-                int numCodePointsAvailableInBuffer = mBufferedTextToNetwork.codePointCount(0,
-                        mBufferedTextToNetwork.length());
-                int numCodePointsSent = Math.min(numCodePointsAvailableInBuffer,
-                        mCodepointsAvailableForTransmission);
-                if (numCodePointsSent == 0) {
-                    break;
-                }
-                int endSendIndex = mBufferedTextToNetwork.offsetByCodePoints(0,
-                        numCodePointsSent);
-
-                String stringToSend = mBufferedTextToNetwork.substring(0, endSendIndex);
-
-                mBufferedTextToNetwork.delete(0, endSendIndex);
-                mNetworkWriter.write(stringToSend);
-                mCodepointsAvailableForTransmission -= numCodePointsSent;
-                sendMessageDelayed(
-                        obtainMessage(EXPIRE_SENT_CODEPOINT_COUNT, numCodePointsSent, 0),
-                        MILLIS_PER_SECOND);
-                break;
-            case EXPIRE_SENT_CODEPOINT_COUNT:
-                mCodepointsAvailableForTransmission += msg.arg1;
-                if (mCodepointsAvailableForTransmission > 0) {
-                    sendMessage(obtainMessage(ATTEMPT_SEND_TO_NETWORK));
-                }
+                attemptSendToNetwork();
                 break;
             case TEARDOWN:
-                try {
-                    if (mReaderThread != null) {
-                        mReaderThread.interrupt();
-                        mReaderThread.join(1000);
-                    }
-                } catch (InterruptedException e) {
-                    // Ignore and assume it'll finish on its own.
+                if (mInCallReader != null) {
+                    mInCallReader.stop();
+                    Rlog.i(LOG_TAG, "Tearing down: " + this);
                 }
-                mReaderThread = null;
+                mInCallReader = null;
                 mRttTextStream = null;
                 break;
         }
     }
 
+    private void appendToNetworkBuffer(String text, long readUptimeMillis) {
+        int length = mBufferedTextToNetwork.length();
+        if (length == 0) {
+            mOldestBufferedTextUptimeMillis = readUptimeMillis;
+        }
+        mBufferedCodepointCount += text.codePointCount(0, text.length());
+        // A surrogate pair split across two reads was counted twice.
+        if (length > 0 && Character.isHighSurrogate(mBufferedTextToNetwork.charAt(length - 1))
+                && Character.isLowSurrogate(text.charAt(0))) {
+            mBufferedCodepointCount--;
+        }
+        mBufferedTextToNetwork.append(text);
+    }
+
+    /**
+     * Send as many codepoints as the rate limit allows, and schedule another attempt for when
+     * the rate limit allows more if text is left in the buffer.
+     */
+    private void attemptSendToNetwork() {
+        long now = SystemClock.uptimeMillis();
+        expireSentCodepoints(now);
+        int numCodePointsSent = Math.min(mBufferedCodepointCount,
+                mCodepointsAvailableForTransmission);
+        if (numCodePointsSent > 0) {
+            int endSendIndex = mBufferedTextToNetwork.offsetByCodePoints(0, numCodePointsSent);
+            String stringToSend = mBufferedTextToNetwork.substring(0, endSendIndex);
+            mBufferedTextToNetwork.delete(0, endSendIndex);
+            mBufferedCodepointCount -= numCodePointsSent;
+            mNetworkWriter.write(stringToSend);
+
+            // Text left in the buffer keeps the read time of the sent text, so the latency of a
+            // send following a rate limited one is an upper bound.
+            long latency = now - mOldestBufferedTextUptimeMillis;
+            mSendCount++;
+            mTotalSendLatencyMillis += latency;
+            mMaxSendLatencyMillis = Math.max(mMaxSendLatencyMillis, latency);
+
+            mCodepointsAvailableForTransmission -= numCodePointsSent;
+            int index = (mSendHead + mRecentSendCount) % MAX_CODEPOINTS_PER_SECOND;
+            mSendUptimesMillis[index] = now;
+            mSendCodepointCounts[index] = numCodePointsSent;
+            mRecentSendCount++;
+        }
+        // Try again once the oldest send of the last second no longer counts.
+        if (mBufferedCodepointCount > 0 && mRecentSendCount > 0
+                && !hasMessages(ATTEMPT_SEND_TO_NETWORK)) {
+            sendEmptyMessageAtTime(ATTEMPT_SEND_TO_NETWORK,
+                    mSendUptimesMillis[mSendHead] + MILLIS_PER_SECOND);
+        }
+    }
+
+    private void expireSentCodepoints(long now) {
+        while (mRecentSendCount > 0 && mSendUptimesMillis[mSendHead] + MILLIS_PER_SECOND <= now) {
+            mCodepointsAvailableForTransmission += mSendCodepointCounts[mSendHead];
+            mSendHead = (mSendHead + 1) % MAX_CODEPOINTS_PER_SECOND;
+            mRecentSendCount--;
+        }
+    }
+
     public ImsRttTextHandler(Looper looper, NetworkWriter networkWriter) {
         super(looper);
         mNetworkWriter = networkWriter;
@@ -219,4 +339,13 @@ public class ImsRttTextHandler extends Handler {
     public String getNetworkBufferText() {
         return mBufferedTextToNetwork.toString();
     }
+
+    @Override
+    public String toString() {
+        return "ImsRttTextHandler{sends=" + mSendCount
+                + " avgSendLatencyMillis=" + (mSendCount == 0 ? 0
+                        : mTotalSendLatencyMillis / mSendCount)
+                + " maxSendLatencyMillis=" + mMaxSendLatencyMillis
+                + " bufferedCodepoints=" + mBufferedCodepointCount + "}";
+    }
 }
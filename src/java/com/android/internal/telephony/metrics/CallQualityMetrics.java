@@ -31,7 +31,6 @@ import com.android.internal.telephony.util.TelephonyUtils;
 import com.android.telephony.Rlog;
 
 import java.util.ArrayList;
-import java.util.Collections;
 
 /**
  * CallQualityMetrics is a utility for tracking the CallQuality during an ongoing call session. It
@@ -48,6 +47,11 @@ public class CallQualityMetrics {
     // We only log the first MAX_SNAPSHOTS changes to CallQuality
     private static final int MAX_SNAPSHOTS = 5;
 
+    // We keep the last MAX_PENDING_DURATION_SAMPLES call quality levels of each link unaccounted
+    // for, so that reports coming out of order can still be sorted by call duration. Older ones are
+    // folded into the total good and bad quality durations.
+    private static final int MAX_PENDING_DURATION_SAMPLES = 16;
+
     // value of mCallQualityState which means the CallQuality is EXCELLENT/GOOD/FAIR
     private static final int GOOD_QUALITY = 0;
 
@@ -64,11 +68,10 @@ public class CallQualityMetrics {
     // the first MAX_SNAPSHOTS transitions between good and bad quality
     private ArrayList<Pair<CallQuality, Integer>> mDlSnapshots = new ArrayList<>();
 
-    // holds lightweight history of call quality and durations, used for calculating total time
-    // spent with bad and good quality for metrics and bugreports. This is separate from the
-    // snapshots because those are capped at MAX_SNAPSHOTS to avoid excessive memory use.
-    private ArrayList<TimestampedQualitySnapshot> mFullUplinkQuality = new ArrayList<>();
-    private ArrayList<TimestampedQualitySnapshot> mFullDownlinkQuality = new ArrayList<>();
+    // running totals of the time spent with good and bad quality for metrics and bugreports. These
+    // use constant memory regardless of the length of the call.
+    private QualityDurations mUplinkDurations = new QualityDurations();
+    private QualityDurations mDownlinkDurations = new QualityDurations();
 
     // Current downlink call quality
     private int mDlCallQualityState = GOOD_QUALITY;
@@ -139,10 +142,8 @@ public class CallQualityMetrics {
     }
 
     private void updateTotalDurations(CallQuality cq) {
-        mFullDownlinkQuality.add(new TimestampedQualitySnapshot(cq.getCallDuration(),
-                cq.getDownlinkCallQualityLevel()));
-        mFullUplinkQuality.add(new TimestampedQualitySnapshot(cq.getCallDuration(),
-                cq.getUplinkCallQualityLevel()));
+        mDownlinkDurations.add(cq.getCallDuration(), cq.getDownlinkCallQualityLevel());
+        mUplinkDurations.add(cq.getCallDuration(), cq.getUplinkCallQualityLevel());
     }
 
     private static boolean isGoodQuality(int callQualityLevel) {
@@ -251,8 +252,8 @@ public class CallQualityMetrics {
     public TelephonyCallSession.Event.CallQualitySummary getCallQualitySummaryDl() {
         TelephonyCallSession.Event.CallQualitySummary summary =
                 new TelephonyCallSession.Event.CallQualitySummary();
-        Pair<Integer, Integer> totalGoodAndBadDurations = getTotalGoodAndBadQualityTimeMs(
-                mFullDownlinkQuality);
+        Pair<Integer, Integer> totalGoodAndBadDurations =
+                mDownlinkDurations.getTotalGoodAndBadQualityTimeMs();
         summary.totalGoodQualityDurationInSeconds = totalGoodAndBadDurations.first / 1000;
         summary.totalBadQualityDurationInSeconds = totalGoodAndBadDurations.second / 1000;
         // This value could be different from mLastCallQuality.getCallDuration if we support
@@ -291,8 +292,8 @@ public class CallQualityMetrics {
     public TelephonyCallSession.Event.CallQualitySummary getCallQualitySummaryUl() {
         TelephonyCallSession.Event.CallQualitySummary summary =
                 new TelephonyCallSession.Event.CallQualitySummary();
-        Pair<Integer, Integer> totalGoodAndBadDurations = getTotalGoodAndBadQualityTimeMs(
-                mFullUplinkQuality);
+        Pair<Integer, Integer> totalGoodAndBadDurations =
+                mUplinkDurations.getTotalGoodAndBadQualityTimeMs();
         summary.totalGoodQualityDurationInSeconds = totalGoodAndBadDurations.first / 1000;
         summary.totalBadQualityDurationInSeconds = totalGoodAndBadDurations.second / 1000;
         // This value could be different from mLastCallQuality.getCallDuration if we support
@@ -327,56 +328,88 @@ public class CallQualityMetrics {
 
 
     /**
-     * Container class for call quality level and signal strength at the time of snapshot. This
-     * class implements compareTo so that it can be sorted by timestamp
+     * Keeps track of the total time spent in a call with good and bad quality on one link.
+     * <p>
+     * Each call quality level counts for the time since the previous report, by call duration.
+     * The last MAX_PENDING_DURATION_SAMPLES reports are kept in a ring sorted by call duration, so
+     * that reports coming out of order are accounted for in the right order. When the ring is
+     * full, the oldest report is folded into the totals. A report older than the ones already
+     * folded in is dropped.
      */
-    private class TimestampedQualitySnapshot implements Comparable<TimestampedQualitySnapshot> {
-        int mTimestampMs;
-        int mCallQualityLevel;
-
-        TimestampedQualitySnapshot(int timestamp, int cq) {
-            mTimestampMs = timestamp;
-            mCallQualityLevel = cq;
-        }
-
-        @Override
-        public int compareTo(TimestampedQualitySnapshot o) {
-            return this.mTimestampMs - o.mTimestampMs;
+    private static class QualityDurations {
+        // ring of pending reports, sorted by timestamp starting at mHead
+        private final int[] mTimestampsMs = new int[MAX_PENDING_DURATION_SAMPLES];
+        private final int[] mCallQualityLevels = new int[MAX_PENDING_DURATION_SAMPLES];
+        private int mHead;
+        private int mCount;
+
+        // totals of the reports folded in so far
+        private int mFoldedTimestampMs;
+        private int mFoldedGoodQualityTimeMs;
+        private int mFoldedBadQualityTimeMs;
+        private int mDroppedCount;
+
+        void add(int timestampMs, int callQualityLevel) {
+            if (timestampMs < mFoldedTimestampMs) {
+                mDroppedCount++;
+                return;
+            }
+            if (mCount == MAX_PENDING_DURATION_SAMPLES) {
+                fold(mTimestampsMs[mHead], mCallQualityLevels[mHead]);
+                mHead = (mHead + 1) % MAX_PENDING_DURATION_SAMPLES;
+                mCount--;
+            }
+            // insert after the reports with the same or an earlier timestamp
+            int i = mCount;
+            while (i > 0) {
+                int prev = (mHead + i - 1) % MAX_PENDING_DURATION_SAMPLES;
+                if (mTimestampsMs[prev] <= timestampMs) {
+                    break;
+                }
+                int cur = (mHead + i) % MAX_PENDING_DURATION_SAMPLES;
+                mTimestampsMs[cur] = mTimestampsMs[prev];
+                mCallQualityLevels[cur] = mCallQualityLevels[prev];
+                i--;
+            }
+            int index = (mHead + i) % MAX_PENDING_DURATION_SAMPLES;
+            mTimestampsMs[index] = timestampMs;
+            mCallQualityLevels[index] = callQualityLevel;
+            mCount++;
         }
 
-        @Override
-        public String toString() {
-            return "mTimestampMs=" + mTimestampMs + " mCallQualityLevel=" + mCallQualityLevel;
+        private void fold(int timestampMs, int callQualityLevel) {
+            if (isGoodQuality(callQualityLevel)) {
+                mFoldedGoodQualityTimeMs += timestampMs - mFoldedTimestampMs;
+            } else {
+                mFoldedBadQualityTimeMs += timestampMs - mFoldedTimestampMs;
+            }
+            mFoldedTimestampMs = timestampMs;
         }
-    }
 
-    /**
-     * Use a list of snapshots to calculate and return the total time spent in a call with good
-     * quality and bad quality.
-     * This is slightly expensive since it involves sorting the snapshots by timestamp.
-     *
-     * @param snapshots a list of uplink or downlink snapshots
-     * @return a pair where the first element is the total good quality time and the second element
-     * is the total bad quality time
-     */
-    private Pair<Integer, Integer> getTotalGoodAndBadQualityTimeMs(
-            ArrayList<TimestampedQualitySnapshot> snapshots) {
-        int totalGoodQualityTime = 0;
-        int totalBadQualityTime = 0;
-        int lastTimestamp = 0;
-        // sort by timestamp using TimestampedQualitySnapshot.compareTo
-        Collections.sort(snapshots);
-        for (TimestampedQualitySnapshot snapshot : snapshots) {
-            int timeSinceLastSnapshot = snapshot.mTimestampMs - lastTimestamp;
-            if (isGoodQuality(snapshot.mCallQualityLevel)) {
-                totalGoodQualityTime += timeSinceLastSnapshot;
-            } else {
-                totalBadQualityTime += timeSinceLastSnapshot;
+        /**
+         * @return a pair where the first element is the total good quality time and the second
+         * element is the total bad quality time
+         */
+        Pair<Integer, Integer> getTotalGoodAndBadQualityTimeMs() {
+            int totalGoodQualityTime = mFoldedGoodQualityTimeMs;
+            int totalBadQualityTime = mFoldedBadQualityTimeMs;
+            int lastTimestamp = mFoldedTimestampMs;
+            for (int i = 0; i < mCount; i++) {
+                int index = (mHead + i) % MAX_PENDING_DURATION_SAMPLES;
+                int timeSinceLastSnapshot = mTimestampsMs[index] - lastTimestamp;
+                if (isGoodQuality(mCallQualityLevels[index])) {
+                    totalGoodQualityTime += timeSinceLastSnapshot;
+                } else {
+                    totalBadQualityTime += timeSinceLastSnapshot;
+                }
+                lastTimestamp = mTimestampsMs[index];
             }
-            lastTimestamp = snapshot.mTimestampMs;
+            return Pair.create(totalGoodQualityTime, totalBadQualityTime);
         }
 
-        return Pair.create(totalGoodQualityTime, totalBadQualityTime);
+        int getDroppedCount() {
+            return mDroppedCount;
+        }
     }
 
     @Override
@@ -403,8 +436,8 @@ public class CallQualityMetrics {
         }
         sb.append("}");
         sb.append(" ");
-        Pair<Integer, Integer> dlTotals = getTotalGoodAndBadQualityTimeMs(mFullDownlinkQuality);
-        Pair<Integer, Integer> ulTotals = getTotalGoodAndBadQualityTimeMs(mFullUplinkQuality);
+        Pair<Integer, Integer> dlTotals = mDownlinkDurations.getTotalGoodAndBadQualityTimeMs();
+        Pair<Integer, Integer> ulTotals = mUplinkDurations.getTotalGoodAndBadQualityTimeMs();
         sb.append(" TotalDlGoodQualityTimeMs: ");
         sb.append(dlTotals.first);
         sb.append(" TotalDlBadQualityTimeMs: ");
@@ -413,6 +446,10 @@ public class CallQualityMetrics {
         sb.append(ulTotals.first);
         sb.append(" TotalUlBadQualityTimeMs: ");
         sb.append(ulTotals.second);
+        sb.append(" DroppedDlReports: ");
+        sb.append(mDownlinkDurations.getDroppedCount());
+        sb.append(" DroppedUlReports: ");
+        sb.append(mUplinkDurations.getDroppedCount());
         sb.append("]");
         return sb.toString();
     }
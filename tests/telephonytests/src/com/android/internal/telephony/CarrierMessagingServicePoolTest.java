@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ServiceInfo;
+import android.os.IBinder;
+import android.os.Looper;
+import android.service.carrier.CarrierMessagingService;
+import android.service.carrier.ICarrierMessagingService;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+/**
+ * Tests reuse of carrier messaging service connections.
+ */
+public class CarrierMessagingServicePoolTest extends TelephonyTest {
+    private static final String CARRIER_APP_PACKAGE_NAME = "com.android.carrier";
+
+    @Mock
+    private ICarrierMessagingService.Stub mICarrierAppMessagingService;
+
+    private CarrierMessagingServicePool mPool;
+    private int mReadyCount;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mContextFixture.addService(
+                CarrierMessagingService.SERVICE_INTERFACE,
+                new ComponentName(CARRIER_APP_PACKAGE_NAME, "CarrierAppFilterClass"),
+                CARRIER_APP_PACKAGE_NAME,
+                mICarrierAppMessagingService,
+                new ServiceInfo());
+        when(mICarrierAppMessagingService.asBinder()).thenReturn(mICarrierAppMessagingService);
+        mPool = CarrierMessagingServicePool.getInstance(mContext);
+        mReadyCount = 0;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private CarrierMessagingServicePool.Lease acquire() {
+        return mPool.acquire(CARRIER_APP_PACKAGE_NAME, lease -> mReadyCount++);
+    }
+
+    @Test
+    @SmallTest
+    public void testConnectionReused() {
+        CarrierMessagingServicePool.Lease lease = acquire();
+        assertNotNull(lease);
+        assertEquals(1, mReadyCount);
+        lease.release(true /* healthy */);
+
+        lease = acquire();
+        assertNotNull(lease);
+        // The service is already bound, so the lease is ready right away.
+        assertEquals(2, mReadyCount);
+        assertEquals(1, mPool.getBindCount());
+        assertEquals(1, mPool.getReuseCount());
+        lease.release(true /* healthy */);
+    }
+
+    @Test
+    @SmallTest
+    public void testConcurrentLeasesShareConnection() {
+        CarrierMessagingServicePool.Lease first = acquire();
+        CarrierMessagingServicePool.Lease second = acquire();
+        assertEquals(2, mReadyCount);
+        first.release(true /* healthy */);
+        // Releasing twice doesn't release the other lease.
+        first.release(true /* healthy */);
+        second.release(true /* healthy */);
+        assertEquals(1, mPool.getBindCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testUnhealthyConnectionRebound() {
+        CarrierMessagingServicePool.Lease lease = acquire();
+        lease.release(false /* healthy */);
+
+        lease = acquire();
+        assertNotNull(lease);
+        assertEquals(2, mPool.getBindCount());
+        assertEquals(0, mPool.getReuseCount());
+        lease.release(true /* healthy */);
+    }
+
+    @Test
+    @SmallTest
+    public void testBindFailure() {
+        mContextFixture.mockBindingFailureForPackage(CARRIER_APP_PACKAGE_NAME);
+        assertNull(acquire());
+        assertEquals(0, mReadyCount);
+    }
+
+    private void killService() throws Exception {
+        ArgumentCaptor<IBinder.DeathRecipient> captor =
+                ArgumentCaptor.forClass(IBinder.DeathRecipient.class);
+        verify(mICarrierAppMessagingService, atLeastOnce()).linkToDeath(captor.capture(),
+                anyInt());
+        for (IBinder.DeathRecipient recipient : captor.getAllValues()) {
+            recipient.binderDied();
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testIdleConnectionReboundAfterServiceDeath() throws Exception {
+        CarrierMessagingServicePool.Lease lease = acquire();
+        lease.release(true /* healthy */);
+
+        killService();
+
+        lease = acquire();
+        assertNotNull(lease);
+        assertEquals(2, mReadyCount);
+        assertEquals(2, mPool.getBindCount());
+        assertEquals(0, mPool.getReuseCount());
+        lease.release(true /* healthy */);
+    }
+
+    @Test
+    @SmallTest
+    public void testLeasedConnectionReboundAfterServiceDeath() throws Exception {
+        CarrierMessagingServicePool.Lease inFlight = acquire();
+
+        killService();
+
+        // The dead connection isn't handed out while its lease is still held.
+        CarrierMessagingServicePool.Lease lease = acquire();
+        assertNotNull(lease);
+        assertEquals(2, mPool.getBindCount());
+        assertEquals(0, mPool.getReuseCount());
+
+        inFlight.release(false /* healthy */);
+        lease.release(true /* healthy */);
+        lease = acquire();
+        // Releasing the lease of the dead connection doesn't affect the new one.
+        assertEquals(1, mPool.getReuseCount());
+        lease.release(true /* healthy */);
+    }
+
+    @Test
+    @SmallTest
+    public void testInstanceKeyedOnApplicationContext() {
+        Context context = mock(Context.class);
+        when(context.getApplicationContext()).thenReturn(mContext);
+        assertSame(mPool, CarrierMessagingServicePool.getInstance(context));
+    }
+}
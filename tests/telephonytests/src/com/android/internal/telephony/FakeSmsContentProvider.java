@@ -18,18 +18,28 @@ package com.android.internal.telephony;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.telephony.SubscriptionManager;
 import android.test.mock.MockContentProvider;
 
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class FakeSmsContentProvider extends MockContentProvider {
     private static final String RAW_TABLE_NAME = "raw";
     public SQLiteOpenHelper mDbHelper = new InMemorySmsDbHelper();
+    private final AtomicInteger mQueryCount = new AtomicInteger();
+    private final AtomicInteger mMaxQueryRowCount = new AtomicInteger();
 
     private static final UriMatcher sURLMatcher =
             new UriMatcher(UriMatcher.NO_MATCH);
@@ -80,6 +90,23 @@ public class FakeSmsContentProvider extends MockContentProvider {
                 sortOrder);
     }
 
+    /**
+     * Like SmsProvider, only the selection based query is implemented, so query arguments such as
+     * {@link ContentResolver#QUERY_ARG_LIMIT} are dropped.
+     */
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection,
+                        @Nullable String selection, @Nullable String[] selectionArgs,
+                        @Nullable String sortOrder,
+                        @Nullable CancellationSignal cancellationSignal) {
+        mQueryCount.incrementAndGet();
+        Cursor cursor = query(uri, projection, selection, selectionArgs, sortOrder);
+        if (cursor != null) {
+            mMaxQueryRowCount.accumulateAndGet(cursor.getCount(), Math::max);
+        }
+        return cursor;
+    }
+
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
@@ -107,6 +134,23 @@ public class FakeSmsContentProvider extends MockContentProvider {
         return count;
     }
 
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < operations.size(); i++) {
+                results[i] = operations.get(i).apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     @Override
     public void shutdown() {
         mDbHelper.close();
@@ -121,4 +165,14 @@ public class FakeSmsContentProvider extends MockContentProvider {
         }
         return numRows;
     }
-}
\ No newline at end of file
+
+    /** @return The number of queries made through a content resolver. */
+    public int getQueryCount() {
+        return mQueryCount.get();
+    }
+
+    /** @return The most rows returned by a query made through a content resolver. */
+    public int getMaxQueryRowCount() {
+        return mMaxQueryRowCount.get();
+    }
+}
@@ -20,15 +20,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
+import android.telephony.SmsManager;
 import android.telephony.SmsMessage;
 import android.telephony.ims.stub.ImsSmsImplBase;
 import android.test.suitebuilder.annotation.SmallTest;
@@ -213,4 +216,83 @@ public class ImsSmsDispatcherTest extends TelephonyTest {
                 ImsSmsImplBase.SEND_STATUS_ERROR, 0, 41);
         verify(mSmsTracker).onFailed(any(Context.class), anyInt(), eq(41));
     }
+
+    private SMSDispatcher.SmsTracker makeTracker() {
+        HashMap<String, Object> data = new HashMap<>();
+        data.put("destAddr", "+15555551212");
+        data.put("pdu", com.android.internal.telephony.gsm.SmsMessage.getSubmitPdu(null,
+                "+15555551212", "Test", false).encodedMessage);
+        return mImsSmsDispatcher.getSmsTracker("com.test.app", data, null /* sentIntent */,
+                null /* deliveryIntent */, SmsMessage.FORMAT_3GPP, null /* messageUri */,
+                false /* expectMore */, "Test", false /* isText */, false /* persistMessage */,
+                false /* isForVvm */, 0L /* messageId */);
+    }
+
+    /**
+     * The parts sent to the ImsService are retried over CS once it is gone, since their result
+     * can't arrive.
+     */
+    @Test
+    @SmallTest
+    public void testPendingTrackersFallBackWhenImsServiceUnavailable() throws Exception {
+        int token = mImsSmsDispatcher.mNextToken.get();
+        mImsSmsDispatcher.mTrackers.put(token, mSmsTracker);
+
+        mImsManagerListener.connectionUnavailable(
+                FeatureConnector.UNAVAILABLE_REASON_DISCONNECTED);
+
+        verify(mSmsDispatchersController).sendRetrySms(mSmsTracker);
+        verify(mSmsTracker, never()).onFailed(any(Context.class), anyInt(), anyInt());
+        assertTrue(mImsSmsDispatcher.mTrackers.isEmpty());
+    }
+
+    /**
+     * In pipelined mode the parts sent to the ImsService fail once it is gone.
+     */
+    @Test
+    @SmallTest
+    public void testPendingTrackersFailedWhenImsServiceUnavailablePipelined() throws Exception {
+        mImsSmsDispatcher.mSendPipeline.setWindowSize(1);
+        int token = mImsSmsDispatcher.mNextToken.get();
+        mImsSmsDispatcher.mTrackers.put(token, mSmsTracker);
+
+        mImsManagerListener.connectionUnavailable(
+                FeatureConnector.UNAVAILABLE_REASON_DISCONNECTED);
+
+        verify(mSmsTracker).onFailed(any(Context.class), eq(SmsManager.RESULT_ERROR_NO_SERVICE),
+                anyInt());
+        verify(mSmsDispatchersController, never()).sendRetrySms(mSmsTracker);
+        assertTrue(mImsSmsDispatcher.mTrackers.isEmpty());
+    }
+
+    /**
+     * A part failed on another path than the send result frees its slot of the send window, so
+     * the queued parts are sent.
+     */
+    @Test
+    @SmallTest
+    public void testSendWindowReleasedWhenImsServiceUnavailable() throws Exception {
+        mContextFixture.getCarrierConfigBundle().putInt(
+                ImsSmsDispatcher.KEY_IMS_SMS_SEND_WINDOW_SIZE_INT, 1);
+        when(mImsManager.getSmsFormat()).thenReturn(SmsMessage.FORMAT_3GPP);
+        SMSDispatcher.SmsTracker[] parts = {makeTracker(), makeTracker(), makeTracker()};
+
+        assertEquals(1, mImsSmsDispatcher.getSendWindowSize());
+        mImsSmsDispatcher.mSendPipeline.setWindowSize(mImsSmsDispatcher.getSendWindowSize());
+        mImsSmsDispatcher.mSendPipeline.submit(parts);
+        verify(mImsManager).sendSms(anyInt(), anyInt(), anyString(), nullable(String.class),
+                anyBoolean(), any(byte[].class));
+        assertEquals(1, mImsSmsDispatcher.mTrackers.size());
+        assertEquals(2, mImsSmsDispatcher.mSendPipeline.getQueuedCount());
+
+        mImsManagerListener.connectionUnavailable(
+                FeatureConnector.UNAVAILABLE_REASON_DISCONNECTED);
+
+        // The queued parts are sent, and fall back to PSTN as the ImsService is down.
+        assertTrue(mImsSmsDispatcher.mTrackers.isEmpty());
+        verify(mSmsDispatchersController).sendRetrySms(parts[1]);
+        verify(mSmsDispatchersController).sendRetrySms(parts[2]);
+        assertEquals(0, mImsSmsDispatcher.mSendPipeline.getInFlightCount());
+        assertEquals(0, mImsSmsDispatcher.mSendPipeline.getQueuedCount());
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class InboundSmsReassemblyBufferTest {
+    private static final String FAKE_ADDRESS = "address";
+    private static final int FAKE_REFERENCE_NUMBER = 345;
+    private static final int FAKE_MESSAGE_COUNT = 3;
+    private static final int FAKE_SUBID = 0;
+
+    private InboundSmsReassemblyBuffer mBuffer;
+
+    @Before
+    public void setUp() throws Exception {
+        mBuffer = new InboundSmsReassemblyBuffer();
+    }
+
+    private static InboundSmsTracker makeTracker(String address, int refNumber, int sequence,
+            int subId) {
+        return new InboundSmsTracker(InstrumentationRegistry.getContext(),
+                new byte[]{(byte) sequence}, 1000L + sequence, -1, false, address, address,
+                refNumber, sequence, FAKE_MESSAGE_COUNT, false, "part " + sequence,
+                false /* isClass0 */, subId, InboundSmsHandler.SOURCE_NOT_INJECTED);
+    }
+
+    private void addSegment(InboundSmsReassemblyBuffer.Segments segments,
+            InboundSmsTracker tracker) {
+        assertTrue(segments.add(tracker.getSequenceNumber() - tracker.getIndexOffset(),
+                tracker.getPdu(), tracker.getTimestamp(), tracker.getDisplayAddress(),
+                tracker.getDestPort()));
+    }
+
+    @Test
+    @SmallTest
+    public void testReassembly() {
+        InboundSmsTracker part1 = makeTracker(FAKE_ADDRESS, FAKE_REFERENCE_NUMBER, 1, FAKE_SUBID);
+        InboundSmsTracker part2 = makeTracker(FAKE_ADDRESS, FAKE_REFERENCE_NUMBER, 2, FAKE_SUBID);
+        InboundSmsTracker part3 = makeTracker(FAKE_ADDRESS, FAKE_REFERENCE_NUMBER, 3, FAKE_SUBID);
+
+        // Cold start, the caller queries the raw table and creates the entry.
+        assertNull(mBuffer.get(part2));
+        InboundSmsReassemblyBuffer.Segments segments = mBuffer.create(part2);
+        addSegment(segments, part2);
+        assertFalse(segments.isComplete());
+
+        segments = mBuffer.get(part3);
+        assertNotNull(segments);
+        addSegment(segments, part3);
+        // A duplicate segment replaces the earlier one and isn't counted twice.
+        addSegment(segments, part3);
+        assertEquals(2, segments.getReceivedCount());
+
+        segments = mBuffer.get(part1);
+        addSegment(segments, part1);
+        assertTrue(segments.isComplete());
+        mBuffer.remove(part1);
+
+        assertArrayEquals(new byte[][]{{1}, {2}, {3}}, segments.getPdus());
+        assertArrayEquals(new long[]{1001L, 1002L, 1003L}, segments.getTimestamps());
+        assertEquals(1, mBuffer.getColdLoads());
+        assertEquals(2, mBuffer.getQueriesAvoided());
+        assertEquals(1, mBuffer.getCompletedCount());
+        assertEquals(0, mBuffer.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidSequenceNumberIgnored() {
+        InboundSmsTracker part1 = makeTracker(FAKE_ADDRESS, FAKE_REFERENCE_NUMBER, 1, FAKE_SUBID);
+        InboundSmsReassemblyBuffer.Segments segments = mBuffer.create(part1);
+        assertFalse(segments.add(-1, new byte[]{0}, 0L, FAKE_ADDRESS, -1));
+        assertFalse(segments.add(FAKE_MESSAGE_COUNT, new byte[]{0}, 0L, FAKE_ADDRESS, -1));
+        assertEquals(0, segments.getReceivedCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testKeyedByAddressReferenceAndSubscription() {
+        mBuffer.create(makeTracker(FAKE_ADDRESS, FAKE_REFERENCE_NUMBER, 1, FAKE_SUBID));
+
+        assertNull(mBuffer.get(makeTracker("other", FAKE_REFERENCE_NUMBER, 2, FAKE_SUBID)));
+        assertNull(mBuffer.get(makeTracker(FAKE_ADDRESS, FAKE_REFERENCE_NUMBER + 1, 2,
+                FAKE_SUBID)));
+        assertNull(mBuffer.get(makeTracker(FAKE_ADDRESS, FAKE_REFERENCE_NUMBER, 2,
+                FAKE_SUBID + 1)));
+        assertNotNull(mBuffer.get(makeTracker(FAKE_ADDRESS, FAKE_REFERENCE_NUMBER, 2,
+                FAKE_SUBID)));
+    }
+
+    @Test
+    @SmallTest
+    public void testEviction() {
+        for (int i = 0; i <= InboundSmsReassemblyBuffer.MAX_ENTRIES; i++) {
+            mBuffer.create(makeTracker(FAKE_ADDRESS, i, 1, FAKE_SUBID));
+        }
+        assertEquals(InboundSmsReassemblyBuffer.MAX_ENTRIES, mBuffer.size());
+        assertEquals(1, mBuffer.getEvictions());
+        // The least recently used message is evicted and has to be reloaded from the raw table.
+        assertNull(mBuffer.get(makeTracker(FAKE_ADDRESS, 0, 2, FAKE_SUBID)));
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidatedWhenRawTableRowsDeleted() {
+        InboundSmsTracker part1 = makeTracker(FAKE_ADDRESS, FAKE_REFERENCE_NUMBER, 1, FAKE_SUBID);
+        InboundSmsTracker part2 = makeTracker(FAKE_ADDRESS, FAKE_REFERENCE_NUMBER, 2, FAKE_SUBID);
+        InboundSmsReassemblyBuffer otherBuffer = new InboundSmsReassemblyBuffer();
+        addSegment(mBuffer.create(part1), part1);
+        addSegment(otherBuffer.create(part1), part1);
+
+        // e.g. the old incomplete segments were purged from the raw table.
+        InboundSmsReassemblyBuffer.onRawTableRowsDeleted();
+
+        // The segments have to be reloaded from the raw table by every handler.
+        assertNull(mBuffer.get(part2));
+        assertNull(otherBuffer.get(part2));
+        assertEquals(1, mBuffer.getInvalidations());
+        assertEquals(0, mBuffer.size());
+
+        // Entries loaded after the delete are used again.
+        InboundSmsReassemblyBuffer.Segments segments = mBuffer.create(part2);
+        addSegment(segments, part2);
+        assertNotNull(mBuffer.get(part1));
+        assertEquals(1, mBuffer.getInvalidations());
+    }
+}
@@ -24,6 +24,11 @@ import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
 /**
  * Test cases for the IntRangeManager class.
@@ -1161,4 +1166,163 @@ public class IntRangeManagerTest extends AndroidTestCase {
                 testManager.flags);
         assertEquals("configlist size", 0, testManager.mConfigList.size());
     }
+
+    /**
+     * IntRangeManager keeping the channels enabled on the radio, which replaces its whole
+     * configuration on every update.
+     */
+    class RadioIntRangeManager extends IntRangeManager {
+        BitSet mRadioChannels = new BitSet();
+        BitSet mPendingChannels;
+        int mLastStartId;
+        int mLastEndId;
+        int mUpdates;
+        boolean mFinishUpdateReturnValue = true;
+
+        @Override
+        protected void startUpdate() {
+            mPendingChannels = new BitSet();
+        }
+
+        @Override
+        protected void addRange(int startId, int endId, boolean selected) {
+            mPendingChannels.set(startId, endId + 1, selected);
+            mLastStartId = startId;
+            mLastEndId = endId;
+        }
+
+        @Override
+        protected boolean finishUpdate() {
+            mUpdates++;
+            if (mFinishUpdateReturnValue) {
+                mRadioChannels = mPendingChannels;
+            }
+            return mFinishUpdateReturnValue;
+        }
+    }
+
+    private static final int RANDOM_MAX_ID = 255;
+
+    private static BitSet getEnabledChannels(int[] clientCounts) {
+        BitSet channels = new BitSet();
+        for (int id = 0; id < clientCounts.length; id++) {
+            channels.set(id, clientCounts[id] > 0);
+        }
+        return channels;
+    }
+
+    private static String toRangeString(BitSet channels) {
+        StringBuilder sb = new StringBuilder();
+        for (int start = channels.nextSetBit(0); start >= 0;
+                start = channels.nextSetBit(channels.nextClearBit(start))) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append('[').append(start).append('-').append(channels.nextClearBit(start) - 1)
+                    .append(']');
+        }
+        return sb.toString();
+    }
+
+    private static int indexOf(List<int[]> ranges, int[] range) {
+        for (int i = 0; i < ranges.size(); i++) {
+            if (Arrays.equals(ranges.get(i), range)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Enable and disable random ranges of several clients, with random radio failures, and
+     * compare the channels enabled on the radio with a count of client ranges per channel.
+     */
+    @Test @SmallTest
+    public void testRandomRangesMatchEnabledChannels() {
+        Random random = new Random(0);
+        RadioIntRangeManager testManager = new RadioIntRangeManager();
+        int[] clientCounts = new int[RANDOM_MAX_ID + 1];
+        // {startId, endId, client}
+        List<int[]> clientRanges = new ArrayList<>();
+
+        for (int i = 0; i < 5000; i++) {
+            testManager.mFinishUpdateReturnValue = random.nextInt(10) != 0;
+            boolean enable = clientRanges.isEmpty() || random.nextInt(3) != 0;
+            int[] range;
+            if (enable) {
+                int startId = random.nextInt(RANDOM_MAX_ID + 1);
+                range = new int[] {startId, Math.min(RANDOM_MAX_ID, startId + random.nextInt(16)),
+                        random.nextInt(4)};
+            } else {
+                range = clientRanges.get(random.nextInt(clientRanges.size()));
+            }
+            BitSet before = getEnabledChannels(clientCounts);
+            int updates = testManager.mUpdates;
+
+            boolean result = enable
+                    ? testManager.enableRange(range[0], range[1], "client" + range[2])
+                    : testManager.disableRange(range[0], range[1], "client" + range[2]);
+
+            if (result && (!enable || indexOf(clientRanges, range) == -1)) {
+                for (int id = range[0]; id <= range[1]; id++) {
+                    clientCounts[id] += enable ? 1 : -1;
+                }
+                if (enable) {
+                    clientRanges.add(range);
+                } else {
+                    clientRanges.remove(indexOf(clientRanges, range));
+                }
+            }
+            BitSet after = getEnabledChannels(clientCounts);
+
+            if (result) {
+                // the radio is only updated if the enabled channels change
+                assertEquals("radio updates", before.equals(after) ? updates : updates + 1,
+                        testManager.mUpdates);
+            } else {
+                assertEquals("radio updates", updates + 1, testManager.mUpdates);
+            }
+            assertEquals("radio channels", after, testManager.mRadioChannels);
+            assertEquals("enabled ranges", toRangeString(after), testManager.toString());
+            assertEquals("isEmpty", after.isEmpty(), testManager.isEmpty());
+
+            if (enable && result && !before.equals(after)) {
+                // only the span of channels not enabled yet is added
+                BitSet added = (BitSet) after.clone();
+                added.andNot(before);
+                assertEquals("added start id", added.nextSetBit(0), testManager.mLastStartId);
+                assertEquals("added end id", added.length() - 1, testManager.mLastEndId);
+            }
+        }
+    }
+
+    @Test @SmallTest
+    public void testManyClientRanges() {
+        Random random = new Random(1);
+        RadioIntRangeManager testManager = new RadioIntRangeManager();
+        List<int[]> clientRanges = new ArrayList<>();
+        BitSet channels = new BitSet();
+        for (int client = 0; client < 100; client++) {
+            for (int i = 0; i < 50; i++) {
+                int startId = random.nextInt(65536);
+                int[] range = {startId, Math.min(65535, startId + random.nextInt(64)), client};
+                if (indexOf(clientRanges, range) == -1) {
+                    assertTrue("enabling range",
+                            testManager.enableRange(range[0], range[1], "client" + client));
+                    clientRanges.add(range);
+                    channels.set(range[0], range[1] + 1);
+                }
+            }
+        }
+        assertEquals("radio channels", channels, testManager.mRadioChannels);
+        assertEquals("enabled ranges", toRangeString(channels), testManager.toString());
+
+        Collections.shuffle(clientRanges, random);
+        for (int[] range : clientRanges) {
+            assertTrue("disabling range",
+                    testManager.disableRange(range[0], range[1], "client" + range[2]));
+        }
+        assertTrue("no ranges left", testManager.isEmpty());
+        assertTrue("radio channels", testManager.mRadioChannels.isEmpty());
+    }
 }
@@ -19,6 +19,7 @@ package com.android.internal.telephony;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import android.content.Context;
@@ -91,4 +92,29 @@ public class MissedIncomingCallSmsFilterTest extends TelephonyTest {
 
         assertEquals(FAKE_CALLER_ID, uri.getSchemeSpecificPart());
     }
+
+    @Test
+    @SmallTest
+    public void testMatchDoesNotReportMissedCall() {
+        mBundle.putStringArray(
+                CarrierConfigManager.KEY_MISSED_INCOMING_CALL_SMS_ORIGINATOR_STRING_ARRAY,
+                new String[]{FAKE_CARRIER_SMS_ORIGINATOR});
+        mBundle.putStringArray(
+                CarrierConfigManager.KEY_MISSED_INCOMING_CALL_SMS_PATTERN_STRING_ARRAY,
+                new String[]{"^(?<month>0[1-9]|1[012])\\/(?<day>0[1-9]|1[0-9]|2[0-9]|3[0-1]) "
+                        + "(?<hour>[0-1][0-9]|2[0-3]):(?<minute>[0-5][0-9])\\s*(?<callerId>[0-9]+)"
+                        + "\\s*$"});
+
+        String smsPduString = "07919107739667F9040B918185141232F400000210413141114A17B0D82B4603C170"
+                + "BA580DA4B0D56031D98C56B3DD1A";
+        byte[][] pdus = {IccUtils.hexStringToBytes(smsPduString)};
+        assertTrue(mFilterUT.match(pdus, SmsConstants.FORMAT_3GPP));
+
+        TelecomManager telecomManager = (TelecomManager) mContext.getSystemService(
+                Context.TELECOM_SERVICE);
+        verify(telecomManager, never()).addNewIncomingCall(any(), any());
+
+        mFilterUT.notifyMissedIncomingCall();
+        verify(telecomManager).addNewIncomingCall(any(), any());
+    }
 }
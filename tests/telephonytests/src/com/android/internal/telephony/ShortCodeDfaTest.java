@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static android.telephony.SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.res.XmlResourceParser;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class ShortCodeDfaTest {
+    private static final String TAG = "ShortCodeDfaTest";
+
+    /** Patterns in the order free, standard, premium, short code. */
+    private static final String[][] PATTERNS = {
+            {"116\\d{3}|1(?:1|2)\\d", null, "15191|55[56]00", "\\d{5}"},
+            {null, null, "20433|21(?:344|472)|22715|23(?:333|847)|24(?:15|28)0", "\\d{5,6}"},
+            {"[1-5]\\d{2,3}?", "4\\d{3}", "(?:9[0-4]){1,2}|7+", "\\d{4,}"},
+            {"", null, "1*2?3{0,2}", null},
+            {"(|1)2", null, "[0-35-9]{3}", null},
+    };
+
+    private static int regexCategory(Pattern[] patterns, String number) {
+        int[] categories = {SMS_CATEGORY_FREE_SHORT_CODE, SMS_CATEGORY_STANDARD_SHORT_CODE,
+                SMS_CATEGORY_PREMIUM_SHORT_CODE, SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE};
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i] != null && patterns[i].matcher(number).matches()) {
+                return categories[i];
+            }
+        }
+        return SMS_CATEGORY_NOT_SHORT_CODE;
+    }
+
+    private static Pattern[] compileRegex(String[] patterns) {
+        Pattern[] compiled = new Pattern[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            compiled[i] = patterns[i] == null ? null : Pattern.compile(patterns[i]);
+        }
+        return compiled;
+    }
+
+    private static ShortCodeDfa compileDfa(String[] patterns) {
+        return ShortCodeDfa.compile(patterns[0], patterns[1], patterns[2], patterns[3]);
+    }
+
+    @Test
+    @SmallTest
+    public void testCategories() {
+        ShortCodeDfa dfa = compileDfa(PATTERNS[0]);
+        assertNotNull(dfa);
+        assertEquals(SMS_CATEGORY_FREE_SHORT_CODE, dfa.getNumberCategory("116123"));
+        assertEquals(SMS_CATEGORY_FREE_SHORT_CODE, dfa.getNumberCategory("123"));
+        assertEquals(SMS_CATEGORY_PREMIUM_SHORT_CODE, dfa.getNumberCategory("55500"));
+        assertEquals(SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE, dfa.getNumberCategory("54321"));
+        assertEquals(SMS_CATEGORY_NOT_SHORT_CODE, dfa.getNumberCategory("654321"));
+        assertEquals(SMS_CATEGORY_NOT_SHORT_CODE, dfa.getNumberCategory("+5432"));
+        assertEquals(SMS_CATEGORY_NOT_SHORT_CODE, dfa.getNumberCategory(""));
+    }
+
+    @Test
+    @SmallTest
+    public void testUnsupportedPatterns() {
+        assertNull(ShortCodeDfa.compile("\\d{2}[^0]", null, null, null));
+        assertNull(ShortCodeDfa.compile(null, null, "1.2", null));
+        assertNull(ShortCodeDfa.compile(null, null, null, "^123$"));
+        assertNull(ShortCodeDfa.compile(null, "\\d++", null, null));
+    }
+
+    /** Every number of up to 6 digits is classified like the regular expressions do. */
+    @Test
+    @LargeTest
+    public void testEquivalentToRegex() {
+        for (String[] patterns : PATTERNS) {
+            ShortCodeDfa dfa = compileDfa(patterns);
+            assertNotNull(dfa);
+            Pattern[] regex = compileRegex(patterns);
+            for (int length = 0; length <= 6; length++) {
+                int max = (int) Math.pow(10, length);
+                for (int value = 0; value < max; value++) {
+                    String number = length == 0 ? "" : String.format("%0" + length + "d", value);
+                    assertEquals(number, regexCategory(regex, number),
+                            dfa.getNumberCategory(number));
+                }
+            }
+        }
+    }
+
+    /**
+     * Compile the patterns of every country in the short code database and compare
+     * classification time and results with the regular expressions.
+     */
+    @Test
+    @LargeTest
+    public void testBenchmarkAllCountries() {
+        HashMap<String, String[]> allPatterns;
+        XmlResourceParser parser = InstrumentationRegistry.getTargetContext().getResources()
+                .getXml(com.android.internal.R.xml.sms_short_codes);
+        try {
+            allPatterns = SmsUsageMonitor.getShortCodePatternsFromXmlParser(parser);
+        } finally {
+            parser.close();
+        }
+        assertTrue(allPatterns.size() > 0);
+
+        Random random = new Random(0);
+        String[] numbers = new String[2000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = Integer.toString(random.nextInt(1000000));
+        }
+
+        int compiled = 0;
+        long regexNanos = 0;
+        long dfaNanos = 0;
+        for (Map.Entry<String, String[]> entry : allPatterns.entrySet()) {
+            String[] patterns = entry.getValue();
+            ShortCodeDfa dfa = ShortCodeDfa.compile(patterns[SmsUsageMonitor.PATTERN_FREE],
+                    patterns[SmsUsageMonitor.PATTERN_STANDARD],
+                    patterns[SmsUsageMonitor.PATTERN_PREMIUM],
+                    patterns[SmsUsageMonitor.PATTERN_SHORT_CODE]);
+            if (dfa == null) {
+                Log.d(TAG, "Patterns of " + entry.getKey() + " use regular expressions");
+                continue;
+            }
+            compiled++;
+            Pattern[] regex = compileRegex(new String[]{patterns[SmsUsageMonitor.PATTERN_FREE],
+                    patterns[SmsUsageMonitor.PATTERN_STANDARD],
+                    patterns[SmsUsageMonitor.PATTERN_PREMIUM],
+                    patterns[SmsUsageMonitor.PATTERN_SHORT_CODE]});
+
+            int[] expected = new int[numbers.length];
+            long start = System.nanoTime();
+            for (int i = 0; i < numbers.length; i++) {
+                expected[i] = regexCategory(regex, numbers[i]);
+            }
+            regexNanos += System.nanoTime() - start;
+
+            int[] actual = new int[numbers.length];
+            start = System.nanoTime();
+            for (int i = 0; i < numbers.length; i++) {
+                actual[i] = dfa.getNumberCategory(numbers[i]);
+            }
+            dfaNanos += System.nanoTime() - start;
+
+            for (int i = 0; i < numbers.length; i++) {
+                assertEquals(entry.getKey() + " " + numbers[i], expected[i], actual[i]);
+            }
+        }
+        Log.d(TAG, "Compiled " + compiled + " of " + allPatterns.size() + " countries, regex="
+                + regexNanos / 1000000 + "ms, dfa=" + dfaNanos / 1000000 + "ms for "
+                + numbers.length + " numbers each");
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.Telephony;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.testing.AndroidTestingRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidTestingRunner.class)
+public class SmsBroadcastUndeliveredTest extends TelephonyTest {
+    private static final String FAKE_ADDRESS = "1234567890";
+    private static final int FAKE_REFERENCE_NUMBER = 42;
+
+    private FakeSmsContentProvider mContentProvider;
+    private final List<Runnable> mScans = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mContentProvider = new FakeSmsContentProvider();
+        ((MockContentResolver) mContext.getContentResolver()).addProvider(
+                Telephony.Sms.CONTENT_URI.getAuthority(), mContentProvider);
+        doAnswer(invocation -> new InboundSmsTracker(invocation.getArgument(0),
+                (Cursor) invocation.getArgument(1), invocation.getArgument(2)))
+                .when(mTelephonyComponentFactory)
+                .makeInboundSmsTracker(any(Context.class), nullable(Cursor.class), anyBoolean());
+        doReturn(mInboundSmsHandler).when(mPhone).getInboundSmsHandler(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContentProvider.shutdown();
+        super.tearDown();
+    }
+
+    private void insertSinglePart(int i) {
+        mContentProvider.insert(InboundSmsHandler.sRawUri, new InboundSmsTracker(mContext,
+                new byte[]{(byte) i}, System.currentTimeMillis(), -1, false, false,
+                FAKE_ADDRESS, FAKE_ADDRESS, "message " + i, false, 0,
+                InboundSmsHandler.SOURCE_NOT_INJECTED).getContentValues());
+    }
+
+    private void insertSegment(int sequence, int count, long timestamp) {
+        mContentProvider.insert(InboundSmsHandler.sRawUri, new InboundSmsTracker(mContext,
+                new byte[]{(byte) sequence}, timestamp, -1, false, FAKE_ADDRESS, FAKE_ADDRESS,
+                FAKE_REFERENCE_NUMBER, sequence, count, false, "part " + sequence, false, 0,
+                InboundSmsHandler.SOURCE_NOT_INJECTED).getContentValues());
+    }
+
+    private void verifyBroadcasts(int count) {
+        verify(mInboundSmsHandler, times(count)).sendMessage(
+                eq(InboundSmsHandler.EVENT_BROADCAST_SMS), any(InboundSmsTracker.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testScanInPages() {
+        int rows = 2 * SmsBroadcastUndelivered.SCAN_PAGE_SIZE + 5;
+        for (int i = 0; i < rows; i++) {
+            insertSinglePart(i);
+        }
+        int queries = mContentProvider.getQueryCount();
+
+        SmsBroadcastUndelivered.scanRawTable(mContext, 0);
+
+        verifyBroadcasts(rows);
+        assertEquals(rows, SmsBroadcastUndelivered.getLastScanRowCount());
+        assertTrue(SmsBroadcastUndelivered.getLastScanTimeMs() >= 0);
+        // The highest row id and three pages, the last one is not full and ends the scan.
+        assertEquals(4, mContentProvider.getQueryCount() - queries);
+    }
+
+    @Test
+    @SmallTest
+    public void testScanPagesBounded() {
+        // The provider ignores query arguments, the page size has to be applied in the query.
+        int rows = 3 * SmsBroadcastUndelivered.SCAN_PAGE_SIZE;
+        for (int i = 0; i < rows; i++) {
+            insertSinglePart(i);
+        }
+
+        SmsBroadcastUndelivered.scanRawTable(mContext, 0);
+
+        verifyBroadcasts(rows);
+        assertEquals(SmsBroadcastUndelivered.SCAN_PAGE_SIZE,
+                mContentProvider.getMaxQueryRowCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testMultiPartMessageAcrossPages() {
+        insertSegment(1, 2, System.currentTimeMillis());
+        for (int i = 0; i < SmsBroadcastUndelivered.SCAN_PAGE_SIZE; i++) {
+            insertSinglePart(i);
+        }
+        insertSegment(2, 2, System.currentTimeMillis());
+
+        SmsBroadcastUndelivered.scanRawTable(mContext, 0);
+
+        // The single-part messages and the complete multi-part message.
+        verifyBroadcasts(SmsBroadcastUndelivered.SCAN_PAGE_SIZE + 1);
+        assertEquals(SmsBroadcastUndelivered.SCAN_PAGE_SIZE + 2,
+                SmsBroadcastUndelivered.getLastScanRowCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testOldIncompleteMessageDeleted() {
+        insertSegment(1, 3, 1000L);
+        insertSegment(2, 3, 1000L);
+        insertSinglePart(0);
+
+        SmsBroadcastUndelivered.scanRawTable(mContext, System.currentTimeMillis());
+
+        verifyBroadcasts(1);
+        assertEquals(1, mContentProvider.getNumRows());
+    }
+
+    @Test
+    @SmallTest
+    public void testScanRequestsMerged() {
+        insertSinglePart(0);
+
+        // Requests made before the queued scan starts are merged into it.
+        SmsBroadcastUndelivered.requestScan(mContext, mScans::add);
+        SmsBroadcastUndelivered.requestScan(mContext, mScans::add);
+        SmsBroadcastUndelivered.requestScan(mContext, mScans::add);
+        assertEquals(1, mScans.size());
+
+        mScans.get(0).run();
+        verifyBroadcasts(1);
+
+        // A request made once the scan started queues another scan.
+        SmsBroadcastUndelivered.requestScan(mContext, mScans::add);
+        assertEquals(2, mScans.size());
+        mScans.get(1).run();
+        verifyBroadcasts(2);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.testing.AndroidTestingRunner;
+import android.testing.TestableLooper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidTestingRunner.class)
+@TestableLooper.RunWithLooper
+public class SmsRawTableBatcherTest extends TelephonyTest {
+    private static final Uri RAW_URI = Uri.withAppendedPath(Telephony.Sms.CONTENT_URI, "raw");
+    private static final int BENCHMARK_MESSAGES = 500;
+
+    private FakeSmsContentProvider mContentProvider;
+    private ContentResolver mResolver;
+    private SmsRawTableBatcher mBatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mContentProvider = new FakeSmsContentProvider();
+        ((MockContentResolver) mContext.getContentResolver()).addProvider(
+                Telephony.Sms.CONTENT_URI.getAuthority(), mContentProvider);
+        mResolver = mContext.getContentResolver();
+        mBatcher = new SmsRawTableBatcher(mResolver, RAW_URI.getAuthority(), "TEST",
+                mTestableLooper.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContentProvider.shutdown();
+        super.tearDown();
+    }
+
+    private static ContentValues makeRow(int i) {
+        ContentValues values = new ContentValues();
+        values.put("pdu", "0102030405060708090a0b0c0d0e0f");
+        values.put("address", "1234567890");
+        values.put("reference_number", i);
+        values.put("count", 1);
+        values.put("sequence", 0);
+        values.put("date", 1000L + i);
+        return values;
+    }
+
+    private static String[] byId(Uri uri) {
+        return new String[]{Long.toString(ContentUris.parseId(uri))};
+    }
+
+    private int countNotDeleted() {
+        return mContentProvider.query(RAW_URI, null, "deleted=0", null, null).getCount();
+    }
+
+    @Test
+    @SmallTest
+    public void testDeletesAppliedWithNextInsert() {
+        Uri first = mBatcher.insert(RAW_URI, makeRow(1));
+        assertNotNull(first);
+        mBatcher.delete(RAW_URI, "_id=?", byId(first));
+        assertTrue(mBatcher.hasPendingOperations());
+        assertEquals(1, countNotDeleted());
+
+        Uri second = mBatcher.insert(RAW_URI, makeRow(2));
+        assertNotNull(second);
+        assertFalse(mBatcher.hasPendingOperations());
+        assertEquals(1, countNotDeleted());
+        assertEquals(2, mContentProvider.getNumRows());
+        assertEquals(2, mBatcher.getTransactionCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testFlush() {
+        Uri uri = mBatcher.insert(RAW_URI, makeRow(1));
+        mBatcher.delete(Uri.withAppendedPath(RAW_URI, "permanentDelete"), "_id=?", byId(uri));
+        mBatcher.flush();
+        assertFalse(mBatcher.hasPendingOperations());
+        assertEquals(0, mContentProvider.getNumRows());
+    }
+
+    @Test
+    @SmallTest
+    public void testFlushWhenTooManyPending() {
+        for (int i = 0; i < SmsRawTableBatcher.MAX_PENDING_OPERATIONS - 1; i++) {
+            mBatcher.delete(RAW_URI, "_id=?", new String[]{Integer.toString(i)});
+        }
+        assertTrue(mBatcher.hasPendingOperations());
+        mBatcher.delete(RAW_URI, "_id=?", new String[]{"0"});
+        assertFalse(mBatcher.hasPendingOperations());
+    }
+
+    @Test
+    @SmallTest
+    public void testFlushWhenPendingTooLong() {
+        Uri uri = mBatcher.insert(RAW_URI, makeRow(1));
+        mBatcher.delete(RAW_URI, "_id=?", byId(uri));
+        processAllMessages();
+        assertTrue(mBatcher.hasPendingOperations());
+
+        // A lone delete is applied without waiting for another insert or delete.
+        moveTimeForward(SmsRawTableBatcher.MAX_PENDING_TIME_MS);
+        processAllMessages();
+        assertFalse(mBatcher.hasPendingOperations());
+        assertEquals(0, countNotDeleted());
+    }
+
+    @Test
+    @SmallTest
+    public void testScheduledFlushCancelledByInsert() {
+        Uri uri = mBatcher.insert(RAW_URI, makeRow(1));
+        mBatcher.delete(RAW_URI, "_id=?", byId(uri));
+        mBatcher.insert(RAW_URI, makeRow(2));
+        assertEquals(2, mBatcher.getTransactionCount());
+
+        moveTimeForward(SmsRawTableBatcher.MAX_PENDING_TIME_MS);
+        processAllMessages();
+        // Nothing was pending, so no further transaction was applied.
+        assertEquals(2, mBatcher.getTransactionCount());
+    }
+
+    /**
+     * Simulate a flood of single-part messages, each inserted and later marked deleted, and
+     * compare with issuing every insert and delete separately.
+     */
+    @Test
+    @MediumTest
+    public void testThroughput() {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+            Uri uri = mResolver.insert(RAW_URI, makeRow(i));
+            mResolver.delete(RAW_URI, "_id=?", byId(uri));
+        }
+        long unbatchedMs = SystemClock.elapsedRealtime() - start;
+        assertEquals(0, countNotDeleted());
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+            Uri uri = mBatcher.insert(RAW_URI, makeRow(i));
+            mBatcher.delete(RAW_URI, "_id=?", byId(uri));
+        }
+        mBatcher.flush();
+        long batchedMs = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(0, countNotDeleted());
+        assertEquals(2 * BENCHMARK_MESSAGES, mContentProvider.getNumRows());
+        // At most one transaction per message plus the final flush, instead of two provider calls.
+        assertTrue(mBatcher.getTransactionCount() <= BENCHMARK_MESSAGES + 1);
+        logd("testThroughput: " + BENCHMARK_MESSAGES + " messages, unbatched=" + unbatchedMs
+                + "ms, batched=" + batchedMs + "ms");
+    }
+}
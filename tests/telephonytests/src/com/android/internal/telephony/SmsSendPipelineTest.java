@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SmsSendPipelineTest {
+    private final List<SmsTracker> mSent = new ArrayList<>();
+    private SmsSendPipeline mPipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        mSent.clear();
+        mPipeline = new SmsSendPipeline(mSent::add);
+    }
+
+    private static SmsTracker[] makeParts(int count) {
+        SmsTracker[] trackers = new SmsTracker[count];
+        for (int i = 0; i < count; i++) {
+            trackers[i] = mock(SmsTracker.class);
+        }
+        return trackers;
+    }
+
+    @Test
+    @SmallTest
+    public void testAllPartsSentWhenPipelineOff() {
+        SmsTracker[] parts = makeParts(5);
+        mPipeline.submit(parts);
+        assertEquals(5, mSent.size());
+        assertEquals(0, mPipeline.getQueuedCount());
+        assertEquals(0, mPipeline.getInFlightCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testWindowKeepsPartsInFlight() {
+        mPipeline.setWindowSize(2);
+        SmsTracker[] parts = makeParts(5);
+        mPipeline.submit(parts);
+        assertEquals(2, mSent.size());
+        assertEquals(3, mPipeline.getQueuedCount());
+
+        // A retried part keeps its slot.
+        parts[0].mRetryCount = 1;
+        mPipeline.onPartRetry(parts[0]);
+        assertEquals(2, mSent.size());
+
+        // Each completion submits the next part in order.
+        mPipeline.onPartSent(parts[1]);
+        assertEquals(3, mSent.size());
+        assertEquals(parts[2], mSent.get(2));
+        mPipeline.onPartFailed(parts[0]);
+        mPipeline.onPartFallback(parts[2]);
+        assertEquals(5, mSent.size());
+        assertEquals(parts[4], mSent.get(4));
+        assertEquals(2, mPipeline.getInFlightCount());
+
+        mPipeline.onPartSent(parts[3]);
+        mPipeline.onPartSent(parts[4]);
+        assertEquals(0, mPipeline.getInFlightCount());
+        assertEquals(3, mPipeline.getPartsSentCount());
+        assertEquals(1, mPipeline.getRetryCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testSubmittedPartsReportCompletion() {
+        mPipeline.setWindowSize(1);
+        SmsTracker[] parts = makeParts(2);
+        mPipeline.submit(parts);
+        // The parts notify the pipeline from SmsTracker#onSent and SmsTracker#onFailed.
+        assertEquals(mPipeline, parts[0].mSendPipeline);
+        assertEquals(mPipeline, parts[1].mSendPipeline);
+
+        // A part handed over to another dispatcher no longer reports to this pipeline.
+        mPipeline.onPartFallback(parts[0]);
+        assertNull(parts[0].mSendPipeline);
+        assertEquals(2, mSent.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testLargerWindowAdmitsQueuedParts() {
+        mPipeline.setWindowSize(1);
+        mPipeline.submit(makeParts(4));
+        assertEquals(1, mSent.size());
+        mPipeline.setWindowSize(3);
+        assertEquals(3, mSent.size());
+        mPipeline.setWindowSize(0);
+        assertEquals(4, mSent.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testUnknownPartDoesNotReleaseSlot() {
+        mPipeline.setWindowSize(1);
+        mPipeline.submit(makeParts(2));
+        // e.g. a part that fell back from another dispatcher.
+        mPipeline.onPartSent(mock(SmsTracker.class));
+        assertEquals(1, mSent.size());
+        assertEquals(1, mPipeline.getQueuedCount());
+    }
+}
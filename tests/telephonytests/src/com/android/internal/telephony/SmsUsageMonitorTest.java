@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.provider.Settings;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.testing.AndroidTestingRunner;
+import android.testing.TestableLooper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test cases for the SMS send quota of SmsUsageMonitor.
+ */
+@RunWith(AndroidTestingRunner.class)
+@TestableLooper.RunWithLooper
+public class SmsUsageMonitorTest extends TelephonyTest {
+    private static final String PACKAGE_1 = "com.test.app1";
+    private static final String PACKAGE_2 = "com.test.app2";
+    private static final int CHECK_PERIOD_MS = 1000;
+    private static final int MAX_COUNT = 5;
+    private static final long START_TIME_MS = 1_000_000L;
+
+    private SmsUsageMonitor mMonitor;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        Settings.Global.putInt(mContext.getContentResolver(),
+                Settings.Global.SMS_OUTGOING_CHECK_INTERVAL_MS, CHECK_PERIOD_MS);
+        Settings.Global.putInt(mContext.getContentResolver(),
+                Settings.Global.SMS_OUTGOING_CHECK_MAX_COUNT, MAX_COUNT);
+        mMonitor = new SmsUsageMonitor(mContext);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mMonitor = null;
+        super.tearDown();
+    }
+
+    @Test
+    @SmallTest
+    public void testLimitBoundary() {
+        assertFalse(mMonitor.checkQuota(PACKAGE_1, MAX_COUNT + 1, START_TIME_MS));
+        // A denied request doesn't use up the quota.
+        assertTrue(mMonitor.checkQuota(PACKAGE_1, MAX_COUNT - 1, START_TIME_MS));
+        assertFalse(mMonitor.checkQuota(PACKAGE_1, 2, START_TIME_MS));
+        assertTrue(mMonitor.checkQuota(PACKAGE_1, 1, START_TIME_MS));
+        assertFalse(mMonitor.checkQuota(PACKAGE_1, 1, START_TIME_MS));
+    }
+
+    @Test
+    @SmallTest
+    public void testWindowExpiry() {
+        assertTrue(mMonitor.checkQuota(PACKAGE_1, MAX_COUNT - 1, START_TIME_MS));
+        assertTrue(mMonitor.checkQuota(PACKAGE_1, 1, START_TIME_MS + CHECK_PERIOD_MS / 2));
+
+        // The messages are counted for the whole check period.
+        assertFalse(mMonitor.checkQuota(PACKAGE_1, 1, START_TIME_MS + CHECK_PERIOD_MS));
+
+        // The first messages expired, the last one is still counted.
+        assertTrue(mMonitor.checkQuota(PACKAGE_1, MAX_COUNT - 1,
+                START_TIME_MS + CHECK_PERIOD_MS + 1));
+        assertFalse(mMonitor.checkQuota(PACKAGE_1, 1, START_TIME_MS + CHECK_PERIOD_MS + 1));
+    }
+
+    @Test
+    @SmallTest
+    public void testQuotaPerPackage() {
+        assertTrue(mMonitor.checkQuota(PACKAGE_1, MAX_COUNT, START_TIME_MS));
+        assertFalse(mMonitor.checkQuota(PACKAGE_1, 1, START_TIME_MS));
+
+        assertTrue(mMonitor.checkQuota(PACKAGE_2, MAX_COUNT, START_TIME_MS));
+        assertFalse(mMonitor.checkQuota(PACKAGE_2, 1, START_TIME_MS));
+    }
+
+    @Test
+    @SmallTest
+    public void testIdlePackageSwept() {
+        assertTrue(mMonitor.checkQuota(PACKAGE_1, MAX_COUNT, START_TIME_MS));
+
+        // The history of the first package is dropped by the sweep of another package's send.
+        assertTrue(mMonitor.checkQuota(PACKAGE_2, 1, START_TIME_MS + 2 * CHECK_PERIOD_MS));
+        assertTrue(mMonitor.checkQuota(PACKAGE_1, MAX_COUNT, START_TIME_MS + 2 * CHECK_PERIOD_MS));
+        assertFalse(mMonitor.checkQuota(PACKAGE_1, 1, START_TIME_MS + 2 * CHECK_PERIOD_MS));
+    }
+
+    @Test
+    @SmallTest
+    public void testConcurrentChecks() throws Exception {
+        final int threadCount = 8;
+        final int checksPerThread = 50;
+        final String[] packages = {PACKAGE_1, PACKAGE_2};
+        final AtomicInteger[] allowed = {new AtomicInteger(), new AtomicInteger()};
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < checksPerThread; i++) {
+                    int p = i % packages.length;
+                    // Time moves forward within the check period, so sweeps run concurrently.
+                    if (mMonitor.checkQuota(packages[p], 1, START_TIME_MS + i)) {
+                        allowed[p].incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        // Each package was allowed exactly its quota, no send was lost or counted twice.
+        assertEquals(MAX_COUNT, allowed[0].get());
+        assertEquals(MAX_COUNT, allowed[1].get());
+    }
+}
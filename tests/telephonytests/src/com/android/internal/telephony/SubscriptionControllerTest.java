@@ -32,8 +32,10 @@ import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -73,9 +75,12 @@ import org.mockito.Mock;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class SubscriptionControllerTest extends TelephonyTest {
     private static final int SINGLE_SIM = 1;
@@ -263,6 +268,65 @@ public class SubscriptionControllerTest extends TelephonyTest {
 
     }
 
+    @Test @SmallTest
+    public void testSubscriptionInfoUpdateBatch() throws Exception {
+        testInsertSim();
+        int subId = getFirstSubId();
+        clearInvocations(mTelephonyRegistryManager);
+
+        mSubscriptionControllerUT.beginSubscriptionInfoUpdate();
+        mSubscriptionControllerUT.setMccMnc("310260", subId);
+        mSubscriptionControllerUT.setCountryIso("us", subId);
+        mSubscriptionControllerUT.setDisplayNumber("12345", subId);
+        mSubscriptionControllerUT.setIconTint(1, subId);
+
+        // Nothing is notified until the batch ends, but reads see the new values.
+        verify(mTelephonyRegistryManager, never()).notifySubscriptionInfoChanged();
+        assertEquals("us", mSubscriptionControllerUT.getSubscriptionInfo(subId).getCountryIso());
+
+        mSubscriptionControllerUT.endSubscriptionInfoUpdate();
+
+        verify(mTelephonyRegistryManager, times(1)).notifySubscriptionInfoChanged();
+        assertEquals(3, mSubscriptionControllerUT.getSuppressedNotificationCount());
+        SubscriptionInfo subInfo = mSubscriptionControllerUT
+                .getActiveSubscriptionInfo(subId, mCallingPackage, mCallingFeature);
+        assertEquals("310", subInfo.getMccString());
+        assertEquals("us", subInfo.getCountryIso());
+        assertEquals("12345", subInfo.getNumber());
+        assertEquals(1, subInfo.getIconTint());
+
+        // Without a batch each update notifies.
+        mSubscriptionControllerUT.setIconTint(2, subId);
+        verify(mTelephonyRegistryManager, times(2)).notifySubscriptionInfoChanged();
+    }
+
+    @Test @SmallTest
+    public void testSubscriptionInfoUpdateBatchOnlyDefersItsThread() throws Exception {
+        testInsertSim();
+        final int subId = getFirstSubId();
+        clearInvocations(mTelephonyRegistryManager);
+
+        mSubscriptionControllerUT.beginSubscriptionInfoUpdate();
+        mSubscriptionControllerUT.setCountryIso("us", subId);
+
+        // A setter called on another thread during the batch is refreshed and notified at once.
+        Thread thread = new Thread(() -> mSubscriptionControllerUT.setDisplayNameUsingSrc(
+                "Other", subId, SubscriptionManager.NAME_SOURCE_USER_INPUT));
+        thread.start();
+        thread.join();
+        verify(mTelephonyRegistryManager, times(1)).notifySubscriptionInfoChanged();
+        assertEquals("Other", mSubscriptionControllerUT
+                .getActiveSubscriptionInfo(subId, mCallingPackage, mCallingFeature)
+                .getDisplayName());
+
+        // The change of the batch is still notified when it ends.
+        mSubscriptionControllerUT.endSubscriptionInfoUpdate();
+        verify(mTelephonyRegistryManager, times(2)).notifySubscriptionInfoChanged();
+        assertEquals("us", mSubscriptionControllerUT
+                .getActiveSubscriptionInfo(subId, mCallingPackage, mCallingFeature)
+                .getCountryIso());
+    }
+
     private void setSimEmbedded(boolean isEmbedded) throws Exception {
         ContentValues values = new ContentValues();
         values.put(SubscriptionManager.IS_EMBEDDED, isEmbedded ? 1 : 0);
@@ -868,6 +932,73 @@ public class SubscriptionControllerTest extends TelephonyTest {
         addAndVerifyRemoteSimAddition(4, 0);
     }
 
+    @Test @SmallTest
+    public void testSlotIndexSnapshot() {
+        Map<Integer, ArrayList<Integer>> map = new HashMap<>();
+        map.put(1, new ArrayList<>(Arrays.asList(3)));
+        map.put(0, new ArrayList<>(Arrays.asList(2)));
+        map.put(SubscriptionManager.SLOT_INDEX_FOR_REMOTE_SIM_SUB,
+                new ArrayList<>(Arrays.asList(5, 4)));
+        map.put(2, new ArrayList<>());
+        SubscriptionController.SlotIndexToSubIdsSnapshot snapshot =
+                new SubscriptionController.SlotIndexToSubIdsSnapshot(map);
+
+        assertEquals(4, snapshot.size());
+        assertEquals(0, snapshot.getSlotIndex(2));
+        assertEquals(1, snapshot.getSlotIndex(3));
+        assertEquals(SubscriptionManager.SLOT_INDEX_FOR_REMOTE_SIM_SUB,
+                snapshot.getSlotIndex(4));
+        assertEquals(SubscriptionManager.INVALID_SIM_SLOT_INDEX, snapshot.getSlotIndex(6));
+        assertTrue(Arrays.equals(new int[] {5, 4},
+                snapshot.getSubIds(SubscriptionManager.SLOT_INDEX_FOR_REMOTE_SIM_SUB)));
+        assertEquals(0, snapshot.getSubIds(2).length);
+        assertNull(snapshot.getSubIds(3));
+        assertEquals(Arrays.asList(5, 4, 2, 3), snapshot.getAllSubIds());
+    }
+
+    @Test @SmallTest
+    public void testGetSlotIndexWithConcurrentUpdates() throws Exception {
+        testInsertSim();
+        final int subId = getFirstSubId();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                while (!done.get() && failure.get() == null) {
+                    int slotIndex = mSubscriptionControllerUT.getSlotIndex(subId);
+                    if (slotIndex != 0 && slotIndex != SubscriptionManager.INVALID_SIM_SLOT_INDEX
+                            && slotIndex != SubscriptionManager.SIM_NOT_INSERTED) {
+                        failure.set("getSlotIndex returned " + slotIndex);
+                    }
+                    int[] subIds = mSubscriptionControllerUT.getSubId(0);
+                    if (subIds != null && !Arrays.equals(new int[] {subId}, subIds)) {
+                        failure.set("getSubId returned " + Arrays.toString(subIds));
+                    }
+                }
+            });
+            readers[i].start();
+        }
+
+        try {
+            // Move the subscription out of the slot and back.
+            for (int i = 0; i < 20; i++) {
+                mSubscriptionControllerUT.clearSubInfoRecord(0);
+                mSubscriptionControllerUT.addSubInfoRecord("test", 0);
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+
+        assertNull(failure.get());
+        assertEquals(0, mSubscriptionControllerUT.getSlotIndex(subId));
+        assertEquals(0, mSubscriptionControllerUT.getPhoneId(subId));
+    }
+
     @FlakyTest
     @Test @SmallTest
     public void testDefaultSubIdOnMultiSimDevice() {
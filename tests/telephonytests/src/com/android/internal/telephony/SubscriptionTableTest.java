@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.telephony.SubscriptionManager;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class SubscriptionTableTest {
+    private static final String ICC_ID_1 = "89012604200000000001";
+    private static final String ICC_ID_2 = "89012604200000000002";
+
+    /** Counts the queries reaching the provider. */
+    private static class CountingTelephonyProvider extends FakeTelephonyProvider {
+        int mQueries;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueries++;
+            return super.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+    }
+
+    private CountingTelephonyProvider mProvider;
+    private SubscriptionTable mTable;
+
+    @Before
+    public void setUp() {
+        mProvider = new CountingTelephonyProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(SubscriptionManager.CONTENT_URI.getAuthority(), mProvider);
+        mTable = new SubscriptionTable(resolver);
+    }
+
+    private void insert(String iccId, int slotIndex) {
+        ContentValues values = new ContentValues();
+        values.put(SubscriptionManager.ICC_ID, iccId);
+        values.put(SubscriptionManager.SIM_SLOT_INDEX, slotIndex);
+        values.put(SubscriptionManager.CARD_ID, iccId);
+        mTable.insert(SubscriptionManager.CONTENT_URI, values);
+    }
+
+    private static String getString(Cursor cursor, String column) {
+        return cursor.getString(cursor.getColumnIndexOrThrow(column));
+    }
+
+    @Test
+    @SmallTest
+    public void testRepeatedReadsLoadOnce() {
+        insert(ICC_ID_1, 0);
+        insert(ICC_ID_2, 1);
+
+        for (int i = 0; i < 10; i++) {
+            try (Cursor cursor = mTable.queryAll(null)) {
+                assertEquals(2, cursor.getCount());
+            }
+            try (Cursor cursor = mTable.query(null, SubscriptionManager.ICC_ID, ICC_ID_2)) {
+                assertEquals(1, cursor.getCount());
+            }
+        }
+        assertEquals(1, mTable.getLoadCount());
+        assertEquals(1, mProvider.mQueries);
+    }
+
+    @Test
+    @SmallTest
+    public void testWriteInvalidates() {
+        insert(ICC_ID_1, 0);
+        try (Cursor cursor = mTable.query(null, SubscriptionManager.SIM_SLOT_INDEX, 0)) {
+            assertEquals(1, cursor.getCount());
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(SubscriptionManager.SIM_SLOT_INDEX, SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+        mTable.update(SubscriptionManager.CONTENT_URI, values,
+                SubscriptionManager.ICC_ID + "=?", new String[]{ICC_ID_1});
+        try (Cursor cursor = mTable.query(null, SubscriptionManager.SIM_SLOT_INDEX, 0)) {
+            assertEquals(0, cursor.getCount());
+        }
+        try (Cursor cursor = mTable.query(null, SubscriptionManager.SIM_SLOT_INDEX,
+                SubscriptionManager.INVALID_SIM_SLOT_INDEX)) {
+            assertEquals(1, cursor.getCount());
+        }
+
+        mTable.delete(SubscriptionManager.CONTENT_URI, null, null);
+        try (Cursor cursor = mTable.queryAll(null)) {
+            assertEquals(0, cursor.getCount());
+        }
+        assertEquals(3, mTable.getLoadCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testQueryMatchesProvider() {
+        insert(ICC_ID_1, 0);
+        insert(ICC_ID_2, 1);
+
+        // Indexed column.
+        try (Cursor cursor = mTable.query(null, SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID,
+                2)) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(ICC_ID_2, getString(cursor, SubscriptionManager.ICC_ID));
+            assertEquals(2, cursor.getInt(cursor.getColumnIndexOrThrow(
+                    SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID)));
+        }
+        // Column without an index.
+        try (Cursor cursor = mTable.query(null, SubscriptionManager.CARD_ID, ICC_ID_1)) {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(0, cursor.getInt(cursor.getColumnIndexOrThrow(
+                    SubscriptionManager.SIM_SLOT_INDEX)));
+        }
+        try (Cursor cursor = mTable.query(null, SubscriptionManager.ICC_ID, "unknown")) {
+            assertEquals(0, cursor.getCount());
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testProjection() {
+        insert(ICC_ID_1, 0);
+
+        try (Cursor cursor = mTable.query(new String[]{SubscriptionManager.ICC_ID},
+                SubscriptionManager.SIM_SLOT_INDEX, 0)) {
+            assertEquals(1, cursor.getColumnCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(ICC_ID_1, cursor.getString(0));
+        }
+        try (Cursor cursor = mTable.query(new String[]{SubscriptionManager.GROUP_UUID},
+                SubscriptionManager.SIM_SLOT_INDEX, 0)) {
+            assertTrue(cursor.moveToFirst());
+            assertNull(cursor.getString(0));
+        }
+    }
+}
@@ -16,23 +16,31 @@
 
 package com.android.internal.telephony;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
 import android.content.res.Resources;
+import android.provider.VoicemailContract;
 import android.telecom.PhoneAccountHandle;
 import android.telephony.TelephonyManager;
+import android.telephony.VisualVoicemailSms;
 import android.telephony.VisualVoicemailSmsFilterSettings;
 
 import com.android.internal.telephony.VisualVoicemailSmsFilter.PhoneAccountHandleConverter;
 
 import junit.framework.TestCase;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import java.util.Arrays;
+import java.util.regex.Pattern;
 
 /**
  * Unit test for {@link VisualVoicemailSmsFilter}
@@ -90,6 +98,14 @@ public class VisualVoicemailSmsFilterTest extends TestCase {
                 .thenReturn(Context.TELEPHONY_SERVICE);
         when(mContext.getSystemService(Context.TELEPHONY_SERVICE))
                 .thenReturn(mTelephonyManager);
+        // The patterns are loaded once, make sure every test sees the same ones.
+        Resources resources = Mockito.mock(Resources.class);
+        when(mTelephonyManager.getSimOperator(anyInt()))
+                .thenReturn(SIM_MCC_MNC);
+        when(mContext.getResources())
+                .thenReturn(resources);
+        when(resources.getStringArray(com.android.internal.R.array.config_vvmSmsFilterRegexes))
+                .thenReturn(VVM_PATTERN_REGEXP);
 
         VisualVoicemailSmsFilter.setPhoneAccountHandleConverterForTest(
                 new PhoneAccountHandleConverter() {
@@ -196,6 +212,81 @@ public class VisualVoicemailSmsFilterTest extends TestCase {
                 .filter(mContext, SYNC_PDU, SmsConstants.FORMAT_3GPP, 456, 0));
     }
 
+    public void testClientPrefix_mismatch_notFiltered() {
+        setSettings(new VisualVoicemailSmsFilterSettings.Builder()
+                .setClientPrefix("//FOO").build());
+        assertFalse(VisualVoicemailSmsFilter
+                .filter(mContext, SYNC_PDU, SmsConstants.FORMAT_3GPP, 0, 0));
+    }
+
+    public void testOtherSimOperator_patternNotMatched() {
+        setSettings(null);
+        when(mTelephonyManager.getSimOperator(anyInt()))
+                .thenReturn("001003");
+        assertFalse(VisualVoicemailSmsFilter
+                .filter(mContext, VZWVVM_PDU, SmsConstants.FORMAT_3GPP, 0, 0));
+    }
+
+    public void testParse_noSideEffects() {
+        setSettings(new VisualVoicemailSmsFilterSettings.Builder().build());
+        VisualVoicemailSmsFilter.Result result = VisualVoicemailSmsFilter.parse(
+                mContext, SYNC_PDU, SmsConstants.FORMAT_3GPP, 0, 0);
+        verify(mContext, never()).sendBroadcast(any(Intent.class));
+
+        assertTrue(result.apply(mContext));
+        ArgumentCaptor<Intent> captor = ArgumentCaptor.forClass(Intent.class);
+        verify(mContext).sendBroadcast(captor.capture());
+        Intent intent = captor.getValue();
+        assertEquals(VoicemailContract.ACTION_VOICEMAIL_SMS_RECEIVED, intent.getAction());
+        VisualVoicemailSms sms = intent.getParcelableExtra(VoicemailContract.EXTRA_VOICEMAIL_SMS);
+        assertEquals("SYNC", sms.getPrefix());
+        assertEquals("NM", sms.getFields().getString("ev"));
+    }
+
+    public void testParse_mismatch_applyNotSent() {
+        setSettings(new VisualVoicemailSmsFilterSettings.Builder()
+                .setClientPrefix("//FOO").build());
+        VisualVoicemailSmsFilter.Result result = VisualVoicemailSmsFilter.parse(
+                mContext, SYNC_PDU, SmsConstants.FORMAT_3GPP, 0, 0);
+        assertFalse(result.apply(mContext));
+        verify(mContext, never()).sendBroadcast(any(Intent.class));
+    }
+
+    public void testParse_filterNotSet_droppedWithoutBroadcast() {
+        setSettings(null);
+        VisualVoicemailSmsFilter.Result result = VisualVoicemailSmsFilter.parse(
+                mContext, VZWVVM_PDU, SmsConstants.FORMAT_3GPP, 0, 0);
+        // Without a filter there is no service to send the SMS to.
+        assertTrue(result.apply(mContext));
+        verify(mContext, never()).sendBroadcast(any(Intent.class));
+    }
+
+    public void testLiteralPrefix() {
+        assertEquals("//VZWVVM", VisualVoicemailSmsFilter.VvmMatcher.getLiteralPrefix(
+                "^//VZWVVM.*"));
+        assertEquals("//VV", VisualVoicemailSmsFilter.VvmMatcher.getLiteralPrefix("//VVM?:.*"));
+        assertEquals("ab", VisualVoicemailSmsFilter.VvmMatcher.getLiteralPrefix("ab\\d+"));
+        assertEquals("", VisualVoicemailSmsFilter.VvmMatcher.getLiteralPrefix("(?i)//vvm.*"));
+        assertEquals("", VisualVoicemailSmsFilter.VvmMatcher.getLiteralPrefix("foo.*|bar.*"));
+    }
+
+    public void testMatcher_prefixCheck() {
+        VisualVoicemailSmsFilter.VvmMatcher matcher = new VisualVoicemailSmsFilter.VvmMatcher(
+                SIM_MCC_MNC, "//VVM",
+                Arrays.asList(Pattern.compile("^//VZWVVM.*"), Pattern.compile("MBOX\\d")));
+        assertTrue(matcher.mayMatch("//VVM:SYNC:ev=NM"));
+        // The first part of a multipart message may be shorter than the prefix.
+        assertTrue(matcher.mayMatch("//VZ"));
+        assertFalse(matcher.mayMatch("Hello"));
+        assertTrue(matcher.matchesPattern("//VZWVVM"));
+        assertTrue(matcher.matchesPattern("MBOX1"));
+        assertFalse(matcher.matchesPattern("MBOXA"));
+
+        matcher = new VisualVoicemailSmsFilter.VvmMatcher(SIM_MCC_MNC, "//VVM",
+                Arrays.asList(Pattern.compile(".*VVM.*")));
+        assertTrue(matcher.mayMatch("Hello"));
+    }
+
     private void setSettings(VisualVoicemailSmsFilterSettings settings) {
         when(mTelephonyManager.getActiveVisualVoicemailSmsFilterSettings(anyInt()))
                 .thenReturn(settings);
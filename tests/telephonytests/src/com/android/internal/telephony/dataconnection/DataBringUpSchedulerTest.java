@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+
+import android.telephony.AccessNetworkConstants;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.testing.AndroidTestingRunner;
+import android.testing.TestableLooper;
+
+import com.android.internal.telephony.TelephonyTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+
+@RunWith(AndroidTestingRunner.class)
+@TestableLooper.RunWithLooper
+public class DataBringUpSchedulerTest extends TelephonyTest {
+
+    @Mock
+    private ApnContext mImsApnContext;
+
+    @Mock
+    private ApnContext mDefaultApnContext;
+
+    @Mock
+    private ApnContext mMmsApnContext;
+
+    private DataBringUpScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        doReturn(40).when(mImsApnContext).getPriority();
+        doReturn(20).when(mDefaultApnContext).getPriority();
+        doReturn(30).when(mMmsApnContext).getPriority();
+        mScheduler = new DataBringUpScheduler(mPhone,
+                AccessNetworkConstants.TRANSPORT_TYPE_WWAN, "DCT-C-0");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mScheduler.dispose();
+        super.tearDown();
+    }
+
+    private void setMaxConcurrentBringUps(int max) {
+        mContextFixture.getCarrierConfigBundle().putInt(
+                DataBringUpScheduler.KEY_MAX_CONCURRENT_DATA_BRING_UPS_INT, max);
+        mScheduler.onCarrierConfigChanged();
+    }
+
+    @Test
+    @SmallTest
+    public void testNoLimitConfigured() {
+        setMaxConcurrentBringUps(0);
+        assertEquals(Integer.MAX_VALUE, mScheduler.getMaxConcurrentBringUps());
+        assertFalse(mScheduler.deferIfNeeded(mDefaultApnContext, 10));
+        assertNull(mScheduler.pollDeferredApnContext(0));
+    }
+
+    @Test
+    @SmallTest
+    public void testIwlanNotLimited() {
+        setMaxConcurrentBringUps(2);
+        DataBringUpScheduler scheduler = new DataBringUpScheduler(mPhone,
+                AccessNetworkConstants.TRANSPORT_TYPE_WLAN, "DCT-I-0");
+        scheduler.onCarrierConfigChanged();
+        assertEquals(Integer.MAX_VALUE, scheduler.getMaxConcurrentBringUps());
+        scheduler.dispose();
+    }
+
+    @Test
+    @SmallTest
+    public void testDeferredInPriorityOrder() {
+        setMaxConcurrentBringUps(2);
+        assertFalse(mScheduler.deferIfNeeded(mImsApnContext, 1));
+        assertTrue(mScheduler.deferIfNeeded(mDefaultApnContext, 2));
+        assertTrue(mScheduler.deferIfNeeded(mMmsApnContext, 2));
+        // Deferring again must not queue the same context twice.
+        assertTrue(mScheduler.deferIfNeeded(mMmsApnContext, 2));
+
+        // No free slot yet.
+        assertNull(mScheduler.pollDeferredApnContext(2));
+
+        assertEquals(mMmsApnContext, mScheduler.pollDeferredApnContext(1));
+        assertEquals(mDefaultApnContext, mScheduler.pollDeferredApnContext(1));
+        assertNull(mScheduler.pollDeferredApnContext(0));
+    }
+
+    @Test
+    @SmallTest
+    public void testClearDeferred() {
+        setMaxConcurrentBringUps(2);
+        assertTrue(mScheduler.deferIfNeeded(mDefaultApnContext, 2));
+        mScheduler.clearDeferredApnContexts();
+        assertNull(mScheduler.pollDeferredApnContext(0));
+    }
+
+    @Test
+    @SmallTest
+    public void testRemoveDeferred() {
+        setMaxConcurrentBringUps(1);
+        assertTrue(mScheduler.deferIfNeeded(mDefaultApnContext, 1));
+        assertTrue(mScheduler.deferIfNeeded(mMmsApnContext, 1));
+        mScheduler.removeDeferredApnContext(mMmsApnContext);
+        // Removing a context which is not deferred is a no-op.
+        mScheduler.removeDeferredApnContext(mImsApnContext);
+
+        assertEquals(mDefaultApnContext, mScheduler.pollDeferredApnContext(0));
+        assertNull(mScheduler.pollDeferredApnContext(0));
+    }
+
+    @Test
+    @SmallTest
+    public void testTimeToFirstConnectedAfterAttach() {
+        assertEquals(-1, mScheduler.getLastTimeToConnectedAfterAttachMs());
+        mScheduler.onDataAttached();
+        mScheduler.onApnConnected(mImsApnContext);
+        long first = mScheduler.getLastTimeToConnectedAfterAttachMs();
+        assertTrue(first >= 0);
+
+        // Only the first connected PDN after attach is recorded.
+        mScheduler.onApnConnected(mDefaultApnContext);
+        assertEquals(first, mScheduler.getLastTimeToConnectedAfterAttachMs());
+        assertEquals(-1, mScheduler.getLastTimeToConnectedAfterAirplaneModeOffMs());
+    }
+}
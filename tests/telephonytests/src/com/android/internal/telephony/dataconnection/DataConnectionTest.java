@@ -71,6 +71,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 import android.util.Pair;
 
 import com.android.internal.R;
+import com.android.internal.telephony.DctConstants;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.RetryManager;
 import com.android.internal.telephony.TelephonyTest;
@@ -1018,6 +1019,85 @@ public class DataConnectionTest extends TelephonyTest {
         waitForMs(100);
     }
 
+    private NetworkCapabilities getAgentNetworkCapabilities() throws Exception {
+        Field field = DcNetworkAgent.class.getDeclaredField("mNetworkCapabilities");
+        field.setAccessible(true);
+        return (NetworkCapabilities) field.get(mDc.getNetworkAgent());
+    }
+
+    @Test
+    @SmallTest
+    public void testUnchangedNetworkCapabilitiesSuppressed() throws Exception {
+        connectEvent(true);
+        DcNetworkAgent agent = mDc.getNetworkAgent();
+
+        agent.sendNetworkCapabilities(getNetworkCapabilities(), mDc);
+        long suppressed = agent.getTotalSuppressedUpdates();
+
+        // Identical capabilities are not forwarded.
+        agent.sendNetworkCapabilities(getNetworkCapabilities(), mDc);
+        agent.sendNetworkCapabilities(getNetworkCapabilities(), mDc);
+        assertEquals(suppressed + 2, agent.getTotalSuppressedUpdates());
+
+        // A real change is forwarded.
+        NetworkCapabilities changed = new NetworkCapabilities.Builder(getNetworkCapabilities())
+                .setLinkDownstreamBandwidthKbps(12345)
+                .build();
+        agent.sendNetworkCapabilities(changed, mDc);
+        assertEquals(suppressed + 2, agent.getTotalSuppressedUpdates());
+        assertEquals(changed, getAgentNetworkCapabilities());
+    }
+
+    @Test
+    @SmallTest
+    public void testUnchangedLinkPropertiesSuppressed() throws Exception {
+        connectEvent(true);
+        DcNetworkAgent agent = mDc.getNetworkAgent();
+
+        LinkProperties linkProperties = new LinkProperties(mDc.getLinkProperties());
+        agent.sendLinkProperties(linkProperties, mDc);
+        long suppressed = agent.getTotalSuppressedUpdates();
+
+        agent.sendLinkProperties(new LinkProperties(linkProperties), mDc);
+        assertEquals(suppressed + 1, agent.getTotalSuppressedUpdates());
+
+        // Modifying the sent link properties in place is still seen as a change.
+        linkProperties.setMtu(linkProperties.getMtu() + 1);
+        agent.sendLinkProperties(linkProperties, mDc);
+        assertEquals(suppressed + 1, agent.getTotalSuppressedUpdates());
+
+        agent.sendLinkProperties(linkProperties, mDc);
+        assertEquals(suppressed + 2, agent.getTotalSuppressedUpdates());
+    }
+
+    @Test
+    @SmallTest
+    public void testUnchangedBandwidthNotSent() throws Exception {
+        mContextFixture.putResource(R.string.config_bandwidthEstimateSource,
+                DctConstants.BANDWIDTH_SOURCE_BANDWIDTH_ESTIMATOR_KEY);
+        connectEvent(true);
+        DcNetworkAgent agent = mDc.getNetworkAgent();
+
+        mDc.obtainMessage(DataConnection.EVENT_LINK_BANDWIDTH_ESTIMATOR_UPDATE,
+                new AsyncResult(null, new Pair<>(100, 200), null)).sendToTarget();
+        waitForMs(100);
+        assertEquals(100, getAgentNetworkCapabilities().getLinkUpstreamBandwidthKbps());
+        assertEquals(200, getAgentNetworkCapabilities().getLinkDownstreamBandwidthKbps());
+        long suppressed = agent.getTotalSuppressedUpdates();
+
+        // The same bandwidths do not even reach the network agent.
+        mDc.obtainMessage(DataConnection.EVENT_LINK_BANDWIDTH_ESTIMATOR_UPDATE,
+                new AsyncResult(null, new Pair<>(100, 200), null)).sendToTarget();
+        waitForMs(100);
+        assertEquals(suppressed, agent.getTotalSuppressedUpdates());
+
+        mDc.obtainMessage(DataConnection.EVENT_LINK_BANDWIDTH_ESTIMATOR_UPDATE,
+                new AsyncResult(null, new Pair<>(100, 300), null)).sendToTarget();
+        waitForMs(100);
+        assertEquals(suppressed, agent.getTotalSuppressedUpdates());
+        assertEquals(300, getAgentNetworkCapabilities().getLinkDownstreamBandwidthKbps());
+    }
+
     @Test
     @SmallTest
     public void testIsIpAddress() {
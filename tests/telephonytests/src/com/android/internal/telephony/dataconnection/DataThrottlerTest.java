@@ -20,9 +20,19 @@ import static com.android.internal.telephony.dataconnection.DcTracker.REQUEST_TY
 import static com.android.internal.telephony.dataconnection.DcTracker.REQUEST_TYPE_NORMAL;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import android.app.AlarmManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.telephony.AccessNetworkConstants;
 import android.telephony.data.ApnSetting;
 import android.telephony.data.ThrottleStatus;
@@ -200,6 +210,65 @@ public class DataThrottlerTest extends TelephonyTest {
         this.mDataThrottler.registerForThrottleStatusChanges(mMockChangedCallback2);
     }
 
+    /**
+     * Test that the throttle expiry is armed exactly on the elapsed realtime clock, which keeps
+     * counting in deep sleep, and that the alarm unthrottles the APN type.
+     */
+    @Test
+    @SmallTest
+    public void testThrottleExpiryAlarm() throws Exception {
+        AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(
+                Context.ALARM_SERVICE);
+        processAllMessages();
+
+        long mmsExpiry = SystemClock.elapsedRealtime() + 60 * 1000;
+        long suplExpiry = mmsExpiry + 60 * 1000;
+        mDataThrottler.setRetryTime(ApnSetting.TYPE_MMS, mmsExpiry, REQUEST_TYPE_NORMAL);
+        mDataThrottler.setRetryTime(ApnSetting.TYPE_SUPL, suplExpiry, REQUEST_TYPE_NORMAL);
+        processAllMessages();
+        assertEquals(mmsExpiry, mDataThrottler.getRetryTime(ApnSetting.TYPE_MMS));
+
+        // The alarm is armed exactly for the earliest expiry.
+        ArgumentCaptor<AlarmManager.OnAlarmListener> listenerCaptor =
+                ArgumentCaptor.forClass(AlarmManager.OnAlarmListener.class);
+        verify(alarmManager).setExact(eq(AlarmManager.ELAPSED_REALTIME), eq(mmsExpiry),
+                anyString(), listenerCaptor.capture(), any(Handler.class));
+        verify(alarmManager, never()).set(anyInt(), anyLong(), anyString(),
+                any(AlarmManager.OnAlarmListener.class), any(Handler.class));
+
+        // Delivering the alarm unthrottles the APN type it was armed for, and arms the next one.
+        listenerCaptor.getValue().onAlarm();
+        processAllMessages();
+        assertEquals(RetryManager.NO_SUGGESTED_RETRY_DELAY,
+                mDataThrottler.getRetryTime(ApnSetting.TYPE_MMS));
+        assertEquals(suplExpiry, mDataThrottler.getRetryTime(ApnSetting.TYPE_SUPL));
+        verify(alarmManager).setExact(eq(AlarmManager.ELAPSED_REALTIME), eq(suplExpiry),
+                anyString(), any(AlarmManager.OnAlarmListener.class), any(Handler.class));
+    }
+
+    /**
+     * Test that several retry time changes handled in a row are reported in one callback.
+     */
+    @Test
+    @SmallTest
+    public void testCoalescedNotification() throws Exception {
+        final ArgumentCaptor<List<ThrottleStatus>> statusCaptor =
+                ArgumentCaptor.forClass((Class) List.class);
+        processAllMessages();
+
+        mDataThrottler.setRetryTime(ApnSetting.TYPE_MMS, 1234567890L, REQUEST_TYPE_NORMAL);
+        mDataThrottler.setRetryTime(ApnSetting.TYPE_SUPL, 1234567890L, REQUEST_TYPE_NORMAL);
+        processAllMessages();
+
+        // One for the registration, one for both changes.
+        verify(mMockChangedCallback1, times(2)).onThrottleStatusChanged(statusCaptor.capture());
+        assertEquals(2, statusCaptor.getAllValues().get(1).size());
+        assertEquals(1234567890L, mDataThrottler.getRetryTime(ApnSetting.TYPE_MMS));
+        assertEquals(1234567890L, mDataThrottler.getRetryTime(ApnSetting.TYPE_SUPL));
+        assertEquals(RetryManager.NO_SUGGESTED_RETRY_DELAY,
+                mDataThrottler.getRetryTime(ApnSetting.TYPE_MMS | ApnSetting.TYPE_SUPL));
+    }
+
     /**
      * Test the behavior of a retry manager with no waiting APNs set.
      */
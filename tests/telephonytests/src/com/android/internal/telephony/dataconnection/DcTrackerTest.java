@@ -1014,6 +1014,79 @@ public class DcTrackerTest extends TelephonyTest {
         assertEquals(DctConstants.State.CONNECTED, mDct.getState(ApnSetting.TYPE_IMS_STRING));
     }
 
+    // Test that bring-ups over the carrier limit are deferred until an earlier one completes.
+    @Test
+    @MediumTest
+    public void testConcurrentBringUpsLimited() {
+        mBundle.putInt(DataBringUpScheduler.KEY_MAX_CONCURRENT_DATA_BRING_UPS_INT, 1);
+        mBundle.putStringArray(CarrierConfigManager.KEY_CARRIER_METERED_APN_TYPES_STRINGS,
+                new String[]{ApnSetting.TYPE_DEFAULT_STRING, ApnSetting.TYPE_MMS_STRING});
+        mDct.enableApn(ApnSetting.TYPE_MMS, DcTracker.REQUEST_TYPE_NORMAL, null);
+        mDct.enableApn(ApnSetting.TYPE_DEFAULT, DcTracker.REQUEST_TYPE_NORMAL, null);
+
+        // Hold the setup responses so that the first bring-up stays in flight.
+        mSimulatedCommands.pauseResponses();
+        sendInitializationEvents();
+        waitForMs(200);
+
+        verify(mSimulatedCommandsVerifier, times(1)).setupDataCall(
+                eq(AccessNetworkType.EUTRAN), any(DataProfile.class),
+                eq(false), eq(false), eq(DataService.REQUEST_REASON_NORMAL), any(),
+                anyInt(), any(), any(), anyBoolean(), any(Message.class));
+
+        // The deferred bring-up is released once the first one completes.
+        mSimulatedCommands.resumeResponses();
+        waitForMs(200);
+        waitForLastHandlerAction(mDcTrackerTestHandler.getThreadHandler());
+        waitForMs(200);
+
+        verify(mSimulatedCommandsVerifier, times(2)).setupDataCall(
+                eq(AccessNetworkType.EUTRAN), any(DataProfile.class),
+                eq(false), eq(false), eq(DataService.REQUEST_REASON_NORMAL), any(),
+                anyInt(), any(), any(), anyBoolean(), any(Message.class));
+        assertEquals(DctConstants.State.CONNECTED, mDct.getState(ApnSetting.TYPE_DEFAULT_STRING));
+        assertEquals(DctConstants.State.CONNECTED, mDct.getState(ApnSetting.TYPE_MMS_STRING));
+    }
+
+    // Test that an APN enabled while a bring-up is in flight is deferred as well, and that a
+    // deferred APN which is disabled again is not brought up.
+    @Test
+    @MediumTest
+    public void testEnabledApnBringUpDeferredAndDropped() {
+        mBundle.putInt(DataBringUpScheduler.KEY_MAX_CONCURRENT_DATA_BRING_UPS_INT, 1);
+        mBundle.putStringArray(CarrierConfigManager.KEY_CARRIER_METERED_APN_TYPES_STRINGS,
+                new String[]{ApnSetting.TYPE_DEFAULT_STRING, ApnSetting.TYPE_MMS_STRING});
+        mDct.enableApn(ApnSetting.TYPE_DEFAULT, DcTracker.REQUEST_TYPE_NORMAL, null);
+
+        // Hold the setup responses so that the default bring-up stays in flight.
+        mSimulatedCommands.pauseResponses();
+        sendInitializationEvents();
+        waitForMs(200);
+
+        // MMS is enabled after the configuration is ready, directly trying to set up data.
+        mDct.enableApn(ApnSetting.TYPE_MMS, DcTracker.REQUEST_TYPE_NORMAL, null);
+        waitForLastHandlerAction(mDcTrackerTestHandler.getThreadHandler());
+        verify(mSimulatedCommandsVerifier, times(1)).setupDataCall(
+                eq(AccessNetworkType.EUTRAN), any(DataProfile.class),
+                eq(false), eq(false), eq(DataService.REQUEST_REASON_NORMAL), any(),
+                anyInt(), any(), any(), anyBoolean(), any(Message.class));
+
+        // MMS is released before the default bring-up completes.
+        mDct.disableApn(ApnSetting.TYPE_MMS, DcTracker.RELEASE_TYPE_NORMAL);
+        waitForLastHandlerAction(mDcTrackerTestHandler.getThreadHandler());
+        mSimulatedCommands.resumeResponses();
+        waitForMs(200);
+        waitForLastHandlerAction(mDcTrackerTestHandler.getThreadHandler());
+        waitForMs(200);
+
+        verify(mSimulatedCommandsVerifier, times(1)).setupDataCall(
+                eq(AccessNetworkType.EUTRAN), any(DataProfile.class),
+                eq(false), eq(false), eq(DataService.REQUEST_REASON_NORMAL), any(),
+                anyInt(), any(), any(), anyBoolean(), any(Message.class));
+        assertEquals(DctConstants.State.CONNECTED, mDct.getState(ApnSetting.TYPE_DEFAULT_STRING));
+        assertEquals(DctConstants.State.IDLE, mDct.getState(ApnSetting.TYPE_MMS_STRING));
+    }
+
     @Test
     @MediumTest
     public void testTrySetupDataMmsAllowedDataDisabled() {
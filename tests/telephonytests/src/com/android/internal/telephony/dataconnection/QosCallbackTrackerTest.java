@@ -486,5 +486,64 @@ public class QosCallbackTrackerTest extends TelephonyTest {
                 eq(1235), any(EpsBearerQosSessionAttributes.class));
 
     }
-}
 
+    /**
+     * Scale callbacks and qos sessions to the hundreds. Updates that only change the qos must
+     * notify the matching callbacks without evaluating any filter again.
+     */
+    @Test
+    @SmallTest
+    public void testManyCallbacksAndSessions() throws Exception {
+        final int count = 200;
+        final int[] evaluations = new int[1];
+        for (int i = 0; i < count; i++) {
+            mQosCallbackTracker.addFilter(i, new Filter(new InetSocketAddress(
+                    InetAddresses.parseNumericAddress("122.22.22.22"), 10000 + i)) {
+                @Override
+                public boolean matchesLocalAddress(@NonNull final InetAddress address,
+                        final int startPort, final int endPort) {
+                    evaluations[0]++;
+                    return super.matchesLocalAddress(address, startPort, endPort);
+                }
+            });
+        }
+
+        ArrayList<QosBearerSession> qosSessions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ArrayList<QosBearerFilter> qosFilters = new ArrayList<>();
+            qosFilters.add(createIpv4QosFilter("122.22.22.22",
+                    new QosBearerFilter.PortRange(10000 + i, 10000 + i), 45));
+            qosSessions.add(new QosBearerSession(i, createEpsQos(5, 6, 7, 8), qosFilters));
+        }
+
+        long start = System.nanoTime();
+        mQosCallbackTracker.updateSessions(qosSessions);
+        long fullMatchNs = System.nanoTime() - start;
+        assertEquals(count * count, evaluations[0]);
+        verify(mDcNetworkAgent, times(count)).notifyQosSessionAvailable(anyInt(), anyInt(),
+                any(EpsBearerQosSessionAttributes.class));
+
+        // Same filters with new qos
+        ArrayList<QosBearerSession> updatedSessions = new ArrayList<>();
+        for (QosBearerSession session : qosSessions) {
+            updatedSessions.add(new QosBearerSession(session.getQosBearerSessionId(),
+                    createEpsQos(6, 6, 7, 8), session.getQosBearerFilterList()));
+        }
+        evaluations[0] = 0;
+        start = System.nanoTime();
+        mQosCallbackTracker.updateSessions(updatedSessions);
+        long indexedNs = System.nanoTime() - start;
+        assertEquals(0, evaluations[0]);
+        verify(mDcNetworkAgent, times(2 * count)).notifyQosSessionAvailable(anyInt(), anyInt(),
+                any(EpsBearerQosSessionAttributes.class));
+
+        // All sessions lost
+        mQosCallbackTracker.updateSessions(new ArrayList<>());
+        assertEquals(0, evaluations[0]);
+        verify(mDcNetworkAgent, times(count)).notifyQosSessionLost(anyInt(), anyInt(), anyInt());
+
+        logd("testManyCallbacksAndSessions: " + count + " callbacks x " + count
+                + " sessions, full match " + fullMatchNs / 1000 + "us, indexed update "
+                + indexedNs / 1000 + "us");
+    }
+}
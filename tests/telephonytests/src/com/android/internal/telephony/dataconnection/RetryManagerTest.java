@@ -17,6 +17,7 @@
 package com.android.internal.telephony.dataconnection;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doReturn;
@@ -37,6 +38,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Random;
 
 /**
  * APN retry manager tests
@@ -1040,4 +1042,108 @@ public class RetryManagerTest extends TelephonyTest {
         delay = rm.getDelayForNextApn(false);
         assertEquals(4000, delay);
     }
+
+    /**
+     * Test compiling retry configuration strings into retry schedules.
+     */
+    @Test
+    @SmallTest
+    public void testRetryScheduleCompile() throws Exception {
+        RetryManager.RetrySchedule schedule = RetryManager.RetrySchedule.compile(
+                "max_retries=10, default_randomization=500, 1000, 2000:0, 3000");
+        assertEquals(3, schedule.size());
+        assertEquals(10, schedule.getMaxRetryCount());
+        assertFalse(schedule.isRetryForever());
+        assertEquals(1000, schedule.getDelayTime(0));
+        assertEquals(500, schedule.getRandomizationTime(0));
+        assertEquals(2000, schedule.getDelayTime(1));
+        assertEquals(0, schedule.getRandomizationTime(1));
+        assertEquals(3000, schedule.getDelayTime(2));
+        assertEquals(500, schedule.getRandomizationTime(2));
+
+        schedule = RetryManager.RetrySchedule.compile("max_retries=infinite,1000,2000");
+        assertTrue(schedule.isRetryForever());
+        assertEquals(2, schedule.getMaxRetryCount());
+
+        schedule = RetryManager.RetrySchedule.compile("");
+        assertEquals(0, schedule.size());
+        assertEquals(0, schedule.getMaxRetryCount());
+
+        // Values parsed before a malformed entry are kept.
+        schedule = RetryManager.RetrySchedule.compile("1000, -5, 3000");
+        assertEquals(1, schedule.size());
+        assertEquals(0, schedule.getMaxRetryCount());
+    }
+
+    /**
+     * Drive retry managers through a large number of random failure sequences and verify every
+     * delay against a model of the retry rules.
+     */
+    @Test
+    @SmallTest
+    public void testRetryManagerSimulation() throws Exception {
+        final int sequences = 2000;
+        final int stepsPerSequence = 20;
+        final ApnSetting[] apns = new ApnSetting[]{mApn1, mApn2, mApn3};
+        Random random = new Random(1234);
+        long totalSteps = 0;
+        long startTime = SystemClock.elapsedRealtimeNanos();
+
+        for (int seq = 0; seq < sequences; seq++) {
+            int apnCount = 1 + random.nextInt(apns.length);
+            int delayCount = random.nextInt(5);
+            long[] delays = new long[delayCount];
+            StringBuilder config = new StringBuilder("default:");
+            int configuredMaxRetries = random.nextInt(6);
+            boolean retryForever = random.nextInt(4) == 0;
+            config.append("max_retries=").append(
+                    retryForever ? "infinite" : String.valueOf(configuredMaxRetries));
+            for (int i = 0; i < delayCount; i++) {
+                delays[i] = 1000L * (1 + random.nextInt(30));
+                config.append(",").append(delays[i]);
+            }
+            long interApnDelay = 1000L * (1 + random.nextInt(30));
+            mBundle.putStringArray(
+                    CarrierConfigManager.KEY_CARRIER_DATA_CALL_RETRY_CONFIG_STRINGS,
+                    new String[]{config.toString()});
+            mBundle.putLong(CarrierConfigManager.KEY_CARRIER_DATA_CALL_APN_DELAY_DEFAULT_LONG,
+                    interApnDelay);
+
+            ArrayList<ApnSetting> waitingApns = new ArrayList<>();
+            for (int i = 0; i < apnCount; i++) {
+                waitingApns.add(ApnSetting.makeApnSetting(apns[i]));
+            }
+            RetryManager rm = new RetryManager(mPhone, mDataThrottler, ApnSetting.TYPE_DEFAULT);
+            rm.setWaitingApns(waitingApns);
+
+            int maxRetries = Math.max(configuredMaxRetries, delayCount);
+            int currentIndex = -1;
+            int retryCount = 0;
+            for (int step = 0; step < stepsPerSequence; step++) {
+                currentIndex = (currentIndex + 1) % apnCount;
+                assertTrue(rm.getNextApnSetting().equals(apns[currentIndex]));
+
+                long expected;
+                int nextIndex = (currentIndex + 1) % apnCount;
+                if (nextIndex <= currentIndex) {
+                    if (!retryForever && retryCount + 1 > maxRetries) {
+                        expected = RetryManager.NO_RETRY;
+                    } else {
+                        expected = delayCount == 0
+                                ? 0 : delays[Math.min(retryCount, delayCount - 1)];
+                        retryCount++;
+                    }
+                } else {
+                    expected = interApnDelay;
+                }
+                assertEquals("sequence " + seq + " step " + step + " config " + config,
+                        expected, rm.getDelayForNextApn(false));
+                totalSteps++;
+            }
+        }
+
+        long elapsedMs = (SystemClock.elapsedRealtimeNanos() - startTime) / 1000000;
+        logd("testRetryManagerSimulation: " + sequences + " sequences, " + totalSteps
+                + " retries in " + elapsedMs + "ms");
+    }
 }
@@ -30,6 +30,7 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.nullable;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -47,9 +48,12 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncResult;
 import android.os.Bundle;
+import android.os.PersistableBundle;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Telephony;
+import android.telecom.TelecomManager;
+import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 import android.test.mock.MockContentResolver;
 import android.testing.AndroidTestingRunner;
@@ -67,6 +71,7 @@ import com.android.internal.telephony.SmsHeader;
 import com.android.internal.telephony.SmsStorageMonitor;
 import com.android.internal.telephony.TelephonyTest;
 import com.android.internal.telephony.cdma.CdmaInboundSmsHandler;
+import com.android.internal.telephony.uicc.IccUtils;
 import com.android.internal.util.IState;
 import com.android.internal.util.StateMachine;
 
@@ -75,6 +80,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.stubbing.Answer;
@@ -82,6 +88,7 @@ import org.mockito.verification.VerificationMode;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -458,6 +465,85 @@ public class GsmInboundSmsHandlerTest extends TelephonyTest {
         assertEquals("IdleState", getCurrentState().getName());
     }
 
+    @Test
+    @MediumTest
+    public void testNewSms_filtersInvokedInOrder() {
+        transitionFromStartupToIdle();
+
+        sendNewSms();
+
+        InOrder inOrder = inOrder(mSmsFilter, mSmsFilter2);
+        inOrder.verify(mSmsFilter).filterSms(any(byte[][].class), anyInt(),
+                any(InboundSmsTracker.class), any(InboundSmsHandler.SmsBroadcastReceiver.class),
+                anyBoolean(), anyBoolean(), eq(Collections.singletonList(mSmsFilter2)));
+        inOrder.verify(mSmsFilter2).filterSms(any(byte[][].class), anyInt(),
+                any(InboundSmsTracker.class), any(InboundSmsHandler.SmsBroadcastReceiver.class),
+                anyBoolean(), anyBoolean(), eq(Collections.emptyList()));
+        // Filters are only prepared while an asynchronous filter runs.
+        verify(mSmsFilter2, never()).prepare(any(byte[][].class), anyInt(),
+                any(InboundSmsTracker.class));
+    }
+
+    @Test
+    @MediumTest
+    public void testDefaultSmsFilterOrder() {
+        mGsmInboundSmsHandler.setSmsFiltersForTesting(null);
+
+        List<String> names = new ArrayList<>();
+        for (InboundSmsHandler.SmsFilter filter
+                : mGsmInboundSmsHandler.getSmsFiltersForTesting()) {
+            names.add(filter.getName());
+        }
+        assertEquals(Arrays.asList("CarrierServices", "VisualVoicemail", "MissedIncomingCall"),
+                names);
+    }
+
+    private void setMissedIncomingCallSmsConfig(boolean enabled) {
+        PersistableBundle bundle = mContextFixture.getCarrierConfigBundle();
+        bundle.putStringArray(
+                CarrierConfigManager.KEY_MISSED_INCOMING_CALL_SMS_ORIGINATOR_STRING_ARRAY,
+                enabled ? new String[]{"+18584121234"} : null);
+        bundle.putStringArray(
+                CarrierConfigManager.KEY_MISSED_INCOMING_CALL_SMS_PATTERN_STRING_ARRAY,
+                enabled ? new String[]{"^(?<month>0[1-9]|1[012])\\/(?<day>0[1-9]|1[0-9]|2[0-9]"
+                        + "|3[0-1]) (?<hour>[0-1][0-9]|2[0-3]):(?<minute>[0-5][0-9])\\s*"
+                        + "(?<callerId>[0-9]+)\\s*$"} : null);
+    }
+
+    @Test
+    @MediumTest
+    public void testPreparedFilterDecisionApplied() {
+        mGsmInboundSmsHandler.setSmsFiltersForTesting(null);
+        InboundSmsHandler.SmsFilter missedCallFilter =
+                mGsmInboundSmsHandler.getSmsFiltersForTesting().get(2);
+        byte[][] pdus = {IccUtils.hexStringToBytes("07919107739667F9040B918185141232F40000021041"
+                + "3141114A17B0D82B4603C170BA580DA4B0D56031D98C56B3DD1A")};
+        TelecomManager telecomManager =
+                (TelecomManager) mContext.getSystemService(Context.TELECOM_SERVICE);
+        transitionFromStartupToIdle();
+        processAllMessages();
+
+        setMissedIncomingCallSmsConfig(true);
+        missedCallFilter.prepare(pdus, -1, mInboundSmsTracker);
+        // Preparing has no side effects, the message may still be dropped by the carrier.
+        verify(telecomManager, never()).addNewIncomingCall(any(), any());
+
+        // The decision made when preparing is applied, the filter doesn't match again.
+        setMissedIncomingCallSmsConfig(false);
+        assertTrue(missedCallFilter.filterSms(pdus, -1, mInboundSmsTracker, null, true, true,
+                Collections.emptyList()));
+        verify(telecomManager).addNewIncomingCall(any(), any());
+        processAllMessages();
+
+        // A decision prepared for another message isn't used.
+        setMissedIncomingCallSmsConfig(true);
+        missedCallFilter.prepare(pdus, -1, mInboundSmsTrackerSub1);
+        setMissedIncomingCallSmsConfig(false);
+        assertFalse(missedCallFilter.filterSms(pdus, -1, mInboundSmsTracker, null, true, true,
+                Collections.emptyList()));
+        verify(telecomManager).addNewIncomingCall(any(), any());
+    }
+
     private void verifyDataSmsIntentBroadcasts(int numPastBroadcasts) {
         ArgumentCaptor<Intent> intentArgumentCaptor = ArgumentCaptor.forClass(Intent.class);
         verify(mContext, times(1 + numPastBroadcasts)).sendBroadcast(
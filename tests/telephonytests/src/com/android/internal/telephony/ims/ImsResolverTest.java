@@ -39,6 +39,7 @@ import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
@@ -57,6 +58,7 @@ import android.testing.AndroidTestingRunner;
 import android.testing.TestableLooper;
 import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.AtomicFile;
 
 import com.android.ims.ImsFeatureBinderRepository;
 import com.android.internal.telephony.PhoneConfigurationManager;
@@ -68,6 +70,7 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -120,6 +123,7 @@ public class ImsResolverTest extends ImsTestBase {
     private ImsServiceFeatureQueryManager.Listener mDynamicQueryListener;
     private PersistableBundle[] mCarrierConfigs;
     private TestableLooper mLooper;
+    private File mFeatureCacheFile;
 
     @Before
     @Override
@@ -132,6 +136,7 @@ public class ImsResolverTest extends ImsTestBase {
     public void tearDown() throws Exception {
         mTestImsResolver.destroy();
         mTestImsResolver = null;
+        new AtomicFile(mFeatureCacheFile).delete();
         super.tearDown();
     }
 
@@ -563,6 +568,71 @@ public class ImsResolverTest extends ImsTestBase {
         assertEquals(TEST_CARRIER_DEFAULT_NAME, controller.getComponentName());
     }
 
+    /**
+     * Features persisted by a previous boot for the same version of the carrier ImsService are
+     * used to bind before the dynamic query completes. The query result then replaces them.
+     */
+    @Test
+    @SmallTest
+    public void testCarrierPackageBindWithPersistedFeatures() throws RemoteException {
+        setupResolver(1 /*numSlots*/, TEST_DEVICE_DEFAULT_NAME.getPackageName(),
+                TEST_DEVICE_DEFAULT_NAME.getPackageName());
+        setConfigCarrierStringMmTelRcs(0, TEST_CARRIER_DEFAULT_NAME.getPackageName());
+        HashSet<ImsFeatureConfiguration.FeatureSlotPair> features = new HashSet<>();
+        features.add(new ImsFeatureConfiguration.FeatureSlotPair(0, ImsFeature.FEATURE_MMTEL));
+        features.add(new ImsFeatureConfiguration.FeatureSlotPair(0, ImsFeature.FEATURE_RCS));
+        new ImsServiceFeatureCache(mFeatureCacheFile).put(TEST_CARRIER_DEFAULT_NAME,
+                1 /*versionCode*/, features);
+        List<ResolveInfo> info = new ArrayList<>();
+        info.add(getResolveInfo(TEST_CARRIER_DEFAULT_NAME, new HashSet<>(), true,
+                1 /*versionCode*/));
+        setupPackageQuery(info);
+        ImsServiceController controller = setupController();
+
+        startBindCarrierConfigAlreadySet();
+
+        // Bound with the persisted features, the query is still pending.
+        verify(controller).bind(features);
+        verify(mMockQueryManager).startQuery(eq(TEST_CARRIER_DEFAULT_NAME), any(String.class));
+
+        HashSet<ImsFeatureConfiguration.FeatureSlotPair> newFeatures = new HashSet<>(features);
+        newFeatures.add(new ImsFeatureConfiguration.FeatureSlotPair(0,
+                ImsFeature.FEATURE_EMERGENCY_MMTEL));
+        setupDynamicQueryFeatures(TEST_CARRIER_DEFAULT_NAME, newFeatures, 1);
+
+        verify(controller).changeImsServiceFeatures(newFeatures);
+        verify(controller, never()).unbind();
+        assertEquals(newFeatures, new ImsServiceFeatureCache(mFeatureCacheFile).get(
+                TEST_CARRIER_DEFAULT_NAME, 1 /*versionCode*/));
+    }
+
+    /**
+     * Features persisted for another version of the carrier ImsService are not used, the bind
+     * waits for the dynamic query.
+     */
+    @Test
+    @SmallTest
+    public void testCarrierPackagePersistedFeaturesOtherVersion() throws RemoteException {
+        setupResolver(1 /*numSlots*/, TEST_DEVICE_DEFAULT_NAME.getPackageName(),
+                TEST_DEVICE_DEFAULT_NAME.getPackageName());
+        setConfigCarrierStringMmTelRcs(0, TEST_CARRIER_DEFAULT_NAME.getPackageName());
+        HashSet<ImsFeatureConfiguration.FeatureSlotPair> features = new HashSet<>();
+        features.add(new ImsFeatureConfiguration.FeatureSlotPair(0, ImsFeature.FEATURE_MMTEL));
+        new ImsServiceFeatureCache(mFeatureCacheFile).put(TEST_CARRIER_DEFAULT_NAME,
+                1 /*versionCode*/, features);
+        List<ResolveInfo> info = new ArrayList<>();
+        info.add(getResolveInfo(TEST_CARRIER_DEFAULT_NAME, new HashSet<>(), true,
+                2 /*versionCode*/));
+        setupPackageQuery(info);
+        ImsServiceController controller = setupController();
+
+        startBindCarrierConfigAlreadySet();
+        verify(controller, never()).bind(any());
+
+        setupDynamicQueryFeatures(TEST_CARRIER_DEFAULT_NAME, features, 1);
+        verify(controller).bind(features);
+    }
+
     /**
      * Creates a carrier ImsService that defines FEATURE_EMERGENCY_MMTEL but not FEATURE_MMTEL and
      * ensure that the controller doesn't set FEATURE_EMERGENCY_MMTEL.
@@ -1594,6 +1664,73 @@ public class ImsResolverTest extends ImsTestBase {
         verify(deviceController).changeImsServiceFeatures(deviceFeatureSet);
     }
 
+    /**
+     * When the carrier configs of several slots change together, the features are only calculated
+     * once the last change is handled, so the ImsService is bound with the features of all slots
+     * at once.
+     */
+    @Test
+    @SmallTest
+    public void testFeatureCalculationDeferredForPendingCarrierConfigs() throws RemoteException {
+        setupResolver(2 /*numSlots*/, TEST_DEVICE_DEFAULT_NAME.getPackageName(),
+                TEST_DEVICE_DEFAULT_NAME.getPackageName());
+        List<ResolveInfo> info = new ArrayList<>();
+        Set<String> features = new HashSet<>();
+        features.add(ImsResolver.METADATA_MMTEL_FEATURE);
+        features.add(ImsResolver.METADATA_RCS_FEATURE);
+        info.add(getResolveInfo(TEST_DEVICE_DEFAULT_NAME, features, true));
+        setupPackageQuery(info);
+        ImsServiceController controller = setupController();
+
+        mTestImsResolver.initialize();
+        ArgumentCaptor<BroadcastReceiver> receiversCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mMockContext, times(3)).registerReceiver(receiversCaptor.capture(), any());
+        mTestCarrierConfigReceiver = receiversCaptor.getAllValues().get(1);
+        processAllMessages();
+
+        // Both carrier config changes are pending before the first one is handled.
+        for (int i = 0; i < 2; i++) {
+            Intent carrierConfigIntent = new Intent();
+            carrierConfigIntent.putExtra(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX, i);
+            carrierConfigIntent.putExtra(CarrierConfigManager.EXTRA_SLOT_INDEX, i);
+            mTestCarrierConfigReceiver.onReceive(null, carrierConfigIntent);
+        }
+        processAllMessages();
+
+        HashSet<ImsFeatureConfiguration.FeatureSlotPair> featureSet = convertToHashSet(features, 0);
+        featureSet.addAll(convertToHashSet(features, 1));
+        verify(controller).bind(featureSet);
+        verify(controller, never()).changeImsServiceFeatures(any());
+        verify(controller, never()).unbind();
+    }
+
+    /**
+     * If the user is already unlocked when the ImsResolver is initialized, the installed services
+     * cache already includes the ImsServices which are not direct boot aware, so BOOT_COMPLETE
+     * doesn't query PackageManager again.
+     */
+    @Test
+    @SmallTest
+    public void testBootCompleteSkippedWhenInitializedUnlocked() throws RemoteException {
+        setupResolver(1 /*numSlots*/, TEST_DEVICE_DEFAULT_NAME.getPackageName(),
+                TEST_DEVICE_DEFAULT_NAME.getPackageName());
+        Set<String> features = new HashSet<>();
+        features.add(ImsResolver.METADATA_MMTEL_FEATURE);
+        setupPackageQuery(TEST_DEVICE_DEFAULT_NAME, features, true);
+        setupController();
+        when(mMockUserManager.isUserUnlocked()).thenReturn(true);
+
+        mTestImsResolver.initialize();
+        processAllMessages();
+
+        // No BOOT_COMPLETED receiver is registered, the handler ran right away.
+        verify(mMockContext, times(2)).registerReceiver(any(), any());
+        verify(mMockPM, times(1)).queryIntentServicesAsUser(
+                argThat(argument -> ImsService.SERVICE_INTERFACE.equals(argument.getAction())),
+                anyInt(), any());
+    }
+
     /**
      * If a misbehaving ImsService returns null for the Binder connection when we perform a dynamic
      * feature query, verify we never perform a full bind for any features.
@@ -1876,6 +2013,9 @@ public class ImsResolverTest extends ImsTestBase {
         when(mMockQueryManagerFactory.create(any(Context.class),
                 any(ImsServiceFeatureQueryManager.Listener.class))).thenReturn(mMockQueryManager);
         mTestImsResolver.setImsDynamicQueryManagerFactory(mMockQueryManagerFactory);
+        mFeatureCacheFile = new File(mContext.getCacheDir(), "ims_resolver_test_features");
+        new AtomicFile(mFeatureCacheFile).delete();
+        mTestImsResolver.setImsServiceFeatureCache(new ImsServiceFeatureCache(mFeatureCacheFile));
         processAllMessages();
     }
 
@@ -2206,4 +2346,12 @@ public class ImsResolverTest extends ImsTestBase {
         }
         return info;
     }
+
+    private ResolveInfo getResolveInfo(ComponentName name, Set<String> features,
+            boolean isPermissionGranted, long versionCode) {
+        ResolveInfo info = getResolveInfo(name, features, isPermissionGranted);
+        info.serviceInfo.applicationInfo = new ApplicationInfo();
+        info.serviceInfo.applicationInfo.longVersionCode = versionCode;
+        return info;
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.ims;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.content.ComponentName;
+import android.telephony.ims.feature.ImsFeature;
+import android.telephony.ims.stub.ImsFeatureConfiguration;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.AtomicFile;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+public class ImsServiceFeatureCacheTest {
+    private static final ComponentName TEST_NAME = new ComponentName("TestPkg", "ImsService");
+    private static final ComponentName TEST_NAME_2 = new ComponentName("TestPkg2", "ImsService");
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "ims_service_feature_cache_test");
+        new AtomicFile(mFile).delete();
+    }
+
+    @After
+    public void tearDown() {
+        new AtomicFile(mFile).delete();
+    }
+
+    private static Set<ImsFeatureConfiguration.FeatureSlotPair> getFeatures(int slotId) {
+        Set<ImsFeatureConfiguration.FeatureSlotPair> features = new HashSet<>();
+        features.add(new ImsFeatureConfiguration.FeatureSlotPair(slotId,
+                ImsFeature.FEATURE_MMTEL));
+        features.add(new ImsFeatureConfiguration.FeatureSlotPair(slotId, ImsFeature.FEATURE_RCS));
+        return features;
+    }
+
+    @Test
+    @SmallTest
+    public void testPersistedAcrossInstances() {
+        ImsServiceFeatureCache cache = new ImsServiceFeatureCache(mFile);
+        cache.put(TEST_NAME, 1, getFeatures(0));
+        cache.put(TEST_NAME_2, 5, getFeatures(1));
+
+        ImsServiceFeatureCache loaded = new ImsServiceFeatureCache(mFile);
+        assertEquals(2, loaded.size());
+        assertEquals(getFeatures(0), loaded.get(TEST_NAME, 1));
+        assertEquals(getFeatures(1), loaded.get(TEST_NAME_2, 5));
+        // Another version of the package.
+        assertNull(loaded.get(TEST_NAME, 2));
+        assertNull(loaded.get(TEST_NAME, ImsServiceFeatureCache.VERSION_CODE_UNKNOWN));
+    }
+
+    @Test
+    @SmallTest
+    public void testUnknownVersionNotCached() {
+        ImsServiceFeatureCache cache = new ImsServiceFeatureCache(mFile);
+        cache.put(TEST_NAME, ImsServiceFeatureCache.VERSION_CODE_UNKNOWN, getFeatures(0));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testRemovePackage() {
+        ImsServiceFeatureCache cache = new ImsServiceFeatureCache(mFile);
+        cache.put(TEST_NAME, 1, getFeatures(0));
+        cache.put(TEST_NAME_2, 1, getFeatures(0));
+        cache.remove(TEST_NAME.getPackageName());
+
+        ImsServiceFeatureCache loaded = new ImsServiceFeatureCache(mFile);
+        assertEquals(1, loaded.size());
+        assertNull(loaded.get(TEST_NAME, 1));
+    }
+
+    @Test
+    @SmallTest
+    public void testCorruptFileIgnored() throws Exception {
+        AtomicFile file = new AtomicFile(mFile);
+        FileOutputStream out = file.startWrite();
+        out.write(new byte[] {0, 0, 0, 1, 0, 0, 0, 1, 0});
+        file.finishWrite(out);
+
+        ImsServiceFeatureCache cache = new ImsServiceFeatureCache(mFile);
+        assertEquals(0, cache.size());
+        cache.put(TEST_NAME, 1, getFeatures(0));
+        assertEquals(getFeatures(0), new ImsServiceFeatureCache(mFile).get(TEST_NAME, 1));
+    }
+}
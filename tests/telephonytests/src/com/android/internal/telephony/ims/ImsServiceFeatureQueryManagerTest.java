@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.ims;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.telephony.ims.ImsService;
+import android.telephony.ims.aidl.IImsServiceController;
+import android.telephony.ims.feature.ImsFeature;
+import android.telephony.ims.stub.ImsFeatureConfiguration;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class ImsServiceFeatureQueryManagerTest extends ImsTestBase {
+    private static final ComponentName TEST_NAME = new ComponentName("TestPkg", "ImsService");
+    private static final ComponentName TEST_NAME_2 = new ComponentName("TestPkg2", "ImsService");
+    private static final int TEST_TIMEOUT_MS = 5000;
+    // Time given to a released query to finish on the executor.
+    private static final int QUERY_SETTLE_MS = 100;
+
+    @Mock
+    Context mMockContext;
+    @Mock
+    ImsServiceFeatureQueryManager.Listener mMockListener;
+
+    private ImsServiceFeatureQueryManager mQueryManager;
+    private final Map<ComponentName, ServiceConnection> mConnections = new ConcurrentHashMap<>();
+    // Released to let the blocked querySupportedImsFeatures calls return.
+    private final CountDownLatch mQueryRelease = new CountDownLatch(1);
+    private final Map<ComponentName, String> mQueryThreadNames = new ConcurrentHashMap<>();
+    private CountDownLatch mQueriesStarted;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        doAnswer(invocation -> {
+            Intent intent = invocation.getArgument(0);
+            mConnections.put(intent.getComponent(), invocation.getArgument(1));
+            return true;
+        }).when(mMockContext).bindService(any(Intent.class), any(ServiceConnection.class),
+                anyInt());
+        mQueryManager = new ImsServiceFeatureQueryManager(mMockContext, mMockListener);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        mQueryRelease.countDown();
+        super.tearDown();
+    }
+
+    private static ImsFeatureConfiguration getConfiguration(int slotId) {
+        return new ImsFeatureConfiguration.Builder()
+                .addFeature(slotId, ImsFeature.FEATURE_MMTEL)
+                .build();
+    }
+
+    /** Connect the ImsService, whose query blocks until {@link #mQueryRelease} is released. */
+    private void connect(ComponentName name, ImsFeatureConfiguration config) throws Exception {
+        IImsServiceController controller = mock(IImsServiceController.class);
+        when(controller.querySupportedImsFeatures()).thenAnswer(invocation -> {
+            mQueryThreadNames.put(name, Thread.currentThread().getName());
+            mQueriesStarted.countDown();
+            mQueryRelease.await(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return config;
+        });
+        IBinder binder = mock(IBinder.class);
+        when(binder.queryLocalInterface(anyString())).thenReturn(controller);
+        mConnections.get(name).onServiceConnected(name, binder);
+    }
+
+    @Test
+    @SmallTest
+    public void testQueriesRunConcurrently() throws Exception {
+        mQueriesStarted = new CountDownLatch(2);
+        assertTrue(mQueryManager.startQuery(TEST_NAME, ImsService.SERVICE_INTERFACE));
+        assertTrue(mQueryManager.startQuery(TEST_NAME_2, ImsService.SERVICE_INTERFACE));
+
+        connect(TEST_NAME, getConfiguration(0));
+        connect(TEST_NAME_2, getConfiguration(1));
+        // Both queries are blocked in the ImsServices at the same time.
+        assertTrue(mQueriesStarted.await(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mQueryManager.isQueryInProgress());
+        assertTrue(mQueryThreadNames.get(TEST_NAME).startsWith("ImsFeatureQuery-"));
+        assertTrue(mQueryThreadNames.get(TEST_NAME_2).startsWith("ImsFeatureQuery-"));
+
+        mQueryRelease.countDown();
+        verify(mMockListener, timeout(TEST_TIMEOUT_MS)).onComplete(TEST_NAME,
+                getConfiguration(0).getServiceFeatures());
+        verify(mMockListener, timeout(TEST_TIMEOUT_MS)).onComplete(TEST_NAME_2,
+                getConfiguration(1).getServiceFeatures());
+        verify(mMockContext, times(2)).unbindService(any(ServiceConnection.class));
+        assertFalse(mQueryManager.isQueryInProgress());
+    }
+
+    @Test
+    @SmallTest
+    public void testCleanupReportsOnce() throws Exception {
+        mQueriesStarted = new CountDownLatch(1);
+        assertTrue(mQueryManager.startQuery(TEST_NAME, ImsService.SERVICE_INTERFACE));
+        connect(TEST_NAME, getConfiguration(0));
+        assertTrue(mQueriesStarted.await(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // The binding dies while the query is running on the executor.
+        ServiceConnection connection = mConnections.get(TEST_NAME);
+        connection.onBindingDied(TEST_NAME);
+        verify(mMockListener).onError(TEST_NAME);
+        assertFalse(mQueryManager.isQueryInProgress());
+
+        // The query finishing afterwards is not reported, and doesn't unbind again.
+        mQueryRelease.countDown();
+        Thread.sleep(QUERY_SETTLE_MS);
+        verify(mMockListener, never()).onComplete(any(), any());
+        verify(mMockListener, never()).onPermanentError(any());
+        verify(mMockContext, times(1)).unbindService(connection);
+
+        // A new query can be started for the ImsService.
+        assertTrue(mQueryManager.startQuery(TEST_NAME, ImsService.SERVICE_INTERFACE));
+        assertTrue(mQueryManager.isQueryInProgress());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.imsphone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.telecom.Call;
+import android.telecom.Connection;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.ims.internal.ConferenceParticipant;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class ConferenceEventProcessorTest {
+    private static final long CONNECT_TIME = 1000L;
+
+    private ConferenceEventProcessor mProcessor;
+    private int mLookups;
+
+    @Before
+    public void setUp() {
+        mProcessor = new ConferenceEventProcessor();
+        mLookups = 0;
+    }
+
+    private static ConferenceParticipant createParticipant(int index, int state) {
+        Uri handle = Uri.parse("tel:+1650555" + String.format("%04d", index));
+        Uri endpoint = Uri.parse("sip:+1650555" + String.format("%04d", index) + "@ims.test");
+        return new ConferenceParticipant(handle, "Participant " + index, endpoint, state,
+                Call.Details.DIRECTION_UNKNOWN);
+    }
+
+    private boolean resolve(ConferenceParticipant participant) {
+        mLookups++;
+        participant.setConnectTime(CONNECT_TIME);
+        participant.setCallDirection(Call.Details.DIRECTION_OUTGOING);
+        return true;
+    }
+
+    private boolean process(List<ConferenceParticipant> participants) {
+        return mProcessor.process(participants, p -> resolve(p));
+    }
+
+    @Test
+    @SmallTest
+    public void testUnchangedUpdateNotForwarded() {
+        List<ConferenceParticipant> participants = new ArrayList<>();
+        participants.add(createParticipant(0, Connection.STATE_ACTIVE));
+        participants.add(createParticipant(1, Connection.STATE_ACTIVE));
+        assertTrue(process(participants));
+        assertEquals(2, mProcessor.getLastChangedCount());
+
+        // The same participants, parsed again.
+        participants = new ArrayList<>();
+        participants.add(createParticipant(0, Connection.STATE_ACTIVE));
+        participants.add(createParticipant(1, Connection.STATE_ACTIVE));
+        assertFalse(process(participants));
+        assertEquals(0, mProcessor.getLastChangedCount());
+        // The connect time is carried over without another lookup.
+        assertEquals(2, mLookups);
+        assertEquals(CONNECT_TIME, participants.get(1).getConnectTime());
+        assertEquals(Call.Details.DIRECTION_OUTGOING, participants.get(1).getCallDirection());
+    }
+
+    @Test
+    @SmallTest
+    public void testStateChangeAndRemoval() {
+        List<ConferenceParticipant> participants = new ArrayList<>();
+        participants.add(createParticipant(0, Connection.STATE_ACTIVE));
+        participants.add(createParticipant(1, Connection.STATE_ACTIVE));
+        process(participants);
+
+        participants = new ArrayList<>();
+        participants.add(createParticipant(0, Connection.STATE_HOLDING));
+        assertTrue(process(participants));
+        // Participant 0 changed and participant 1 left.
+        assertEquals(2, mProcessor.getLastChangedCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testUnresolvedConnectTimeRetried() {
+        List<ConferenceParticipant> participants = new ArrayList<>();
+        participants.add(createParticipant(0, Connection.STATE_ACTIVE));
+        mProcessor.process(participants, p -> false);
+
+        participants = new ArrayList<>();
+        participants.add(createParticipant(0, Connection.STATE_ACTIVE));
+        // The connect time resolved for the first time is a change to forward.
+        assertTrue(process(participants));
+        assertEquals(1, mLookups);
+        assertEquals(CONNECT_TIME, participants.get(0).getConnectTime());
+
+        participants = new ArrayList<>();
+        participants.add(createParticipant(0, Connection.STATE_ACTIVE));
+        assertFalse(process(participants));
+    }
+
+    /**
+     * Replays a synthetic CEP stream of a large conference, in which each update changes the
+     * state of one participant.
+     */
+    @Test
+    @SmallTest
+    public void testReplayConferenceEventStream() {
+        final int numParticipants = 40;
+        final int numUpdates = 500;
+        Random random = new Random(42);
+        int[] states = new int[numParticipants];
+        for (int i = 0; i < numParticipants; i++) {
+            states[i] = Connection.STATE_ACTIVE;
+        }
+
+        int forwarded = 0;
+        for (int update = 0; update < numUpdates; update++) {
+            // Every other update repeats the previous state, as a CEP refresh would.
+            if (update % 2 == 1) {
+                int changed = random.nextInt(numParticipants);
+                states[changed] = states[changed] == Connection.STATE_ACTIVE
+                        ? Connection.STATE_HOLDING : Connection.STATE_ACTIVE;
+            }
+            List<ConferenceParticipant> participants = new ArrayList<>(numParticipants);
+            for (int i = 0; i < numParticipants; i++) {
+                participants.add(createParticipant(i, states[i]));
+            }
+            if (process(participants)) {
+                forwarded++;
+                int expectedChanged = update == 0 ? numParticipants : 1;
+                assertEquals(expectedChanged, mProcessor.getLastChangedCount());
+            }
+            for (ConferenceParticipant participant : participants) {
+                assertEquals(CONNECT_TIME, participant.getConnectTime());
+            }
+        }
+
+        assertEquals(1 + numUpdates / 2, forwarded);
+        assertEquals(numParticipants, mLookups);
+        assertEquals(numParticipants, mProcessor.getConnectTimeLookupCount());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.imsphone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.telecom.Call;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ConnectTimeCacheTest {
+    private static final long TIMEOUT_MS = 60000;
+    private static final int MAX_ENTRIES = 4;
+    private static final String KEY_1 = "+16505550001";
+    private static final String KEY_2 = "+16505550002";
+
+    private long mNow;
+    private ConnectTimeCache mCache;
+
+    @Before
+    public void setUp() {
+        mNow = 1000;
+        mCache = new ConnectTimeCache(TIMEOUT_MS, MAX_ENTRIES, () -> mNow);
+    }
+
+    private void put(String key, long connectTime) {
+        mCache.put(key, connectTime, connectTime, Call.Details.DIRECTION_INCOMING);
+    }
+
+    @Test
+    @SmallTest
+    public void testGetKey() {
+        assertEquals("+16505550001", mCache.getKey("6505550001", "us"));
+        assertEquals("+16505550001", mCache.getKey("6505550001", "us"));
+        assertEquals("6505550001", mCache.getKey("6505550001", null));
+    }
+
+    @Test
+    @SmallTest
+    public void testLatestConnectTimeKept() {
+        put(KEY_1, 200);
+        put(KEY_1, 100);
+        assertEquals(200, mCache.get(KEY_1).getConnectTime());
+        put(KEY_1, 300);
+        assertEquals(300, mCache.get(KEY_1).getConnectTime());
+        // Known numbers can be looked up again.
+        assertEquals(300, mCache.get(KEY_1).getConnectTime());
+        assertNull(mCache.get(KEY_2));
+
+        mCache.remove(KEY_1);
+        assertNull(mCache.get(KEY_1));
+    }
+
+    @Test
+    @SmallTest
+    public void testUnknownNumbersHandedOutInOrder() {
+        put(null, 100);
+        put(null, 200);
+        assertEquals(100, mCache.get(null).getConnectTime());
+        assertEquals(200, mCache.get(null).getConnectTime());
+        assertNull(mCache.get(null));
+    }
+
+    @Test
+    @SmallTest
+    public void testExpiry() {
+        put(KEY_1, 100);
+        put(null, 100);
+        mNow += TIMEOUT_MS / 2;
+        put(KEY_2, 200);
+        put(null, 200);
+        assertEquals(4, mCache.size());
+
+        mNow += TIMEOUT_MS / 2 + 1;
+        assertEquals(2, mCache.size());
+        assertNull(mCache.get(KEY_1));
+        assertEquals(200, mCache.get(KEY_2).getConnectTime());
+        assertEquals(200, mCache.get(null).getConnectTime());
+
+        mNow += TIMEOUT_MS;
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testBounded() {
+        for (int i = 0; i < 100; i++) {
+            put("+1650555" + String.format("%04d", i), i);
+            put(null, i);
+        }
+        assertEquals(MAX_ENTRIES, mCache.size());
+        assertNull(mCache.get("+16505550000"));
+        assertEquals(99, mCache.get("+16505550099").getConnectTime());
+        assertEquals(98, mCache.get(null).getConnectTime());
+    }
+}
@@ -109,6 +109,8 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @RunWith(AndroidTestingRunner.class)
 @TestableLooper.RunWithLooper
@@ -1145,6 +1147,67 @@ public class ImsPhoneCallTrackerTest extends TelephonyTest {
                                 "SERVICE not allowed in this location")));
     }
 
+    @Test
+    @SmallTest
+    public void testFindConnectionWithConcurrentCallbacks() throws Exception {
+        final int numCalls = 50;
+        final int numThreads = 8;
+        final int callbacksPerThread = 2000;
+        ImsCall[] imsCalls = new ImsCall[numCalls];
+        ImsPhoneConnection[] connections = new ImsPhoneConnection[numCalls];
+        for (int i = 0; i < numCalls; i++) {
+            imsCalls[i] = mock(ImsCall.class);
+            connections[i] = mock(ImsPhoneConnection.class);
+            when(connections[i].getImsCall()).thenReturn(imsCalls[i]);
+            mCTUT.getConnections().add(connections[i]);
+        }
+        ImsCall unknownCall = mock(ImsCall.class);
+
+        final AtomicLong maxLatencyNs = new AtomicLong();
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < callbacksPerThread; i++) {
+                    ImsCall imsCall = imsCalls[(offset + i) % numCalls];
+                    long start = System.nanoTime();
+                    mCTUT.getImsCallListener().onRttMessageReceived(imsCall, "a");
+                    mCTUT.getImsCallListener().onRttMessageReceived(unknownCall, "b");
+                    maxLatencyNs.accumulateAndGet(System.nanoTime() - start, Math::max);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int expected = numThreads * callbacksPerThread / numCalls;
+        for (ImsPhoneConnection connection : connections) {
+            verify(connection, times(expected)).onRttMessageReceived("a");
+            verify(connection, never()).onRttMessageReceived("b");
+        }
+        logd("testFindConnectionWithConcurrentCallbacks: max callback latency "
+                + TimeUnit.NANOSECONDS.toMicros(maxLatencyNs.get()) + "us");
+    }
+
+    @Test
+    @SmallTest
+    public void testFindConnectionAfterImsCallCleared() {
+        ImsCall otherCall = mock(ImsCall.class);
+        when(mImsPhoneConnection.getImsCall()).thenReturn(mImsCall);
+        mCTUT.getConnections().add(mImsPhoneConnection);
+        mCTUT.getImsCallListener().onRttMessageReceived(mImsCall, "a");
+        verify(mImsPhoneConnection).onRttMessageReceived("a");
+
+        // The connection no longer belongs to the call once its ImsCall changed.
+        when(mImsPhoneConnection.getImsCall()).thenReturn(otherCall);
+        mCTUT.getImsCallListener().onRttMessageReceived(mImsCall, "b");
+        verify(mImsPhoneConnection, never()).onRttMessageReceived("b");
+        mCTUT.getImsCallListener().onRttMessageReceived(otherCall, "c");
+        verify(mImsPhoneConnection).onRttMessageReceived("c");
+    }
+
     @Test
     @SmallTest
     public void testNoHoldErrorMessageWhenCallDisconnected() {
@@ -34,7 +34,9 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -212,6 +214,97 @@ public class ImsRttTextHandlerTest extends TelephonyTest {
         Assert.assertEquals(LONG_TEXT, mNetworkWriter.getContents());
     }
 
+    /**
+     * Test that the text of several calls is read on the shared reader and sent without waiting
+     * for the buffering delay once enough characters have accumulated.
+     */
+    @Test
+    public void testMultipleCalls() throws Exception {
+        MockNetworkWriter networkWriter = new MockNetworkWriter();
+        ImsRttTextHandler rttTextHandler = new ImsRttTextHandler(mHandlerThread.getLooper(),
+                networkWriter);
+        ParcelFileDescriptor[] toTextHandler = ParcelFileDescriptor.createReliablePipe();
+        ParcelFileDescriptor[] fromTextHandler = ParcelFileDescriptor.createReliablePipe();
+        rttTextHandler.initialize(
+                new Connection.RttTextStream(fromTextHandler[1], toTextHandler[0]));
+        OutputStreamWriter pipeToHandler = new OutputStreamWriter(
+                new ParcelFileDescriptor.AutoCloseOutputStream(toTextHandler[1]));
+        try {
+            CountDownLatch readNotifier = new CountDownLatch(1);
+            mRttTextHandler.setReadNotifier(readNotifier);
+            CountDownLatch otherReadNotifier = new CountDownLatch(1);
+            rttTextHandler.setReadNotifier(otherReadNotifier);
+
+            mPipeToHandler.write("abcde");
+            mPipeToHandler.flush();
+            pipeToHandler.write("fghij");
+            pipeToHandler.flush();
+            Assert.assertTrue(readNotifier.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+            Assert.assertTrue(otherReadNotifier.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+            waitForHandlerAction(mRttTextHandler, TEST_TIMEOUT);
+
+            // Enough characters were buffered to send them without waiting for the delay.
+            Assert.assertEquals("abcde", mNetworkWriter.getContents());
+            Assert.assertEquals(1, mNetworkWriter.getNumWrites());
+            Assert.assertEquals("fghij", networkWriter.getContents());
+            Assert.assertEquals(1, networkWriter.getNumWrites());
+        } finally {
+            pipeToHandler.close();
+            fromTextHandler[0].close();
+            rttTextHandler.tearDown();
+            waitForHandlerAction(rttTextHandler, TEST_TIMEOUT);
+        }
+    }
+
+    /**
+     * Test that a UTF-8 sequence split across writes doesn't block the shared reader, and is sent
+     * once complete.
+     */
+    @Test
+    public void testSplitUtf8SequenceDoesNotBlockReader() throws Exception {
+        MockNetworkWriter networkWriter = new MockNetworkWriter();
+        ImsRttTextHandler rttTextHandler = new ImsRttTextHandler(mHandlerThread.getLooper(),
+                networkWriter);
+        ParcelFileDescriptor[] toTextHandler = ParcelFileDescriptor.createReliablePipe();
+        ParcelFileDescriptor[] fromTextHandler = ParcelFileDescriptor.createReliablePipe();
+        rttTextHandler.initialize(
+                new Connection.RttTextStream(fromTextHandler[1], toTextHandler[0]));
+        OutputStream pipeToHandler =
+                new ParcelFileDescriptor.AutoCloseOutputStream(toTextHandler[1]);
+        try {
+            String text = "abcd\u00e9";
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            CountDownLatch otherReadNotifier = new CountDownLatch(1);
+            rttTextHandler.setReadNotifier(otherReadNotifier);
+            pipeToHandler.write(bytes, 0, bytes.length - 1);
+            pipeToHandler.flush();
+            Assert.assertTrue(otherReadNotifier.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+
+            // The text of another call is still read.
+            CountDownLatch readNotifier = new CountDownLatch(1);
+            mRttTextHandler.setReadNotifier(readNotifier);
+            mPipeToHandler.write("fghij");
+            mPipeToHandler.flush();
+            Assert.assertTrue(readNotifier.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+            waitForHandlerAction(mRttTextHandler, TEST_TIMEOUT);
+            Assert.assertEquals("fghij", mNetworkWriter.getContents());
+
+            otherReadNotifier = new CountDownLatch(1);
+            rttTextHandler.setReadNotifier(otherReadNotifier);
+            pipeToHandler.write(bytes, bytes.length - 1, 1);
+            pipeToHandler.flush();
+            Assert.assertTrue(otherReadNotifier.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+            waitForMs(ImsRttTextHandler.MAX_BUFFERING_DELAY_MILLIS + 100);
+            waitForHandlerAction(rttTextHandler, TEST_TIMEOUT);
+            Assert.assertEquals(text, networkWriter.getContents());
+        } finally {
+            pipeToHandler.close();
+            fromTextHandler[0].close();
+            rttTextHandler.tearDown();
+            waitForHandlerAction(rttTextHandler, TEST_TIMEOUT);
+        }
+    }
+
     @Test
     public void testProperTransmissionFromNetworkToInCall() throws Exception {
         // Make sure that nothing is in the pipe from the network to incall (us)
@@ -201,6 +201,38 @@ public class CallQualityMetricsTest extends TelephonyTest {
         assertEquals(14, ulSummary.totalDurationWithQualityInformationInSeconds);
     }
 
+    /**
+     * Verify that good/bad quality durations are correct for a long call with many call quality
+     * reports, some of them reported out of order.
+     */
+    @Test
+    public void testTotalDurations_LongCall() {
+        // Every second, DL quality is bad for one second out of four and UL quality is bad for
+        // one second out of two. Pairs of reports are swapped.
+        final int numReports = 5000;
+        for (int i = 0; i < numReports; i += 2) {
+            for (int j : new int[] {i + 1, i}) {
+                int durationMs = (j + 1) * 1000;
+                int dlQuality = j % 4 == 0
+                        ? CallQuality.CALL_QUALITY_BAD : CallQuality.CALL_QUALITY_EXCELLENT;
+                int ulQuality = j % 2 == 0
+                        ? CallQuality.CALL_QUALITY_BAD : CallQuality.CALL_QUALITY_EXCELLENT;
+                mCallQualityMetrics.saveCallQuality(
+                        constructCallQuality(dlQuality, ulQuality, durationMs));
+            }
+        }
+
+        CallQualitySummary dlSummary = mCallQualityMetrics.getCallQualitySummaryDl();
+        assertEquals(numReports * 3 / 4, dlSummary.totalGoodQualityDurationInSeconds);
+        assertEquals(numReports / 4, dlSummary.totalBadQualityDurationInSeconds);
+        assertEquals(numReports, dlSummary.totalDurationWithQualityInformationInSeconds);
+
+        CallQualitySummary ulSummary = mCallQualityMetrics.getCallQualitySummaryUl();
+        assertEquals(numReports / 2, ulSummary.totalGoodQualityDurationInSeconds);
+        assertEquals(numReports / 2, ulSummary.totalBadQualityDurationInSeconds);
+        assertEquals(numReports, ulSummary.totalDurationWithQualityInformationInSeconds);
+    }
+
     /**
      * Verify that a new CallQualityMetrics object is able to return empty summaries if no
      * CallQuality is reported for the duration of a call.